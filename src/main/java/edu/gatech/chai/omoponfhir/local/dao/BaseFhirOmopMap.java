@@ -1,7 +1,6 @@
 package edu.gatech.chai.omoponfhir.local.dao;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 import org.slf4j.Logger;
@@ -10,21 +9,20 @@ import org.slf4j.LoggerFactory;
 public class BaseFhirOmopMap {
 	final static Logger logger = LoggerFactory.getLogger(BaseFhirOmopMap.class);
 
-	public Connection connect() {
-		String url = "jdbc:sqlite::resource:omoponfhir.db";
-		Connection conn = null;
+	/**
+	 * Returns a pooled connection to the local mapping database. Closing it
+	 * returns it to the pool.
+	 * 
+	 * @throws SQLException if the database cannot be opened. It is never null.
+	 */
+	public Connection connect() throws SQLException {
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection(url);
+			Connection conn = LocalDataSource.getConnection();
 			logger.debug("Connected to database");
+			return conn;
 		} catch (SQLException e) {
-			logger.debug(e.getMessage());
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			logger.debug(e.getMessage());
-			e.printStackTrace();
+			logger.error("Failed to connect to the local mapping database: " + e.getMessage());
+			throw e;
 		}
-
-		return conn;
 	}
 }
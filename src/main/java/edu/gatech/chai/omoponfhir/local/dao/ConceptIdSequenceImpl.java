@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConceptIdSequence table in the local SQLite store. Each row holds the next
+ * free id of a sequence. A reservation moves the next free id forward in one
+ * committed update, so a reserved range is never handed out again, even
+ * after a crash.
+ */
+public class ConceptIdSequenceImpl extends BaseFhirOmopMap implements ConceptIdSequence {
+	final static Logger logger = LoggerFactory.getLogger(ConceptIdSequenceImpl.class);
+
+	private static ConceptIdSequenceImpl conceptIdSequence = new ConceptIdSequenceImpl();
+
+	private volatile boolean tableReady = false;
+
+	public static ConceptIdSequenceImpl getInstance() {
+		return conceptIdSequence;
+	}
+
+	private void createTable(Connection conn) throws SQLException {
+		if (tableReady) {
+			return;
+		}
+
+		synchronized (this) {
+			if (tableReady) {
+				return;
+			}
+
+			try (Statement stmt = conn.createStatement()) {
+				stmt.executeUpdate("CREATE TABLE IF NOT EXISTS ConceptIdSequence ("
+						+ "name TEXT PRIMARY KEY, next_id INTEGER NOT NULL, updated_time INTEGER NOT NULL)");
+			}
+			tableReady = true;
+		}
+	}
+
+	/**
+	 * Reserves count ids of the sequence and returns the first one. If the
+	 * sequence does not exist yet, it starts at initialValue. Returns null if
+	 * the local store cannot be written.
+	 */
+	@Override
+	public synchronized Long reserve(String name, long count, LongSupplier initialValue) {
+		String updateSql = "UPDATE ConceptIdSequence SET next_id=next_id+?, updated_time=? WHERE name=?";
+		String selectSql = "SELECT next_id FROM ConceptIdSequence WHERE name=?";
+		String insertSql = "INSERT INTO ConceptIdSequence (name, next_id, updated_time) values (?,?,?)";
+
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			conn.setAutoCommit(false);
+			try {
+				long now = System.currentTimeMillis();
+
+				// The update takes the write lock, so the read below sees our own
+				// reservation even if another process uses the same store.
+				int updated;
+				try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+					pstmt.setLong(1, count);
+					pstmt.setLong(2, now);
+					pstmt.setString(3, name);
+					updated = pstmt.executeUpdate();
+				}
+
+				long start;
+				if (updated == 0) {
+					start = initialValue.getAsLong();
+					try (PreparedStatement pstmt = conn.prepareStatement(insertSql)) {
+						pstmt.setString(1, name);
+						pstmt.setLong(2, start + count);
+						pstmt.setLong(3, now);
+						pstmt.executeUpdate();
+					}
+				} else {
+					try (PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
+						pstmt.setString(1, name);
+						try (ResultSet rs = pstmt.executeQuery()) {
+							rs.next();
+							start = rs.getLong(1) - count;
+						}
+					}
+				}
+
+				conn.commit();
+				return start;
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to reserve ids of sequence " + name + ": " + e.getMessage());
+		}
+
+		return null;
+	}
+}
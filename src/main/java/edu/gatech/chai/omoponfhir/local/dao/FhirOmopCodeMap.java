@@ -1,6 +1,7 @@
 package edu.gatech.chai.omoponfhir.local.dao;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.List;
 
 import org.hl7.fhir.r4.model.Coding;
@@ -8,7 +9,7 @@ import org.hl7.fhir.r4.model.Coding;
 import edu.gatech.chai.omoponfhir.local.model.FhirOmopCodeMapEntry;
 
 public interface FhirOmopCodeMap {
-	public Connection connect();
+	public Connection connect() throws SQLException;
 	
 	public int save(FhirOmopCodeMapEntry codeMapEntry);
 	public void update(FhirOmopCodeMapEntry codeMapEntry);
@@ -16,16 +16,18 @@
 package edu.gatech.chai.omoponfhir.local.dao;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.List;
 
 import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
 
 public interface FhirOmopVocabularyMap {
-	public Connection connect();
+	public Connection connect() throws SQLException;
 	
 	public int save(FhirOmopVocabularyMapEntry conceptMapEntry);
 	public void update(FhirOmopVocabularyMapEntry conceptMapEntry);
 	public void delete(String omopConceptCodeName);
+	/** Returns all entries, or null if the table could not be read. */
 	public List<FhirOmopVocabularyMapEntry> get();
 	public String getOmopVocabularyFromFhirSystemName(String fhirSystemName);
 	public String getFhirSystemNameFromOmopVocabulary(String omopConceptCodeName);
@@ -30,6 +30,52 @@ import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
 public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOmopVocabularyMap {
 	final static Logger logger = LoggerFactory.getLogger(FhirOmopVocabularyMapImpl.class);
 
+	private static FhirOmopVocabularyMapImpl fhirOmopVocabularyMap = new FhirOmopVocabularyMapImpl();
+
+	// In-memory copy of the FhirOmopVocabularyMap table. Lookups are served from
+	// here. save/update/delete replace it with a freshly loaded one.
+	private static volatile FhirOmopVocabularyMapSnapshot snapshot = null;
+
+	public static FhirOmopVocabularyMapImpl getInstance() {
+		return fhirOmopVocabularyMap;
+	}
+
+	public FhirOmopVocabularyMapSnapshot getSnapshot() {
+		FhirOmopVocabularyMapSnapshot mySnapshot = snapshot;
+		if (mySnapshot == null) {
+			synchronized (FhirOmopVocabularyMapImpl.class) {
+				mySnapshot = snapshot;
+				if (mySnapshot == null) {
+					List<FhirOmopVocabularyMapEntry> entries = get();
+					if (entries == null) {
+						// Do not keep an empty map after a failed read. The next
+						// lookup tries the table again.
+						return new FhirOmopVocabularyMapSnapshot(new ArrayList<FhirOmopVocabularyMapEntry>());
+					}
+					mySnapshot = new FhirOmopVocabularyMapSnapshot(entries);
+					snapshot = mySnapshot;
+				}
+			}
+		}
+
+		return mySnapshot;
+	}
+
+	public void reloadSnapshot() {
+		List<FhirOmopVocabularyMapEntry> entries = get();
+		synchronized (FhirOmopVocabularyMapImpl.class) {
+			if (entries == null) {
+				// The old snapshot may be stale now. Drop it so that the next
+				// lookup loads the table again.
+				snapshot = null;
+				logger.warn("FhirOmopVocabularyMap snapshot could not be reloaded. It will be loaded on next lookup");
+				return;
+			}
+			snapshot = new FhirOmopVocabularyMapSnapshot(entries);
+		}
+		logger.debug("FhirOmopVocabularyMap snapshot reloaded");
+	}
+
 	@Override
 	public int save(FhirOmopVocabularyMapEntry conceptMapEntry) {
 		String sql = "INSERT INTO FhirOmopVocabularyMap (omop_vocabulary_id, fhir_url_system, other_system) values (?,?,?)";
@@ -40,6 +86,7 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 			pstmt.setString(3, conceptMapEntry.getOtherSystemName());
 
 			pstmt.executeUpdate();
+			reloadSnapshot();
 
 			logger.info("New Map entry data added (" + conceptMapEntry.getOmopConceptCodeName() + ", "
 					+ conceptMapEntry.getFhirUrlSystemName() + ", " + conceptMapEntry.getOtherSystemName());
@@ -60,10 +107,12 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 			pstmt.setString(2, conceptMapEntry.getOtherSystemName());
 			pstmt.setString(3, conceptMapEntry.getOmopConceptCodeName());
 			pstmt.executeUpdate();
+			reloadSnapshot();
 			logger.info("Map entry data (" + conceptMapEntry.getOmopConceptCodeName() + ") updated to ("
 					+ conceptMapEntry.getFhirUrlSystemName() + ", " + conceptMapEntry.getOtherSystemName() + ")");
 		} catch (SQLException e) {
-			System.out.println(e.getMessage());
+			logger.error("Failed to update FhirOmopVocabularyMap entry (" + conceptMapEntry.getOmopConceptCodeName()
+					+ "): " + e.getMessage());
 		}
 	}
 
@@ -74,20 +123,28 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			pstmt.setString(1, omopConceptCodeName);
 			pstmt.executeUpdate();
+			reloadSnapshot();
 			logger.info("filter data ("+omopConceptCodeName+") deleted");
 		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		}		
+			logger.error("Failed to delete FhirOmopVocabularyMap entry (" + omopConceptCodeName + "): " + e.getMessage());
+		}
 	}
 
+	/**
+	 * Reads the whole FhirOmopVocabularyMap table.
+	 * 
+	 * @return all entries, or null if the table could not be read. A partial
+	 *         list is never returned.
+	 */
 	@Override
 	public List<FhirOmopVocabularyMapEntry> get() {
 		List<FhirOmopVocabularyMapEntry> conceptMapEntryList = new ArrayList<FhirOmopVocabularyMapEntry>();
 		
 		String sql = "SELECT * FROM FhirOmopVocabularyMap";
 
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			ResultSet rs = pstmt.executeQuery();
+		try (Connection conn = this.connect();
+				PreparedStatement pstmt = conn.prepareStatement(sql);
+				ResultSet rs = pstmt.executeQuery()) {
 			while (rs.next()) {
 				FhirOmopVocabularyMapEntry conceptMapEntry = new FhirOmopVocabularyMapEntry();
 				conceptMapEntry.setOmopConceptCodeName(rs.getString("omop_vocabulary_id"));
@@ -97,53 +154,26 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 			}
 			logger.info(conceptMapEntryList.size()+" Concept Map entries obtained");
 		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		}		
+			logger.error("Failed to read FhirOmopVocabularyMap: " + e.getMessage());
+			return null;
+		}
 
 		return conceptMapEntryList;
 	}
 
 	@Override
 	public String getOmopVocabularyFromFhirSystemName(String fhirSystemName) {
-		String retv = "None";
-		String sql = "SELECT * FROM FhirOmopVocabularyMap where fhir_url_system=? or other_system=?";
+		String retv = getSnapshot().getOmopVocabulary(fhirSystemName);
+		logger.debug("Omop Vocabulary,"+retv+" , found for "+fhirSystemName);
 
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			pstmt.setString(1, fhirSystemName.trim());
-			pstmt.setString(2, fhirSystemName.trim());
-			
-			ResultSet rs = pstmt.executeQuery();
-			if (rs.next()) {
-				retv = rs.getString("omop_vocabulary_id");
-			}
-			logger.debug("Omop Vocabulary,"+retv+" , found for "+fhirSystemName);
-		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		}
-		
 		return retv;
 	}
 
 	@Override
 	public String getFhirSystemNameFromOmopVocabulary(String omopVocabulary) {
-		String retv = "None";
-		String sql = "SELECT * FROM FhirOmopVocabularyMap where omop_vocabulary_id=?";
+		String retv = getSnapshot().getFhirSystemName(omopVocabulary);
+		logger.debug("FHIR System name,"+retv+" , found for "+omopVocabulary);
 
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			pstmt.setString(1, omopVocabulary);
-			
-			ResultSet rs = pstmt.executeQuery();
-			if (rs.next()) {
-				retv = rs.getString("fhir_url_system");
-				if (retv == null) {
-					retv = rs.getString("other_system");
-				}
-			}
-			logger.debug("FHIR System name,"+retv+" , found for "+omopVocabulary);
-		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		}
-		
 		return retv;
 	}
 
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.dao;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
+
+/**
+ * Immutable, bidirectional copy of the FhirOmopVocabularyMap table. A new
+ * snapshot is built whenever the table changes and replaces the old one as a
+ * whole, so readers never see a partially loaded map.
+ */
+public final class FhirOmopVocabularyMapSnapshot {
+	private final Map<String, String> omopVocabularyByFhirSystem;
+	private final Map<String, String> fhirSystemByOmopVocabulary;
+
+	public FhirOmopVocabularyMapSnapshot(List<FhirOmopVocabularyMapEntry> entries) {
+		Map<String, String> omopVocabularyByFhirSystem = new HashMap<String, String>();
+		Map<String, String> fhirSystemByOmopVocabulary = new HashMap<String, String>();
+
+		// Keep the first row for a key. This is what the SQL lookups returned
+		// when more than one row matched.
+		for (FhirOmopVocabularyMapEntry entry : entries) {
+			String omopVocabulary = entry.getOmopConceptCodeName();
+			String fhirUrlSystem = entry.getFhirUrlSystemName();
+			String otherSystem = entry.getOtherSystemName();
+
+			if (fhirUrlSystem != null && !omopVocabularyByFhirSystem.containsKey(fhirUrlSystem)) {
+				omopVocabularyByFhirSystem.put(fhirUrlSystem, omopVocabulary);
+			}
+			if (otherSystem != null && !omopVocabularyByFhirSystem.containsKey(otherSystem)) {
+				omopVocabularyByFhirSystem.put(otherSystem, omopVocabulary);
+			}
+
+			if (omopVocabulary != null && !fhirSystemByOmopVocabulary.containsKey(omopVocabulary)) {
+				if (fhirUrlSystem != null) {
+					fhirSystemByOmopVocabulary.put(omopVocabulary, fhirUrlSystem);
+				} else {
+					fhirSystemByOmopVocabulary.put(omopVocabulary, otherSystem);
+				}
+			}
+		}
+
+		this.omopVocabularyByFhirSystem = Collections.unmodifiableMap(omopVocabularyByFhirSystem);
+		this.fhirSystemByOmopVocabulary = Collections.unmodifiableMap(fhirSystemByOmopVocabulary);
+	}
+
+	/**
+	 * @return OMOP vocabulary id for the FHIR system (url or other system name),
+	 *         or "None" if not mapped.
+	 */
+	public String getOmopVocabulary(String fhirSystemName) {
+		if (fhirSystemName == null) {
+			return "None";
+		}
+
+		String retv = omopVocabularyByFhirSystem.get(fhirSystemName.trim());
+		if (retv == null) {
+			return "None";
+		}
+
+		return retv;
+	}
+
+	/**
+	 * @return FHIR system for the OMOP vocabulary id, or "None" if not mapped.
+	 */
+	public String getFhirSystemName(String omopVocabulary) {
+		if (omopVocabulary == null || !fhirSystemByOmopVocabulary.containsKey(omopVocabulary)) {
+			return "None";
+		}
+
+		return fhirSystemByOmopVocabulary.get(omopVocabulary);
+	}
+
+	public int size() {
+		return fhirSystemByOmopVocabulary.size();
+	}
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import edu.gatech.chai.omoponfhir.local.model.ImportCheckpointEntry;
+
+/**
+ * Progress of local code mapping file imports, keyed by the path of the file
+ * relative to the mapping directory.
+ */
+public interface ImportCheckpoint {
+	public Connection connect() throws SQLException;
+
+	public ImportCheckpointEntry get(String fileName);
+	public void save(ImportCheckpointEntry entry);
+}
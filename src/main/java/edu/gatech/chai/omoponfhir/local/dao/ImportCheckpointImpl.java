@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omoponfhir.local.model.ImportCheckpointEntry;
+
+/**
+ * ImportCheckpoint table in the local SQLite store. A checkpoint is saved
+ * after each committed batch of a file, so that the import can resume there
+ * after a restart.
+ */
+public class ImportCheckpointImpl extends BaseFhirOmopMap implements ImportCheckpoint {
+	final static Logger logger = LoggerFactory.getLogger(ImportCheckpointImpl.class);
+
+	private static ImportCheckpointImpl importCheckpoint = new ImportCheckpointImpl();
+
+	private volatile boolean tableReady = false;
+
+	public static ImportCheckpointImpl getInstance() {
+		return importCheckpoint;
+	}
+
+	private void createTable(Connection conn) throws SQLException {
+		if (tableReady) {
+			return;
+		}
+
+		synchronized (this) {
+			if (tableReady) {
+				return;
+			}
+
+			try (Statement stmt = conn.createStatement()) {
+				// Checkpoints of the earlier layout were not keyed by the file path and
+				// cannot be checked against the file. Drop them; the files load again.
+				boolean hasFileSize = true;
+				try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(ImportCheckpoint)")) {
+					while (rs.next()) {
+						hasFileSize = false;
+						if ("file_size".equals(rs.getString("name"))) {
+							hasFileSize = true;
+							break;
+						}
+					}
+				}
+				if (!hasFileSize) {
+					logger.warn("Dropping ImportCheckpoint rows of the earlier layout");
+					stmt.executeUpdate("DROP TABLE ImportCheckpoint");
+				}
+
+				stmt.executeUpdate("CREATE TABLE IF NOT EXISTS ImportCheckpoint ("
+						+ "file_name TEXT PRIMARY KEY, file_size INTEGER NOT NULL, content_hash TEXT NOT NULL, "
+						+ "byte_offset INTEGER NOT NULL, line_number INTEGER NOT NULL, status TEXT NOT NULL, "
+						+ "updated_time INTEGER NOT NULL)");
+			}
+			tableReady = true;
+		}
+	}
+
+	@Override
+	public ImportCheckpointEntry get(String fileName) {
+		String sql = "SELECT * FROM ImportCheckpoint WHERE file_name=?";
+
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+				pstmt.setString(1, fileName);
+				try (ResultSet rs = pstmt.executeQuery()) {
+					if (rs.next()) {
+						return toEntry(rs);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to read import checkpoint: " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	@Override
+	public void save(ImportCheckpointEntry entry) {
+		String sql = "INSERT OR REPLACE INTO ImportCheckpoint (file_name, file_size, content_hash, byte_offset, line_number, status, updated_time) values (?,?,?,?,?,?,?)";
+
+		long now = System.currentTimeMillis();
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+				pstmt.setString(1, entry.getFileName());
+				pstmt.setLong(2, entry.getFileSize());
+				pstmt.setString(3, entry.getContentHash());
+				pstmt.setLong(4, entry.getByteOffset());
+				pstmt.setInt(5, entry.getLineNumber());
+				pstmt.setString(6, entry.getStatus());
+				pstmt.setLong(7, now);
+				pstmt.executeUpdate();
+				entry.setUpdatedTime(now);
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to save import checkpoint: " + e.getMessage());
+		}
+	}
+
+	private ImportCheckpointEntry toEntry(ResultSet rs) throws SQLException {
+		ImportCheckpointEntry entry = new ImportCheckpointEntry();
+		entry.setFileName(rs.getString("file_name"));
+		entry.setFileSize(rs.getLong("file_size"));
+		entry.setContentHash(rs.getString("content_hash"));
+		entry.setByteOffset(rs.getLong("byte_offset"));
+		entry.setLineNumber(rs.getInt("line_number"));
+		entry.setStatus(rs.getString("status"));
+		entry.setUpdatedTime(rs.getLong("updated_time"));
+
+		return entry;
+	}
+}
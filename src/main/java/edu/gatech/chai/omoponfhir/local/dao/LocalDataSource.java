@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection pool for the local omoponfhir.db SQLite store.
+ *
+ * The store keeps the vocabulary and code maps bundled in the classpath and
+ * the server's own state: the message queue, the import checkpoints and the
+ * local concept id sequence. So it must be on persistent storage.
+ * LOCAL_MAPPING_DB_PATH names the database file. When it is not set, the
+ * store is kept in .omoponfhir/omoponfhir.db under the user's home directory.
+ *
+ * On the first start, the bundled database is copied to that file. The
+ * SHA-256 of the bundled database is kept in the LocalStoreInfo table. When a
+ * new release bundles a different database, its FhirOmopVocabularyMap and
+ * FhirOmopCodeMap rows are added to the store at startup. Rows in the store
+ * are kept, so local changes are not lost, and the server state is not
+ * touched.
+ *
+ * All DAOs share a small pool of WAL mode connections to the file. Prepared
+ * statements are pooled per connection, so the same SQL is not prepared again
+ * for every call.
+ */
+public class LocalDataSource {
+	private static final Logger logger = LoggerFactory.getLogger(LocalDataSource.class);
+
+	private static final String BUNDLED_DATABASE = "omoponfhir.db";
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final String DEFAULT_DATABASE_DIRECTORY = ".omoponfhir";
+
+	private static volatile BasicDataSource dataSource = null;
+
+	private LocalDataSource() {
+	}
+
+	public static Connection getConnection() throws SQLException {
+		return getDataSource().getConnection();
+	}
+
+	public static String getDatabasePath() {
+		String dbPath = System.getenv("LOCAL_MAPPING_DB_PATH");
+		if (dbPath == null || dbPath.trim().isEmpty() || "none".equalsIgnoreCase(dbPath.trim())) {
+			// Not a temporary directory. It may be cleaned, which would lose queued
+			// messages and reuse local concept ids.
+			String defaultPath = Paths.get(System.getProperty("user.home"), DEFAULT_DATABASE_DIRECTORY, BUNDLED_DATABASE)
+					.toString();
+			logger.warn("LOCAL_MAPPING_DB_PATH is not set. Using " + defaultPath);
+			return defaultPath;
+		}
+
+		return dbPath.trim();
+	}
+
+	private static BasicDataSource getDataSource() throws SQLException {
+		BasicDataSource myDataSource = dataSource;
+		if (myDataSource == null) {
+			synchronized (LocalDataSource.class) {
+				myDataSource = dataSource;
+				if (myDataSource == null) {
+					myDataSource = createDataSource();
+					dataSource = myDataSource;
+				}
+			}
+		}
+
+		return myDataSource;
+	}
+
+	private static BasicDataSource createDataSource() throws SQLException {
+		Path dbPath = Paths.get(getDatabasePath());
+		String bundledHash;
+		try {
+			bundledHash = hashBundledDatabase();
+			copyBundledDatabase(dbPath);
+		} catch (IOException e) {
+			logger.error("Failed to copy bundled " + BUNDLED_DATABASE + " to " + dbPath);
+			throw new SQLException(e);
+		}
+
+		int poolSize = DEFAULT_POOL_SIZE;
+		String poolSizeStr = System.getenv("LOCAL_MAPPING_DB_POOL_SIZE");
+		if (poolSizeStr != null && !poolSizeStr.trim().isEmpty()) {
+			try {
+				int size = Integer.parseInt(poolSizeStr.trim());
+				if (size > 0) {
+					poolSize = size;
+				}
+			} catch (NumberFormatException e) {
+				logger.warn("LOCAL_MAPPING_DB_POOL_SIZE, " + poolSizeStr + ", is not a number. Using " + poolSize);
+			}
+		}
+
+		BasicDataSource myDataSource = new BasicDataSource();
+		myDataSource.setDriverClassName("org.sqlite.JDBC");
+		myDataSource.setUrl("jdbc:sqlite:" + dbPath.toString());
+
+		// These are read by the sqlite driver and applied to every new connection.
+		myDataSource.addConnectionProperty("journal_mode", "WAL");
+		myDataSource.addConnectionProperty("synchronous", "NORMAL");
+		myDataSource.addConnectionProperty("busy_timeout", "5000");
+
+		myDataSource.setInitialSize(1);
+		myDataSource.setMaxTotal(poolSize);
+		myDataSource.setMaxIdle(poolSize);
+		myDataSource.setMinIdle(1);
+		myDataSource.setPoolPreparedStatements(true);
+		myDataSource.setMaxOpenPreparedStatements(50 * poolSize);
+
+		logger.info("Local mapping database pool (" + poolSize + ") opened at " + dbPath);
+
+		try {
+			upgradeBundledTables(myDataSource, bundledHash);
+		} catch (SQLException | IOException e) {
+			logger.error("Failed to add the bundled " + BUNDLED_DATABASE + " rows to " + dbPath + ": "
+					+ e.getMessage());
+			try {
+				myDataSource.close();
+			} catch (SQLException closeException) {
+				logger.error(closeException.getMessage());
+			}
+			throw e instanceof SQLException ? (SQLException) e : new SQLException(e);
+		}
+
+		return myDataSource;
+	}
+
+	private static InputStream openBundledDatabase() throws IOException {
+		InputStream in = LocalDataSource.class.getClassLoader().getResourceAsStream(BUNDLED_DATABASE);
+		if (in == null) {
+			throw new IOException(BUNDLED_DATABASE + " is not found in the classpath");
+		}
+
+		return in;
+	}
+
+	private static String hashBundledDatabase() throws IOException {
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+
+		try (InputStream in = openBundledDatabase()) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				sha256.update(buffer, 0, read);
+			}
+		}
+
+		StringBuilder hash = new StringBuilder();
+		for (byte b : sha256.digest()) {
+			hash.append(String.format("%02x", b));
+		}
+
+		return hash.toString();
+	}
+
+	/**
+	 * Adds the rows of the bundled maps that the store does not have yet, if the
+	 * bundled database changed since the last start.
+	 */
+	private static void upgradeBundledTables(BasicDataSource myDataSource, String bundledHash)
+			throws SQLException, IOException {
+		try (Connection connection = myDataSource.getConnection(); Statement stmt = connection.createStatement()) {
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS LocalStoreInfo (name TEXT PRIMARY KEY, value TEXT)");
+
+			String storedHash = null;
+			try (ResultSet rs = stmt.executeQuery("SELECT value FROM LocalStoreInfo WHERE name='bundled_hash'")) {
+				if (rs.next()) {
+					storedHash = rs.getString(1);
+				}
+			}
+			if (bundledHash.equals(storedHash)) {
+				return;
+			}
+
+			Path bundledCopy = Files.createTempFile(BUNDLED_DATABASE, ".bundled");
+			try {
+				try (InputStream in = openBundledDatabase()) {
+					Files.copy(in, bundledCopy, StandardCopyOption.REPLACE_EXISTING);
+				}
+
+				stmt.execute("ATTACH DATABASE '" + bundledCopy.toString().replace("'", "''") + "' AS bundled");
+				try {
+					connection.setAutoCommit(false);
+					int vocabularies = stmt.executeUpdate("INSERT OR IGNORE INTO FhirOmopVocabularyMap "
+							+ "(omop_vocabulary_id, fhir_url_system, other_system) "
+							+ "SELECT omop_vocabulary_id, fhir_url_system, other_system "
+							+ "FROM bundled.FhirOmopVocabularyMap");
+					int codes = stmt.executeUpdate("INSERT INTO FhirOmopCodeMap "
+							+ "(omop_concept, fhir_system, fhir_code, fhir_display) "
+							+ "SELECT b.omop_concept, b.fhir_system, b.fhir_code, b.fhir_display "
+							+ "FROM bundled.FhirOmopCodeMap b WHERE NOT EXISTS (SELECT 1 FROM FhirOmopCodeMap m "
+							+ "WHERE m.omop_concept=b.omop_concept AND m.fhir_system=b.fhir_system "
+							+ "AND m.fhir_code IS b.fhir_code)");
+					stmt.executeUpdate("INSERT OR REPLACE INTO LocalStoreInfo (name, value) "
+							+ "VALUES ('bundled_hash', '" + bundledHash + "')");
+					connection.commit();
+
+					if (storedHash != null) {
+						logger.info("Bundled " + BUNDLED_DATABASE + " changed. " + vocabularies
+								+ " vocabulary and " + codes + " code mappings added");
+					}
+				} catch (SQLException e) {
+					connection.rollback();
+					throw e;
+				} finally {
+					connection.setAutoCommit(true);
+					stmt.execute("DETACH DATABASE bundled");
+				}
+			} finally {
+				Files.deleteIfExists(bundledCopy);
+			}
+		}
+	}
+
+	private static void copyBundledDatabase(Path dbPath) throws IOException {
+		if (Files.exists(dbPath)) {
+			return;
+		}
+
+		Path parent = dbPath.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+
+		try (InputStream in = openBundledDatabase()) {
+
+			// Copy to a temporary file first so that a partially copied file is never
+			// opened as the database.
+			Path tempPath = Files.createTempFile(parent, BUNDLED_DATABASE, ".tmp");
+			try {
+				Files.copy(in, tempPath, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(tempPath, dbPath, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tempPath);
+			}
+		}
+
+		logger.info("Bundled " + BUNDLED_DATABASE + " copied to " + dbPath);
+	}
+
+	public static void close() {
+		synchronized (LocalDataSource.class) {
+			if (dataSource != null) {
+				try {
+					dataSource.close();
+				} catch (SQLException e) {
+					logger.error(e.getMessage());
+				}
+				dataSource = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import edu.gatech.chai.omoponfhir.local.model.MessageQueueEntry;
+
+/**
+ * Persistent queue of messages that are processed in the background.
+ */
+public interface MessageQueue {
+	public Connection connect() throws SQLException;
+
+	public Long enqueue(MessageQueueEntry entry);
+	public MessageQueueEntry claimNext();
+	public void complete(Long id, String response);
+	public void fail(Long id, String error);
+	public MessageQueueEntry get(Long id);
+	public int countPending();
+	public int failProcessing(String error);
+	public int deleteFinishedBefore(long time);
+}
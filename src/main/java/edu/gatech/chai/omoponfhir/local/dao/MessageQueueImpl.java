@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omoponfhir.local.model.MessageQueueEntry;
+
+/**
+ * MessageQueue table in the local SQLite store. Messages survive a restart.
+ * A message is processed at most once. Processing writes to the OMOP database
+ * and is not idempotent, so a message left in processing state by a previous
+ * run may be partly written. {@link #failProcessing(String)} marks such
+ * messages failed, and the client has to check the data before it resubmits.
+ */
+public class MessageQueueImpl extends BaseFhirOmopMap implements MessageQueue {
+	final static Logger logger = LoggerFactory.getLogger(MessageQueueImpl.class);
+
+	private static MessageQueueImpl messageQueue = new MessageQueueImpl();
+
+	private volatile boolean tableReady = false;
+
+	public static MessageQueueImpl getInstance() {
+		return messageQueue;
+	}
+
+	private void createTable(Connection conn) throws SQLException {
+		if (tableReady) {
+			return;
+		}
+
+		synchronized (this) {
+			if (tableReady) {
+				return;
+			}
+
+			try (Statement stmt = conn.createStatement()) {
+				stmt.executeUpdate("CREATE TABLE IF NOT EXISTS MessageQueue ("
+						+ "id INTEGER PRIMARY KEY AUTOINCREMENT, status TEXT NOT NULL, content TEXT NOT NULL, "
+						+ "response_url TEXT, response TEXT, error TEXT, "
+						+ "received_time INTEGER NOT NULL, updated_time INTEGER NOT NULL)");
+				stmt.executeUpdate(
+						"CREATE INDEX IF NOT EXISTS MessageQueue_status_id ON MessageQueue (status, id)");
+			}
+			tableReady = true;
+		}
+	}
+
+	@Override
+	public Long enqueue(MessageQueueEntry entry) {
+		String sql = "INSERT INTO MessageQueue (status, content, response_url, received_time, updated_time) values (?,?,?,?,?)";
+
+		long now = System.currentTimeMillis();
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+				pstmt.setString(1, MessageQueueEntry.QUEUED);
+				pstmt.setString(2, entry.getContent());
+				if (entry.getResponseUrl() == null) {
+					pstmt.setNull(3, Types.VARCHAR);
+				} else {
+					pstmt.setString(3, entry.getResponseUrl());
+				}
+				pstmt.setLong(4, now);
+				pstmt.setLong(5, now);
+				pstmt.executeUpdate();
+
+				try (ResultSet rs = pstmt.getGeneratedKeys()) {
+					if (rs.next()) {
+						entry.setId(rs.getLong(1));
+						entry.setStatus(MessageQueueEntry.QUEUED);
+						entry.setReceivedTime(now);
+						entry.setUpdatedTime(now);
+						return entry.getId();
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to enqueue message: " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Moves the oldest queued message to processing state and returns it. Returns
+	 * null if nothing is queued. Claims are serialized here, so two workers never
+	 * get the same message.
+	 */
+	@Override
+	public synchronized MessageQueueEntry claimNext() {
+		String selectSql = "SELECT * FROM MessageQueue WHERE status=? ORDER BY id LIMIT 1";
+		String updateSql = "UPDATE MessageQueue SET status=?, updated_time=? WHERE id=? AND status=?";
+
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			MessageQueueEntry entry = null;
+			try (PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
+				pstmt.setString(1, MessageQueueEntry.QUEUED);
+				try (ResultSet rs = pstmt.executeQuery()) {
+					if (rs.next()) {
+						entry = toEntry(rs);
+					}
+				}
+			}
+
+			if (entry == null) {
+				return null;
+			}
+
+			long now = System.currentTimeMillis();
+			try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+				pstmt.setString(1, MessageQueueEntry.PROCESSING);
+				pstmt.setLong(2, now);
+				pstmt.setLong(3, entry.getId());
+				pstmt.setString(4, MessageQueueEntry.QUEUED);
+				if (pstmt.executeUpdate() == 0) {
+					return null;
+				}
+			}
+
+			entry.setStatus(MessageQueueEntry.PROCESSING);
+			entry.setUpdatedTime(now);
+			return entry;
+		} catch (SQLException e) {
+			logger.error("Failed to claim a queued message: " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	@Override
+	public void complete(Long id, String response) {
+		finish(id, MessageQueueEntry.DONE, response, null);
+	}
+
+	@Override
+	public void fail(Long id, String error) {
+		finish(id, MessageQueueEntry.FAILED, null, error);
+	}
+
+	private void finish(Long id, String status, String response, String error) {
+		// The request content is not needed once the message is processed.
+		String sql = "UPDATE MessageQueue SET status=?, response=?, error=?, content='', updated_time=? WHERE id=?";
+
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+				pstmt.setString(1, status);
+				if (response == null) {
+					pstmt.setNull(2, Types.VARCHAR);
+				} else {
+					pstmt.setString(2, response);
+				}
+				if (error == null) {
+					pstmt.setNull(3, Types.VARCHAR);
+				} else {
+					pstmt.setString(3, error);
+				}
+				pstmt.setLong(4, System.currentTimeMillis());
+				pstmt.setLong(5, id);
+				pstmt.executeUpdate();
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to update message " + id + " to " + status + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public MessageQueueEntry get(Long id) {
+		String sql = "SELECT * FROM MessageQueue WHERE id=?";
+
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+				pstmt.setLong(1, id);
+				try (ResultSet rs = pstmt.executeQuery()) {
+					if (rs.next()) {
+						return toEntry(rs);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to read message " + id + ": " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	@Override
+	public int countPending() {
+		String sql = "SELECT count(*) FROM MessageQueue WHERE status IN (?,?)";
+
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+				pstmt.setString(1, MessageQueueEntry.QUEUED);
+				pstmt.setString(2, MessageQueueEntry.PROCESSING);
+				try (ResultSet rs = pstmt.executeQuery()) {
+					if (rs.next()) {
+						return rs.getInt(1);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to count queued messages: " + e.getMessage());
+		}
+
+		return 0;
+	}
+
+	@Override
+	public int failProcessing(String error) {
+		String sql = "UPDATE MessageQueue SET status=?, error=?, content='', updated_time=? WHERE status=?";
+
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+				pstmt.setString(1, MessageQueueEntry.FAILED);
+				pstmt.setString(2, error);
+				pstmt.setLong(3, System.currentTimeMillis());
+				pstmt.setString(4, MessageQueueEntry.PROCESSING);
+				int count = pstmt.executeUpdate();
+				if (count > 0) {
+					logger.warn(count + " interrupted message(s) marked failed. They may be partly processed.");
+				}
+				return count;
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to mark interrupted messages failed: " + e.getMessage());
+		}
+
+		return 0;
+	}
+
+	@Override
+	public int deleteFinishedBefore(long time) {
+		String sql = "DELETE FROM MessageQueue WHERE status IN (?,?) AND updated_time < ?";
+
+		try (Connection conn = this.connect()) {
+			createTable(conn);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+				pstmt.setString(1, MessageQueueEntry.DONE);
+				pstmt.setString(2, MessageQueueEntry.FAILED);
+				pstmt.setLong(3, time);
+				return pstmt.executeUpdate();
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to delete finished messages: " + e.getMessage());
+		}
+
+		return 0;
+	}
+
+	private MessageQueueEntry toEntry(ResultSet rs) throws SQLException {
+		MessageQueueEntry entry = new MessageQueueEntry();
+		entry.setId(rs.getLong("id"));
+		entry.setStatus(rs.getString("status"));
+		entry.setContent(rs.getString("content"));
+		entry.setResponseUrl(rs.getString("response_url"));
+		entry.setResponse(rs.getString("response"));
+		entry.setError(rs.getString("error"));
+		entry.setReceivedTime(rs.getLong("received_time"));
+		entry.setUpdatedTime(rs.getLong("updated_time"));
+
+		return entry;
+	}
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.model;
+
+public class ImportCheckpointEntry {
+	public static final String IN_PROGRESS = "in-progress";
+	public static final String DONE = "done";
+
+	private String fileName;
+	private Long fileSize;
+	private String contentHash;
+	private Long byteOffset;
+	private Integer lineNumber;
+	private String status;
+	private Long updatedTime;
+
+	public ImportCheckpointEntry() {}
+
+	public String getFileName() {
+		return this.fileName;
+	}
+
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public Long getFileSize() {
+		return this.fileSize;
+	}
+
+	public void setFileSize(Long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	/**
+	 * SHA-256 of the bytes before byte offset. For a done file, this is the hash
+	 * of the whole file.
+	 */
+	public String getContentHash() {
+		return this.contentHash;
+	}
+
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
+
+	public Long getByteOffset() {
+		return this.byteOffset;
+	}
+
+	public void setByteOffset(Long byteOffset) {
+		this.byteOffset = byteOffset;
+	}
+
+	public Integer getLineNumber() {
+		return this.lineNumber;
+	}
+
+	public void setLineNumber(Integer lineNumber) {
+		this.lineNumber = lineNumber;
+	}
+
+	public String getStatus() {
+		return this.status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public Long getUpdatedTime() {
+		return this.updatedTime;
+	}
+
+	public void setUpdatedTime(Long updatedTime) {
+		this.updatedTime = updatedTime;
+	}
+}
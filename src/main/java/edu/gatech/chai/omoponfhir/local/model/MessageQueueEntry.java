@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.model;
+
+public class MessageQueueEntry {
+	public static final String QUEUED = "queued";
+	public static final String PROCESSING = "processing";
+	public static final String DONE = "done";
+	public static final String FAILED = "failed";
+
+	private Long id;
+	private String status;
+	private String content;
+	private String responseUrl;
+	private String response;
+	private String error;
+	private Long receivedTime;
+	private Long updatedTime;
+
+	public MessageQueueEntry() {}
+
+	public Long getId() {
+		return this.id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public String getStatus() {
+		return this.status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public String getContent() {
+		return this.content;
+	}
+
+	public void setContent(String content) {
+		this.content = content;
+	}
+
+	public String getResponseUrl() {
+		return this.responseUrl;
+	}
+
+	public void setResponseUrl(String responseUrl) {
+		this.responseUrl = responseUrl;
+	}
+
+	public String getResponse() {
+		return this.response;
+	}
+
+	public void setResponse(String response) {
+		this.response = response;
+	}
+
+	public String getError() {
+		return this.error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	public Long getReceivedTime() {
+		return this.receivedTime;
+	}
+
+	public void setReceivedTime(Long receivedTime) {
+		this.receivedTime = receivedTime;
+	}
+
+	public Long getUpdatedTime() {
+		return this.updatedTime;
+	}
+
+	public void setUpdatedTime(Long updatedTime) {
+		this.updatedTime = updatedTime;
+	}
+}
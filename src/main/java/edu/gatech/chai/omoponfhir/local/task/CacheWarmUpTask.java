@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.task;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ConceptIdCache;
+import edu.gatech.chai.omopv6.dba.service.ConceptService;
+
+/**
+ * Preloads frequently referenced concepts into {@link ConceptIdCache} at
+ * startup when CONCEPT_CACHE_WARMUP is set to true.
+ */
+@Component
+public class CacheWarmUpTask {
+	private static final Logger logger = LoggerFactory.getLogger(CacheWarmUpTask.class);
+
+	@Autowired
+	private ConceptService conceptService;
+
+	@PostConstruct
+	public void warmUp() {
+		String warmUp = System.getenv("CONCEPT_CACHE_WARMUP");
+		if (warmUp == null || !"true".equalsIgnoreCase(warmUp.trim())) {
+			return;
+		}
+
+		try {
+			ConceptIdCache.warmUp(conceptService);
+		} catch (Exception e) {
+			// Warm-up is an optimization. Do not fail the startup for it.
+			logger.error("Concept cache warm-up failed: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.task;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Table;
+import javax.sql.DataSource;
+
+import edu.gatech.chai.omopv6.model.entity.Concept;
+import edu.gatech.chai.omopv6.model.entity.ConceptRelationship;
+
+/**
+ * Inserts new concepts and concept_relationships with JDBC batches on the OMOP
+ * data source, in one database transaction per call. The table names are taken
+ * from the @Table annotations of the entities. The columns are the ones of the
+ * OMOP CDM.
+ */
+public class ConceptBatchWriter {
+	private final DataSource dataSource;
+	private final String conceptInsert;
+	private final String relationshipInsert;
+
+	public ConceptBatchWriter(DataSource dataSource) {
+		this.dataSource = dataSource;
+		this.conceptInsert = "INSERT INTO " + tableName(Concept.class, "concept")
+				+ " (concept_id, concept_name, domain_id, vocabulary_id, concept_class_id, concept_code, "
+				+ "valid_start_date, valid_end_date) VALUES (?,?,?,?,?,?,?,?)";
+		this.relationshipInsert = "INSERT INTO " + tableName(ConceptRelationship.class, "concept_relationship")
+				+ " (concept_id_1, concept_id_2, relationship_id, valid_start_date, valid_end_date) "
+				+ "VALUES (?,?,?,?,?)";
+	}
+
+	/**
+	 * Inserts the concepts, then the relationships. Nothing is written if any
+	 * insert fails.
+	 */
+	public void insert(List<Concept> concepts, List<ConceptRelationship> relationships, String relationshipId)
+			throws SQLException {
+		if (concepts.isEmpty() && relationships.isEmpty()) {
+			return;
+		}
+
+		try (Connection connection = dataSource.getConnection()) {
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				if (!concepts.isEmpty()) {
+					try (PreparedStatement pstmt = connection.prepareStatement(conceptInsert)) {
+						for (Concept concept : concepts) {
+							pstmt.setLong(1, concept.getId());
+							pstmt.setString(2, concept.getConceptName());
+							pstmt.setString(3, concept.getDomainId());
+							pstmt.setString(4, concept.getVocabularyId());
+							pstmt.setString(5, concept.getConceptClassId());
+							pstmt.setString(6, concept.getConceptCode());
+							pstmt.setDate(7, sqlDate(concept.getValidStartDate()));
+							pstmt.setDate(8, sqlDate(concept.getValidEndDate()));
+							pstmt.addBatch();
+						}
+						pstmt.executeBatch();
+					}
+				}
+
+				if (!relationships.isEmpty()) {
+					try (PreparedStatement pstmt = connection.prepareStatement(relationshipInsert)) {
+						for (ConceptRelationship relationship : relationships) {
+							pstmt.setLong(1, relationship.getId().getConceptId1());
+							pstmt.setLong(2, relationship.getId().getConceptId2());
+							pstmt.setString(3, relationshipId);
+							pstmt.setDate(4, sqlDate(relationship.getValidStartDate()));
+							pstmt.setDate(5, sqlDate(relationship.getValidEndDate()));
+							pstmt.addBatch();
+						}
+						pstmt.executeBatch();
+					}
+				}
+
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	private static String tableName(Class<?> entityClass, String defaultName) {
+		Table table = entityClass.getAnnotation(Table.class);
+		if (table == null || table.name().isEmpty()) {
+			return defaultName;
+		}
+
+		return table.schema().isEmpty() ? table.name() : table.schema() + "." + table.name();
+	}
+
+	private static java.sql.Date sqlDate(Date date) {
+		return date == null ? null : new java.sql.Date(date.getTime());
+	}
+}
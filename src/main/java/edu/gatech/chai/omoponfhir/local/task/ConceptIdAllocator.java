@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omoponfhir.local.dao.ConceptIdSequenceImpl;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+import edu.gatech.chai.omopv6.dba.service.ConceptService;
+
+/**
+ * Hands out concept ids for locally generated concepts, from 2,000,000,000
+ * up. Ids are reserved from the ConceptIdSequence in the local store in
+ * blocks of CONCEPT_ID_BLOCK_SIZE (default 10000), and handed out from the
+ * current block with an atomic counter. Ids of a block that is not used up
+ * before a restart are skipped, never reused.
+ * 
+ * The concept table is read only once, when the sequence is created, so that
+ * the sequence starts above the concepts that already exist.
+ */
+public class ConceptIdAllocator {
+	private static final Logger logger = LoggerFactory.getLogger(ConceptIdAllocator.class);
+
+	public static final long CONCEPT_MY_SPACE = 2000000000L;
+	private static final String SEQUENCE_NAME = "local_concept_id";
+	private static final long BLOCK_SIZE = StaticValues.getEnvLong("CONCEPT_ID_BLOCK_SIZE", 10000L);
+
+	private static class Block {
+		final AtomicLong next;
+		final long end;
+
+		Block(long start, long end) {
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+
+	private final ConceptService conceptService;
+	private final ConceptIdSequenceImpl conceptIdSequence;
+	private volatile Block block = null;
+
+	public ConceptIdAllocator(ConceptService conceptService) {
+		this.conceptService = conceptService;
+		this.conceptIdSequence = ConceptIdSequenceImpl.getInstance();
+	}
+
+	/**
+	 * Allocates count consecutive concept ids and returns the first one.
+	 */
+	public long allocate(int count) {
+		while (true) {
+			Block current = block;
+			if (current != null) {
+				long start = current.next.getAndAdd(count);
+				if (start + count <= current.end) {
+					return start;
+				}
+			}
+
+			refill(current, count);
+		}
+	}
+
+	private synchronized void refill(Block exhausted, int count) {
+		if (block != exhausted) {
+			// Another thread has already reserved a new block.
+			return;
+		}
+
+		long size = Math.max(BLOCK_SIZE, count);
+		Long start = conceptIdSequence.reserve(SEQUENCE_NAME, size, this::initialConceptId);
+		if (start == null) {
+			throw new IllegalStateException("Concept ids could not be reserved in the local store");
+		}
+
+		logger.debug("Reserved concept ids " + start + " to " + (start + size - 1));
+		block = new Block(start, start + size);
+	}
+
+	private long initialConceptId() {
+		Long largestId = conceptService.getLargestId();
+		if (largestId != null && largestId >= CONCEPT_MY_SPACE) {
+			return largestId + 1L;
+		}
+
+		return CONCEPT_MY_SPACE;
+	}
+}
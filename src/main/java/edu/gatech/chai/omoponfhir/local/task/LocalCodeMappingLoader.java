@@ -0,0 +1,986 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.task;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.ContextLoaderListener;
+
+import com.opencsv.CSVParser;
+
+import edu.gatech.chai.omoponfhir.local.dao.FhirOmopVocabularyMapImpl;
+import edu.gatech.chai.omoponfhir.local.dao.ImportCheckpointImpl;
+import edu.gatech.chai.omoponfhir.local.model.ImportCheckpointEntry;
+import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.BaseOmopResource;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopConceptMap;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.ValueSetConceptResolver;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ConceptIdCache;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+import edu.gatech.chai.omopv6.dba.service.ConceptRelationshipService;
+import edu.gatech.chai.omopv6.dba.service.ConceptService;
+import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
+import edu.gatech.chai.omopv6.dba.service.RelationshipService;
+import edu.gatech.chai.omopv6.dba.service.VocabularyService;
+import edu.gatech.chai.omopv6.model.entity.Concept;
+import edu.gatech.chai.omopv6.model.entity.ConceptRelationship;
+import edu.gatech.chai.omopv6.model.entity.ConceptRelationshipPK;
+import edu.gatech.chai.omopv6.model.entity.Relationship;
+import edu.gatech.chai.omopv6.model.entity.Vocabulary;
+
+/**
+ * Loads a local code mapping CSV file into the concept and concept_relationship
+ * tables.
+ * 
+ * Line 1 has the OMOP source vocabulary (id^name^reference^version) and the
+ * OMOP target vocabulary. Line 2 has the FHIR source and target code systems.
+ * Line 3 is the header, with SOURCE_CODESYSTEM, SOURCE_CODE, SOURCE_DESC and
+ * TARGET_CODE columns. Lines starting with # are comments.
+ * 
+ * The rows are read as a stream and processed in chunks of
+ * CODEMAPPING_BATCH_SIZE. The target concepts of a chunk are found with one
+ * search. Existing source concepts and relationships are loaded once per file
+ * and checked in memory. The new concepts and concept_relationships of a chunk
+ * are inserted with JDBC batches in one database transaction by
+ * ConceptBatchWriter. Without an OMOP DataSource, they are created one by one
+ * through ConceptService and ConceptRelationshipService. After each chunk, the
+ * concept, translation and ValueSet caches are cleared, so searches and
+ * $translate see the new mappings.
+ * 
+ * After each chunk, the byte offset, the line number and the SHA-256 of the
+ * bytes read so far are saved as a checkpoint in the local store, under the
+ * path of the file relative to the mapping directory. A file that was
+ * interrupted resumes after its last saved chunk if its bytes up to there are
+ * unchanged. A file with the same path, size and SHA-256 as an imported file
+ * is skipped. Any other file is loaded from the start. Set
+ * LOCAL_CODEMAPPING_FORCE_REIMPORT=true to ignore the checkpoints.
+ */
+public class LocalCodeMappingLoader {
+	private static final Logger logger = LoggerFactory.getLogger(LocalCodeMappingLoader.class);
+	private static final int BATCH_SIZE = (int) StaticValues.getEnvLong("CODEMAPPING_BATCH_SIZE", 1000L);
+	private static final boolean FORCE_REIMPORT = "true"
+			.equalsIgnoreCase(String.valueOf(System.getenv("LOCAL_CODEMAPPING_FORCE_REIMPORT")).trim());
+
+	private ConceptService conceptService;
+	private ConceptRelationshipService conceptRelationshipService;
+	private VocabularyService vocabularyService;
+	private RelationshipService relationshipService;
+	private FhirOmopVocabularyMapImpl fhirOmopVocabularyMap;
+	private ImportCheckpointImpl importCheckpoint;
+
+	private ConceptIdAllocator conceptIdAllocator;
+	private ConceptBatchWriter conceptBatchWriter;
+	private Path mappingDirectory;
+
+	// One lock per source vocabulary, so that two files of the same vocabulary do
+	// not create the same source concepts.
+	private final ConcurrentHashMap<String, ReentrantLock> vocabularyLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+	/**
+	 * State of the file being loaded.
+	 */
+	private static class MappingFile {
+		final Path path;
+
+		String[] omopSrc;
+		String omopTargetVocab;
+		String fhirSourceCodeSystem;
+		String fhirTargetCodeSystem;
+
+		int sourceCodeSystemIndex = -1;
+		int sourceCodeIndex = -1;
+		int sourceCodeDescIndex = -1;
+		int targetCodeIndex = -1;
+
+		Vocabulary sourceVocabulary;
+		String relationshipId;
+
+		// Source code to concept_id of the concepts in the source vocabulary.
+		Map<String, Long> sourceConceptIds;
+		// Target code to concept. A code without a concept maps to null.
+		Map<String, Concept> targetConcepts = new HashMap<String, Concept>();
+		// concept_id_1^concept_id_2 of the existing relationships.
+		Set<String> relationshipKeys;
+
+		ReentrantLock vocabularyLock;
+		final LoadResult result = new LoadResult();
+
+		MappingFile(Path path) {
+			this.path = path;
+		}
+	}
+
+	private static class MappingRow {
+		final int lineNumber;
+		final String[] fields;
+
+		MappingRow(int lineNumber, String[] fields) {
+			this.lineNumber = lineNumber;
+			this.fields = fields;
+		}
+	}
+
+	/**
+	 * Reads UTF-8 lines and keeps the byte offset of the next line, so that a
+	 * checkpoint can seek back to it. The bytes before that offset are hashed
+	 * as they are read.
+	 */
+	private static class LineReader implements Closeable {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		private long offset = 0L;
+		private MessageDigest digest = sha256Digest();
+
+		LineReader(Path path) throws IOException {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			buffer.flip();
+		}
+
+		String readLine() throws IOException {
+			line.reset();
+			boolean read = false;
+			while (true) {
+				if (!buffer.hasRemaining()) {
+					buffer.clear();
+					int count = channel.read(buffer);
+					buffer.flip();
+					if (count <= 0) {
+						return read ? decode(false) : null;
+					}
+				}
+
+				byte b = buffer.get();
+				offset++;
+				read = true;
+				if (b == '\n') {
+					return decode(true);
+				}
+				line.write(b);
+			}
+		}
+
+		private String decode(boolean newLine) {
+			byte[] bytes = line.toByteArray();
+			digest.update(bytes);
+			if (newLine) {
+				digest.update((byte) '\n');
+			}
+
+			int length = bytes.length;
+			if (length > 0 && bytes[length - 1] == '\r') {
+				length--;
+			}
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+
+		long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * SHA-256 of the bytes before the offset.
+		 */
+		String getHash() {
+			return toHex(copyDigest(digest).digest());
+		}
+
+		/**
+		 * Continues at the position. The digest must hold the bytes before it.
+		 */
+		void seek(long position, MessageDigest digestAtPosition) throws IOException {
+			channel.position(position);
+			buffer.clear();
+			buffer.flip();
+			offset = position;
+			digest = digestAtPosition;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Outcome and counts of one file.
+	 */
+	public static class LoadResult {
+		private int rows;
+		private int skippedRows;
+		private int conceptsCreated;
+		private int relationshipsCreated;
+		private int resumedAfterLine;
+		private boolean alreadyImported;
+		private String error;
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		public int getSkippedRows() {
+			return skippedRows;
+		}
+
+		public int getConceptsCreated() {
+			return conceptsCreated;
+		}
+
+		public int getRelationshipsCreated() {
+			return relationshipsCreated;
+		}
+
+		public int getResumedAfterLine() {
+			return resumedAfterLine;
+		}
+
+		public boolean isAlreadyImported() {
+			return alreadyImported;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public static LoadResult failed(String error) {
+			LoadResult result = new LoadResult();
+			result.error = error;
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "status=" + (isSuccess() ? "done" : "failed") + "\nrows=" + rows + "\nskippedRows=" + skippedRows
+					+ "\nconceptsCreated=" + conceptsCreated + "\nrelationshipsCreated=" + relationshipsCreated
+					+ (resumedAfterLine > 0 ? "\nresumedAfterLine=" + resumedAfterLine : "")
+					+ (alreadyImported ? "\nalreadyImported=true" : "") + (isSuccess() ? "" : "\nerror=" + error) + "\n";
+		}
+	}
+
+	/**
+	 * @param mappingDirectory the directory that is scanned for mapping files.
+	 *                         Checkpoints are kept under the file path relative
+	 *                         to it.
+	 * @param omopDataSource   data source of the OMOP database, for batched
+	 *                         inserts. May be null.
+	 */
+	public LocalCodeMappingLoader(Path mappingDirectory, ConceptService conceptService,
+			ConceptRelationshipService conceptRelationshipService, VocabularyService vocabularyService,
+			RelationshipService relationshipService, DataSource omopDataSource) {
+		this.mappingDirectory = mappingDirectory == null ? null : mappingDirectory.toAbsolutePath().normalize();
+		this.conceptService = conceptService;
+		this.conceptRelationshipService = conceptRelationshipService;
+		this.vocabularyService = vocabularyService;
+		this.relationshipService = relationshipService;
+		this.fhirOmopVocabularyMap = FhirOmopVocabularyMapImpl.getInstance();
+		this.importCheckpoint = ImportCheckpointImpl.getInstance();
+		this.conceptIdAllocator = new ConceptIdAllocator(conceptService);
+		if (omopDataSource != null) {
+			this.conceptBatchWriter = new ConceptBatchWriter(omopDataSource);
+		} else {
+			logger.warn("localCodeMapping: no OMOP DataSource. Concepts are created one at a time.");
+		}
+	}
+
+	/**
+	 * Loads the file. Rows that cannot be mapped are logged and skipped. Files
+	 * with the same source vocabulary are loaded one at a time.
+	 * 
+	 * @return the result. It is failed if the file is malformed or a write
+	 *         failed.
+	 */
+	public LoadResult load(Path path) throws IOException {
+		MappingFile file = new MappingFile(path);
+		CSVParser parser = new CSVParser();
+
+		String fileName = checkpointName(path);
+		long fileSize = Files.size(path);
+		ImportCheckpointEntry checkpoint = FORCE_REIMPORT ? null : importCheckpoint.get(fileName);
+		MessageDigest resumeDigest = null;
+		if (checkpoint != null) {
+			boolean done = ImportCheckpointEntry.DONE.equals(checkpoint.getStatus());
+			long byteOffset = checkpoint.getByteOffset();
+			if (done ? byteOffset == fileSize : byteOffset < fileSize) {
+				MessageDigest digest = hashPrefix(path, byteOffset);
+				if (toHex(copyDigest(digest).digest()).equals(checkpoint.getContentHash())) {
+					if (done) {
+						logger.info("localCodeMapping: " + path + " is already imported. Skipped.");
+						file.result.alreadyImported = true;
+						return file.result;
+					}
+					resumeDigest = digest;
+				}
+			}
+			if (resumeDigest == null) {
+				logger.info("localCodeMapping: " + path + " changed since its last import. Loading from the start.");
+			}
+		}
+
+		try (LineReader reader = new LineReader(path)) {
+			List<MappingRow> rows = new ArrayList<MappingRow>(BATCH_SIZE);
+			int i = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String line_ = line.trim();
+				if (line_.isEmpty() || line_.startsWith("#") || (line_.length() > 1 && line_.charAt(1) == '#')) {
+					// This is comment line skip...
+					continue;
+				}
+
+				i++;
+				if (i <= 3) {
+					if (!readHeaderLine(file, i, parser.parseLine(line_))) {
+						return file.result;
+					}
+
+					if (i == 3) {
+						if (resumeDigest != null && checkpoint.getByteOffset() > reader.getOffset()) {
+							// Resume after the last committed batch.
+							reader.seek(checkpoint.getByteOffset(), resumeDigest);
+							i = checkpoint.getLineNumber();
+							file.result.resumedAfterLine = i;
+							logger.info("localCodeMapping: resuming " + path + " after line #" + i);
+						} else {
+							checkpoint = new ImportCheckpointEntry();
+							checkpoint.setFileName(fileName);
+						}
+						checkpoint.setFileSize(fileSize);
+					}
+					continue;
+				}
+
+				if (file.sourceVocabulary == null) {
+					file.vocabularyLock = vocabularyLocks.computeIfAbsent(file.omopSrc[0], k -> new ReentrantLock());
+					file.vocabularyLock.lock();
+					if (!prepare(file)) {
+						return file.result;
+					}
+				}
+
+				rows.add(new MappingRow(i, parser.parseLine(line)));
+				if (rows.size() >= BATCH_SIZE) {
+					if (!writeRows(file, rows)) {
+						return file.result;
+					}
+					rows.clear();
+					saveCheckpoint(checkpoint, reader, i, ImportCheckpointEntry.IN_PROGRESS);
+				}
+			}
+
+			if (!rows.isEmpty() && !writeRows(file, rows)) {
+				return file.result;
+			}
+			if (checkpoint != null) {
+				saveCheckpoint(checkpoint, reader, i, ImportCheckpointEntry.DONE);
+			}
+		} finally {
+			if (file.vocabularyLock != null) {
+				file.vocabularyLock.unlock();
+			}
+		}
+
+		return file.result;
+	}
+
+	private void saveCheckpoint(ImportCheckpointEntry checkpoint, LineReader reader, int lineNumber, String status) {
+		checkpoint.setByteOffset(reader.getOffset());
+		checkpoint.setContentHash(reader.getHash());
+		checkpoint.setLineNumber(lineNumber);
+		checkpoint.setStatus(status);
+		importCheckpoint.save(checkpoint);
+	}
+
+	/**
+	 * The path relative to the mapping directory, with / as the separator.
+	 */
+	private String checkpointName(Path path) {
+		Path absolutePath = path.toAbsolutePath().normalize();
+		if (mappingDirectory == null || !absolutePath.startsWith(mappingDirectory)) {
+			return absolutePath.toString().replace(File.separatorChar, '/');
+		}
+
+		return mappingDirectory.relativize(absolutePath).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Returns a digest of the first length bytes of the file.
+	 */
+	private static MessageDigest hashPrefix(Path path, long length) throws IOException {
+		MessageDigest digest = sha256Digest();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			long remaining = length;
+			while (remaining > 0) {
+				buffer.clear();
+				if (remaining < buffer.capacity()) {
+					buffer.limit((int) remaining);
+				}
+				int count = channel.read(buffer);
+				if (count <= 0) {
+					break;
+				}
+				buffer.flip();
+				digest.update(buffer);
+				remaining -= count;
+			}
+		}
+
+		return digest;
+	}
+
+	private static MessageDigest copyDigest(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			// The SHA-256 digests of the Java platform can be cloned.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MessageDigest sha256Digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static boolean fail(MappingFile file, String message) {
+		logger.error(message);
+		file.result.error = message;
+		return false;
+	}
+
+	/**
+	 * Returns the OMOP source vocabulary id on line 1 of a mapping file, or null
+	 * if the file cannot be read or line 1 is malformed.
+	 */
+	public static String readSourceVocabulary(Path path) {
+		try (LineReader reader = new LineReader(path)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String line_ = line.trim();
+				if (line_.isEmpty() || line_.startsWith("#") || (line_.length() > 1 && line_.charAt(1) == '#')) {
+					continue;
+				}
+
+				String[] mappingCodes = new CSVParser().parseLine(line_);
+				if (mappingCodes.length != 2) {
+					return null;
+				}
+				return mappingCodes[0].split("\\^")[0];
+			}
+		} catch (IOException e) {
+			logger.error("localCodeMapping failed to read " + path + ": " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	private boolean readHeaderLine(MappingFile file, int i, String[] mappingCodes) {
+		if (i <= 2) {
+			// First two lines must identify coding translation.
+			if (mappingCodes.length != 2) {
+				return fail(file, "Line #" + i + " must be two values. But, there are " + mappingCodes.length
+						+ " values. values=" + String.join(",", mappingCodes) + ". File, " + file.path
+						+ ", is skipped.");
+			}
+
+			if (i == 1) {
+				file.omopSrc = mappingCodes[0].split("\\^");
+				file.omopTargetVocab = mappingCodes[1];
+
+				if (vocabularyService.findById(file.omopTargetVocab) == null) {
+					return fail(file, "Line #" + i + " must have standard coding for target. See if "
+							+ file.omopTargetVocab + " exists in OMOP Concept table. File, " + file.path
+							+ ", is skipped.");
+				}
+			} else {
+				file.fhirSourceCodeSystem = mappingCodes[0];
+				file.fhirTargetCodeSystem = mappingCodes[1];
+			}
+
+			return true;
+		}
+
+		// This is a header. Get right index for our needs
+		for (int index = 0; index < mappingCodes.length; index++) {
+			if ("SOURCE_CODESYSTEM".equals(mappingCodes[index])) {
+				file.sourceCodeSystemIndex = index;
+			} else if ("SOURCE_CODE".equals(mappingCodes[index])) {
+				file.sourceCodeIndex = index;
+			} else if ("SOURCE_DESC".equals(mappingCodes[index])) {
+				file.sourceCodeDescIndex = index;
+			} else if ("TARGET_CODE".equals(mappingCodes[index])) {
+				file.targetCodeIndex = index;
+			}
+		}
+
+		if (file.sourceCodeSystemIndex == -1 || file.sourceCodeIndex == -1 || file.targetCodeIndex == -1) {
+			// These MUST be set.
+			return fail(file, "localCodeMapping failed to set index(es). sourceCodeSystemIndex="
+					+ file.sourceCodeSystemIndex + ", sourceCodeIndex=" + file.sourceCodeIndex
+					+ ", and targetCodeIndex=" + file.targetCodeIndex + ". This file, " + file.path
+					+ ", is skipped");
+		}
+
+		return true;
+	}
+
+	/**
+	 * Creates the source vocabulary and relationship if needed, and loads the
+	 * existing source concepts and relationships. Called before the first row.
+	 */
+	private boolean prepare(MappingFile file) {
+		String[] omopSrc = file.omopSrc;
+		Vocabulary myVocab = vocabularyService.findById(omopSrc[0]);
+		if (myVocab == null) {
+			// We need to add this to our local code mapping database.
+			myVocab = createNewEntry(omopSrc, file.fhirSourceCodeSystem);
+			if (myVocab == null) {
+				return fail(file, "localCodeMapping failed to create a new entry for " + omopSrc[0] + ". This file, "
+						+ file.path + ", is skipped");
+			}
+		}
+		file.sourceVocabulary = myVocab;
+
+		// Now create relationship if this relationship does not exist.
+		file.relationshipId = omopSrc[0] + " - " + file.omopTargetVocab + " eq";
+		String relationshipName = omopSrc[0] + " to " + file.omopTargetVocab + " equivalent";
+		String revRelationshipId = file.omopTargetVocab + " - " + omopSrc[0] + " eq";
+		if (relationshipService.findById(file.relationshipId) == null) {
+			createOmopRelationshipConcept(file.relationshipId, relationshipName, revRelationshipId);
+		}
+
+		file.sourceConceptIds = new HashMap<String, Long>();
+		List<ParameterWrapper> paramList = Arrays.asList(new ParameterWrapper("String",
+				Arrays.asList("vocabulary.id"), Arrays.asList("="), Arrays.asList(myVocab.getId()), "and"));
+		for (Concept concept : conceptService.searchWithParams(0, 0, paramList, null)) {
+			file.sourceConceptIds.put(concept.getConceptCode(), concept.getId());
+		}
+
+		file.relationshipKeys = new HashSet<String>();
+		paramList = Arrays.asList(new ParameterWrapper("String", Arrays.asList("id.relationshipId"),
+				Arrays.asList("="), Arrays.asList(file.relationshipId), "and"));
+		for (ConceptRelationship conceptRelationship : conceptRelationshipService.searchWithParams(0, 0, paramList,
+				null)) {
+			file.relationshipKeys.add(relationshipKey(conceptRelationship.getId().getConceptId1(),
+					conceptRelationship.getId().getConceptId2()));
+		}
+
+		logger.debug("localCodeMapping: " + file.sourceConceptIds.size() + " source concepts and "
+				+ file.relationshipKeys.size() + " relationships exist for " + file.relationshipId);
+		return true;
+	}
+
+	private boolean writeRows(MappingFile file, List<MappingRow> rows) {
+		String[] omopSrc = file.omopSrc;
+
+		// Target concepts of this chunk that we have not seen yet, with one search.
+		Set<String> newTargetCodes = new LinkedHashSet<String>();
+		for (MappingRow row : rows) {
+			String targetCode = row.fields[file.targetCodeIndex];
+			if (!file.targetConcepts.containsKey(targetCode)) {
+				newTargetCodes.add(targetCode);
+			}
+		}
+		if (!newTargetCodes.isEmpty()) {
+			Map<String, Concept> found = searchConcepts(file.omopTargetVocab, newTargetCodes);
+			for (String targetCode : newTargetCodes) {
+				file.targetConcepts.put(targetCode, found.get(targetCode));
+			}
+		}
+
+		file.result.rows += rows.size();
+		List<MappingRow> mappedRows = new ArrayList<MappingRow>(rows.size());
+		Set<String> newSourceCodes = new LinkedHashSet<String>();
+		for (MappingRow row : rows) {
+			String targetCode = row.fields[file.targetCodeIndex];
+			if (file.targetConcepts.get(targetCode) == null) {
+				// We should have this target code in the concept table.
+				logger.error("localCodeMapping task failed to locate the target code system, "
+						+ file.omopTargetVocab + "/" + targetCode + ". Skipping line #" + row.lineNumber);
+				file.result.skippedRows++;
+				continue;
+			}
+
+			String sourceCodeName = row.fields[file.sourceCodeSystemIndex];
+			if (!file.fhirSourceCodeSystem.equals(sourceCodeName) && !omopSrc[0].equals(sourceCodeName)) {
+				logger.error("The Source Code System, " + sourceCodeName + ", name should be either "
+						+ file.fhirSourceCodeSystem + " or " + omopSrc[0] + ". Skipping line #" + row.lineNumber);
+				file.result.skippedRows++;
+				continue;
+			}
+
+			String sourceCode = row.fields[file.sourceCodeIndex];
+			if (!file.sourceConceptIds.containsKey(sourceCode)) {
+				newSourceCodes.add(sourceCode);
+			}
+			mappedRows.add(row);
+		}
+
+		// Concept ids of the new source concepts are allocated together.
+		long conceptId = newSourceCodes.isEmpty() ? 0L : conceptIdAllocator.allocate(newSourceCodes.size());
+
+		List<Concept> newConcepts = new ArrayList<Concept>(newSourceCodes.size());
+		List<ConceptRelationship> newRelationships = new ArrayList<ConceptRelationship>(mappedRows.size());
+		for (MappingRow row : mappedRows) {
+			Concept targetConcept = file.targetConcepts.get(row.fields[file.targetCodeIndex]);
+			String sourceCode = row.fields[file.sourceCodeIndex];
+
+			Long sourceConceptId = file.sourceConceptIds.get(sourceCode);
+			if (sourceConceptId == null) {
+				String conceptName;
+				if (file.sourceCodeDescIndex >= 0 && row.fields[file.sourceCodeDescIndex] != null
+						&& !row.fields[file.sourceCodeDescIndex].trim().isEmpty()) {
+					conceptName = row.fields[file.sourceCodeDescIndex];
+				} else {
+					conceptName = omopSrc[0];
+				}
+
+				Concept sourceConcept = new Concept();
+				sourceConcept.setId(conceptId++);
+				sourceConcept.setConceptName(conceptName);
+				sourceConcept.setDomainId(targetConcept.getDomainId());
+				sourceConcept.setVocabularyId(file.sourceVocabulary.getId());
+				sourceConcept.setConceptClassId(targetConcept.getConceptClassId());
+				sourceConcept.setConceptCode(sourceCode);
+				sourceConcept.setValidStartDate(targetConcept.getValidStartDate());
+				sourceConcept.setValidEndDate(targetConcept.getValidEndDate());
+				newConcepts.add(sourceConcept);
+
+				sourceConceptId = sourceConcept.getId();
+				file.sourceConceptIds.put(sourceCode, sourceConceptId);
+			}
+
+			// Create concept_relationship entry if this relationship does not exist.
+			if (file.relationshipKeys.add(relationshipKey(sourceConceptId, targetConcept.getId()))) {
+				ConceptRelationship conceptRelationship = new ConceptRelationship();
+				conceptRelationship.setId(
+						new ConceptRelationshipPK(sourceConceptId, targetConcept.getId(), file.relationshipId));
+				conceptRelationship.setValidStartDate(new Date(0L));
+				conceptRelationship.setValidEndDate(validEndDate());
+				newRelationships.add(conceptRelationship);
+			}
+		}
+
+		int conceptsCreated = 0;
+		try {
+			if (conceptBatchWriter != null) {
+				conceptBatchWriter.insert(newConcepts, newRelationships, file.relationshipId);
+				conceptsCreated = newConcepts.size();
+				file.result.relationshipsCreated += newRelationships.size();
+			} else {
+				for (Concept concept : newConcepts) {
+					conceptService.create(concept);
+					conceptsCreated++;
+				}
+
+				for (ConceptRelationship conceptRelationship : newRelationships) {
+					conceptRelationshipService.create(conceptRelationship);
+					file.result.relationshipsCreated++;
+				}
+			}
+		} catch (RuntimeException | SQLException e) {
+			return fail(file, "localCodeMapping failed to write the mappings of line #"
+					+ mappedRows.get(0).lineNumber + " and after (" + e.getMessage() + "). File, " + file.path
+					+ ", is stopped");
+		} finally {
+			file.result.conceptsCreated += conceptsCreated;
+			invalidateCaches(newConcepts.subList(0, conceptsCreated),
+					conceptsCreated > 0 || !newRelationships.isEmpty());
+		}
+
+		return true;
+	}
+
+	/**
+	 * Clears the cached lookups of the concepts written by a chunk, once the
+	 * chunk is written.
+	 */
+	private static void invalidateCaches(List<Concept> concepts, boolean mappingsChanged) {
+		for (Concept concept : concepts) {
+			CodeableConceptUtil.invalidateConceptCache(concept.getVocabularyId(), concept.getConceptCode());
+			ConceptIdCache.invalidate(concept.getId());
+		}
+		if (mappingsChanged) {
+			invalidateMappingCaches();
+		}
+	}
+
+	/**
+	 * Clears the cached $translate results and resolved ValueSets, which may
+	 * miss the new mappings. Before the web application context is up, the
+	 * mappers have not been created and have nothing cached.
+	 */
+	private static void invalidateMappingCaches() {
+		if (ContextLoaderListener.getCurrentWebApplicationContext() == null) {
+			return;
+		}
+
+		OmopConceptMap.invalidateTranslationCache();
+		ValueSetConceptResolver.invalidateCache();
+	}
+
+	/**
+	 * Searches the concepts of the vocabulary with these codes, with one query
+	 * per BaseOmopResource.ID_LIST_CHUNK_SIZE codes.
+	 * 
+	 * @return concepts by concept code
+	 */
+	private Map<String, Concept> searchConcepts(String vocabularyId, Collection<String> codes) {
+		Map<String, Concept> retVal = new HashMap<String, Concept>();
+		List<String> chunk = new ArrayList<String>(BaseOmopResource.ID_LIST_CHUNK_SIZE);
+		for (String code : codes) {
+			chunk.add(code);
+			if (chunk.size() >= BaseOmopResource.ID_LIST_CHUNK_SIZE) {
+				searchConcepts(vocabularyId, chunk, retVal);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			searchConcepts(vocabularyId, chunk, retVal);
+		}
+
+		return retVal;
+	}
+
+	private void searchConcepts(String vocabularyId, List<String> codes, Map<String, Concept> retVal) {
+		// Parameters, operators and values are matched by position.
+		List<String> attributes = new ArrayList<String>(codes.size());
+		List<String> operators = new ArrayList<String>(codes.size());
+		List<String> values = new ArrayList<String>(codes.size());
+		for (String code : codes) {
+			attributes.add("conceptCode");
+			operators.add("=");
+			values.add(code);
+		}
+
+		List<ParameterWrapper> paramList = Arrays.asList(
+				new ParameterWrapper("String", Arrays.asList("vocabulary.id"), Arrays.asList("="),
+						Arrays.asList(vocabularyId), "and"),
+				new ParameterWrapper("String", attributes, operators, values, "or"));
+
+		for (Concept concept : conceptService.searchWithParams(0, 0, paramList, null)) {
+			retVal.put(concept.getConceptCode(), concept);
+		}
+	}
+
+	private static String relationshipKey(Long conceptId1, Long conceptId2) {
+		return conceptId1 + "^" + conceptId2;
+	}
+
+	private static Date validEndDate() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		try {
+			return format.parse("2099-12-31");
+		} catch (ParseException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private Vocabulary createNewEntry(String[] omopVacab, String fhirCoding) {
+		Vocabulary vocab = createOmopVocabularyConcept(omopVacab);
+		if (vocab == null) {
+			return null;
+		}
+
+		// Create FHIR representation of the vocabulary.
+		String fhirCodeSystem = fhirOmopVocabularyMap.getFhirSystemNameFromOmopVocabulary(vocab.getId());
+		if ("none".equalsIgnoreCase(fhirCodeSystem)) {
+			// add this to local omopvocab2fhir code map db
+			FhirOmopVocabularyMapEntry conceptMapEntry;
+			if (fhirCodeSystem.startsWith("http")) {
+				conceptMapEntry = new FhirOmopVocabularyMapEntry(vocab.getId(), fhirCoding, null);
+			} else {
+				conceptMapEntry = new FhirOmopVocabularyMapEntry(vocab.getId(), null, fhirCoding);
+			}
+
+			fhirOmopVocabularyMap.save(conceptMapEntry);
+		}
+
+		return vocab;
+	}
+
+	private Vocabulary createOmopVocabularyConcept(String[] values) {
+		Vocabulary newVocab = new Vocabulary();
+		String vocName = null;
+		newVocab.setId(values[0]);
+		if (values.length > 1) {
+			vocName = values[1];
+			newVocab.setVocabularyName(values[1]);
+		}
+		
+		if (values.length > 2) {
+			newVocab.setVocabularyReference(values[2]);
+		} else {
+			newVocab.setVocabularyReference("OMOPonFHIR generated");
+		}
+		
+		if (values.length > 3) {
+			newVocab.setVocabularyVersion(values[3]);
+		}
+
+		// If we created a new vocabulary, we also need to add this to Concept table.
+		// Add to concept table and put the new concept id to vocabulary table.
+
+		// create concept
+		String name;
+		if (vocName != null)
+			name = vocName;
+		else
+			name = values[0];
+
+		// See if we have this vocabulary in concept.
+		List<ParameterWrapper> paramList;
+		ParameterWrapper param = new ParameterWrapper();
+		param.setParameterType("String");
+		param.setParameters(Arrays.asList("name", "vocabulary.id", "conceptCode"));
+		param.setOperators(Arrays.asList("=", "="));
+		param.setValues(Arrays.asList(name, "Vocabulary", "OMOPonFHIR generated"));
+		param.setRelationship("and");
+		paramList = Arrays.asList(param);
+		List<Concept> concepts = conceptService.searchWithParams(0, 0, paramList, null);
+		
+		Concept vocConcept;
+		if (concepts.size() > 0) {
+			vocConcept = concepts.get(0);
+		} else {
+			vocConcept = createVocabularyConcept(name, "Vocabulary");
+		}
+		
+		if (vocConcept == null)
+			return null;
+		
+		newVocab.setVocabularyConcept(vocConcept);
+
+		// create vocabulary
+		return vocabularyService.create(newVocab);
+	}
+
+	private Relationship createOmopRelationshipConcept(String id, String name, String revId) {
+		Relationship newRelationship = new Relationship();
+		newRelationship.setId(id);
+		newRelationship.setRelationshipName(name);
+		newRelationship.setIsHierarchical('0');
+		newRelationship.setDefinesAncestry('0');
+		newRelationship.setReverseRelationshipId(revId);
+
+		// See if we have this vocabulary in concept.
+		List<ParameterWrapper> paramList;
+		ParameterWrapper param = new ParameterWrapper();
+		param.setParameterType("String");
+		param.setParameters(Arrays.asList("name", "vocabulary.id", "conceptCode"));
+		param.setOperators(Arrays.asList("=", "="));
+		param.setValues(Arrays.asList(name, "Relationship", "OMOPonFHIR generated"));
+		param.setRelationship("and");
+		paramList = Arrays.asList(param);
+		List<Concept> concepts = conceptService.searchWithParams(0, 0, paramList, null);
+		
+		Concept relationshipConcept;
+		if (concepts.size() > 0) {
+			relationshipConcept = concepts.get(0);
+		} else {
+			relationshipConcept = createVocabularyConcept(name, "Relationship");
+		}
+
+		if (relationshipConcept == null)
+			return null;
+		newRelationship.setRelationshipConcept(relationshipConcept);
+
+		// create vocabulary
+		return relationshipService.create(newRelationship);
+	}
+
+	private Concept createVocabularyConcept(String name, String vocabId) {
+		Concept conceptVoc = new Concept();
+		conceptVoc.setId(conceptIdAllocator.allocate(1));
+		conceptVoc.setConceptName(name);
+		conceptVoc.setDomainId("Metadata");
+		
+		conceptVoc.setVocabularyId(vocabId);
+		conceptVoc.setConceptClassId(vocabId);
+		conceptVoc.setConceptCode("OMOPonFHIR generated");
+		conceptVoc.setValidStartDate(new Date(0L));
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		try {
+			Date date = format.parse("2099-12-31");
+			conceptVoc.setValidEndDate(date);
+		} catch (ParseException e) {
+			e.printStackTrace();
+		}
+
+		// Create concept
+		logger.debug("Trying to create a concept:\n"+conceptVoc.toString());
+		Concept newConcept = conceptService.create(conceptVoc);
+		if (newConcept != null) {
+			CodeableConceptUtil.invalidateConceptCache(vocabId, newConcept.getConceptCode());
+			ConceptIdCache.invalidate(newConcept.getId());
+			logger.debug("Scheduled Task: new concept created for " + name);
+		} else {
+			logger.debug("Scheduled Task: creating a new concept for " + name + "failed. Vocabulary not created");
+			return null;
+		}
+
+		return newConcept;
+	}
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.task;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+
+/**
+ * Watches the local code mapping directory and its subdirectories and hands
+ * each new file to the processor as soon as it is complete. A file is complete
+ * when it has not changed for LOCAL_CODEMAPPING_SETTLE_MILLIS. Files named
+ * *.part or *.tmp and hidden files are ignored, so a writer may also write
+ * under such a name and rename the file when it is done. The excluded
+ * directories, such as the done and failed folders, are not watched. Up to
+ * LOCAL_CODEMAPPING_THREADS files are processed at the same time. When the
+ * queue of complete files is full, the watch thread waits for room.
+ */
+public class LocalCodeMappingWatcher implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(LocalCodeMappingWatcher.class);
+
+	private static final long SETTLE_MILLIS = StaticValues.getEnvLong("LOCAL_CODEMAPPING_SETTLE_MILLIS", 2000L);
+	private static final int THREADS = (int) StaticValues.getEnvLong("LOCAL_CODEMAPPING_THREADS", 2L);
+	private static final int QUEUE_CAPACITY = 100;
+
+	private final Path directory;
+	private final Set<Path> excludedDirectories;
+	private final Consumer<Path> processor;
+	private final ThreadPoolExecutor executor;
+	private Thread watchThread;
+	private volatile boolean stopped = false;
+
+	// Files seen but not yet complete, with the time of their last change.
+	// Used by the watch thread only.
+	private final Map<Path, Long> pending = new HashMap<Path, Long>();
+
+	// Watched directories by their key. Used by the watch thread only.
+	private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+
+	// Files submitted to the executor and not finished yet.
+	private final Set<Path> inProgress = ConcurrentHashMap.newKeySet();
+
+	public LocalCodeMappingWatcher(Path directory, Collection<Path> excludedDirectories, Consumer<Path> processor) {
+		this.directory = directory;
+		this.excludedDirectories = new HashSet<Path>(excludedDirectories);
+		this.processor = processor;
+
+		// When the queue is full the watch thread waits for room. Loading on the
+		// watch thread would stop it from seeing new files for the whole load.
+		executor = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), runnable -> {
+					Thread thread = new Thread(runnable, "code-mapping-loader");
+					thread.setDaemon(true);
+					return thread;
+				}, (runnable, pool) -> {
+					if (pool.isShutdown()) {
+						throw new RejectedExecutionException("Local code mapping loader is stopped");
+					}
+					try {
+						pool.getQueue().put(runnable);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException(e);
+					}
+				});
+	}
+
+	public synchronized void start() {
+		if (watchThread != null) {
+			return;
+		}
+
+		watchThread = new Thread(this, "code-mapping-watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+		logger.info("Watching " + directory + " for local code mapping files with " + THREADS + " loader threads");
+	}
+
+	public synchronized void stop() {
+		stopped = true;
+		if (watchThread != null) {
+			watchThread.interrupt();
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits for the files handed to the loader to finish after {@link #stop()}.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	@Override
+	public void run() {
+		try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+			registerDirectories(watchService, directory);
+
+			// Files that arrived while we were not watching.
+			addExistingFiles(directory);
+
+			while (!stopped) {
+				WatchKey key = watchService.poll(pending.isEmpty() ? 60000L : Math.max(SETTLE_MILLIS / 2, 100L),
+						TimeUnit.MILLISECONDS);
+				if (key != null) {
+					Path watchedDirectory = watchedDirectories.get(key);
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (watchedDirectory == null) {
+							continue;
+						}
+						if (event.kind() == OVERFLOW) {
+							addExistingFiles(watchedDirectory);
+							continue;
+						}
+
+						Path file = watchedDirectory.resolve((Path) event.context());
+						if (event.kind() == ENTRY_CREATE && Files.isDirectory(file) && !isExcluded(file)) {
+							// Files may be in the new directory before it is registered.
+							registerDirectories(watchService, file);
+							addExistingFiles(file);
+						} else if (isCandidate(file)) {
+							pending.put(file, System.currentTimeMillis());
+						}
+					}
+
+					if (!key.reset()) {
+						watchedDirectories.remove(key);
+						if (directory.equals(watchedDirectory)) {
+							logger.error("Local code mapping directory " + directory + " is no longer accessible");
+							break;
+						}
+					}
+				}
+
+				submitCompleteFiles();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			logger.error("Failed to watch " + directory + ": " + e.getMessage());
+		}
+	}
+
+	private void registerDirectories(WatchService watchService, Path start) throws IOException {
+		try (Stream<Path> directories = Files.walk(start)) {
+			for (Path subdirectory : (Iterable<Path>) directories::iterator) {
+				if (Files.isDirectory(subdirectory) && !isExcluded(subdirectory)) {
+					watchedDirectories.put(subdirectory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY),
+							subdirectory);
+				}
+			}
+		}
+	}
+
+	private void addExistingFiles(Path start) throws IOException {
+		long now = System.currentTimeMillis();
+		try (Stream<Path> files = Files.walk(start)) {
+			files.filter(file -> isCandidate(file) && !isExcluded(file))
+					.forEach(file -> pending.putIfAbsent(file, now));
+		}
+	}
+
+	private boolean isExcluded(Path path) {
+		for (Path excludedDirectory : excludedDirectories) {
+			if (path.startsWith(excludedDirectory)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void submitCompleteFiles() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Path, Long>> iterator = pending.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Path, Long> entry = iterator.next();
+			if (now - entry.getValue() < SETTLE_MILLIS) {
+				continue;
+			}
+
+			iterator.remove();
+			final Path file = entry.getKey();
+			if (!Files.isRegularFile(file) || !inProgress.add(file)) {
+				continue;
+			}
+
+			try {
+				executor.execute(() -> {
+					try {
+						processor.accept(file);
+					} catch (Exception e) {
+						logger.error("Failed to process local code mapping file " + file + ": " + e.getMessage());
+					} finally {
+						inProgress.remove(file);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Stopped. The file is found again by the next scan or start.
+				inProgress.remove(file);
+				return;
+			}
+		}
+	}
+
+	private boolean isCandidate(Path file) {
+		String name = file.getFileName().toString();
+		return Files.isRegularFile(file) && !name.startsWith(".") && !name.endsWith(".part")
+				&& !name.endsWith(".tmp");
+	}
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.local.task;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.ContextLoaderListener;
+
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.BaseOmopResource;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopCondition;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopDevice;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopDocumentReference;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopEncounter;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopMedication;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopMedicationAdministration;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopMedicationDispense;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopMedicationRequest;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopMedicationStatement;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopObservation;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopOrganization;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopPatient;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopPractitioner;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopProcedure;
+import edu.gatech.chai.omoponfhir.omopv6.r4.provider.OmopFhirBundleProvider;
+import edu.gatech.chai.omoponfhir.omopv6.r4.provider.OmopFhirBundleProvider.CountStrategy;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ResourceCounts;
+
+/**
+ * Counts all resource types every RESOURCE_COUNT_REFRESH_SECONDS (default
+ * 3600, 0 turns it off) and records the counts in {@link ResourceCounts}.
+ * Unfiltered searches and the CapabilityStatement can then use the counts
+ * without a COUNT query of their own. The counts are only refreshed when
+ * something reads them: COUNT_STRATEGY=estimated, or a consumer registered
+ * with {@link ResourceCounts#registerConsumer()}. The COUNT queries run on a
+ * thread of their own, so they do not hold up the other scheduled tasks.
+ */
+@Component
+public class ResourceCountTask {
+	private static final Logger logger = LoggerFactory.getLogger(ResourceCountTask.class);
+
+	private static final Map<String, Supplier<BaseOmopResource<?, ?, ?>>> countMappers = new LinkedHashMap<String, Supplier<BaseOmopResource<?, ?, ?>>>();
+	static {
+		countMappers.put("Patient", OmopPatient::getInstance);
+		countMappers.put("Encounter", OmopEncounter::getInstance);
+		countMappers.put("Condition", OmopCondition::getInstance);
+		countMappers.put("Observation", OmopObservation::getInstance);
+		countMappers.put("Procedure", OmopProcedure::getInstance);
+		countMappers.put("Medication", OmopMedication::getInstance);
+		countMappers.put("MedicationRequest", OmopMedicationRequest::getInstance);
+		countMappers.put("MedicationAdministration", OmopMedicationAdministration::getInstance);
+		countMappers.put("MedicationDispense", OmopMedicationDispense::getInstance);
+		countMappers.put("MedicationStatement", OmopMedicationStatement::getInstance);
+		countMappers.put("Device", OmopDevice::getInstance);
+		countMappers.put("DocumentReference", OmopDocumentReference::getInstance);
+		countMappers.put("Organization", OmopOrganization::getInstance);
+		countMappers.put("Practitioner", OmopPractitioner::getInstance);
+	}
+
+	private long lastRefresh = 0L;
+	private ScheduledExecutorService countExecutor;
+
+	@PostConstruct
+	public void initialize() {
+		if (ResourceCounts.REFRESH_INTERVAL_MILLIS <= 0) {
+			return;
+		}
+
+		countExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "resource-count");
+			thread.setDaemon(true);
+			return thread;
+		});
+		countExecutor.scheduleWithFixedDelay(() -> {
+			try {
+				refreshResourceCounts();
+			} catch (Exception e) {
+				// An exception would stop the schedule.
+				logger.error("Failed to refresh resource counts: " + e.getMessage());
+			}
+		}, 60L, 60L, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (countExecutor != null) {
+			countExecutor.shutdownNow();
+		}
+	}
+
+	public void refreshResourceCounts() {
+		if (ResourceCounts.REFRESH_INTERVAL_MILLIS <= 0
+				|| System.currentTimeMillis() - lastRefresh < ResourceCounts.REFRESH_INTERVAL_MILLIS) {
+			return;
+		}
+
+		// Nothing reads the counts. Do not run the COUNT queries.
+		if (OmopFhirBundleProvider.getCountStrategy() != CountStrategy.ESTIMATED && !ResourceCounts.hasConsumer()) {
+			return;
+		}
+
+		// The mappers are created from the web application context. Wait for it.
+		if (ContextLoaderListener.getCurrentWebApplicationContext() == null) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		for (Map.Entry<String, Supplier<BaseOmopResource<?, ?, ?>>> countMapper : countMappers.entrySet()) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			try {
+				// getSize() records the count in ResourceCounts.
+				countMapper.getValue().get().getSize();
+			} catch (Exception e) {
+				logger.error("Failed to count " + countMapper.getKey() + ": " + e.getMessage());
+			}
+		}
+		lastRefresh = System.currentTimeMillis();
+
+		logger.info("Resource counts refreshed in " + (lastRefresh - start) + "ms: " + ResourceCounts.getAll());
+	}
+}
@@ -1,44 +1,50 @@
 package edu.gatech.chai.omoponfhir.local.task;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import com.opencsv.CSVParser;
-
-import edu.gatech.chai.omoponfhir.local.dao.FhirOmopVocabularyMapImpl;
-import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
+import edu.gatech.chai.omoponfhir.local.task.LocalCodeMappingLoader.LoadResult;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
 import edu.gatech.chai.omopv6.dba.service.ConceptRelationshipService;
 import edu.gatech.chai.omopv6.dba.service.ConceptService;
-import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
 import edu.gatech.chai.omopv6.dba.service.RelationshipService;
 import edu.gatech.chai.omopv6.dba.service.VocabularyService;
-import edu.gatech.chai.omopv6.model.entity.Concept;
-import edu.gatech.chai.omopv6.model.entity.ConceptRelationship;
-import edu.gatech.chai.omopv6.model.entity.ConceptRelationshipPK;
-import edu.gatech.chai.omopv6.model.entity.Relationship;
-import edu.gatech.chai.omopv6.model.entity.Vocabulary;
 
 @Component
 public class ScheduledTask {
 	private static final Logger logger = LoggerFactory.getLogger(ScheduledTask.class);
-	private static final long CONCEPT_MY_SPACE = 2000000000L;
+	private static final String DONE_DIRECTORY = "done";
+	private static final String FAILED_DIRECTORY = "failed";
+	private static final int IMPORT_THREADS = (int) StaticValues.getEnvLong("LOCAL_CODEMAPPING_THREADS", 2L);
+	private static final long SHUTDOWN_SECONDS = StaticValues.getEnvLong("LOCAL_CODEMAPPING_SHUTDOWN_SECONDS", 30L);
 	@Autowired
 	private ConceptService conceptService;
 	@Autowired
@@ -47,449 +53,210 @@ public class ScheduledTask {
 	private VocabularyService vocabularyService;
 	@Autowired
 	private RelationshipService relationshipService;
+	// The OMOP database, for batched inserts of local concepts.
+	@Autowired
+	private ObjectProvider<DataSource> dataSourceProvider;
+
+	private LocalCodeMappingLoader codeMappingLoader;
+	private LocalCodeMappingWatcher codeMappingWatcher;
+	private ExecutorService importExecutor;
+
+	@PostConstruct
+	public void initialize() {
+		Path path = getLocalMappingPath();
+		codeMappingLoader = new LocalCodeMappingLoader(path, conceptService, conceptRelationshipService,
+				vocabularyService, relationshipService, dataSourceProvider.getIfUnique());
+
+		// With LOCAL_CODEMAPPING_WATCH=true, new files are loaded as soon as they
+		// are complete instead of by the scheduled scan.
+		String watch = System.getenv("LOCAL_CODEMAPPING_WATCH");
+		if (path != null && watch != null && "true".equalsIgnoreCase(watch.trim()) && createDirectory(path)) {
+			codeMappingWatcher = new LocalCodeMappingWatcher(path,
+					Arrays.asList(path.resolve(DONE_DIRECTORY), path.resolve(FAILED_DIRECTORY)),
+					this::loadMappingFile);
+			codeMappingWatcher.start();
+		}
 
-	private Long conceptIdStart;
-
-	protected FhirOmopVocabularyMapImpl fhirOmopVocabularyMap;
-
-	public ScheduledTask() {
-		conceptIdStart = ScheduledTask.CONCEPT_MY_SPACE;
-		fhirOmopVocabularyMap = new FhirOmopVocabularyMapImpl();
+		// With LOCAL_CODEMAPPING_PARALLEL=true, the scan loads the files of
+		// different source vocabularies at the same time.
+		String parallel = System.getenv("LOCAL_CODEMAPPING_PARALLEL");
+		if (parallel != null && "true".equalsIgnoreCase(parallel.trim())) {
+			importExecutor = Executors.newFixedThreadPool(IMPORT_THREADS, runnable -> {
+				Thread thread = new Thread(runnable, "code-mapping-import");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
 	}
 
-	@Scheduled(fixedDelay = 60000)
-	public void localCodeMappingTask() {
-		// We may need to load local mapping data. Get a path where the mapping CSV
-		// file(s) are located and load them if files exist. The files will then be
-		// deleted.
-		CSVParser parser = new CSVParser();
-		String localMappingFilePath = System.getenv("LOCAL_CODEMAPPING_FILE_PATH");
-
-		if (localMappingFilePath != null && !localMappingFilePath.trim().isEmpty()
-				&& !"none".equalsIgnoreCase(localMappingFilePath)) {
-			logger.debug("LocalMappingFilePath is set to " + localMappingFilePath);
-
-			// create if folder does not exist.
-			Path path = Paths.get(localMappingFilePath);
-
-	        if (!Files.exists(path)) {
-	        	try {
-					Files.createDirectory(path);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return;
-				}
-	        }
-
-			// get the list of files in this path.
-			BufferedReader reader = null;
-			try (Stream<Path> walk = Files.walk(path)) {
-				List<String> result = walk.filter(Files::isRegularFile).map(x -> x.toString())
-						.collect(Collectors.toList());
-
-				for (String aFile : result) {
-					reader = new BufferedReader(new FileReader(aFile));
-					String line = reader.readLine();
-					int i = 0;
-
-					String omopSourceVocab = null;
-					String omopTargetVocab = null;
-					String fhirSourceCodeSystem = null;
-					String fhirTargetCodeSystem = null;
-
-					int sourceCodeSystemIndex = -1;
-					int sourceCodeIndex = -1;
-					int sourceCodeDescIndex = -1;
-					int targetCodeIndex = -1;
-
-					while (line != null) {
-						String line_ = line.trim();
-						if (line_.startsWith("#") || line_.charAt(1) == '#' || line_.isEmpty()) {
-							// This is comment line skip...
-							line = reader.readLine();
-							continue;
-						}
-
-						i++;
-						if (i <= 2) {
-							// First line. Must identify coding translation.
-							String[] mappingCodes = parser.parseLine(line_);
-							if (mappingCodes.length != 2) {
-								// Incorrectly formed file. delete this file and move to next one.
-								logger.error("Line #" + i + " must be two values. But, there are " + mappingCodes.length
-										+ " values. values=" + line_ + ". File, " + aFile
-										+ ", is skipped and deleted.");
-								reader.close();
-								Files.deleteIfExists(Paths.get(aFile));
-								break;
-							}
-
-							if (i == 1) {
-								omopSourceVocab = mappingCodes[0];
-								omopTargetVocab = mappingCodes[1];
-
-								if (vocabularyService.findById(omopTargetVocab) == null) {
-									logger.error("Line #" + i + " must have standard coding for target. See if "
-											+ omopTargetVocab + " exists in OMOP Concept table. File, " + aFile
-											+ "is skipped and deleted.");
-									reader.close();
-									Files.deleteIfExists(Paths.get(aFile));
-									break;
-								}
-
-								// Done for line 1.
-							} else {
-								fhirSourceCodeSystem = mappingCodes[0];
-								fhirTargetCodeSystem = mappingCodes[1];
-
-								// Done for line 2.
-							}
-							line = reader.readLine();
-							continue;
-						}
-
-						if (omopSourceVocab == null || omopTargetVocab == null || fhirSourceCodeSystem == null
-								|| fhirTargetCodeSystem == null) {
-							// Incorrectly formed file.
-							logger.error(
-									"OMOP Vocabulary, OMOP Concept Type and FHIR Code System must be defined in the first 2 lines. File, "
-											+ aFile + ", is skipped and deleted.");
-							reader.close();
-							Files.deleteIfExists(Paths.get(aFile));
-							break;
-						}
-
-						if (i == 3) {
-							// This is a header. Get right index for our needs
-							String[] mappingCodes = parser.parseLine(line_);
-							for (int index = 0; index < mappingCodes.length; index++) {
-								if ("SOURCE_CODESYSTEM".equals(mappingCodes[index])) {
-									sourceCodeSystemIndex = index;
-									continue;
-								}
-								if ("SOURCE_CODE".equals(mappingCodes[index])) {
-									sourceCodeIndex = index;
-									continue;
-								}
-								if ("SOURCE_DESC".equals(mappingCodes[index])) {
-									sourceCodeDescIndex = index;
-									continue;
-								}
-								if ("TARGET_CODE".equals(mappingCodes[index])) {
-									targetCodeIndex = index;
-									continue;
-								}
-							}
-
-							if (sourceCodeSystemIndex == -1 || sourceCodeIndex == -1 || targetCodeIndex == -1) {
-								// These MUST be set.
-								logger.error("localCodeMapping failed to set index(es). sourceCodeSystemIndex="
-										+ sourceCodeSystemIndex + ", sourceCodeIndex=" + sourceCodeIndex
-										+ ", and targetCodeIndex=" + targetCodeIndex + ". This file, " + aFile
-										+ ", is skipped and deleted");
-								reader.close();
-								Files.deleteIfExists(Paths.get(aFile));
-								break;
-							}
-
-							// We got indexes. Done for line 3.
-							line = reader.readLine();
-							continue;
-						}
-
-						// Now, we are at the actual code translation rows.
-						String[] omopSrc = omopSourceVocab.split("\\^");
-						System.out.println(omopSrc[0]+"\n"+omopSrc[1]+"\n\n\n\n\n\n\n\n\n\n\n");
-						Vocabulary myVocab = vocabularyService.findById(omopSrc[0]);
-						if (myVocab == null) {
-							// We need to add this to our local code mapping database.
-							myVocab = createNewEntry(omopSrc, fhirSourceCodeSystem);
-							if (myVocab == null) {
-								logger.error("localCodeMapping failed to create a new entry for " + omopSrc[0]
-										+ ". This file, " + aFile + ", is skipped and deleted");
-								reader.close();
-								Files.deleteIfExists(Paths.get(aFile));
-								break;
-							}
-						}
-
-						// Now CSV lines. parse one line at a time.
-						String[] fields = parser.parseLine(line);
-
-						List<ParameterWrapper> paramList;
-						ParameterWrapper param = new ParameterWrapper();
-
-						// From target code, collect necessary information such as domain id and concept
-						// class id.
-						String targetCode = fields[targetCodeIndex];
-						param.setParameterType("String");
-						param.setParameters(Arrays.asList("vocabulary.id", "conceptCode"));
-						param.setOperators(Arrays.asList("=", "="));
-						param.setValues(Arrays.asList(omopTargetVocab, targetCode));
-						param.setRelationship("and");
-						paramList = Arrays.asList(param);
-						List<Concept> retParam = conceptService.searchWithParams(0, 0, paramList, null);
-						if (retParam.size() == 0) {
-							// We should have this target code in the concept table.
-							logger.error("localCodeMapping task failed to locate the target code system, "
-									+ omopTargetVocab + "/" + targetCode + ". Skipping line #" + i);
-							line = reader.readLine();
-							continue;
-						}
-						Concept targetConcept = retParam.get(0);
-
-						// Create concept and concept relationship
-						String sourceCodeName = fields[sourceCodeSystemIndex];
-						if (!fhirSourceCodeSystem.equals(sourceCodeName) && !omopSrc[0].equals(sourceCodeName)) {
-							logger.error("The Source Code System, " + sourceCodeName + ", name should be either "
-									+ fhirSourceCodeSystem + " or " + omopSrc[0] + ". Skipping line #" + i);
-							line = reader.readLine();
-							continue;
-						}
-
-						// Check the source code. If we don't have this, add it to concept table.
-						String sourceCode = fields[sourceCodeIndex];
-
-						param.setParameterType("String");
-						param.setParameters(Arrays.asList("vocabulary.id", "conceptCode"));
-						param.setOperators(Arrays.asList("=", "="));
-						param.setValues(Arrays.asList(omopSrc[0], sourceCode));
-						param.setRelationship("and");
-
-						retParam = conceptService.searchWithParams(0, 0, paramList, null);
-
-						Concept sourceConcept;
-						if (retParam.size() <= 0) {
-							sourceConcept = new Concept();
-							sourceConcept.setId(getTheLargestConceptId());
-
-							String conceptName;
-							if (sourceCodeDescIndex >= 0 && fields[sourceCodeDescIndex] != null
-									&& !fields[sourceCodeDescIndex].trim().isEmpty()) {
-								conceptName = fields[sourceCodeDescIndex];
-							} else {
-								conceptName = omopSrc[0];
-							}
-
-							sourceConcept.setConceptName(conceptName);
-							sourceConcept.setDomainId(targetConcept.getDomainId());
-							sourceConcept.setVocabularyId(myVocab.getId());
-							sourceConcept.setConceptClassId(targetConcept.getConceptClassId());
-							sourceConcept.setConceptCode(sourceCode);
-							sourceConcept.setValidStartDate(targetConcept.getValidStartDate());
-							sourceConcept.setValidEndDate(targetConcept.getValidEndDate());
-
-							sourceConcept = conceptService.create(sourceConcept);
-							if (sourceConcept == null) {
-								logger.error("The Source Code, " + sourceCodeName + "|" + sourceCode
-										+ ", could not be created. Skipping line #" + i);
-								line = reader.readLine();
-								continue;
-							}
-						} else {
-							sourceConcept = retParam.get(0);
-						}
-
-						// Now create relationship if this relationship does not exist.
-						String relationshipId = omopSrc[0] + " - " + omopTargetVocab + " eq";
-						String relationshipName = omopSrc[0] + " to " + omopTargetVocab + " equivalent";
-						String revRelationshipId = omopTargetVocab + " - " + omopSrc[0] + " eq";
-
-						Relationship relationship = relationshipService.findById(relationshipId);
-						if (relationship == null) {
-							relationship = createOmopRelationshipConcept(relationshipId, relationshipName,
-									revRelationshipId);
-						}
-
-						// see if this relationship exists. If not create one.
-						ConceptRelationshipPK conceptRelationshipPk = new ConceptRelationshipPK(sourceConcept.getId(),
-								targetConcept.getId(), relationshipId);
-						ConceptRelationship conceptRelationship = conceptRelationshipService
-								.findById(conceptRelationshipPk);
-						if (conceptRelationship != null) {
-							line = reader.readLine();
-							continue;
-						}
-
-						// Create concept_relationship entry
-						conceptRelationship = new ConceptRelationship();
-						conceptRelationship.setId(conceptRelationshipPk);
-						conceptRelationship.setValidStartDate(new Date(0L));
-						SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
-						try {
-							Date date = format.parse("2099-12-31");
-							conceptRelationship.setValidEndDate(date);
-						} catch (ParseException e) {
-							e.printStackTrace();
-						}
-
-						conceptRelationshipService.create(conceptRelationship);
-
-						// read next line
-						line = reader.readLine();
-
-					} // while
-					reader.close();
-					Files.deleteIfExists(Paths.get(aFile));
-				}
+	/**
+	 * Lets the files being loaded finish their current chunk. A file that is
+	 * still loading after LOCAL_CODEMAPPING_SHUTDOWN_SECONDS is interrupted and
+	 * left in place, so that it resumes from its checkpoint after a restart.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		long deadline = System.currentTimeMillis() + SHUTDOWN_SECONDS * 1000L;
+		if (codeMappingWatcher != null) {
+			codeMappingWatcher.stop();
+		}
+		if (importExecutor != null) {
+			importExecutor.shutdown();
+		}
 
-			} catch (IOException e) {
-				e.printStackTrace();
+		try {
+			if (codeMappingWatcher != null && !codeMappingWatcher
+					.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				logger.warn("localCodeMapping: files are still loading at shutdown");
 			}
-
+			if (importExecutor != null && !importExecutor
+					.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				logger.warn("localCodeMapping: files are still loading at shutdown. Interrupting them.");
+				importExecutor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	private Long getTheLargestConceptId() {
-		Long largestId = conceptService.getLargestId();
-		if (largestId != null) {
-			if (largestId >= conceptIdStart) {
-				conceptIdStart = largestId + 1L;
-			}
+	@Scheduled(fixedDelay = 60000)
+	public void localCodeMappingTask() {
+		if (codeMappingWatcher != null) {
+			return;
 		}
 
-		return conceptIdStart;
-	}
-
-	private Vocabulary createNewEntry(String[] omopVacab, String fhirCoding) {
-		Vocabulary vocab = createOmopVocabularyConcept(omopVacab);
+		// We may need to load local mapping data. Get a path where the mapping CSV
+		// file(s) are located and load them if files exist. The files are then
+		// moved to the done or failed folder.
+		Path path = getLocalMappingPath();
+		if (path == null || !createDirectory(path)) {
+			return;
+		}
 
-		// Create FHIR representation of the vocabulary.
-		String fhirCodeSystem = fhirOmopVocabularyMap.getFhirSystemNameFromOmopVocabulary(vocab.getId());
-		if ("none".equalsIgnoreCase(fhirCodeSystem)) {
-			// add this to local omopvocab2fhir code map db
-			FhirOmopVocabularyMapEntry conceptMapEntry;
-			if (fhirCodeSystem.startsWith("http")) {
-				conceptMapEntry = new FhirOmopVocabularyMapEntry(vocab.getId(), fhirCoding, null);
+		// get the list of files in this path.
+		Path doneDirectory = path.resolve(DONE_DIRECTORY);
+		Path failedDirectory = path.resolve(FAILED_DIRECTORY);
+		try (Stream<Path> walk = Files.walk(path)) {
+			List<Path> result = walk
+					.filter(file -> Files.isRegularFile(file) && !file.startsWith(doneDirectory)
+							&& !file.startsWith(failedDirectory))
+					.collect(Collectors.toList());
+
+			if (importExecutor == null) {
+				for (Path aFile : result) {
+					loadMappingFile(aFile);
+				}
 			} else {
-				conceptMapEntry = new FhirOmopVocabularyMapEntry(vocab.getId(), null, fhirCoding);
+				loadInParallel(result);
 			}
-
-			fhirOmopVocabularyMap.save(conceptMapEntry);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-
-		return vocab;
 	}
 
-	private Vocabulary createOmopVocabularyConcept(String[] values) {
-		Vocabulary newVocab = new Vocabulary();
-		String vocName = null;
-		newVocab.setId(values[0]);
-		if (values.length > 1) {
-			vocName = values[1];
-			newVocab.setVocabularyName(values[1]);
-		}
-		
-		if (values.length > 2) {
-			newVocab.setVocabularyReference(values[2]);
-		} else {
-			newVocab.setVocabularyReference("OMOPonFHIR generated");
-		}
-		
-		if (values.length > 3) {
-			newVocab.setVocabularyVersion(values[3]);
+	/**
+	 * Groups the files by source vocabulary and loads the groups on the import
+	 * pool. Files of one vocabulary are loaded one after the other, in scan
+	 * order. Returns when all files are done.
+	 */
+	private void loadInParallel(List<Path> files) {
+		Map<String, List<Path>> partitions = new LinkedHashMap<String, List<Path>>();
+		for (Path file : files) {
+			String sourceVocabulary = LocalCodeMappingLoader.readSourceVocabulary(file);
+			if (sourceVocabulary == null) {
+				// The loader reports what is wrong with the file.
+				sourceVocabulary = file.toString();
+			}
+			partitions.computeIfAbsent(sourceVocabulary, k -> new ArrayList<Path>()).add(file);
 		}
 
-		// If we created a new vocabulary, we also need to add this to Concept table.
-		// Add to concept table and put the new concept id to vocabulary table.
-
-		// create concept
-		String name;
-		if (vocName != null)
-			name = vocName;
-		else
-			name = values[0];
-
-		// See if we have this vocabulary in concept.
-		List<ParameterWrapper> paramList;
-		ParameterWrapper param = new ParameterWrapper();
-		param.setParameterType("String");
-		param.setParameters(Arrays.asList("name", "vocabulary.id", "conceptCode"));
-		param.setOperators(Arrays.asList("=", "="));
-		param.setValues(Arrays.asList(name, "Vocabulary", "OMOPonFHIR generated"));
-		param.setRelationship("and");
-		paramList = Arrays.asList(param);
-		List<Concept> concepts = conceptService.searchWithParams(0, 0, paramList, null);
-		
-		Concept vocConcept;
-		if (concepts.size() > 0) {
-			vocConcept = concepts.get(0);
-		} else {
-			vocConcept = createVocabularyConcept(name, "Vocabulary");
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(partitions.size());
+		for (List<Path> partition : partitions.values()) {
+			tasks.add(() -> {
+				for (Path file : partition) {
+					if (Thread.currentThread().isInterrupted()) {
+						break;
+					}
+					loadMappingFile(file);
+				}
+				return null;
+			});
 		}
-		
-		if (vocConcept == null)
-			return null;
-		
-		newVocab.setVocabularyConcept(vocConcept);
 
-		// create vocabulary
-		return vocabularyService.create(newVocab);
-	}
-
-	private Relationship createOmopRelationshipConcept(String id, String name, String revId) {
-		Relationship newRelationship = new Relationship();
-		newRelationship.setId(id);
-		newRelationship.setRelationshipName(name);
-		newRelationship.setIsHierarchical('0');
-		newRelationship.setDefinesAncestry('0');
-		newRelationship.setReverseRelationshipId(revId);
-
-		// See if we have this vocabulary in concept.
-		List<ParameterWrapper> paramList;
-		ParameterWrapper param = new ParameterWrapper();
-		param.setParameterType("String");
-		param.setParameters(Arrays.asList("name", "vocabulary.id", "conceptCode"));
-		param.setOperators(Arrays.asList("=", "="));
-		param.setValues(Arrays.asList(name, "Relationship", "OMOPonFHIR generated"));
-		param.setRelationship("and");
-		paramList = Arrays.asList(param);
-		List<Concept> concepts = conceptService.searchWithParams(0, 0, paramList, null);
-		
-		Concept relationshipConcept;
-		if (concepts.size() > 0) {
-			relationshipConcept = concepts.get(0);
-		} else {
-			relationshipConcept = createVocabularyConcept(name, "Relationship");
+		logger.info("localCodeMapping: loading " + files.size() + " files of " + partitions.size()
+				+ " source vocabularies on " + IMPORT_THREADS + " threads");
+		try {
+			importExecutor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+	}
 
-		if (relationshipConcept == null)
+	private Path getLocalMappingPath() {
+		String localMappingFilePath = System.getenv("LOCAL_CODEMAPPING_FILE_PATH");
+		if (localMappingFilePath == null || localMappingFilePath.trim().isEmpty()
+				|| "none".equalsIgnoreCase(localMappingFilePath)) {
 			return null;
-		newRelationship.setRelationshipConcept(relationshipConcept);
+		}
 
-		// create vocabulary
-		return relationshipService.create(newRelationship);
+		logger.debug("LocalMappingFilePath is set to " + localMappingFilePath);
+		return Paths.get(localMappingFilePath);
 	}
 
-	private Concept createVocabularyConcept(String name, String vocabId) {
-		Concept conceptVoc = new Concept();
-		conceptVoc.setId(getTheLargestConceptId());
-		conceptVoc.setConceptName(name);
-		conceptVoc.setDomainId("Metadata");
-		
-		conceptVoc.setVocabularyId(vocabId);
-		conceptVoc.setConceptClassId(vocabId);
-		conceptVoc.setConceptCode("OMOPonFHIR generated");
-		conceptVoc.setValidStartDate(new Date(0L));
-
-		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+	private boolean createDirectory(Path path) {
+		// create if folder does not exist.
 		try {
-			Date date = format.parse("2099-12-31");
-			conceptVoc.setValidEndDate(date);
-		} catch (ParseException e) {
+			Files.createDirectories(path);
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
+	}
 
-		// Create concept
-		logger.debug("Trying to create a concept:\n"+conceptVoc.toString());
-		Concept newConcept = conceptService.create(conceptVoc);
-		if (newConcept != null) {
-			logger.debug("Scheduled Task: new concept created for " + name);
-		} else {
-			logger.debug("Scheduled Task: creating a new concept for " + name + "failed. Vocabulary not created");
-			return null;
+	/**
+	 * Loads one mapping file, then moves it to the done or failed folder with a
+	 * status report next to it.
+	 */
+	private void loadMappingFile(Path file) {
+		Date started = new Date();
+		LoadResult result;
+		try {
+			result = codeMappingLoader.load(file);
+		} catch (ClosedByInterruptException e) {
+			result = null;
+		} catch (Exception e) {
+			logger.error("localCodeMapping failed to read " + file + ": " + e.getMessage());
+			result = LoadResult.failed(e.getMessage());
 		}
+		if (result == null || Thread.currentThread().isInterrupted()) {
+			// Stopped by shutdown, not by the file. It resumes from its checkpoint.
+			logger.info("localCodeMapping: loading " + file + " was interrupted. It is left in place.");
+			return;
+		}
+		Date finished = new Date();
+		logger.info("localCodeMapping " + (result.isSuccess() ? "loaded " : "failed to load ") + file + " in "
+				+ (finished.getTime() - started.getTime()) + "ms");
 
-		return newConcept;
+		Path root = getLocalMappingPath();
+		if (root == null) {
+			root = file.getParent();
+		}
+		Path archive = root.resolve(result.isSuccess() ? DONE_DIRECTORY : FAILED_DIRECTORY);
+		try {
+			Files.createDirectories(archive);
+			String name = file.getFileName().toString();
+			if (Files.exists(archive.resolve(name))) {
+				name = name + "." + finished.getTime();
+			}
+			Files.move(file, archive.resolve(name));
+
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+			String report = "file=" + file + "\nstarted=" + format.format(started) + "\nfinished="
+					+ format.format(finished) + "\n" + result;
+			Files.write(archive.resolve(name + ".status"), report.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			logger.error("localCodeMapping failed to move " + file + " to " + archive + ": " + e.getMessage());
+		}
 	}
 }
@@ -15,9 +15,14 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
@@ -33,7 +38,9 @@ import ca.uhn.fhir.rest.api.SortSpec;
 import edu.gatech.chai.omoponfhir.local.dao.FhirOmopCodeMapImpl;
 import edu.gatech.chai.omoponfhir.local.dao.FhirOmopVocabularyMapImpl;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.EncounterResourceProvider;
+import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ConceptIdCache;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExtensionUtil;
 import edu.gatech.chai.omopv6.dba.service.ConceptService;
 import edu.gatech.chai.omopv6.dba.service.IService;
@@ -57,12 +64,15 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 	public static String MAP_EXCEPTION_FILTER = "FILTER";
 	public static String MAP_EXCEPTION_EXCLUDE = "EXCLUDE";
 
+	// Maximum number of ids in one id list query.
+	public static final int ID_LIST_CHUNK_SIZE = 500;
+
 	public BaseOmopResource(WebApplicationContext context, Class<t> entityClass, Class<p> serviceClass,
 			String fhirResourceType) {
 		myOmopService = context.getBean(serviceClass);
 		myEntityClass = entityClass;
 		myFhirResourceType = fhirResourceType;
-		fhirOmopVocabularyMap = new FhirOmopVocabularyMapImpl();
+		fhirOmopVocabularyMap = FhirOmopVocabularyMapImpl.getInstance();
 		fhirOmopCodeMap = new FhirOmopCodeMapImpl();
 	}
 
@@ -123,6 +133,29 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 		return fhirResource;
 	}
 
+	/***
+	 * constructResources: constructs FHIR resources for a whole page of entities.
+	 * Override this if the mapping needs data from other tables so that the data
+	 * can be read for the page at once rather than once per entity.
+	 */
+	public void constructResources(List<t> entities, List<String> includes, List<IBaseResource> listResources) {
+		// Map the ids of the page at once. New id mappings are stored in one write.
+		long[] omopIds = new long[entities.size()];
+		int i = 0;
+		for (t entity : entities) {
+			omopIds[i++] = entity.getIdAsLong();
+		}
+		long[] fhirIds = IdMapping.getFHIRfromOMOP(omopIds, getMyFhirResourceType());
+
+		i = 0;
+		for (t entity : entities) {
+			v fhirResource = constructResource(fhirIds[i++], entity, includes);
+			if (fhirResource != null) {
+				listResources.add(fhirResource);
+			}
+		}
+	}
+
 	public FhirOmopVocabularyMapImpl getFhirOmopVocabularyMap() {
 		return this.fhirOmopVocabularyMap;
 	}
@@ -159,44 +192,23 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 		// We got the results back from OMOP database. Now, we need to construct
 		// the list of
 		// FHIR Patient resources to be included in the bundle.
-		for (t entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			v fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				addRevIncludes(omopId, includes, listResources);
-			}
-		}
+		constructResources(entities, includes, listResources);
+		addRevIncludes(entities, includes, listResources);
 	}
 
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> mapList,
 			List<IBaseResource> listResources, List<String> includes, String sort) {
 		List<t> entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList, sort);
 
-		for (t entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			v fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
-			}
-		}
+		constructResources(entities, includes, listResources);
+		// Do the rev_include and add the resources to the list.
+		addRevIncludes(entities, includes, listResources);
 	}
 
 	public void searchWithSql(String sql, Map<String, String> parameters, int fromIndex, int toIndex, String sort, List<IBaseResource> listResources) {
 		List<t> entities = getMyOmopService().searchBySql(fromIndex, toIndex, sql, parameters, sort);
 
-		for (t entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			v fhirResource = constructResource(fhirId, entity, null);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-			}		
-		}
+		constructResources(entities, null, listResources);
 	}
 
 	// Override the this method to provide rev_includes.
@@ -204,12 +216,145 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 
 	}
 
+	// Override this method to resolve rev_includes for a whole page at once.
+	public void addRevIncludes(List<t> entities, List<String> includes, List<IBaseResource> listResources) {
+		for (t entity : entities) {
+			addRevIncludes(entity.getIdAsLong(), includes, listResources);
+		}
+	}
+
 	// Some common functions that are repetitively used.
+
+	/**
+	 * Builds parameters that select rows whose column matches any of the ids. The
+	 * ids are split into chunks of ID_LIST_CHUNK_SIZE, and each chunk becomes one
+	 * query. The result is column = id1 or column = id2 or ...
+	 */
+	public static List<List<ParameterWrapper>> constructIdListParams(String column, Collection<Long> ids) {
+		List<List<ParameterWrapper>> retv = new ArrayList<List<ParameterWrapper>>();
+
+		List<String> parameters = new ArrayList<String>();
+		List<String> operators = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		for (Long id : ids) {
+			if (id == null) continue;
+
+			parameters.add(column);
+			operators.add("=");
+			values.add(String.valueOf(id));
+			if (values.size() >= ID_LIST_CHUNK_SIZE) {
+				retv.add(Arrays.asList(constructIdListParam(parameters, operators, values)));
+				parameters = new ArrayList<String>();
+				operators = new ArrayList<String>();
+				values = new ArrayList<String>();
+			}
+		}
+
+		if (!values.isEmpty()) {
+			retv.add(Arrays.asList(constructIdListParam(parameters, operators, values)));
+		}
+
+		return retv;
+	}
+
+	/**
+	 * Builds the seek parameter of keyset paging: id > lastId, or id < lastId
+	 * for descending order.
+	 */
+	public static ParameterWrapper constructSeekParam(Long lastId, boolean descending) {
+		ParameterWrapper seekParam = new ParameterWrapper("Long", Arrays.asList("id"),
+				Arrays.asList(descending ? "<" : ">"), Arrays.asList(String.valueOf(lastId)), "and");
+		seekParam.setUpperRelationship("and");
+
+		return seekParam;
+	}
+
+	/**
+	 * Parameters that every search of this resource applies, e.g. the drug type
+	 * of the medication resources. Override this if the mapper filters the
+	 * table. Bulk operations that read the OMOP service directly add these.
+	 */
+	public List<ParameterWrapper> getFilterParams() {
+		return new ArrayList<ParameterWrapper>();
+	}
+
+	/**
+	 * Receives the resources of one export chunk.
+	 */
+	public interface ResourceChunkWriter {
+		public void write(List<IBaseResource> resources) throws IOException;
+	}
+
+	/**
+	 * Exports every resource that matches params. The table is read in id order,
+	 * chunkSize rows at a time, continuing after the last id of the previous
+	 * chunk. Override this if the resource is read from more than one table.
+	 * 
+	 * @return number of resources written.
+	 */
+	public long exportResources(List<ParameterWrapper> params, int chunkSize, BooleanSupplier cancelled,
+			ResourceChunkWriter writer) throws IOException {
+		List<ParameterWrapper> tableParams = new ArrayList<ParameterWrapper>(params);
+		tableParams.addAll(getFilterParams());
+		return exportTable(getMyOmopService(), tableParams, chunkSize, cancelled, entities -> {
+			List<IBaseResource> resources = new ArrayList<IBaseResource>(entities.size());
+			constructResources(entities, new ArrayList<String>(), resources);
+			return resources;
+		}, writer);
+	}
+
+	/**
+	 * Reads one table for exportResources and writes the mapped resources chunk
+	 * by chunk.
+	 */
+	protected static <e extends BaseEntity> long exportTable(IService<e> service, List<ParameterWrapper> params,
+			int chunkSize, BooleanSupplier cancelled, Function<List<e>, List<IBaseResource>> mapper,
+			ResourceChunkWriter writer) throws IOException {
+		long count = 0;
+		Long lastId = null;
+		while (!cancelled.getAsBoolean()) {
+			List<ParameterWrapper> chunkParams = new ArrayList<ParameterWrapper>(params);
+			if (lastId != null) {
+				chunkParams.add(constructSeekParam(lastId, false));
+			}
+
+			List<e> entities;
+			if (chunkParams.isEmpty()) {
+				entities = service.searchWithoutParams(0, chunkSize, "id ASC");
+			} else {
+				entities = service.searchWithParams(0, chunkSize, chunkParams, "id ASC");
+			}
+			if (entities.isEmpty()) {
+				break;
+			}
+
+			List<IBaseResource> resources = mapper.apply(entities);
+			writer.write(resources);
+			count += resources.size();
+
+			lastId = entities.get(entities.size() - 1).getIdAsLong();
+			if (entities.size() < chunkSize) {
+				break;
+			}
+		}
+
+		return count;
+	}
+
+	private static ParameterWrapper constructIdListParam(List<String> parameters, List<String> operators,
+			List<String> values) {
+		ParameterWrapper param = new ParameterWrapper("Long", parameters, operators, values, "or");
+		// Mappers may add their own filters to the list. Those are and'ed.
+		param.setUpperRelationship("and");
+
+		return param;
+	}
+
 	protected void addParamlistForPatientIDName(String parameter, String value, ParameterWrapper paramWrapper,
 			List<ParameterWrapper> mapList) {
 		switch (parameter) {
 		case "Patient:" + Patient.SP_RES_ID:
-			String pId = value;
+			String pId = IdMapping.getOMOPValueFromFHIR(value, PatientResourceProvider.getType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("fPerson.id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -332,7 +477,7 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 		}
 
 		if (concept == null) {
-			concept = conceptService.findById(0L);
+			concept = ConceptIdCache.findById(conceptService, 0L);
 		}
 		
 		return concept;
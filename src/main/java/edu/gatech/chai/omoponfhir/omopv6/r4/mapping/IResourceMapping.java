@@ -35,6 +35,7 @@ public interface IResourceMapping<v extends Resource, t extends BaseEntity> {
 	public Long getSize(List<ParameterWrapper> mapList);
 
 	public v constructResource(Long fhirId, t entity, List<String> includes);
+	public void constructResources(List<t> entities, List<String> includes, List<IBaseResource> listResources);
 	public void searchWithoutParams(int fromIndex, int toIndex, List<IBaseResource> listResources, List<String> includes, String sort);
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> map, List<IBaseResource> listResources, List<String> includes, String sort);
 
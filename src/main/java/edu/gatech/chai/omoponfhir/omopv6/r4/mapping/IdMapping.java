@@ -15,39 +15,157 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
 
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * ID Mapping Class to manage the IDs between FHIR and OMOP.
  * 
+ * By default, FHIR ids are the OMOP ids. ID_MAPPING selects another mode.
+ * "store" assigns FHIR ids and keeps them in {@link IdMappingStore} under
+ * ID_MAPPING_DIR.
+ * "obfuscate" computes FHIR ids with {@link IdObfuscator}, keyed by
+ * ID_MAPPING_KEY, without any storage.
+ * 
  * @author mc142
  *
  */
 public class IdMapping {
-	
+	private static final Logger logger = LoggerFactory.getLogger(IdMapping.class);
+
+	private static final String mode = System.getenv("ID_MAPPING") == null ? "identity"
+			: System.getenv("ID_MAPPING").trim().toLowerCase();
+	private static final boolean useStore = "store".equals(mode) && checkStoreDirectory();
+	private static final IdObfuscator obfuscator = "obfuscate".equals(mode) ? createObfuscator() : null;
+
+	private static boolean checkStoreDirectory() {
+		String dir = System.getenv("ID_MAPPING_DIR");
+		if (dir == null || dir.trim().isEmpty()) {
+			logger.error("ID_MAPPING is store, but ID_MAPPING_DIR is not set");
+			throw new IllegalStateException("ID_MAPPING_DIR is required for ID_MAPPING=store");
+		}
+
+		return true;
+	}
+
+	private static IdObfuscator createObfuscator() {
+		String key = System.getenv("ID_MAPPING_KEY");
+		if (key == null || key.trim().isEmpty()) {
+			// Do not fall back to identity. That would expose the ids we are asked to hide.
+			logger.error("ID_MAPPING is obfuscate, but ID_MAPPING_KEY is not set");
+			throw new IllegalStateException("ID_MAPPING_KEY is required for ID_MAPPING=obfuscate");
+		}
+
+		return new IdObfuscator(key.trim());
+	}
+
+	public static boolean isStoreEnabled() {
+		return useStore;
+	}
+
 	public static Long getFHIRfromOMOP(Long omop_id, String resource_name) {
-		// We use the same ID for now.
-		// TODO: Develop the ID mapping so that we do not reveal native
-		//       OMOP ID. If the mapping exists, send it. If not, create a new
-		//       mapping.
-		
+		if (omop_id == null) {
+			return null;
+		}
+		if (obfuscator != null) {
+			return obfuscator.obfuscate(resource_name, omop_id);
+		}
+		if (useStore) {
+			return IdMappingStore.getInstance().getFhirId(resource_name, omop_id);
+		}
+
 		return omop_id;
 	}
 
+	/**
+	 * Same as {@link #getFHIRfromOMOP(Long, String)} for many ids. With the
+	 * store, new mappings are written in one batch. With the identity mapping,
+	 * the given array is returned.
+	 */
+	public static long[] getFHIRfromOMOP(long[] omop_ids, String resource_name) {
+		if (obfuscator != null) {
+			long[] fhir_ids = new long[omop_ids.length];
+			for (int i = 0; i < omop_ids.length; i++) {
+				fhir_ids[i] = obfuscator.obfuscate(resource_name, omop_ids[i]);
+			}
+			return fhir_ids;
+		}
+		if (useStore) {
+			return IdMappingStore.getInstance().getFhirIds(resource_name, omop_ids);
+		}
+
+		return omop_ids;
+	}
+
+	/**
+	 * Reference to the resource with the OMOP id. Every reference to an OMOP
+	 * row must be built this way so that it carries the FHIR id.
+	 */
+	public static Reference getFHIRReferenceFromOMOP(Long omop_id, String resource_name) {
+		return new Reference(new IdType(resource_name, getFHIRfromOMOP(omop_id, resource_name)));
+	}
+
 	/**
 	 * What is OMOP ID for the long part of FHIR ID
 	 * @param fhir_id
-	 * @return
+	 * @return OMOP id. 0 if the FHIR id is not mapped.
 	 */
 	public static Long getOMOPfromFHIR(Long fhir_id, String resource_name) {
-		// We use the same ID now.
-		// TODO: Develop the ID mapping so that we do not reveal native
-		//       OMOP ID.
-		
-		return fhir_id;
-	}
-	
-	public static void writeOMOPfromFHIR(Long fhir_id) {
-		// Placeholder for later to use to store OMOP ID mapping info.
-		// This information will be used by getFHIRfromOMOP
-		// TODO: Develop mapping creation here.
+		if (fhir_id == null) {
+			return null;
+		}
+		if (obfuscator != null) {
+			return obfuscator.reveal(resource_name, fhir_id);
+		}
+		if (!useStore) {
+			return fhir_id;
+		}
+
+		long omopId = IdMappingStore.getInstance().getOmopId(resource_name, fhir_id);
+		return omopId == IdMappingStore.NOT_MAPPED ? 0L : omopId;
+	}
+
+	/**
+	 * OMOP id for a FHIR id that is given as a search parameter value. A value
+	 * that is not a number is returned as it is.
+	 */
+	public static String getOMOPValueFromFHIR(String fhir_id, String resource_name) {
+		if (fhir_id == null) {
+			return null;
+		}
+
+		Long fhirId;
+		try {
+			fhirId = Long.valueOf(fhir_id.trim());
+		} catch (NumberFormatException e) {
+			return fhir_id;
+		}
+
+		return String.valueOf(getOMOPfromFHIR(fhirId, resource_name));
+	}
+
+	/**
+	 * Reserves FHIR ids for an ingestion batch and returns the first one. Only
+	 * the store assigns FHIR ids. In the other modes, null is returned.
+	 */
+	public static Long reserveFHIRIds(String resource_name, int count) {
+		if (!useStore) {
+			return null;
+		}
+
+		return IdMappingStore.getInstance().reserveFhirIds(resource_name, count);
+	}
+
+	/**
+	 * Binds a FHIR id, such as a reserved one, to an OMOP id.
+	 */
+	public static void writeOMOPfromFHIR(Long fhir_id, Long omop_id, String resource_name) {
+		if (!useStore) {
+			return;
+		}
+
+		IdMappingStore.getInstance().map(resource_name, omop_id, fhir_id);
 	}
 }
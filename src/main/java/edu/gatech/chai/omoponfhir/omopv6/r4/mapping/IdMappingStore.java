@@ -0,0 +1,412 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.LongLongMap;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+
+/**
+ * Persistent FHIR id to OMOP id mapping, one index per resource type.
+ *
+ * Each index keeps both directions in primitive long maps, so lookups do not
+ * allocate. New mappings are appended to [Type].idmap in ID_MAPPING_DIR as 16
+ * byte records of OMOP id and FHIR id before the new ids are handed out. The
+ * file is read back at startup. ID_MAPPING_DIR must be set. Losing the files
+ * would change the FHIR ids of all resources. FHIR ids are assigned from a per
+ * type counter, so they do not reveal OMOP ids and ids of different OMOP
+ * sources do not collide.
+ *
+ * Written records survive a crash of the server process. They are forced to
+ * the disk every ID_MAPPING_SYNC_MILLIS by a background thread, so a crash of
+ * the machine can lose the ids of the last interval. With
+ * ID_MAPPING_SYNC_MILLIS=0, new ids are forced before they are returned. The
+ * force is done outside the index lock, and callers waiting at the same time
+ * share one force.
+ */
+public class IdMappingStore {
+	private static final Logger logger = LoggerFactory.getLogger(IdMappingStore.class);
+
+	private static IdMappingStore idMappingStore = new IdMappingStore();
+
+	public static final long NOT_MAPPED = Long.MIN_VALUE;
+
+	private static final int RECORD_SIZE = 16;
+	// Records with this OMOP id mark reserved FHIR ids. The FHIR id is the end
+	// of the reservation.
+	private static final long RESERVATION = Long.MIN_VALUE;
+
+	private static final int INITIAL_SIZE = (int) StaticValues.getEnvLong("ID_MAPPING_INITIAL_SIZE", 1024L);
+
+	private static final long SYNC_MILLIS = StaticValues.getEnvLong("ID_MAPPING_SYNC_MILLIS", 1000L);
+
+	private final Path directory;
+	private final ConcurrentHashMap<String, IdIndex> indexes = new ConcurrentHashMap<String, IdIndex>();
+	private final ScheduledExecutorService syncExecutor;
+
+	private class IdIndex {
+		final String resourceType;
+		final LongLongMap omopToFhir;
+		final LongLongMap fhirToOmop;
+		final FileChannel channel;
+		long nextFhirId = 1L;
+
+		// End of the written records. Set while holding the index lock.
+		volatile long writtenPosition;
+		// End of the records that are forced to the disk.
+		private final Object syncLock = new Object();
+		private long syncedPosition;
+
+		IdIndex(String resourceType) throws IOException {
+			this.resourceType = resourceType;
+			omopToFhir = new LongLongMap(INITIAL_SIZE, NOT_MAPPED);
+			fhirToOmop = new LongLongMap(INITIAL_SIZE, NOT_MAPPED);
+
+			Files.createDirectories(directory);
+			Path file = directory.resolve(resourceType + ".idmap");
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			load(file);
+		}
+
+		private void load(Path file) throws IOException {
+			long length = channel.size();
+			long validLength = length - (length % RECORD_SIZE);
+			ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+			long position = 0L;
+			while (position < validLength) {
+				buffer.clear();
+				if (validLength - position < buffer.capacity()) {
+					buffer.limit((int) (validLength - position));
+				}
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+				position += buffer.limit();
+				while (buffer.remaining() >= RECORD_SIZE) {
+					long omopId = buffer.getLong();
+					long fhirId = buffer.getLong();
+					if (omopId != RESERVATION) {
+						omopToFhir.put(omopId, fhirId);
+						fhirToOmop.put(fhirId, omopId);
+					}
+					if (fhirId >= nextFhirId) {
+						nextFhirId = fhirId + 1;
+					}
+				}
+			}
+
+			if (validLength != length) {
+				// A record was cut by a crash. Drop it.
+				channel.truncate(validLength);
+				logger.warn("Partial record dropped from " + file);
+			}
+			channel.position(validLength);
+			writtenPosition = validLength;
+			syncedPosition = validLength;
+
+			logger.info(omopToFhir.size() + " " + resourceType + " id mappings loaded from " + file);
+		}
+
+		/**
+		 * Writes the records. The caller holds the index lock.
+		 * 
+		 * @return end position of the records
+		 */
+		private long append(ByteBuffer records) throws IOException {
+			records.flip();
+			while (records.hasRemaining()) {
+				channel.write(records);
+			}
+			writtenPosition = channel.position();
+
+			return writtenPosition;
+		}
+
+		/**
+		 * Forces the records up to position to the disk, unless an earlier force
+		 * already covered them. Called without the index lock.
+		 */
+		private void sync(long position) throws IOException {
+			synchronized (syncLock) {
+				if (syncedPosition >= position) {
+					return;
+				}
+				long target = writtenPosition;
+				channel.force(false);
+				syncedPosition = target;
+			}
+		}
+	}
+
+	public IdMappingStore() {
+		String dir = System.getenv("ID_MAPPING_DIR");
+		if (dir == null || dir.trim().isEmpty()) {
+			// A temporary directory may be cleaned. Then all FHIR ids would change.
+			logger.error("ID_MAPPING is store, but ID_MAPPING_DIR is not set");
+			throw new IllegalStateException("ID_MAPPING_DIR is required for ID_MAPPING=store");
+		}
+		directory = Paths.get(dir.trim());
+
+		if (SYNC_MILLIS > 0) {
+			syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "id-mapping-sync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncExecutor.scheduleWithFixedDelay(this::syncAll, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+		} else {
+			syncExecutor = null;
+		}
+	}
+
+	public static IdMappingStore getInstance() {
+		return idMappingStore;
+	}
+
+	private IdIndex getIndex(String resourceType) {
+		IdIndex index = indexes.get(resourceType);
+		if (index == null) {
+			synchronized (indexes) {
+				index = indexes.get(resourceType);
+				if (index == null) {
+					try {
+						index = new IdIndex(resourceType);
+					} catch (IOException e) {
+						throw new IllegalStateException("Failed to open the id mapping of " + resourceType, e);
+					}
+					indexes.put(resourceType, index);
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns the FHIR id of the OMOP id. A new FHIR id is assigned and stored if
+	 * the OMOP id is not mapped yet.
+	 */
+	public long getFhirId(String resourceType, long omopId) {
+		IdIndex index = getIndex(resourceType);
+		long fhirId;
+		long position;
+		synchronized (index) {
+			fhirId = index.omopToFhir.get(omopId);
+			if (fhirId != NOT_MAPPED) {
+				return fhirId;
+			}
+
+			fhirId = index.nextFhirId;
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			record.putLong(omopId).putLong(fhirId);
+			position = write(index, record);
+			index.nextFhirId = fhirId + 1;
+			index.omopToFhir.put(omopId, fhirId);
+			index.fhirToOmop.put(fhirId, omopId);
+		}
+		sync(index, position);
+
+		return fhirId;
+	}
+
+	/**
+	 * Returns the FHIR ids of the OMOP ids. The ids that are not mapped yet are
+	 * assigned in one run and written to the file with one write.
+	 */
+	public long[] getFhirIds(String resourceType, long[] omopIds) {
+		long[] fhirIds = new long[omopIds.length];
+		IdIndex index = getIndex(resourceType);
+		long position = 0L;
+		synchronized (index) {
+			ByteBuffer records = null;
+			long nextFhirId = index.nextFhirId;
+			LongLongMap assigned = null;
+			for (int i = 0; i < omopIds.length; i++) {
+				long fhirId = index.omopToFhir.get(omopIds[i]);
+				if (fhirId == NOT_MAPPED && assigned != null) {
+					fhirId = assigned.get(omopIds[i]);
+				}
+				if (fhirId == NOT_MAPPED) {
+					if (records == null) {
+						records = ByteBuffer.allocate(RECORD_SIZE * (omopIds.length - i));
+						assigned = new LongLongMap(omopIds.length - i, NOT_MAPPED);
+					}
+					fhirId = nextFhirId++;
+					records.putLong(omopIds[i]).putLong(fhirId);
+					assigned.put(omopIds[i], fhirId);
+				}
+				fhirIds[i] = fhirId;
+			}
+
+			if (records != null) {
+				// Write first. The index only shows mappings that are stored.
+				position = write(index, records);
+				index.nextFhirId = nextFhirId;
+				for (int i = 0; i < omopIds.length; i++) {
+					if (!index.omopToFhir.containsKey(omopIds[i])) {
+						index.omopToFhir.put(omopIds[i], fhirIds[i]);
+						index.fhirToOmop.put(fhirIds[i], omopIds[i]);
+					}
+				}
+			}
+		}
+		if (position != 0L) {
+			sync(index, position);
+		}
+
+		return fhirIds;
+	}
+
+	/**
+	 * Returns the OMOP id of the FHIR id, or {@link #NOT_MAPPED}.
+	 */
+	public long getOmopId(String resourceType, long fhirId) {
+		IdIndex index = getIndex(resourceType);
+		synchronized (index) {
+			return index.fhirToOmop.get(fhirId);
+		}
+	}
+
+	/**
+	 * Reserves count FHIR ids and returns the first one. Reserved ids are not
+	 * given out again, even after a restart. Use {@link #map(String, long, long)}
+	 * to bind them to OMOP ids once the OMOP rows exist.
+	 */
+	public long reserveFhirIds(String resourceType, int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("count must be positive");
+		}
+
+		IdIndex index = getIndex(resourceType);
+		long first;
+		long position;
+		synchronized (index) {
+			first = index.nextFhirId;
+			long last = first + count - 1;
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			record.putLong(RESERVATION).putLong(last);
+			position = write(index, record);
+			index.nextFhirId = last + 1;
+		}
+		sync(index, position);
+
+		return first;
+	}
+
+	/**
+	 * Stores a mapping of a FHIR id chosen by the caller, such as a reserved id.
+	 * Fails if either id is already mapped to a different id.
+	 */
+	public void map(String resourceType, long omopId, long fhirId) {
+		IdIndex index = getIndex(resourceType);
+		long position;
+		synchronized (index) {
+			long currentFhirId = index.omopToFhir.get(omopId);
+			long currentOmopId = index.fhirToOmop.get(fhirId);
+			if (currentFhirId == fhirId && currentOmopId == omopId) {
+				return;
+			}
+			if (currentFhirId != NOT_MAPPED || currentOmopId != NOT_MAPPED) {
+				throw new IllegalArgumentException(resourceType + " id " + omopId + " or " + fhirId
+						+ " is already mapped");
+			}
+
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			record.putLong(omopId).putLong(fhirId);
+			position = write(index, record);
+			if (fhirId >= index.nextFhirId) {
+				index.nextFhirId = fhirId + 1;
+			}
+			index.omopToFhir.put(omopId, fhirId);
+			index.fhirToOmop.put(fhirId, omopId);
+		}
+		sync(index, position);
+	}
+
+	private long write(IdIndex index, ByteBuffer records) {
+		try {
+			return index.append(records);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to write the id mapping of " + index.resourceType, e);
+		}
+	}
+
+	/**
+	 * Forces the records now if ID_MAPPING_SYNC_MILLIS is 0. Otherwise the
+	 * background thread does it.
+	 */
+	private void sync(IdIndex index, long position) {
+		if (syncExecutor != null) {
+			return;
+		}
+
+		try {
+			index.sync(position);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to write the id mapping of " + index.resourceType, e);
+		}
+	}
+
+	private void syncAll() {
+		for (IdIndex index : indexes.values()) {
+			try {
+				index.sync(index.writtenPosition);
+			} catch (IOException e) {
+				logger.error("Failed to force the id mapping of " + index.resourceType + ": " + e.getMessage());
+			}
+		}
+	}
+
+	public void close() {
+		if (syncExecutor != null) {
+			syncExecutor.shutdown();
+		}
+
+		synchronized (indexes) {
+			for (IdIndex index : indexes.values()) {
+				synchronized (index) {
+					synchronized (index.syncLock) {
+						try {
+							index.channel.force(true);
+							index.channel.close();
+						} catch (IOException e) {
+							logger.error(e.getMessage());
+						}
+					}
+				}
+			}
+			indexes.clear();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keyed, reversible permutation of OMOP ids. Each resource type has its own
+ * round keys, derived from the secret and the type name, so the same OMOP id
+ * gets different FHIR ids in different resource types.
+ *
+ * The permutation is a Feistel network over the low 62 bits of the id. The
+ * sign and the next bit are kept, so non-negative ids stay non-negative and
+ * negative ids (such as the Observation table rows of the observation view)
+ * stay negative. This hides native ids from clients. It is not encryption and
+ * must not be relied on as an access control.
+ */
+public class IdObfuscator {
+	private static final int ROUNDS = 6;
+	private static final long LOW_BITS = (1L << 62) - 1;
+	private static final int HALF_MASK = (1 << 31) - 1;
+
+	private final byte[] secret;
+	private final ConcurrentHashMap<String, int[]> roundKeys = new ConcurrentHashMap<String, int[]>();
+
+	public IdObfuscator(String secret) {
+		if (secret == null || secret.isEmpty()) {
+			throw new IllegalArgumentException("Id obfuscation needs a secret");
+		}
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private int[] getRoundKeys(String resourceType) {
+		int[] keys = roundKeys.get(resourceType);
+		if (keys == null) {
+			keys = deriveRoundKeys(resourceType);
+			roundKeys.putIfAbsent(resourceType, keys);
+		}
+
+		return keys;
+	}
+
+	private int[] deriveRoundKeys(String resourceType) {
+		byte[] digest;
+		try {
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			sha256.update(secret);
+			sha256.update((byte) 0);
+			sha256.update(resourceType.getBytes(StandardCharsets.UTF_8));
+			digest = sha256.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+
+		int[] keys = new int[ROUNDS];
+		for (int i = 0; i < ROUNDS; i++) {
+			keys[i] = ((digest[i * 4] & 0xff) << 24) | ((digest[i * 4 + 1] & 0xff) << 16)
+					| ((digest[i * 4 + 2] & 0xff) << 8) | (digest[i * 4 + 3] & 0xff);
+		}
+
+		return keys;
+	}
+
+	public long obfuscate(String resourceType, long id) {
+		return (id & ~LOW_BITS) | encrypt(getRoundKeys(resourceType), id & LOW_BITS);
+	}
+
+	public long reveal(String resourceType, long id) {
+		return (id & ~LOW_BITS) | decrypt(getRoundKeys(resourceType), id & LOW_BITS);
+	}
+
+	private static long encrypt(int[] keys, long value) {
+		int left = (int) (value >>> 31) & HALF_MASK;
+		int right = (int) value & HALF_MASK;
+		for (int i = 0; i < ROUNDS; i++) {
+			int next = left ^ (round(right, keys[i]) & HALF_MASK);
+			left = right;
+			right = next;
+		}
+
+		return ((long) left << 31) | right;
+	}
+
+	private static long decrypt(int[] keys, long value) {
+		int left = (int) (value >>> 31) & HALF_MASK;
+		int right = (int) value & HALF_MASK;
+		for (int i = ROUNDS - 1; i >= 0; i--) {
+			int previous = right ^ (round(left, keys[i]) & HALF_MASK);
+			right = left;
+			left = previous;
+		}
+
+		return ((long) left << 31) | right;
+	}
+
+	private static int round(int value, int key) {
+		// murmur3 finalizer
+		int h = value ^ key;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
+
+/**
+ * Bulk data export. An export runs as a background job and writes one NDJSON
+ * file per resource type to BULK_EXPORT_DIR. Each table is read in id order,
+ * BULK_EXPORT_CHUNK_SIZE rows at a time, and each chunk is written out before
+ * the next one is read.
+ */
+public class OmopBulkExport {
+	private static final Logger logger = LoggerFactory.getLogger(OmopBulkExport.class);
+
+	private static OmopBulkExport omopBulkExport = new OmopBulkExport();
+
+	private static final int CHUNK_SIZE = (int) StaticValues.getEnvLong("BULK_EXPORT_CHUNK_SIZE", 1000L);
+
+	// Finished jobs and their files are removed after this time.
+	private static final long RETENTION_MILLIS = StaticValues.getEnvLong("BULK_EXPORT_RETENTION_SECONDS", 86400L)
+			* 1000L;
+
+	public enum Status {
+		ACCEPTED, IN_PROGRESS, COMPLETE, FAILED, CANCELLED
+	}
+
+	// Resource types that can be exported, with their mappers. The mappers are
+	// looked up when they are used.
+	private static final Map<String, Supplier<BaseOmopResource<?, ?, ?>>> exportMappers = new LinkedHashMap<String, Supplier<BaseOmopResource<?, ?, ?>>>();
+	static {
+		exportMappers.put("Patient", OmopPatient::getInstance);
+		exportMappers.put("Encounter", OmopEncounter::getInstance);
+		exportMappers.put("Condition", OmopCondition::getInstance);
+		exportMappers.put("Observation", OmopObservation::getInstance);
+		exportMappers.put("Procedure", OmopProcedure::getInstance);
+		exportMappers.put("MedicationRequest", OmopMedicationRequest::getInstance);
+		exportMappers.put("MedicationAdministration", OmopMedicationAdministration::getInstance);
+		exportMappers.put("MedicationDispense", OmopMedicationDispense::getInstance);
+		exportMappers.put("MedicationStatement", OmopMedicationStatement::getInstance);
+		exportMappers.put("Device", OmopDevice::getInstance);
+		exportMappers.put("DocumentReference", OmopDocumentReference::getInstance);
+		exportMappers.put("Organization", OmopOrganization::getInstance);
+		exportMappers.put("Practitioner", OmopPractitioner::getInstance);
+	}
+
+	// Types that are not in the Patient compartment.
+	private static final List<String> NON_PATIENT_TYPES = Collections
+			.unmodifiableList(Arrays.asList("Organization", "Practitioner"));
+
+	public static class ExportJob {
+		private final String id;
+		private final String request;
+		private final Date transactionTime;
+		private final List<String> types;
+		private final Collection<Long> personIds;
+		private final Path outputDirectory;
+
+		// Status changes are made while holding the job's lock.
+		private volatile Status status = Status.ACCEPTED;
+		private volatile String message;
+		private volatile long finishedTime = 0L;
+		private final Map<String, Long> outputCounts = new ConcurrentHashMap<String, Long>();
+
+		ExportJob(String request, List<String> types, Collection<Long> personIds, Path outputDirectory) {
+			this.id = UUID.randomUUID().toString();
+			this.request = request;
+			this.transactionTime = new Date();
+			this.types = types;
+			this.personIds = personIds;
+			this.outputDirectory = outputDirectory.resolve(id);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getRequest() {
+			return request;
+		}
+
+		public Date getTransactionTime() {
+			return transactionTime;
+		}
+
+		public List<String> getTypes() {
+			return types;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		boolean isCancelled() {
+			return status == Status.CANCELLED;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return number of resources written, by resource type.
+		 */
+		public Map<String, Long> getOutputCounts() {
+			return outputCounts;
+		}
+
+		public File getOutputFile(String type) {
+			return outputDirectory.resolve(type + ".ndjson").toFile();
+		}
+	}
+
+	private final Map<String, ExportJob> jobs = new ConcurrentHashMap<String, ExportJob>();
+	private final ExecutorService executor;
+	private final Path exportDirectory;
+
+	public OmopBulkExport() {
+		String directory = System.getenv("BULK_EXPORT_DIR");
+		if (directory == null || directory.trim().isEmpty()) {
+			exportDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "omoponfhir", "export");
+		} else {
+			exportDirectory = Paths.get(directory.trim());
+		}
+
+		executor = Executors.newFixedThreadPool((int) StaticValues.getEnvLong("BULK_EXPORT_THREADS", 1L), runnable -> {
+			Thread thread = new Thread(runnable, "omop-bulk-export");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public static OmopBulkExport getInstance() {
+		return omopBulkExport;
+	}
+
+	/**
+	 * @return resource types that can be exported. With patientCompartment, only
+	 *         the types in the Patient compartment.
+	 */
+	public static List<String> getExportTypes(boolean patientCompartment) {
+		List<String> types = new ArrayList<String>(exportMappers.keySet());
+		if (patientCompartment) {
+			types.removeAll(NON_PATIENT_TYPES);
+		}
+
+		return types;
+	}
+
+	/**
+	 * Starts an export job.
+	 * 
+	 * @param request   request URL of the kick-off request
+	 * @param types     resource types to export
+	 * @param personIds OMOP person ids to export the data of. Null exports the
+	 *                  whole table.
+	 */
+	public ExportJob startExport(String request, List<String> types, Collection<Long> personIds) {
+		for (String type : types) {
+			if (!exportMappers.containsKey(type)) {
+				throw new IllegalArgumentException("Resource type " + type + " cannot be exported");
+			}
+		}
+
+		pruneJobs();
+
+		final ExportJob job = new ExportJob(request, types, personIds, exportDirectory);
+		jobs.put(job.getId(), job);
+		executor.execute(() -> runExport(job));
+
+		return job;
+	}
+
+	public ExportJob getJob(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * Cancels the job and deletes its files. A running job deletes its files
+	 * itself once its writer is closed.
+	 * 
+	 * @return false if the job does not exist.
+	 */
+	public boolean cancel(String jobId) {
+		ExportJob job = jobs.remove(jobId);
+		if (job == null) {
+			return false;
+		}
+
+		boolean running;
+		synchronized (job) {
+			running = job.status == Status.IN_PROGRESS;
+			if (job.status == Status.ACCEPTED || running) {
+				job.status = Status.CANCELLED;
+			}
+		}
+
+		if (!running) {
+			deleteFiles(job);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes finished jobs older than BULK_EXPORT_RETENTION_SECONDS together
+	 * with their files.
+	 */
+	private void pruneJobs() {
+		long expired = System.currentTimeMillis() - RETENTION_MILLIS;
+		for (ExportJob job : jobs.values()) {
+			if (job.finishedTime != 0L && job.finishedTime < expired && jobs.remove(job.getId(), job)) {
+				deleteFiles(job);
+			}
+		}
+	}
+
+	private void deleteFiles(ExportJob job) {
+		for (String type : job.getTypes()) {
+			job.getOutputFile(type).delete();
+		}
+		job.outputDirectory.toFile().delete();
+	}
+
+	private void runExport(ExportJob job) {
+		synchronized (job) {
+			if (job.status == Status.CANCELLED) {
+				return;
+			}
+			job.status = Status.IN_PROGRESS;
+		}
+
+		long start = System.currentTimeMillis();
+		try {
+			Files.createDirectories(job.outputDirectory);
+
+			// Parsers are not thread-safe. One per job.
+			IParser parser = StaticValues.myFhirContext.newJsonParser();
+			parser.setPrettyPrint(false);
+
+			for (String type : job.getTypes()) {
+				if (job.isCancelled()) {
+					break;
+				}
+
+				String personColumn = "Patient".equals(type) ? "id" : "fPerson.id";
+				try (Writer writer = Files.newBufferedWriter(job.getOutputFile(type).toPath(),
+						StandardCharsets.UTF_8)) {
+					long count = exportType(job, exportMappers.get(type).get(), personColumn, writer, parser);
+					job.outputCounts.put(type, count);
+				}
+			}
+
+			synchronized (job) {
+				if (job.status != Status.CANCELLED) {
+					job.status = Status.COMPLETE;
+				}
+			}
+			logger.info("Bulk export " + job.getId() + " finished in " + (System.currentTimeMillis() - start)
+					+ "ms: " + job.getOutputCounts());
+		} catch (Exception e) {
+			logger.error("Bulk export " + job.getId() + " failed: " + e.getMessage());
+			synchronized (job) {
+				job.message = e.getMessage();
+				if (job.status != Status.CANCELLED) {
+					job.status = Status.FAILED;
+				}
+			}
+		}
+
+		job.finishedTime = System.currentTimeMillis();
+		if (job.isCancelled()) {
+			// The writers are closed at this point.
+			deleteFiles(job);
+		}
+	}
+
+	private long exportType(ExportJob job, BaseOmopResource<?, ?, ?> mapper, String personColumn, Writer writer,
+			IParser parser) throws IOException {
+		BaseOmopResource.ResourceChunkWriter chunkWriter = resources -> {
+			for (IBaseResource resource : resources) {
+				parser.encodeResourceToWriter(resource, writer);
+				writer.write('\n');
+			}
+			writer.flush();
+		};
+
+		if (job.personIds == null) {
+			return mapper.exportResources(new ArrayList<ParameterWrapper>(), CHUNK_SIZE, job::isCancelled,
+					chunkWriter);
+		}
+
+		long count = 0;
+		for (List<ParameterWrapper> personParams : BaseOmopResource.constructIdListParams(personColumn,
+				job.personIds)) {
+			count += mapper.exportResources(personParams, CHUNK_SIZE, job::isCancelled, chunkWriter);
+		}
+
+		return count;
+	}
+}
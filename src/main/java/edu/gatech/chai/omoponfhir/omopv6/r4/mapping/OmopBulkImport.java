@@ -0,0 +1,457 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.ContextLoaderListener;
+import org.springframework.web.context.WebApplicationContext;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopBulkExport.Status;
+import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExtensionUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+import edu.gatech.chai.omopv6.dba.service.FPersonService;
+import edu.gatech.chai.omopv6.dba.service.TransactionService;
+import edu.gatech.chai.omopv6.model.entity.BaseEntity;
+import edu.gatech.chai.omopv6.model.entity.FPerson;
+import edu.gatech.chai.omopv6.model.entity.Measurement;
+
+/**
+ * Bulk NDJSON import. The files of a directory under BULK_IMPORT_DIR are read
+ * line by line. The lines are parsed and mapped to OMOP entities on
+ * BULK_IMPORT_THREADS threads, and the entities are written with
+ * TransactionService.writeTransaction in batches of BULK_IMPORT_BATCH_SIZE.
+ * Patient files are imported first so that the other resources can refer to
+ * the imported patients.
+ */
+public class OmopBulkImport {
+	private static final Logger logger = LoggerFactory.getLogger(OmopBulkImport.class);
+
+	private static OmopBulkImport omopBulkImport = new OmopBulkImport();
+
+	private static final int BATCH_SIZE = (int) StaticValues.getEnvLong("BULK_IMPORT_BATCH_SIZE", 1000L);
+	private static final int MAPPER_THREADS = (int) StaticValues.getEnvLong("BULK_IMPORT_THREADS",
+			Runtime.getRuntime().availableProcessors());
+
+	public static class ImportJob {
+		private final String id;
+		private final String request;
+		private final Date transactionTime;
+		private final Path inputDirectory;
+
+		private volatile Status status = Status.ACCEPTED;
+		private volatile String message;
+		private final AtomicLong read = new AtomicLong();
+		private final AtomicLong created = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+
+		// Patient reference in the input (Patient/[id]) -> FHIR id in this server.
+		// 0 means the patient cannot be found.
+		private final Map<String, Long> patientMap = new ConcurrentHashMap<String, Long>();
+
+		ImportJob(String request, Path inputDirectory) {
+			this.id = UUID.randomUUID().toString();
+			this.request = request;
+			this.transactionTime = new Date();
+			this.inputDirectory = inputDirectory;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getRequest() {
+			return request;
+		}
+
+		public Date getTransactionTime() {
+			return transactionTime;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public long getRead() {
+			return read.get();
+		}
+
+		public long getCreated() {
+			return created.get();
+		}
+
+		public long getFailed() {
+			return failed.get();
+		}
+
+		public long getSkipped() {
+			return skipped.get();
+		}
+	}
+
+	/**
+	 * Entities mapped from a batch of lines, and the number of resources they
+	 * came from. An Observation can map to more than one Measurement.
+	 */
+	private static class MappedBatch {
+		final Map<String, List<BaseEntity>> entities = new HashMap<String, List<BaseEntity>>();
+		int resources;
+	}
+
+	private final Map<String, ImportJob> jobs = new ConcurrentHashMap<String, ImportJob>();
+	private final Path importDirectory;
+	private final ExecutorService jobExecutor;
+	private final ExecutorService mapperExecutor;
+	private final ExecutorService writerExecutor;
+
+	private final ThreadLocal<IParser> parsers = ThreadLocal
+			.withInitial(() -> StaticValues.myFhirContext.newJsonParser());
+
+	private TransactionService transactionService;
+	private FPersonService fPersonService;
+
+	public OmopBulkImport() {
+		String directory = System.getenv("BULK_IMPORT_DIR");
+		if (directory == null || directory.trim().isEmpty()) {
+			importDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "omoponfhir", "import");
+		} else {
+			importDirectory = Paths.get(directory.trim());
+		}
+
+		jobExecutor = Executors.newSingleThreadExecutor(runnable -> newDaemonThread(runnable, "omop-bulk-import"));
+		mapperExecutor = Executors.newFixedThreadPool(Math.max(1, MAPPER_THREADS),
+				runnable -> newDaemonThread(runnable, "omop-bulk-import-mapper"));
+		// Entities are written by one thread. Batches do not compete for locks.
+		writerExecutor = Executors
+				.newSingleThreadExecutor(runnable -> newDaemonThread(runnable, "omop-bulk-import-writer"));
+	}
+
+	private static Thread newDaemonThread(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private void initialize() {
+		if (transactionService == null) {
+			WebApplicationContext context = ContextLoaderListener.getCurrentWebApplicationContext();
+			fPersonService = context.getBean(FPersonService.class);
+			transactionService = context.getBean(TransactionService.class);
+		}
+	}
+
+	public static OmopBulkImport getInstance() {
+		return omopBulkImport;
+	}
+
+	/**
+	 * Starts an import of the NDJSON files in the source directory.
+	 *
+	 * @param source directory relative to BULK_IMPORT_DIR. Null or empty imports
+	 *               BULK_IMPORT_DIR itself.
+	 */
+	public ImportJob startImport(String request, String source) {
+		Path inputDirectory = importDirectory.toAbsolutePath().normalize();
+		if (source != null && !source.trim().isEmpty()) {
+			inputDirectory = inputDirectory.resolve(source.trim()).normalize();
+			if (!inputDirectory.startsWith(importDirectory.toAbsolutePath().normalize())) {
+				throw new IllegalArgumentException("Import source must be in the import directory");
+			}
+		}
+		if (!Files.isDirectory(inputDirectory)) {
+			throw new IllegalArgumentException("Import source " + source + " is not found");
+		}
+
+		initialize();
+
+		final ImportJob job = new ImportJob(request, inputDirectory);
+		jobs.put(job.getId(), job);
+		jobExecutor.execute(() -> runImport(job));
+
+		return job;
+	}
+
+	public ImportJob getJob(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	private void runImport(ImportJob job) {
+		job.status = Status.IN_PROGRESS;
+		long start = System.currentTimeMillis();
+		try {
+			List<Path> patientFiles = new ArrayList<Path>();
+			List<Path> otherFiles = new ArrayList<Path>();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(job.inputDirectory, "*.ndjson")) {
+				for (Path file : files) {
+					if (file.getFileName().toString().startsWith("Patient")) {
+						patientFiles.add(file);
+					} else {
+						otherFiles.add(file);
+					}
+				}
+			}
+
+			// Patients first. Other resources are mapped to them by patientMap.
+			for (Path file : patientFiles) {
+				importFile(job, file);
+			}
+			for (Path file : otherFiles) {
+				importFile(job, file);
+			}
+
+			job.status = Status.COMPLETE;
+			logger.info("Bulk import " + job.getId() + " finished in " + (System.currentTimeMillis() - start)
+					+ "ms: read=" + job.getRead() + ", created=" + job.getCreated() + ", failed=" + job.getFailed()
+					+ ", skipped=" + job.getSkipped());
+		} catch (Exception e) {
+			logger.error("Bulk import " + job.getId() + " failed: " + e.getMessage());
+			job.message = e.getMessage();
+			job.status = Status.FAILED;
+		}
+	}
+
+	/**
+	 * Reads the file and hands batches of lines to the mapper threads. Each
+	 * mapped batch is then queued to the writer. The number of batches in flight
+	 * is limited so that the reader does not run ahead of the writer.
+	 */
+	private void importFile(final ImportJob job, Path file) throws IOException, InterruptedException {
+		int maxInFlight = Math.max(1, MAPPER_THREADS) * 2;
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+
+		logger.info("Bulk import " + job.getId() + " reading " + file);
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			List<String> lines = new ArrayList<String>(BATCH_SIZE);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				job.read.incrementAndGet();
+				lines.add(line);
+				if (lines.size() >= BATCH_SIZE) {
+					submitBatch(job, lines, inFlight);
+					lines = new ArrayList<String>(BATCH_SIZE);
+				}
+			}
+			if (!lines.isEmpty()) {
+				submitBatch(job, lines, inFlight);
+			}
+		} finally {
+			// Wait for the batches of this file to be written.
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		}
+	}
+
+	private void submitBatch(final ImportJob job, final List<String> lines, final Semaphore inFlight)
+			throws InterruptedException {
+		inFlight.acquire();
+		try {
+			mapperExecutor.execute(() -> {
+				try {
+					final MappedBatch batch = mapBatch(job, lines);
+					writerExecutor.execute(() -> {
+						try {
+							writeBatch(job, batch);
+						} finally {
+							inFlight.release();
+						}
+					});
+				} catch (RuntimeException e) {
+					logger.error("Bulk import " + job.getId() + " failed to map a batch: " + e.getMessage());
+					job.failed.addAndGet(lines.size());
+					inFlight.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps a batch of NDJSON lines to OMOP entities. The entities are keyed in
+	 * the same way as {@link OmopTransaction#executeTransaction(Map)} does.
+	 */
+	private MappedBatch mapBatch(ImportJob job, List<String> lines) {
+		IParser parser = parsers.get();
+		MappedBatch batch = new MappedBatch();
+		for (String line : lines) {
+			Resource resource;
+			try {
+				resource = (Resource) parser.parseResource(line);
+			} catch (Exception e) {
+				job.failed.incrementAndGet();
+				continue;
+			}
+
+			try {
+				if (resource.getResourceType() == ResourceType.Patient) {
+					FPerson fPerson = OmopPatient.getInstance().constructOmop(null,
+							ExtensionUtil.usCorePatientFromResource(resource));
+					String sourceId = resource.getIdElement().getIdPart();
+					if (sourceId == null) {
+						sourceId = UUID.randomUUID().toString();
+					}
+					addEntity(batch.entities, "Patient/" + sourceId + "^FPerson", fPerson);
+					batch.resources++;
+				} else if (resource.getResourceType() == ResourceType.Observation) {
+					if (mapObservation(job, (Observation) resource, batch.entities)) {
+						batch.resources++;
+					}
+				} else {
+					// Only Patient and Observation can be written in batches.
+					job.skipped.incrementAndGet();
+				}
+			} catch (Exception e) {
+				logger.debug("Bulk import failed to map " + resource.getIdElement().getValue() + ": "
+						+ e.getMessage());
+				job.failed.incrementAndGet();
+			}
+		}
+
+		return batch;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean mapObservation(ImportJob job, Observation observation, Map<String, List<BaseEntity>> entities) {
+		Long patientFhirId = resolvePatient(job, observation.getSubject());
+		if (patientFhirId == null) {
+			job.skipped.incrementAndGet();
+			return false;
+		}
+		observation.setSubject(new Reference(new IdType(PatientResourceProvider.getType(), patientFhirId)));
+
+		Map<String, Object> obsEntityMap = OmopObservation.getInstance().constructOmopMeasurementObservation(null,
+				observation);
+		if (obsEntityMap == null || obsEntityMap.isEmpty()) {
+			job.failed.incrementAndGet();
+			return false;
+		}
+
+		String subject = observation.getSubject().getReference();
+		if ("Measurement".equalsIgnoreCase((String) obsEntityMap.get("type"))) {
+			for (Measurement measurement : (List<Measurement>) obsEntityMap.get("entity")) {
+				addEntity(entities, subject + "^Measurement", measurement);
+			}
+		} else {
+			addEntity(entities, subject + "^Observation", (BaseEntity) obsEntityMap.get("entity"));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Resolves the patient reference to a FHIR id of this server. Patients of
+	 * this import are found in the job's patient map. Other references are
+	 * looked up in the database once and remembered.
+	 */
+	private Long resolvePatient(ImportJob job, Reference subject) {
+		if (subject == null || subject.isEmpty() || subject.getReferenceElement().isEmpty()) {
+			return null;
+		}
+
+		IIdType reference = subject.getReferenceElement();
+		String key = PatientResourceProvider.getType() + "/" + reference.getIdPart();
+		Long fhirId = job.patientMap.get(key);
+		if (fhirId == null) {
+			fhirId = 0L;
+			if (reference.isIdPartValidLong()) {
+				Long omopId = IdMapping.getOMOPfromFHIR(reference.getIdPartAsLong(),
+						PatientResourceProvider.getType());
+				if (omopId != null && fPersonService.findById(omopId) != null) {
+					fhirId = reference.getIdPartAsLong();
+				}
+			}
+			job.patientMap.put(key, fhirId);
+		}
+
+		return fhirId == 0L ? null : fhirId;
+	}
+
+	private void writeBatch(ImportJob job, MappedBatch batch) {
+		if (batch.resources == 0) {
+			return;
+		}
+
+		Map<String, List<BaseEntity>> entities = batch.entities;
+		int performStatus;
+		try {
+			performStatus = transactionService.writeTransaction(entities);
+		} catch (Exception e) {
+			logger.error("Bulk import " + job.getId() + " failed to write a batch: " + e.getMessage());
+			performStatus = -1;
+		}
+		if (performStatus < 0) {
+			job.failed.addAndGet(batch.resources);
+			return;
+		}
+		job.created.addAndGet(batch.resources);
+
+		// Remember the new patients for the resources that refer to them.
+		for (Map.Entry<String, List<BaseEntity>> entry : entities.entrySet()) {
+			String[] keyInfo = entry.getKey().split("\\^");
+			if (keyInfo.length == 2 && "FPerson".equals(keyInfo[1])) {
+				for (BaseEntity entity : entry.getValue()) {
+					job.patientMap.put(keyInfo[0],
+							IdMapping.getFHIRfromOMOP(entity.getIdAsLong(), PatientResourceProvider.getType()));
+				}
+			}
+		}
+	}
+
+	private static void addEntity(Map<String, List<BaseEntity>> entities, String key, BaseEntity entity) {
+		List<BaseEntity> list = entities.get(key);
+		if (list == null) {
+			list = new ArrayList<BaseEntity>();
+			entities.put(key, list);
+		}
+		list.add(entity);
+	}
+}
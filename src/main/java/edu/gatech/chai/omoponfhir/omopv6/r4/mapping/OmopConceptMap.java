@@ -2,7 +2,12 @@ package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.CodeType;
@@ -19,6 +24,9 @@ import org.springframework.web.context.WebApplicationContext;
 
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.ConceptMapResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ConceptIdCache;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExpiringCache;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
 import edu.gatech.chai.omopv6.dba.service.ConceptRelationshipService;
 import edu.gatech.chai.omopv6.dba.service.ConceptService;
 import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
@@ -31,6 +39,15 @@ public class OmopConceptMap extends BaseOmopResource<ConceptMap, ConceptRelation
 	private static final Logger logger = LoggerFactory.getLogger(OmopConceptMap.class);
 	private static OmopConceptMap omopConceptMap = new OmopConceptMap();
 	private ConceptService conceptService;
+
+	// (system, code, target system) to $translate result. A miss is cached as
+	// null with a shorter TTL.
+	private static ExpiringCache<String, Parameters> translationCache = new ExpiringCache<String, Parameters>(
+			(int) StaticValues.getEnvLong("TRANSLATE_CACHE_SIZE", 10000L),
+			StaticValues.getEnvLong("TRANSLATE_CACHE_TTL_SECONDS", 3600L) * 1000L,
+			StaticValues.getEnvLong("TRANSLATE_CACHE_MISS_TTL_SECONDS", 300L) * 1000L);
+	// Returned by the cache when it has no entry. A cached miss is null.
+	private static final Parameters NOT_CACHED = new Parameters();
 	
 	public OmopConceptMap(WebApplicationContext context) {
 		super(context, ConceptRelationship.class, ConceptRelationshipService.class, ConceptMapResourceProvider.getType());
@@ -74,7 +91,92 @@ public class OmopConceptMap extends BaseOmopResource<ConceptMap, ConceptRelation
 		return null;
 	}
 
+	/**
+	 * Translates one coding. Results, including misses, are cached by source
+	 * system, code and target system.
+	 */
 	public Parameters translateConcept(String code, String system, String targetUri, String targetSystem) {
+		Parameters retVal = translationCache.get(translationCacheKey(system, code, targetSystem),
+				key -> nonEmpty(searchTranslation(code, system, targetSystem)));
+
+		return retVal == null ? new Parameters() : retVal.copy();
+	}
+
+	/**
+	 * Translates many codings to the target system. Codings that are not cached
+	 * are looked up with one concept_relationship search per source vocabulary
+	 * and chunk of source concepts.
+	 * 
+	 * @return one Parameters per coding, in the order of the codings. An empty
+	 *         Parameters means no translation.
+	 */
+	public List<Parameters> translateConcepts(List<Coding> codings, String targetSystem) {
+		List<Parameters> retVal = new ArrayList<Parameters>(codings.size());
+		String omopTargetVocab = fhirOmopVocabularyMap.getOmopVocabularyFromFhirSystemName(targetSystem);
+
+		// Source concept ids of the codings that are not cached, per source vocabulary.
+		Map<String, Map<Long, List<Integer>>> pending = new HashMap<String, Map<Long, List<Integer>>>();
+		for (int i = 0; i < codings.size(); i++) {
+			Coding coding = codings.get(i);
+			String key = translationCacheKey(coding.getSystem(), coding.getCode(), targetSystem);
+			retVal.add(null);
+
+			Parameters cached = translationCache.getIfPresent(key, NOT_CACHED);
+			if (cached != NOT_CACHED) {
+				retVal.set(i, cached == null ? new Parameters() : cached.copy());
+				continue;
+			}
+
+			String omopSrcVocab = fhirOmopVocabularyMap.getOmopVocabularyFromFhirSystemName(coding.getSystem());
+			Concept omopSrcConcept = null;
+			if (!"None".equals(omopSrcVocab) && !"None".equals(omopTargetVocab)) {
+				omopSrcConcept = CodeableConceptUtil.getOmopConceptWithOmopVacabIdAndCode(conceptService,
+						omopSrcVocab, coding.getCode());
+			}
+
+			if (omopSrcConcept == null) {
+				translationCache.put(key, null);
+				retVal.set(i, new Parameters());
+				continue;
+			}
+
+			pending.computeIfAbsent(omopSrcVocab, k -> new LinkedHashMap<Long, List<Integer>>())
+					.computeIfAbsent(omopSrcConcept.getId(), k -> new ArrayList<Integer>()).add(i);
+		}
+
+		for (Map.Entry<String, Map<Long, List<Integer>>> vocabEntry : pending.entrySet()) {
+			Map<Long, List<Integer>> srcConcepts = vocabEntry.getValue();
+			Map<Long, List<ConceptRelationship>> relationships = searchRelationships(srcConcepts.keySet(),
+					vocabEntry.getKey() + " % " + omopTargetVocab + " eq");
+
+			for (Map.Entry<Long, List<Integer>> srcEntry : srcConcepts.entrySet()) {
+				Parameters translation = nonEmpty(
+						translationParameters(relationships.getOrDefault(srcEntry.getKey(), Collections.emptyList())));
+				for (Integer index : srcEntry.getValue()) {
+					Coding coding = codings.get(index);
+					translationCache.put(translationCacheKey(coding.getSystem(), coding.getCode(), targetSystem),
+							translation);
+					retVal.set(index, translation == null ? new Parameters() : translation.copy());
+				}
+			}
+		}
+
+		return retVal;
+	}
+
+	public static void invalidateTranslationCache() {
+		translationCache.invalidateAll();
+	}
+
+	private static String translationCacheKey(String system, String code, String targetSystem) {
+		return system + "^" + code + "^" + targetSystem;
+	}
+
+	private static Parameters nonEmpty(Parameters parameters) {
+		return parameters == null || parameters.isEmpty() ? null : parameters;
+	}
+
+	private Parameters searchTranslation(String code, String system, String targetSystem) {
 		Parameters retVal = new Parameters();
 		
 		// Using the system/code and targetSystem, map the system/code.
@@ -97,31 +199,51 @@ public class OmopConceptMap extends BaseOmopResource<ConceptMap, ConceptRelation
 		}
 		
 		logger.debug("$translate: attempting translate from concept_id_1:"+omopSrcConcept.getId()+" to "+targetSystem);
-		List<ParameterWrapper> params = new ArrayList<ParameterWrapper>();
-		ParameterWrapper paramConceptId1 = new ParameterWrapper(
-				"Long",
-				Arrays.asList("id.conceptId1"),
-				Arrays.asList("="),
-				Arrays.asList(String.valueOf(omopSrcConcept.getId())),
-				"or"
-				);
-		params.add(paramConceptId1);
+		List<ConceptRelationship> conceptRealationships = searchRelationships(
+				Collections.singleton(omopSrcConcept.getId()), relationshipId)
+				.getOrDefault(omopSrcConcept.getId(), Collections.emptyList());
+		if (conceptRealationships.isEmpty()) {
+			logger.info("$translate: mapping information is not found ("+system+"|"+code+" to "+targetSystem+")");
+			return retVal;
+		}
 		
-		ParameterWrapper paramRelationshipId = new ParameterWrapper(
+		return translationParameters(conceptRealationships);
+	}
+
+	/**
+	 * Searches the relationships of the source concepts with one query per
+	 * chunk of ID_LIST_CHUNK_SIZE concept ids. Returns them grouped by
+	 * concept_id_1.
+	 */
+	private Map<Long, List<ConceptRelationship>> searchRelationships(Collection<Long> srcConceptIds,
+			String relationshipId) {
+		ParameterWrapper relationshipParam = new ParameterWrapper(
 				"String",
 				Arrays.asList("id.relationshipId"),
 				Arrays.asList("like"),
 				Arrays.asList(relationshipId),
 				"or"
 				);
-		params.add(paramRelationshipId);
-		
-		List<ConceptRelationship> conceptRealationships = getMyOmopService().searchWithParams(0, 0, params, null);
+
+		Map<Long, List<ConceptRelationship>> retVal = new HashMap<Long, List<ConceptRelationship>>();
+		for (List<ParameterWrapper> idParams : constructIdListParams("id.conceptId1", srcConceptIds)) {
+			List<ParameterWrapper> params = new ArrayList<ParameterWrapper>(idParams);
+			params.add(relationshipParam);
+			for (ConceptRelationship conceptRelationship : getMyOmopService().searchWithParams(0, 0, params, null)) {
+				retVal.computeIfAbsent(conceptRelationship.getId().getConceptId1(),
+						k -> new ArrayList<ConceptRelationship>()).add(conceptRelationship);
+			}
+		}
+
+		return retVal;
+	}
+
+	private Parameters translationParameters(List<ConceptRelationship> conceptRealationships) {
+		Parameters retVal = new Parameters();
 		if (conceptRealationships.isEmpty()) {
-			logger.info("$translate: mapping information is not found ("+system+"|"+code+" to "+targetSystem+")");
 			return retVal;
 		}
-		
+
 		ParametersParameterComponent parameter = retVal.addParameter();
 		parameter.setName("result");
 		parameter.setValue(new BooleanType(true));
@@ -140,7 +262,7 @@ public class OmopConceptMap extends BaseOmopResource<ConceptMap, ConceptRelation
 			partParameter.setName("concept");
 			
 			Long targetConceptId = conceptRealationship.getId().getConceptId2();
-			Concept targetConcept = conceptService.findById(targetConceptId);
+			Concept targetConcept = ConceptIdCache.findById(conceptService, targetConceptId);
 			
 			logger.debug("$translate: target concept obtained with vocabulary_id="+targetConcept.getVocabularyId());
 			Coding targetCoding = CodeableConceptUtil.getCodingFromOmopConcept(targetConcept, getFhirOmopVocabularyMap());
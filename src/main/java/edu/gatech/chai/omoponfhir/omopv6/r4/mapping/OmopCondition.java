@@ -24,6 +24,7 @@ import edu.gatech.chai.omoponfhir.omopv6.r4.provider.EncounterResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PractitionerResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ConceptIdCache;
 import edu.gatech.chai.omopv6.dba.service.*;
 import edu.gatech.chai.omopv6.model.entity.*;
 
@@ -40,7 +41,8 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
-public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurrence, ConditionOccurrenceService> {
+public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurrence, ConditionOccurrenceService>
+		implements IResourceMapping<Condition, ConditionOccurrence> {
 
 	private static final Logger logger = LoggerFactory.getLogger(OmopCondition.class);
 
@@ -167,7 +169,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 		case Condition.SP_ASSERTER:
 			// Condition.asserter -> Omop Provider
 			ReferenceParam patientReference = ((ReferenceParam) value);
-			String patientId = String.valueOf(patientReference.getIdPartAsLong());
+			String patientId = String.valueOf(
+					IdMapping.getOMOPfromFHIR(patientReference.getIdPartAsLong(), PractitionerResourceProvider.getType()));
 
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("provider.id"));
@@ -227,7 +230,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 		case Condition.SP_ENCOUNTER:
 			// Condition.context -> Omop VisitOccurrence
 			ReferenceParam visitReference = (ReferenceParam) value;
-			String visitId = String.valueOf(visitReference.getIdPartAsLong());
+			String visitId = String.valueOf(
+					IdMapping.getOMOPfromFHIR(visitReference.getIdPartAsLong(), EncounterResourceProvider.getType()));
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("visitOccurrence.id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -269,7 +273,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 			mapList.add(paramWrapper);
 			break;
 		case Condition.SP_RES_ID:
-			String conditionId = ((TokenParam) value).getValue();
+			String conditionId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -348,7 +353,7 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 		// Condition.subject
 		FPerson fPerson = conditionOccurrence.getFPerson();
 		// set the person
-		Reference subjectRef = new Reference(new IdType(PatientResourceProvider.getType(), fPerson.getId()));
+		Reference subjectRef = IdMapping.getFHIRReferenceFromOMOP(fPerson.getId(), PatientResourceProvider.getType());
 		subjectRef.setDisplay(fPerson.getNameAsSingleString());
 		condition.setSubject(subjectRef);
 	}
@@ -413,7 +418,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 		// Condition.asserter
 		Provider provider = conditionOccurrence.getProvider();
 		if (provider != null) {
-			Reference providerRef = new Reference(new IdType(PractitionerResourceProvider.getType(), provider.getId()));
+			Reference providerRef = IdMapping.getFHIRReferenceFromOMOP(provider.getId(),
+					PractitionerResourceProvider.getType());
 			providerRef.setDisplay(provider.getProviderName());
 			condition.setAsserter(providerRef);
 		}
@@ -423,8 +429,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 		// Condition.context
 		VisitOccurrence visitOccurrence = conditionOccurrence.getVisitOccurrence();
 		if (visitOccurrence != null) {
-			Reference visitRef = new Reference(
-					new IdType(EncounterResourceProvider.getType(), visitOccurrence.getId()));
+			Reference visitRef = IdMapping.getFHIRReferenceFromOMOP(visitOccurrence.getId(),
+					EncounterResourceProvider.getType());
 			condition.setEncounter(visitRef);
 		}
 	}
@@ -546,7 +552,7 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 				break;
 		}
 
-		concept = conceptService.findById(typeConceptId);
+		concept = ConceptIdCache.findById(conceptService, typeConceptId);
 		conditionOccurrence.setConditionTypeConcept(concept);
 
 		// set the context
@@ -74,7 +74,7 @@ public class OmopDevice extends BaseOmopResource<Device, DeviceExposure, DeviceE
 		device.setId(new IdType(fhirId));
 		
 		// Set patient information.
-		Reference patientReference = new Reference(new IdType("Patient", entity.getFPerson().getId()));
+		Reference patientReference = IdMapping.getFHIRReferenceFromOMOP(entity.getFPerson().getId(), "Patient");
 		String singleName = entity.getFPerson().getNameAsSingleString();
 		if (singleName != null && !singleName.isEmpty()) {
 			patientReference.setDisplay(singleName);
@@ -176,7 +176,8 @@ public class OmopDevice extends BaseOmopResource<Device, DeviceExposure, DeviceE
 
 		switch (parameter) {
 		case Device.SP_RES_ID:
-			String encounterId = ((TokenParam) value).getValue();
+			String encounterId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
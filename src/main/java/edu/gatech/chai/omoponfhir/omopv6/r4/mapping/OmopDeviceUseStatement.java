@@ -41,6 +41,7 @@ import org.springframework.web.context.WebApplicationContext;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.omoponfhir.omopv6.r4.model.MyDevice;
 import edu.gatech.chai.omoponfhir.omopv6.r4.model.MyDeviceUseStatement;
+import edu.gatech.chai.omoponfhir.omopv6.r4.provider.DeviceResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.DeviceUseStatementResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PractitionerResourceProvider;
@@ -126,7 +127,8 @@ public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatemen
 //		myDeviceUseStatement.setDevice(new Reference(new IdType(DeviceResourceProvider.getType(), fhirId)));
 		
 		// set subject, which is a patient.
-		Reference patientReference = new Reference(new IdType(PatientResourceProvider.getType(), entity.getFPerson().getId()));
+		Reference patientReference = IdMapping.getFHIRReferenceFromOMOP(entity.getFPerson().getId(),
+				PatientResourceProvider.getType());
 		String singleName = entity.getFPerson().getNameAsSingleString();
 		if (singleName != null && !singleName.isEmpty()) {
 			patientReference.setDisplay(singleName);
@@ -186,7 +188,8 @@ public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatemen
 		
 		switch (parameter) {
 		case DeviceUseStatement.SP_RES_ID:
-			String deviceUseStatementId = ((TokenParam) value).getValue();
+			String deviceUseStatementId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -260,7 +263,10 @@ public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatemen
 			}
 		} else {
 			String deviceId = idType.getIdPart();
-			if (omopId != null && !deviceId.equals(String.valueOf(omopId))) {
+			Long deviceOmopId = idType.isIdPartValidLong()
+					? IdMapping.getOMOPfromFHIR(idType.getIdPartAsLong(), DeviceResourceProvider.getType())
+					: null;
+			if (omopId != null && !omopId.equals(deviceOmopId)) {
 				// Error... device Id must be same as deviceUseStatement.
 				try {
 					throw new FHIRException("DeviceUseStatement.device: Device/"+deviceId+" must be Device/" + deviceUseStatement.getId());
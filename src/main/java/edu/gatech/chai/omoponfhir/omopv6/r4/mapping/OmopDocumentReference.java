@@ -44,6 +44,7 @@ import edu.gatech.chai.omoponfhir.omopv6.r4.provider.EncounterResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PractitionerResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ConceptIdCache;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.DateUtil;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv6.dba.service.ConceptService;
@@ -129,7 +130,8 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 
 		switch (parameter) {
 		case DocumentReference.SP_RES_ID:
-			String documentReferenceId = ((TokenParam) value).getValue();
+			String documentReferenceId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -139,7 +141,7 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 			break;
 		case DocumentReference.SP_ENCOUNTER:
 			Long fhirId = ((ReferenceParam) value).getIdPartAsLong();
-			Long omopVisitOccurrenceId = IdMapping.getOMOPfromFHIR(fhirId, DocumentReferenceResourceProvider.getType());
+			Long omopVisitOccurrenceId = IdMapping.getOMOPfromFHIR(fhirId, EncounterResourceProvider.getType());
 			
 			if (omopVisitOccurrenceId != null) {
 				paramWrapper.setParameterType("Long");
@@ -304,7 +306,7 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 			if (loincCoding != null) {
 				// We found loinc coding. See if we can convert to Note Type concept.
 				Long typeOmopConceptId = OmopNoteTypeMapping.getOmopConceptIdFor(typeFhirConcept.getId());
-				typeOmopConcept = conceptService.findById(typeOmopConceptId);
+				typeOmopConcept = ConceptIdCache.findById(conceptService, typeOmopConceptId);
 			}
 			
 			if (typeOmopConcept == null) {
@@ -469,7 +471,7 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 				if (loincConceptId != 0L) {
 					// We found lonic code for this. Find this concept and create FHIR codeable
 					// concept.
-					Concept loincConcept = conceptService.findById(loincConceptId);
+					Concept loincConcept = ConceptIdCache.findById(conceptService, loincConceptId);
 					typeCodeableConcept = CodeableConceptUtil.getCodeableConceptFromOmopConcept(loincConcept);
 				}
 			} catch (FHIRException e) {
@@ -20,7 +20,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Encounter;
@@ -33,6 +37,7 @@ import org.hl7.fhir.r4.model.Encounter.EncounterParticipantComponent;
 import org.hl7.fhir.r4.model.Encounter.EncounterStatus;
 import org.hl7.fhir.r4.model.codesystems.V3ActCode;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
@@ -90,8 +95,54 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 		return OmopEncounter.omopEncounter;
 	}
 
+	@Override
+	public void constructResources(List<VisitOccurrence> visitOccurrences, List<String> includes,
+			List<IBaseResource> listResources) {
+		// Read the conditions of all visits in this page at once.
+		Set<Long> visitOccurrenceIds = new HashSet<Long>();
+		for (VisitOccurrence visitOccurrence : visitOccurrences) {
+			visitOccurrenceIds.add(visitOccurrence.getId());
+		}
+
+		Map<Long, List<ConditionOccurrence>> conditionsByVisit = new HashMap<Long, List<ConditionOccurrence>>();
+		for (List<ParameterWrapper> params : constructIdListParams("visitOccurrence.id", visitOccurrenceIds)) {
+			List<ConditionOccurrence> conditions = conditionOccurrenceService.searchWithParams(0, 0, params, null);
+			for (ConditionOccurrence condition : conditions) {
+				if (condition.getVisitOccurrence() == null)
+					continue;
+
+				Long visitOccurrenceId = condition.getVisitOccurrence().getId();
+				List<ConditionOccurrence> visitConditions = conditionsByVisit.get(visitOccurrenceId);
+				if (visitConditions == null) {
+					visitConditions = new ArrayList<ConditionOccurrence>();
+					conditionsByVisit.put(visitOccurrenceId, visitConditions);
+				}
+				visitConditions.add(condition);
+			}
+		}
+
+		for (VisitOccurrence visitOccurrence : visitOccurrences) {
+			Long fhirId = IdMapping.getFHIRfromOMOP(visitOccurrence.getId(), getMyFhirResourceType());
+			List<ConditionOccurrence> conditions = conditionsByVisit.get(visitOccurrence.getId());
+			if (conditions == null) {
+				conditions = new ArrayList<ConditionOccurrence>();
+			}
+
+			Encounter encounter = constructFHIR(fhirId, visitOccurrence, conditions);
+			if (encounter != null) {
+				listResources.add(encounter);
+			}
+		}
+	}
+
 	@Override
 	public Encounter constructFHIR(Long fhirId, VisitOccurrence visitOccurrence) {
+		List<ConditionOccurrence> conditions = conditionOccurrenceService.searchByColumnString("visitOccurrence.id", visitOccurrence.getId());
+
+		return constructFHIR(fhirId, visitOccurrence, conditions);
+	}
+
+	private Encounter constructFHIR(Long fhirId, VisitOccurrence visitOccurrence, List<ConditionOccurrence> conditions) {
 		Encounter encounter = new Encounter();
 		encounter.setId(new IdType(fhirId));
 
@@ -143,8 +194,7 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 		encounter.setStatus(EncounterStatus.FINISHED);
 
 		// set Patient Reference
-		Reference patientReference = new Reference(
-				new IdType(PatientResourceProvider.getType(), visitOccurrence.getFPerson().getId()));
+		Reference patientReference = IdMapping.getFHIRReferenceFromOMOP(visitOccurrence.getFPerson().getId(), PatientResourceProvider.getType());
 		patientReference.setDisplay(visitOccurrence.getFPerson().getNameAsSingleString());
 		encounter.setSubject(patientReference);
 
@@ -217,9 +267,8 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 //		param.setValues(Arrays.asList(String.valueOf(visitOccurrence.getId())));
 //		List<ParameterWrapper> params = Arrays.asList(param);
 //		List<ConditionOccurrence> conditions = conditionOccurrenceService.searchWithParams(0, 0, params, null);
-		List<ConditionOccurrence> conditions = conditionOccurrenceService.searchByColumnString("visitOccurrence.id", visitOccurrence.getId());
 		for (ConditionOccurrence condition : conditions) {
-			Reference conditionReference = new Reference(new IdType(ConditionResourceProvider.getType(), condition.getId()));
+			Reference conditionReference = IdMapping.getFHIRReferenceFromOMOP(condition.getId(), ConditionResourceProvider.getType());
 			DiagnosisComponent diagnosisComponent = new DiagnosisComponent();
 			diagnosisComponent.setCondition(conditionReference);
 			encounter.addDiagnosis(diagnosisComponent);
@@ -255,7 +304,8 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 
 		switch (parameter) {
 		case Encounter.SP_RES_ID:
-			String encounterId = ((TokenParam) value).getValue();
+			String encounterId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -114,7 +114,7 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 		Long omopId = null;
 		DrugExposure drugExposure = null;
 		if (fhirId != null) {
-			omopId = fhirId.getIdPartAsLong();
+			omopId = IdMapping.getOMOPfromFHIR(fhirId.getIdPartAsLong(), ImmunizationResourceProvider.getType());
 		}
 
 		drugExposure = constructOmop(omopId, fhirResource);
@@ -125,7 +125,7 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 		} else {
 			retOmopId = getMyOmopService().update(drugExposure).getId();
 		}
-		return retOmopId;
+		return IdMapping.getFHIRfromOMOP(retOmopId, ImmunizationResourceProvider.getType());
 	}
 
 	@Override
@@ -139,7 +139,8 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 
 		switch (parameter) {
 			case Immunization.SP_RES_ID:
-				String immunizationId = ((TokenParam) value).getValue();
+				String immunizationId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+						getMyFhirResourceType());
 				paramWrapper.setParameterType("Long");
 				paramWrapper.setParameters(Arrays.asList("id"));
 				paramWrapper.setOperators(Arrays.asList("="));
@@ -177,7 +178,8 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 
 		switch (parameter) {
 			case Immunization.SP_RES_ID:
-				String immunizationId = ((TokenParam) value).getValue();
+				String immunizationId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+						getMyFhirResourceType());
 				whereStatement = "d.id = :drugExposureId";
 				parameterSet.put("drugExposureId", "Long," + immunizationId);
 				break;
@@ -270,7 +272,8 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 			case Immunization.SP_PATIENT:
 				ReferenceParam patientReference = ((ReferenceParam) value);
 				Long fhirPatientId = patientReference.getIdPartAsLong();
-				String omopPersonIdString = String.valueOf(fhirPatientId);
+				Long omopPersonId = IdMapping.getOMOPfromFHIR(fhirPatientId, PatientResourceProvider.getType());
+				String omopPersonIdString = String.valueOf(omopPersonId);
 
 				whereStatement = "p.id = :patient";
 				parameterSet.put("patient", "Long," + omopPersonIdString);
@@ -322,8 +325,7 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 		immunization.setId(new IdType(fhirId));
 
 		// Set patient
-		Reference patientReference = new Reference(
-				new IdType(PatientResourceProvider.getType(), entity.getFPerson().getId()));
+		Reference patientReference = IdMapping.getFHIRReferenceFromOMOP(entity.getFPerson().getId(), PatientResourceProvider.getType());
 		patientReference.setDisplay(entity.getFPerson().getNameAsSingleString());
 		immunization.setPatient(patientReference);
 
@@ -347,8 +349,7 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 		// performer
 		Provider provider = entity.getProvider();
 		if (provider != null) {
-			Reference performerReference = new Reference(
-					new IdType(PractitionerResourceProvider.getType(), entity.getProvider().getId()));
+			Reference performerReference = IdMapping.getFHIRReferenceFromOMOP(entity.getProvider().getId(), PractitionerResourceProvider.getType());
 			// performerReference.setDisplay(entity.getProvider().getProviderName());
 			ImmunizationPerformerComponent perf = new ImmunizationPerformerComponent(performerReference);
 			immunization.setPerformer(Arrays.asList(perf));
@@ -357,8 +358,7 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 		// encounter
 		VisitOccurrence visitOccurrence = entity.getVisitOccurrence();
 		if (visitOccurrence != null) {
-			Reference encounterReference = new Reference(
-					new IdType(EncounterResourceProvider.getType(), entity.getVisitOccurrence().getId()));
+			Reference encounterReference = IdMapping.getFHIRReferenceFromOMOP(entity.getVisitOccurrence().getId(), EncounterResourceProvider.getType());
 			immunization.setEncounter(encounterReference);
 		}
 
@@ -433,7 +433,8 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 		if (patientReference == null)
 			throw new FHIRException("Patient must exist.");
 
-		Long omopFPersonId = patientReference.getReferenceElement().getIdPartAsLong();
+		Long omopFPersonId = IdMapping.getOMOPfromFHIR(patientReference.getReferenceElement().getIdPartAsLong(),
+				PatientResourceProvider.getType());
 
 		FPerson fPerson = fPersonService.findById(omopFPersonId);
 		if (fPerson == null)
@@ -501,7 +502,9 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 		if (!performer.isEmpty()) {
 			Reference performerActorReference = performer.getActor();
 			if (!performerActorReference.isEmpty()) {
-				Long performerId = performerActorReference.getReferenceElement().getIdPartAsLong();
+				Long performerId = IdMapping.getOMOPfromFHIR(
+						performerActorReference.getReferenceElement().getIdPartAsLong(),
+						PractitionerResourceProvider.getType());
 				Provider provider = providerService.findById(performerId);
 				if (provider == null) {
 					throw new FHIRException("performer (" + performerId + ") does not exist");
@@ -514,7 +517,8 @@ public class OmopImmunization extends BaseOmopResource<Immunization, DrugExposur
 		// encounter
 		Reference encounterReference = fhirResource.getEncounter();
 		if (!encounterReference.isEmpty()) {
-			Long encounterId = encounterReference.getReferenceElement().getIdPartAsLong();
+			Long encounterId = IdMapping.getOMOPfromFHIR(encounterReference.getReferenceElement().getIdPartAsLong(),
+					EncounterResourceProvider.getType());
 			VisitOccurrence visitOccurrence = visitOccurrenceService.findById(encounterId);
 			if (visitOccurrence == null) {
 				throw new FHIRException("encounter (" + encounterId + ") does not exist");
@@ -114,7 +114,8 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 
         switch (parameter) {
 		case Medication.SP_RES_ID:
-			String medicationId = ((TokenParam) value).getValue();
+			String medicationId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -4,8 +4,6 @@ import ca.uhn.fhir.rest.param.*;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.*;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExtensionUtil;
-import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.TerminologyServiceClient;
-import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv6.dba.service.*;
 import edu.gatech.chai.omopv6.model.entity.*;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -100,7 +98,7 @@ public class OmopMedicationAdministration extends BaseOmopResource<MedicationAdm
         if (fPerson != null) {
             Long omopFpersonId = fPerson.getId();
             Long fhirPatientId = IdMapping.getFHIRfromOMOP(omopFpersonId,
-                    MedicationAdministrationResourceProvider.getType());
+                    PatientResourceProvider.getType());
             Reference subjectReference = new Reference(new IdType(PatientResourceProvider.getType(), fhirPatientId));
             String familyName = fPerson.getFamilyName();
             String given1 = fPerson.getGivenName1();
@@ -327,7 +325,8 @@ public class OmopMedicationAdministration extends BaseOmopResource<MedicationAdm
 
         switch (parameter) {
             case MedicationAdministration.SP_RES_ID:
-                String medicationAdministrationId = ((TokenParam) value).getValue();
+                String medicationAdministrationId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+                		getMyFhirResourceType());
                 paramWrapper.setParameterType("Long");
                 paramWrapper.setParameters(Arrays.asList("id"));
                 paramWrapper.setOperators(Arrays.asList("="));
@@ -345,70 +344,9 @@ public class OmopMedicationAdministration extends BaseOmopResource<MedicationAdm
                     break;
 
                 if (theCode.getModifier() != null && theCode.getModifier().compareTo(TokenParamModifier.IN) == 0) {
-                    // code has URI for the valueset search.
-                    TerminologyServiceClient terminologyService = TerminologyServiceClient.getInstance();
-                    Map<String, List<ValueSet.ConceptSetComponent>> theIncExcl = terminologyService.getValueSetByUrl(code);
-
-                    List<ValueSet.ConceptSetComponent> includes = theIncExcl.get("include");
-                    List<String> values = new ArrayList<String>();
-                    for (ValueSet.ConceptSetComponent include : includes) {
-                        // We need to loop
-                        ParameterWrapper myParamWrapper = new ParameterWrapper();
-                        myParamWrapper.setParameterType("Code:In");
-                        myParamWrapper.setParameters(Arrays.asList("drugConcept.vocabularyId", "drugConcept.conceptCode"));
-                        myParamWrapper.setOperators(Arrays.asList("=", "in"));
-
-                        String valueSetSystem = include.getSystem();
-                        try {
-                            omopVocabulary = OmopCodeableConceptMapping.omopVocabularyforFhirUri(valueSetSystem);
-                        } catch (FHIRException e) {
-                            e.printStackTrace();
-                        }
-                        if ("None".equals(omopVocabulary)) {
-                            ThrowFHIRExceptions.unprocessableEntityException(
-                                    "We don't understand the system, " + valueSetSystem + " in code:in valueset");
-                        }
-                        values.add(valueSetSystem);
-
-                        List<ValueSet.ConceptReferenceComponent> concepts = include.getConcept();
-                        for (ValueSet.ConceptReferenceComponent concept : concepts) {
-                            String valueSetCode = concept.getCode();
-                            values.add(valueSetCode);
-                        }
-                        myParamWrapper.setValues(values);
-                        myParamWrapper.setUpperRelationship("or");
-                        mapList.add(myParamWrapper);
-                    }
-
-                    List<ValueSet.ConceptSetComponent> excludes = theIncExcl.get("exclude");
-                    for (ValueSet.ConceptSetComponent exclude : excludes) {
-                        // We need to loop
-                        ParameterWrapper myParamWrapper = new ParameterWrapper();
-                        myParamWrapper.setParameterType("Code:In");
-                        myParamWrapper.setParameters(Arrays.asList("drugConcept.vocabularyId", "drugConcept.conceptCode"));
-                        myParamWrapper.setOperators(Arrays.asList("=", "out"));
-
-                        String valueSetSystem = exclude.getSystem();
-                        try {
-                            omopVocabulary = OmopCodeableConceptMapping.omopVocabularyforFhirUri(valueSetSystem);
-                        } catch (FHIRException e) {
-                            e.printStackTrace();
-                        }
-                        if ("None".equals(omopVocabulary)) {
-                            ThrowFHIRExceptions.unprocessableEntityException(
-                                    "We don't understand the system, " + valueSetSystem + " in code:in valueset");
-                        }
-                        values.add(valueSetSystem);
-
-                        List<ValueSet.ConceptReferenceComponent> concepts = exclude.getConcept();
-                        for (ValueSet.ConceptReferenceComponent concept : concepts) {
-                            String valueSetCode = concept.getCode();
-                            values.add(valueSetCode);
-                        }
-                        myParamWrapper.setValues(values);
-                        myParamWrapper.setUpperRelationship("and");
-                        mapList.add(myParamWrapper);
-                    }
+                    // code has URI for the valueset search. Filter on the concept ids
+                    // of the ValueSet.
+                    mapList.addAll(ValueSetConceptResolver.getParameterWrappers(conceptService, code, "drugConcept.id"));
                 } else {
                     if (system != null && !system.isEmpty()) {
                         try {
@@ -528,6 +466,14 @@ public class OmopMedicationAdministration extends BaseOmopResource<MedicationAdm
             "or"
     );
 
+    @Override
+    public List<ParameterWrapper> getFilterParams() {
+        List<ParameterWrapper> filterParams = new ArrayList<ParameterWrapper>();
+        filterParams.add(filterParam);
+
+        return filterParams;
+    }
+
     @Override
     public Long getSize() {
         List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
@@ -128,7 +128,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 			retOmopId = getMyOmopService().update(drugExposure).getId();
 		}
 		
-		return IdMapping.getFHIRfromOMOP(retOmopId, MedicationStatementResourceProvider.getType());
+		return IdMapping.getFHIRfromOMOP(retOmopId, MedicationRequestResourceProvider.getType());
 	}
 	
 	@Override
@@ -163,7 +163,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		medicationRequest.setId(new IdType(fhirId));
 		
 		// Subject from FPerson
-		Reference patientRef = new Reference(new IdType(PatientResourceProvider.getType(), entity.getFPerson().getId()));
+		Reference patientRef = IdMapping.getFHIRReferenceFromOMOP(entity.getFPerson().getId(), PatientResourceProvider.getType());
 		patientRef.setDisplay(entity.getFPerson().getNameAsSingleString());
 		medicationRequest.setSubject(patientRef);		
 		
@@ -198,7 +198,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 			medicationRequest.setMedication(new Reference("#med1"));			
 		} else if (medType != null && !medType.isEmpty() && "link".equalsIgnoreCase(medType)) {
 			// Get Medication in a reference. 
-			Reference medicationReference = new Reference(new IdType(MedicationResourceProvider.getType(), entity.getDrugConcept().getId()));
+			Reference medicationReference = IdMapping.getFHIRReferenceFromOMOP(entity.getDrugConcept().getId(), MedicationResourceProvider.getType());
 			medicationRequest.setMedication(medicationReference);			
 		} else {
 			CodeableConcept medicationCodeableConcept;
@@ -303,7 +303,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		Provider provider = entity.getProvider();
 		if (provider != null) {
 			Reference recorderReference = 
-					new Reference(new IdType(PractitionerResourceProvider.getType(), provider.getId()));
+					IdMapping.getFHIRReferenceFromOMOP(provider.getId(), PractitionerResourceProvider.getType());
 			recorderReference.setDisplay(provider.getProviderName());
 			medicationRequest.setRecorder(recorderReference);
 		}
@@ -312,7 +312,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		VisitOccurrence visitOccurrence = entity.getVisitOccurrence();
 		if (visitOccurrence != null) {
 			Reference contextReference = 
-					new Reference(new IdType(EncounterResourceProvider.getType(), visitOccurrence.getId()));
+					IdMapping.getFHIRReferenceFromOMOP(visitOccurrence.getId(), EncounterResourceProvider.getType());
 			medicationRequest.setEncounter(contextReference);
 		}
 		
@@ -328,7 +328,8 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 
 		switch (parameter) {
 		case MedicationRequest.SP_RES_ID:
-			String medicationRequestId = ((TokenParam) value).getValue();
+			String medicationRequestId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -440,7 +441,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 			addParamlistForPatientIDName(parameter, (String) value, paramWrapper, mapList);
 			break;
 		case "Medication:"+Medication.SP_RES_ID:
-			String pId = (String) value;
+			String pId = IdMapping.getOMOPValueFromFHIR((String) value, MedicationResourceProvider.getType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("drugConcept.id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -463,6 +464,14 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 			"or"
 			);
 
+	@Override
+	public List<ParameterWrapper> getFilterParams() {
+		List<ParameterWrapper> filterParams = new ArrayList<ParameterWrapper>();
+		filterParams.add(filterParam);
+
+		return filterParams;
+	}
+
 	@Override
 	public Long getSize() {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
@@ -20,12 +20,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.MedicationStatement.MedicationStatementStatus;
-import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
-import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,8 +40,6 @@ import edu.gatech.chai.omoponfhir.omopv6.r4.provider.MedicationStatementResource
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PractitionerResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
-import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.TerminologyServiceClient;
-import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv6.dba.service.ConceptService;
 import edu.gatech.chai.omopv6.dba.service.DrugExposureService;
 import edu.gatech.chai.omopv6.dba.service.FPersonService;
@@ -169,7 +164,7 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 		if (fPerson != null) {
 			Long omopFpersonId = fPerson.getId();
 			Long fhirPatientId = IdMapping.getFHIRfromOMOP(omopFpersonId,
-					MedicationStatementResourceProvider.getType());
+					PatientResourceProvider.getType());
 			Reference subjectReference = new Reference(new IdType(PatientResourceProvider.getType(), fhirPatientId));
 			String familyName = fPerson.getFamilyName();
 			String given1 = fPerson.getGivenName1();
@@ -397,7 +392,8 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 
 		switch (parameter) {
 		case MedicationStatement.SP_RES_ID:
-			String medicationStatementId = ((TokenParam) value).getValue();
+			String medicationStatementId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -415,70 +411,9 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 				break;
 
 			if (theCode.getModifier() != null && theCode.getModifier().compareTo(TokenParamModifier.IN) == 0) {
-				// code has URI for the valueset search.
-				TerminologyServiceClient terminologyService = TerminologyServiceClient.getInstance();
-				Map<String, List<ConceptSetComponent>> theIncExcl = terminologyService.getValueSetByUrl(code);
-
-				List<ConceptSetComponent> includes = theIncExcl.get("include");
-				List<String> values = new ArrayList<String>();
-				for (ConceptSetComponent include : includes) {
-					// We need to loop
-					ParameterWrapper myParamWrapper = new ParameterWrapper();
-					myParamWrapper.setParameterType("Code:In");
-					myParamWrapper.setParameters(Arrays.asList("drugConcept.vocabularyId", "drugConcept.conceptCode"));
-					myParamWrapper.setOperators(Arrays.asList("=", "in"));
-
-					String valueSetSystem = include.getSystem();
-					try {
-						omopVocabulary = OmopCodeableConceptMapping.omopVocabularyforFhirUri(valueSetSystem);
-					} catch (FHIRException e) {
-						e.printStackTrace();
-					}
-					if ("None".equals(omopVocabulary)) {
-						ThrowFHIRExceptions.unprocessableEntityException(
-								"We don't understand the system, " + valueSetSystem + " in code:in valueset");
-					}
-					values.add(valueSetSystem);
-
-					List<ConceptReferenceComponent> concepts = include.getConcept();
-					for (ConceptReferenceComponent concept : concepts) {
-						String valueSetCode = concept.getCode();
-						values.add(valueSetCode);
-					}
-					myParamWrapper.setValues(values);
-					myParamWrapper.setUpperRelationship("or");
-					mapList.add(myParamWrapper);
-				}
-
-				List<ConceptSetComponent> excludes = theIncExcl.get("exclude");
-				for (ConceptSetComponent exclude : excludes) {
-					// We need to loop
-					ParameterWrapper myParamWrapper = new ParameterWrapper();
-					myParamWrapper.setParameterType("Code:In");
-					myParamWrapper.setParameters(Arrays.asList("drugConcept.vocabularyId", "drugConcept.conceptCode"));
-					myParamWrapper.setOperators(Arrays.asList("=", "out"));
-
-					String valueSetSystem = exclude.getSystem();
-					try {
-						omopVocabulary = OmopCodeableConceptMapping.omopVocabularyforFhirUri(valueSetSystem);
-					} catch (FHIRException e) {
-						e.printStackTrace();
-					}
-					if ("None".equals(omopVocabulary)) {
-						ThrowFHIRExceptions.unprocessableEntityException(
-								"We don't understand the system, " + valueSetSystem + " in code:in valueset");
-					}
-					values.add(valueSetSystem);
-
-					List<ConceptReferenceComponent> concepts = exclude.getConcept();
-					for (ConceptReferenceComponent concept : concepts) {
-						String valueSetCode = concept.getCode();
-						values.add(valueSetCode);
-					}
-					myParamWrapper.setValues(values);
-					myParamWrapper.setUpperRelationship("and");
-					mapList.add(myParamWrapper);
-				}
+				// code has URI for the valueset search. Filter on the concept ids
+				// of the ValueSet.
+				mapList.addAll(ValueSetConceptResolver.getParameterWrappers(conceptService, code, "drugConcept.id"));
 			} else {
 				if (system != null && !system.isEmpty()) {
 					try {
@@ -574,7 +509,8 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 //			break;
 		case MedicationStatement.SP_SOURCE:
 			ReferenceParam sourceReference = ((ReferenceParam) value);
-			String sourceReferenceId = String.valueOf(sourceReference.getIdPartAsLong());
+			String sourceReferenceId = String.valueOf(
+					IdMapping.getOMOPfromFHIR(sourceReference.getIdPartAsLong(), PractitionerResourceProvider.getType()));
 
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("provider.id"));
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omoponfhir.local.dao.MessageQueue;
+import edu.gatech.chai.omoponfhir.local.dao.MessageQueueImpl;
+import edu.gatech.chai.omoponfhir.local.model.MessageQueueEntry;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+
+/**
+ * Background processing of async $process-message requests. Messages are kept
+ * in the MessageQueue table of the local database and processed by
+ * MESSAGE_QUEUE_WORKERS threads. When MESSAGE_QUEUE_CAPACITY messages are
+ * waiting, new messages are refused. The response bundle is kept in the queue
+ * for MESSAGE_QUEUE_RETENTION_HOURS so that it can be polled. It is also posted
+ * to the response-url of the message, if given. The response-url must start
+ * with one of the comma separated URLs in MESSAGE_RESPONSE_URL_ALLOWLIST
+ * (same scheme, host and port, and a path under the allowed path). Without
+ * the allow-list, no response-url is accepted.
+ */
+public class OmopMessageProcessor {
+	private static final Logger logger = LoggerFactory.getLogger(OmopMessageProcessor.class);
+
+	private static OmopMessageProcessor omopMessageProcessor = new OmopMessageProcessor();
+
+	private static final int WORKERS = (int) StaticValues.getEnvLong("MESSAGE_QUEUE_WORKERS", 2L);
+	private static final int CAPACITY = (int) StaticValues.getEnvLong("MESSAGE_QUEUE_CAPACITY", 100L);
+	private static final long RETENTION_MILLIS = StaticValues.getEnvLong("MESSAGE_QUEUE_RETENTION_HOURS", 24L)
+			* 3600000L;
+	private static final int RESPONSE_TIMEOUT_MILLIS = (int) StaticValues
+			.getEnvLong("MESSAGE_RESPONSE_TIMEOUT_SECONDS", 30L) * 1000;
+
+	// Workers also look at the table this often in case a wake-up is missed.
+	private static final long POLL_INTERVAL_MILLIS = 5000L;
+
+	private static final List<URL> RESPONSE_URL_ALLOWLIST = parseAllowlist(
+			System.getenv("MESSAGE_RESPONSE_URL_ALLOWLIST"));
+
+	private final MessageQueue messageQueue = MessageQueueImpl.getInstance();
+	private final Object signal = new Object();
+	// Makes the capacity check and the enqueue one step.
+	private final Object submitLock = new Object();
+	private OmopServerOperations serverOperations = null;
+	private long lastCleanup = 0L;
+
+	public static OmopMessageProcessor getInstance() {
+		return omopMessageProcessor;
+	}
+
+	/**
+	 * Starts the workers. Only the first call has an effect. Messages that were
+	 * being processed when the server stopped are not processed again, because
+	 * some of their entries may already be written. They are marked failed so
+	 * that the client can check the data and resubmit.
+	 */
+	public synchronized void start(OmopServerOperations serverOperations) {
+		if (this.serverOperations != null) {
+			return;
+		}
+		this.serverOperations = serverOperations;
+
+		messageQueue.failProcessing("Processing was interrupted by a server restart. The message may be partly "
+				+ "processed. Check the data before submitting it again.");
+		for (int i = 0; i < WORKERS; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "message-queue-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		logger.info("Message queue started with " + WORKERS + " worker(s) and capacity " + CAPACITY);
+	}
+
+	private static List<URL> parseAllowlist(String allowlist) {
+		List<URL> urls = new ArrayList<URL>();
+		if (allowlist == null) {
+			return urls;
+		}
+
+		for (String value : allowlist.split(",")) {
+			value = value.trim();
+			if (value.isEmpty()) {
+				continue;
+			}
+			try {
+				urls.add(new URL(value));
+			} catch (MalformedURLException e) {
+				logger.error("MESSAGE_RESPONSE_URL_ALLOWLIST has an invalid URL, " + value + ". It is ignored.");
+			}
+		}
+
+		return urls;
+	}
+
+	/**
+	 * @return true if responses may be posted to the URL. Only http and https
+	 *         URLs under an entry of MESSAGE_RESPONSE_URL_ALLOWLIST are allowed.
+	 */
+	public boolean isAllowedResponseUrl(String responseUrl) {
+		URL url;
+		try {
+			url = new URL(responseUrl);
+		} catch (MalformedURLException e) {
+			return false;
+		}
+
+		String protocol = url.getProtocol().toLowerCase();
+		if ((!"http".equals(protocol) && !"https".equals(protocol)) || url.getUserInfo() != null) {
+			return false;
+		}
+
+		for (URL allowed : RESPONSE_URL_ALLOWLIST) {
+			if (allowed.getProtocol().equalsIgnoreCase(protocol) && allowed.getHost().equalsIgnoreCase(url.getHost())
+					&& port(allowed) == port(url) && isUnderPath(url.getPath(), allowed.getPath())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static int port(URL url) {
+		return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+	}
+
+	private static boolean isUnderPath(String path, String allowedPath) {
+		if (path.contains("..") || path.contains("%")) {
+			// Do not let dot segments or escapes leave the allowed path.
+			return false;
+		}
+		if (allowedPath.isEmpty() || "/".equals(allowedPath) || path.equals(allowedPath)) {
+			return true;
+		}
+
+		String prefix = allowedPath.endsWith("/") ? allowedPath : allowedPath + "/";
+		return path.startsWith(prefix);
+	}
+
+	/**
+	 * Adds a validated message to the queue. Returns the queue id, or null if the
+	 * queue is full or the message cannot be stored. The response-url must be
+	 * checked with {@link #isAllowedResponseUrl(String)} first.
+	 */
+	public Long submit(Bundle theContent, String responseUrl) {
+		if (responseUrl != null && !isAllowedResponseUrl(responseUrl)) {
+			throw new IllegalArgumentException("response-url is not allowed: " + responseUrl);
+		}
+
+		MessageQueueEntry entry = new MessageQueueEntry();
+		entry.setContent(StaticValues.myFhirContext.newJsonParser().encodeResourceToString(theContent));
+		entry.setResponseUrl(responseUrl);
+
+		Long id;
+		synchronized (submitLock) {
+			if (messageQueue.countPending() >= CAPACITY) {
+				return null;
+			}
+			id = messageQueue.enqueue(entry);
+		}
+		if (id != null) {
+			synchronized (signal) {
+				signal.notify();
+			}
+		}
+
+		return id;
+	}
+
+	public MessageQueueEntry getEntry(Long id) {
+		return messageQueue.get(id);
+	}
+
+	private void work() {
+		while (true) {
+			try {
+				MessageQueueEntry entry = messageQueue.claimNext();
+				if (entry == null) {
+					cleanup();
+					synchronized (signal) {
+						signal.wait(POLL_INTERVAL_MILLIS);
+					}
+					continue;
+				}
+
+				process(entry);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				// Keep the worker alive. The entry, if any, is failed in process().
+				logger.error("Message queue worker error: " + e.getMessage());
+			}
+		}
+	}
+
+	private void process(MessageQueueEntry entry) {
+		String response;
+		try {
+			Bundle theContent = StaticValues.myFhirContext.newJsonParser().parseResource(Bundle.class,
+					entry.getContent());
+			MessageHeader messageHeader = serverOperations.validateMessage(theContent);
+			Bundle responseBundle = serverOperations.processMessage(theContent, messageHeader);
+			response = StaticValues.myFhirContext.newJsonParser().encodeResourceToString(responseBundle);
+		} catch (Exception e) {
+			logger.error("Message " + entry.getId() + " failed: " + e.getMessage());
+			messageQueue.fail(entry.getId(), e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+			return;
+		}
+
+		messageQueue.complete(entry.getId(), response);
+		logger.debug("Message " + entry.getId() + " processed");
+
+		if (entry.getResponseUrl() != null && !entry.getResponseUrl().isEmpty()) {
+			deliver(entry.getId(), entry.getResponseUrl(), response);
+		}
+	}
+
+	private void deliver(Long id, String responseUrl, String response) {
+		// The allow-list may have changed since the message was queued.
+		if (!isAllowedResponseUrl(responseUrl)) {
+			logger.warn("Response of message " + id + " is not posted. " + responseUrl + " is not allowed.");
+			return;
+		}
+
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(responseUrl).openConnection();
+			// A redirect could lead to a host that is not allowed.
+			connection.setInstanceFollowRedirects(false);
+			connection.setConnectTimeout(RESPONSE_TIMEOUT_MILLIS);
+			connection.setReadTimeout(RESPONSE_TIMEOUT_MILLIS);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/fhir+json; charset=UTF-8");
+			connection.setDoOutput(true);
+
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(response.getBytes(StandardCharsets.UTF_8));
+			}
+
+			int status = connection.getResponseCode();
+			if (status >= 300) {
+				logger.warn("Response of message " + id + " is rejected by " + responseUrl + " with " + status);
+			}
+		} catch (IOException | ClassCastException e) {
+			// The response stays in the queue and can still be polled.
+			logger.warn("Failed to deliver response of message " + id + " to " + responseUrl + ": "
+					+ e.getMessage());
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	private void cleanup() {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (now - lastCleanup < 3600000L) {
+				return;
+			}
+			lastCleanup = now;
+		}
+
+		int deleted = messageQueue.deleteFinishedBefore(now - RETENTION_MILLIS);
+		if (deleted > 0) {
+			logger.info(deleted + " finished message(s) removed from the queue");
+		}
+	}
+}
@@ -15,9 +15,11 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 import edu.gatech.chai.omopv6.dba.service.*;
@@ -44,6 +46,7 @@ import edu.gatech.chai.omoponfhir.omopv6.r4.provider.ObservationResourceProvider
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PractitionerResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ConceptIdCache;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.DateUtil;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExtensionUtil;
 
@@ -55,6 +58,13 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 
 	public static final long SYSTOLIC_CONCEPT_ID = 3004249L;
 	public static final long DIASTOLIC_CONCEPT_ID = 3012888L;
+
+	// fact_relationship domains and relationships of measurement methods and comments.
+	private static final Long MEASUREMENT_DOMAIN_CONCEPT_ID = 21L;
+	private static final Long NOTE_DOMAIN_CONCEPT_ID = 26L;
+	private static final Long CONCEPT_DOMAIN_CONCEPT_ID = 58L;
+	private static final Long METHOD_RELATIONSHIP_CONCEPT_ID = 44818800L;
+	private static final Long COMMENT_RELATIONSHIP_CONCEPT_ID = 44818721L;
 	public static final String SYSTOLIC_LOINC_CODE = "8480-6";
 	public static final String DIASTOLIC_LOINC_CODE = "8462-4";
 	public static final String BP_SYSTOLIC_DIASTOLIC_CODE = "55284-4";
@@ -104,8 +114,117 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		return OmopObservation.omopObservation;
 	}
 
+	/**
+	 * Methods and comments of the measurements on a page. They are linked to the
+	 * measurements through fact_relationship and read for the whole page.
+	 */
+	private static class MeasurementFacts {
+		final Map<Long, CodeableConcept> methods = new HashMap<Long, CodeableConcept>();
+		final Map<Long, String> comments = new HashMap<Long, String>();
+	}
+
+	@Override
+	public void constructResources(List<FObservationView> fObservationViews, List<String> includes,
+			List<IBaseResource> listResources) {
+		MeasurementFacts facts = loadMeasurementFacts(fObservationViews);
+
+		long[] fhirIds = IdMapping.getFHIRfromOMOP(toOmopIds(fObservationViews), getMyFhirResourceType());
+		for (int i = 0; i < fObservationViews.size(); i++) {
+			Observation observation = constructFHIR(fhirIds[i], fObservationViews.get(i), facts);
+			if (observation != null) {
+				listResources.add(observation);
+			}
+		}
+	}
+
+	/**
+	 * Reads the method and comment fact_relationships of the measurements in the
+	 * page, and the notes they point to, with id list queries.
+	 */
+	private MeasurementFacts loadMeasurementFacts(List<FObservationView> fObservationViews) {
+		MeasurementFacts facts = new MeasurementFacts();
+
+		// Only measurements (positive ids) have methods and comments.
+		Set<Long> measurementIds = new HashSet<Long>();
+		for (FObservationView fObservationView : fObservationViews) {
+			if (fObservationView.getId() > 0) {
+				measurementIds.add(fObservationView.getId());
+			}
+		}
+		if (measurementIds.isEmpty()) {
+			return facts;
+		}
+
+		ParameterWrapper domainParam = new ParameterWrapper("Long", Arrays.asList("domainConceptId1"),
+				Arrays.asList("="), Arrays.asList(String.valueOf(MEASUREMENT_DOMAIN_CONCEPT_ID)), "or");
+		ParameterWrapper relationshipParam = new ParameterWrapper("Long",
+				Arrays.asList("relationshipConcept.id", "relationshipConcept.id"), Arrays.asList("=", "="),
+				Arrays.asList(String.valueOf(METHOD_RELATIONSHIP_CONCEPT_ID),
+						String.valueOf(COMMENT_RELATIONSHIP_CONCEPT_ID)),
+				"or");
+
+		List<FactRelationship> factRelationships = new ArrayList<FactRelationship>();
+		for (List<ParameterWrapper> idParams : constructIdListParams("factId1", measurementIds)) {
+			List<ParameterWrapper> params = new ArrayList<ParameterWrapper>(idParams);
+			params.add(domainParam);
+			params.add(relationshipParam);
+			factRelationships.addAll(factRelationshipService.searchWithParams(0, 0, params, null));
+		}
+
+		Set<Long> noteIds = new HashSet<Long>();
+		for (FactRelationship factRelationship : factRelationships) {
+			if (NOTE_DOMAIN_CONCEPT_ID.equals(factRelationship.getDomainConceptId2())) {
+				noteIds.add(factRelationship.getFactId2());
+			}
+		}
+
+		Map<Long, String> noteTexts = new HashMap<Long, String>();
+		for (List<ParameterWrapper> params : constructIdListParams("id", noteIds)) {
+			for (Note note : noteService.searchWithParams(0, 0, params, null)) {
+				noteTexts.put(note.getId(), note.getNoteText());
+			}
+		}
+
+		for (FactRelationship factRelationship : factRelationships) {
+			Long measurementId = factRelationship.getFactId1();
+			Long relationshipConceptId = factRelationship.getRelationshipConcept() == null ? null
+					: factRelationship.getRelationshipConcept().getId();
+			boolean isNote = NOTE_DOMAIN_CONCEPT_ID.equals(factRelationship.getDomainConceptId2());
+
+			if (METHOD_RELATIONSHIP_CONCEPT_ID.equals(relationshipConceptId)) {
+				CodeableConcept methodCodeable;
+				if (isNote) {
+					methodCodeable = new CodeableConcept();
+					methodCodeable.setText(noteTexts.get(factRelationship.getFactId2()));
+				} else if (CONCEPT_DOMAIN_CONCEPT_ID.equals(factRelationship.getDomainConceptId2())) {
+					methodCodeable = CodeableConceptUtil.getCodeableConceptFromOmopConcept(
+							ConceptIdCache.findById(conceptService, factRelationship.getFactId2()));
+				} else {
+					logger.error("Method couldn't be retrieved. Method class type undefined");
+					continue;
+				}
+				facts.methods.put(measurementId, methodCodeable);
+			} else if (isNote && COMMENT_RELATIONSHIP_CONCEPT_ID.equals(relationshipConceptId)) {
+				String noteText = noteTexts.get(factRelationship.getFactId2());
+				if (noteText != null) {
+					facts.comments.merge(measurementId, noteText, String::concat);
+				}
+			}
+		}
+
+		return facts;
+	}
+
 	@Override
 	public Observation constructFHIR(Long fhirId, FObservationView fObservationView) {
+		return constructFHIR(fhirId, fObservationView, null);
+	}
+
+	/**
+	 * @param facts methods and comments read for the page, or null to read them
+	 *              for this observation
+	 */
+	private Observation constructFHIR(Long fhirId, FObservationView fObservationView, MeasurementFacts facts) {
 
 		if (fObservationView.getValueAsConcept() == null && fObservationView.getValueAsNumber() == null) {
 			logger.info("Not constructing resource: NO RESULT VALUE");
@@ -347,8 +466,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		System.out.println("directFieldTS: at " + Long.toString(directFieldTS) + " duration: " + Long.toString(directFieldTS - mesureOrBPTS));
 
 		if (fObservationView.getFPerson() != null) {
-			Reference personRef = new Reference(
-					new IdType(PatientResourceProvider.getType(), fObservationView.getFPerson().getId()));
+			Reference personRef = IdMapping.getFHIRReferenceFromOMOP(fObservationView.getFPerson().getId(), PatientResourceProvider.getType());
 			personRef.setDisplay(fObservationView.getFPerson().getNameAsSingleString());
 			observation.setSubject(personRef);
 		}
@@ -357,8 +475,9 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		System.out.println("personTS: at " + Long.toString(personTS) + " duration: " + Long.toString(personTS - directFieldTS));
 
 		if (fObservationView.getVisitOccurrence() != null)
-			observation.getEncounter().setReferenceElement(
-					new IdType(EncounterResourceProvider.getType(), fObservationView.getVisitOccurrence().getId()));
+			observation.getEncounter().setReferenceElement(new IdType(EncounterResourceProvider.getType(),
+					IdMapping.getFHIRfromOMOP(fObservationView.getVisitOccurrence().getId(),
+							EncounterResourceProvider.getType())));
 
 		long visitTS = System.currentTimeMillis() - start;
 		System.out.println("visitTS: at " + Long.toString(visitTS) + " duration: " + Long.toString(visitTS - personTS));
@@ -427,7 +546,19 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		long identifierTS = System.currentTimeMillis() - start;
 		System.out.println("identifierTS: at " + Long.toString(identifierTS) + " duration: " + Long.toString(identifierTS - providerTS));
 
-		if (fObservationView.getId() > 0) {
+		if (facts != null) {
+			CodeableConcept methodCodeable = facts.methods.get(fObservationView.getId());
+			if (methodCodeable != null) {
+				observation.setMethod(methodCodeable);
+			}
+
+			String comments = facts.comments.get(fObservationView.getId());
+			if (comments != null && !comments.isEmpty()) {
+				Annotation tempAnnotation = new Annotation();
+				tempAnnotation.setText(comments);
+				observation.addNote(tempAnnotation);
+			}
+		} else if (fObservationView.getId() > 0) {
 			List<BaseEntity> methods = factRelationshipService.searchMeasurementUsingMethod(fObservationView.getId());
 			if (methods != null && methods.size() > 0) {
 				for (BaseEntity method : methods) {
@@ -440,7 +571,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 					} else if (method instanceof Concept) {
 						Concept concept = (Concept) method;
 						CodeableConcept methodCodeable = CodeableConceptUtil
-								.getCodeableConceptFromOmopConcept(conceptService.findById(concept.getId()));
+								.getCodeableConceptFromOmopConcept(ConceptIdCache.findById(conceptService, concept.getId()));
 						observation.setMethod(methodCodeable);
 					} else {
 						logger.error("Method couldn't be retrieved. Method class type undefined");
@@ -1148,11 +1279,11 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 				// Measurement table in OMOPv5 does not have a column for string value.
 				// If the value is what we can recognize as a concept code, we will use it.
 				if ("none detected".equalsIgnoreCase(valueString)) {
-					measurement.setValueAsConcept(conceptService.findById(45878003L));
+					measurement.setValueAsConcept(ConceptIdCache.findById(conceptService, 45878003L));
 				} else if ("not detected".equalsIgnoreCase(valueString)) {
-					measurement.setValueAsConcept(conceptService.findById(45880296L));
+					measurement.setValueAsConcept(ConceptIdCache.findById(conceptService, 45880296L));
 				} else if ("detected".equalsIgnoreCase(valueString)) {
-					measurement.setValueAsConcept(conceptService.findById(45877985L));
+					measurement.setValueAsConcept(ConceptIdCache.findById(conceptService, 45877985L));
 				}
 
 				measurement.setValueSourceValue(valueString);
@@ -1403,7 +1534,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		}
 
 		if (concept == null) {
-			concept = conceptService.findById(0L);
+			concept = ConceptIdCache.findById(conceptService, 0L);
 		}
 
 		observation.setObservationConcept(concept);
@@ -1571,6 +1702,16 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 	}
 
 	public Map<String, Object> constructOmopMeasurementObservation(Long omopId, Observation fhirResource) {
+		return constructOmopMeasurementObservation(omopId, fhirResource, null);
+	}
+
+	/**
+	 * Same as {@link #constructOmopMeasurementObservation(Long, Observation)}.
+	 * Concepts found for a code are remembered in conceptsByCode, if given, so
+	 * that a batch of observations looks up each code once.
+	 */
+	public Map<String, Object> constructOmopMeasurementObservation(Long omopId, Observation fhirResource,
+			Map<String, List<Concept>> conceptsByCode) {
 		// returns a map that contains either OMOP measurement entity classes or
 		// OMOP observation entity. The return map consists as follows,
 		// "type": "Observation" or "Measurement"
@@ -1590,10 +1731,20 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 				system = "";
 			}
 
-			List<Concept> conceptForCodes = conceptService.searchByColumnString("conceptCode", code);
+			List<Concept> conceptForCodes = null;
+			if (conceptsByCode != null) {
+				conceptForCodes = conceptsByCode.get(code);
+			}
+			if (conceptForCodes == null) {
+				conceptForCodes = conceptService.searchByColumnString("conceptCode", code);
+				if (conceptsByCode != null) {
+					conceptsByCode.put(code, conceptForCodes);
+				}
+			}
+			conceptForCodes = new ArrayList<Concept>(conceptForCodes);
 			if (conceptForCodes.size() <= 0) {
 				// we have no matching code. Put no matching code.
-				conceptForCodes.add(conceptService.findById(0L));
+				conceptForCodes.add(ConceptIdCache.findById(conceptService, 0L));
 			}
 
 			for (Concept conceptForCode : conceptForCodes) {
@@ -1676,6 +1827,42 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		return null;
 	}
 
+	/**
+	 * FHIR id of a written observation. For blood pressure, this is the systolic
+	 * (or diastolic) measurement as in {@link #toDbase(Observation, IdType)}.
+	 */
+	public static Long getFhirIdOfEntities(List<? extends BaseEntity> entities) {
+		if (entities == null || entities.isEmpty()) {
+			return null;
+		}
+
+		Long systolicId = null;
+		Long diastolicId = null;
+		Long retId = null;
+		for (BaseEntity entity : entities) {
+			retId = entity.getIdAsLong();
+			if (entity instanceof Measurement && ((Measurement) entity).getMeasurementConcept() != null) {
+				Long conceptId = ((Measurement) entity).getMeasurementConcept().getId();
+				if (conceptId != null && conceptId == SYSTOLIC_CONCEPT_ID) {
+					systolicId = retId;
+				} else if (conceptId != null && conceptId == DIASTOLIC_CONCEPT_ID) {
+					diastolicId = retId;
+				}
+			}
+		}
+		if (systolicId != null) {
+			retId = systolicId;
+		} else if (diastolicId != null) {
+			retId = diastolicId;
+		}
+
+		if (retId == null) {
+			return null;
+		}
+
+		return IdMapping.getFHIRfromOMOP(retId, ObservationResourceProvider.getType());
+	}
+
 	public void validation(Observation fhirResource, IdType fhirId) throws FHIRException {
 		Reference subjectReference = fhirResource.getSubject();
 		if (subjectReference == null) {
@@ -2118,8 +2305,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		observation.setId(new IdType(fhirId.toString()+"/"+stageType));
 
 		if (staging.getFPerson() != null) {
-			Reference personRef = new Reference(
-					new IdType(PatientResourceProvider.getType(), staging.getFPerson().getId()));
+			Reference personRef = IdMapping.getFHIRReferenceFromOMOP(staging.getFPerson().getId(), PatientResourceProvider.getType());
 			personRef.setDisplay(staging.getFPerson().getNameAsSingleString());
 			observation.setSubject(personRef);
 		}
@@ -2200,8 +2386,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 
 
 		if (staging.getFPerson() != null) {
-			Reference personRef = new Reference(
-					new IdType(PatientResourceProvider.getType(), staging.getFPerson().getId()));
+			Reference personRef = IdMapping.getFHIRReferenceFromOMOP(staging.getFPerson().getId(), PatientResourceProvider.getType());
 			personRef.setDisplay(staging.getFPerson().getNameAsSingleString());
 			observation.setSubject(personRef);
 		}
@@ -2525,8 +2710,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		System.out.println("directFieldTS: at " + Long.toString(directFieldTS) + " duration: " + Long.toString(directFieldTS - mesureOrBPTS));
 
 		if (measurement.getFPerson() != null) {
-			Reference personRef = new Reference(
-					new IdType(PatientResourceProvider.getType(), measurement.getFPerson().getId()));
+			Reference personRef = IdMapping.getFHIRReferenceFromOMOP(measurement.getFPerson().getId(), PatientResourceProvider.getType());
 			personRef.setDisplay(measurement.getFPerson().getNameAsSingleString());
 			observation.setSubject(personRef);
 		}
@@ -2619,7 +2803,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 					} else if (method instanceof Concept) {
 						Concept concept = (Concept) method;
 						CodeableConcept methodCodeable = CodeableConceptUtil
-								.getCodeableConceptFromOmopConcept(conceptService.findById(concept.getId()));
+								.getCodeableConceptFromOmopConcept(ConceptIdCache.findById(conceptService, concept.getId()));
 						observation.setMethod(methodCodeable);
 					} else {
 						logger.error("Method couldn't be retrieved. Method class type undefined");
@@ -2646,6 +2830,51 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 
 	}
 
+	/**
+	 * Observations come from the measurement, staging and observation tables, as
+	 * in searchWithParams. Each table is exported in turn.
+	 */
+	@Override
+	public long exportResources(List<ParameterWrapper> params, int chunkSize, BooleanSupplier cancelled,
+			ResourceChunkWriter writer) throws IOException {
+		List<String> includes = new ArrayList<String>();
+
+		long count = exportTable(measurementService, params, chunkSize, cancelled, measurements -> {
+			long[] fhirIds = IdMapping.getFHIRfromOMOP(toOmopIds(measurements), ObservationResourceProvider.getType());
+			List<IBaseResource> resources = new ArrayList<IBaseResource>(measurements.size());
+			for (int i = 0; i < measurements.size(); i++) {
+				Observation observation = constructFhirObservationFromMeasurement(fhirIds[i], measurements.get(i),
+						includes);
+				if (observation != null) {
+					resources.add(observation);
+				}
+			}
+			return resources;
+		}, writer);
+
+		count += exportTable(stagingService, params, chunkSize, cancelled, stagings -> {
+			long[] fhirIds = IdMapping.getFHIRfromOMOP(toOmopIds(stagings), ObservationResourceProvider.getType());
+			List<IBaseResource> resources = new ArrayList<IBaseResource>(stagings.size());
+			for (int i = 0; i < stagings.size(); i++) {
+				Observation observation = constructFhirObservationFromStaging(fhirIds[i], stagings.get(i), includes);
+				if (observation != null) {
+					resources.add(observation);
+				}
+			}
+			return resources;
+		}, writer);
+
+		return count + super.exportResources(params, chunkSize, cancelled, writer);
+	}
+
+	private static long[] toOmopIds(List<? extends BaseEntity> entities) {
+		long[] omopIds = new long[entities.size()];
+		for (int i = 0; i < omopIds.length; i++) {
+			omopIds[i] = entities.get(i).getIdAsLong();
+		}
+		return omopIds;
+	}
+
 	@Override
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> paramList,
 								 List<IBaseResource> listResources, List<String> includes, String sort) {
@@ -2714,10 +2943,11 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		long gettingObses = System.currentTimeMillis() - start;
 		System.out.println("gettingObses: at " + Long.toString(gettingObses) + " duration: " + Long.toString(gettingObses));
 
+		MeasurementFacts facts = loadMeasurementFacts(fObservationViews);
 		for (FObservationView fObservationView : fObservationViews) {
 			Long omopId = fObservationView.getId();
 			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, ObservationResourceProvider.getType());
-			Observation fhirResource = constructResource(fhirId, fObservationView, includes);
+			Observation fhirResource = constructFHIR(fhirId, fObservationView, facts);
 
 			if (fhirResource != null) {
 				try {
@@ -2764,6 +2994,14 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		switch (parameter) {
 			case Observation.SP_RES_ID:
 				String organizationId = ((TokenParam) value).getValue();
+				// The id of a T/N/M stage observation is id/stage. Only the id is mapped.
+				int stageIndex = organizationId.indexOf('/');
+				if (stageIndex >= 0) {
+					organizationId = IdMapping.getOMOPValueFromFHIR(organizationId.substring(0, stageIndex),
+							getMyFhirResourceType()) + organizationId.substring(stageIndex);
+				} else {
+					organizationId = IdMapping.getOMOPValueFromFHIR(organizationId, getMyFhirResourceType());
+				}
 				if (((TokenParam) value).getValue().contains("/")) {
 					paramWrapper.setParameterType("String");
 				} else {
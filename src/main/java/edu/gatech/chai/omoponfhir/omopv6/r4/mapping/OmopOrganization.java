@@ -188,7 +188,8 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 
 		switch (parameter) {
 		case Organization.SP_RES_ID:
-			String orgnizationId = ((TokenParam) value).getValue();
+			String orgnizationId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
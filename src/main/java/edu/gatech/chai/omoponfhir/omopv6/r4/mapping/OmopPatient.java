@@ -18,9 +18,12 @@ package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.hl7.fhir.r4.model.Address;
 import org.hl7.fhir.r4.model.CodeableConcept;
@@ -28,7 +31,6 @@ import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.ContactPoint;
 import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
 import org.hl7.fhir.r4.model.ContactPoint.ContactPointUse;
-import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Identifier;
@@ -56,22 +58,21 @@ import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient;
 import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient.Ethnicity;
 import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient.Race;
-import edu.gatech.chai.omoponfhir.omopv6.r4.provider.EncounterResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.OrganizationResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PractitionerResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.AddressUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ConceptIdCache;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
 import edu.gatech.chai.omopv6.dba.service.ConceptService;
 import edu.gatech.chai.omopv6.dba.service.FPersonService;
 import edu.gatech.chai.omopv6.dba.service.LocationService;
 import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
 import edu.gatech.chai.omopv6.dba.service.ProviderService;
-import edu.gatech.chai.omopv6.dba.service.VisitOccurrenceService;
 import edu.gatech.chai.omopv6.model.entity.Concept;
 import edu.gatech.chai.omopv6.model.entity.FPerson;
 import edu.gatech.chai.omopv6.model.entity.Location;
 import edu.gatech.chai.omopv6.model.entity.Provider;
-import edu.gatech.chai.omopv6.model.entity.VisitOccurrence;
 
 public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPersonService>
 		implements IResourceMapping<USCorePatient, FPerson> {
@@ -80,10 +81,13 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 
 	private static OmopPatient omopPatient = new OmopPatient();
 
+	// Upper bound of resources per rev_include type for a single page.
+	private static final int REVINCLUDE_MAX_PER_TYPE = (int) StaticValues.getEnvLong("REVINCLUDE_MAX_PER_TYPE",
+			1000L);
+
 	private ConceptService conceptService;
 	private LocationService locationService;
 	private ProviderService providerService;
-	private VisitOccurrenceService visitOccurrenceService;
 
 	// * condition_occurrence : Condition
 	// * death : death on FHIR (need to revisit) TODO
@@ -108,7 +112,6 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 	private void initialize(WebApplicationContext context) {
 		locationService = context.getBean(LocationService.class);
 		providerService = context.getBean(ProviderService.class);
-		visitOccurrenceService = context.getBean(VisitOccurrenceService.class);
 		conceptService = context.getBean(ConceptService.class);
 		
 		// Get count and put it in the counts.
@@ -258,7 +261,7 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 		if (fPerson.getGenderConcept() != null) {
 			String gName = fPerson.getGenderConcept().getConceptName();
 			if (gName == null || gName.isEmpty()) {
-				Concept genderConcept = conceptService.findById(fPerson.getGenderConcept().getId());
+				Concept genderConcept = ConceptIdCache.findById(conceptService, fPerson.getGenderConcept().getId());
 				if (genderConcept != null)
 					gName = genderConcept.getConceptName();
 				else
@@ -488,47 +491,83 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 
 	@Override
 	public void addRevIncludes(Long omopId, List<String> includes, List<IBaseResource> listResources) {
-		List<ParameterWrapper> mapList = new ArrayList<ParameterWrapper>();
+		addRevIncludesForPersons(Arrays.asList(omopId), includes, listResources);
+	}
 
-		if (includes.contains("Encounter:subject")) {
-			final ParameterWrapper revIncludeparam = new ParameterWrapper("Long", Arrays.asList("fPerson.id"),
-					Arrays.asList("="), Arrays.asList(String.valueOf(omopId)), "or");
+	@Override
+	public void addRevIncludes(List<FPerson> entities, List<String> includes, List<IBaseResource> listResources) {
+		if (includes == null || includes.isEmpty() || entities.isEmpty())
+			return;
 
-			mapList.add(revIncludeparam);
+		Set<Long> personIds = new LinkedHashSet<Long>();
+		for (FPerson fPerson : entities) {
+			personIds.add(fPerson.getIdAsLong());
+		}
 
-			List<VisitOccurrence> VisitOccurrences = visitOccurrenceService.searchWithParams(0, 0, mapList, null);
-			for (VisitOccurrence visitOccurrence : VisitOccurrences) {
-				Long fhirId = IdMapping.getFHIRfromOMOP(visitOccurrence.getId(), EncounterResourceProvider.getType());
-				Encounter enc = OmopEncounter.getInstance().constructFHIR(fhirId, visitOccurrence);
-				if (enc != null)
-					listResources.add(enc);
-			}
+		addRevIncludesForPersons(personIds, includes, listResources);
+	}
+
+	/**
+	 * Resolves the rev_includes for all the persons with one query per included
+	 * resource type (per chunk of ids). Each type is limited to
+	 * REVINCLUDE_MAX_PER_TYPE resources.
+	 */
+	private void addRevIncludesForPersons(Collection<Long> personIds, List<String> includes,
+			List<IBaseResource> listResources) {
+		if (includes == null || includes.isEmpty())
+			return;
+
+		if (includes.contains("Encounter:subject")) {
+			addRevIncludesFor("Encounter:subject", OmopEncounter.getInstance(), personIds, listResources);
 		}
 		if (includes.contains("Observation:subject")) {
-
+			addRevIncludesFor("Observation:subject", OmopObservation.getInstance(), personIds, listResources);
 		}
 		if (includes.contains("Device:patient")) {
-
+			addRevIncludesFor("Device:patient", OmopDevice.getInstance(), personIds, listResources);
 		}
 		if (includes.contains("Condition:subject")) {
-
+			addRevIncludesFor("Condition:subject", OmopCondition.getInstance(), personIds, listResources);
 		}
 		if (includes.contains("Procedure:subject")) {
-
+			addRevIncludesFor("Procedure:subject", OmopProcedure.getInstance(), personIds, listResources);
 		}
 		if (includes.contains("MedicationRequest:subject")) {
-
+			addRevIncludesFor("MedicationRequest:subject", OmopMedicationRequest.getInstance(), personIds,
+					listResources);
 		}
 		if (includes.contains("MedicationAdministration:subject")) {
-
+			addRevIncludesFor("MedicationAdministration:subject", OmopMedicationAdministration.getInstance(),
+					personIds, listResources);
 		}
 		if (includes.contains("MedicationDispense:subject")) {
-
+			addRevIncludesFor("MedicationDispense:subject", OmopMedicationDispense.getInstance(), personIds,
+					listResources);
 		}
 		if (includes.contains("MedicationStatement:subject")) {
-
+			addRevIncludesFor("MedicationStatement:subject", OmopMedicationStatement.getInstance(), personIds,
+					listResources);
 		}
+	}
+
+	private void addRevIncludesFor(String revInclude, BaseOmopResource<?, ?, ?> mapper,
+			Collection<Long> personIds, List<IBaseResource> listResources) {
+		int added = 0;
+		for (List<ParameterWrapper> params : constructIdListParams("fPerson.id", personIds)) {
+			int remaining = REVINCLUDE_MAX_PER_TYPE - added;
+			if (remaining <= 0) {
+				logger.warn(revInclude + " reached the limit of " + REVINCLUDE_MAX_PER_TYPE
+						+ " resources. The rest are not included.");
+				break;
+			}
 
+			// Mappers may add their own filter parameters. Give them a list they can
+			// modify. The included resources do not follow further rev_includes.
+			int before = listResources.size();
+			mapper.searchWithParams(0, remaining, new ArrayList<ParameterWrapper>(params), listResources,
+					new ArrayList<String>(), null);
+			added += listResources.size() - before;
+		}
 	}
 
 	/**
@@ -712,7 +751,8 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_RES_ID:
-			String patientId = ((TokenParam) value).getValue();
+			String patientId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -812,7 +852,7 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 			mapList.add(paramWrapper);
 			break;
 		case "Organization:" + Organization.SP_RES_ID:
-			String orgId = (String) value;
+			String orgId = IdMapping.getOMOPValueFromFHIR((String) value, OrganizationResourceProvider.getType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("careSite.id"));
 			paramWrapper.setOperators(Arrays.asList("="));
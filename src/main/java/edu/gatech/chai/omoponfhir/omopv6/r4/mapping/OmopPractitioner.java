@@ -252,7 +252,8 @@ public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, P
 
 		switch (parameter) {
 		case Practitioner.SP_RES_ID:
-			String practitionerId = ((TokenParam) value).getValue();
+			String practitionerId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -166,7 +166,7 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 		}
 
 		// Set subject 
-		Reference patientReference = new Reference(new IdType(PatientResourceProvider.getType(), entity.getFPerson().getId()));
+		Reference patientReference = IdMapping.getFHIRReferenceFromOMOP(entity.getFPerson().getId(), PatientResourceProvider.getType());
 		patientReference.setDisplay(entity.getFPerson().getNameAsSingleString());
 		procedure.setSubject(patientReference);
 		
@@ -202,7 +202,7 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 		// Context mapping
 		VisitOccurrence visitOccurrence = entity.getVisitOccurrence();
 		if (visitOccurrence != null) {
-			Reference contextReference = new Reference(new IdType(EncounterResourceProvider.getType(), visitOccurrence.getId())); 
+			Reference contextReference = IdMapping.getFHIRReferenceFromOMOP(visitOccurrence.getId(), EncounterResourceProvider.getType()); 
 			procedure.setEncounter(contextReference);
 		}
 
@@ -252,7 +252,8 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 
 		switch (parameter) {
 		case Procedure.SP_RES_ID:
-			String procedureId = ((TokenParam) value).getValue();
+			String procedureId = IdMapping.getOMOPValueFromFHIR(((TokenParam) value).getValue(),
+					getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -17,27 +17,44 @@ package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.MessageHeader.MessageHeaderResponseComponent;
+import org.hl7.fhir.r4.model.MessageHeader.ResponseType;
 import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryResponseComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
+import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExtensionUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv6.dba.service.FPersonService;
 import edu.gatech.chai.omopv6.dba.service.MeasurementService;
 import edu.gatech.chai.omopv6.dba.service.ObservationService;
+import edu.gatech.chai.omopv6.dba.service.TransactionService;
+import edu.gatech.chai.omopv6.model.entity.BaseEntity;
+import edu.gatech.chai.omopv6.model.entity.Concept;
 import edu.gatech.chai.omopv6.model.entity.FPerson;
+import edu.gatech.chai.omopv6.model.entity.Measurement;
 
 public class OmopServerOperations {
 	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(OmopServerOperations.class);
@@ -46,6 +63,7 @@ public class OmopServerOperations {
 	private FPersonService fPersonService;
 	private ObservationService observationService;
 	private MeasurementService measurementService;
+	private TransactionService transactionService;
 
 	public OmopServerOperations(WebApplicationContext context) {
 		initialize(context);
@@ -59,6 +77,7 @@ public class OmopServerOperations {
 		fPersonService = context.getBean(FPersonService.class);
 		observationService = context.getBean(ObservationService.class);
 		measurementService = context.getBean(MeasurementService.class);
+		transactionService = context.getBean(TransactionService.class);
 	}
 
 	public static OmopTransaction getInstance() {
@@ -100,7 +119,7 @@ public class OmopServerOperations {
 				// giving up...
 				return null;
 			}
-			return new IdType("Patient", refFPerson.getId());
+			return new IdType("Patient", fhirId);
 		} else {
 			return new IdType("Patient", fhirId);
 		}
@@ -119,54 +138,253 @@ public class OmopServerOperations {
 		return entryBundle;
 	}
 
+	/**
+	 * Checks that the bundle is a message that we can process and returns its
+	 * MessageHeader. Throws UnprocessableEntityException otherwise.
+	 */
+	public MessageHeader validateMessage(Bundle theContent) {
+		if (theContent == null || theContent.getType() != BundleType.MESSAGE) {
+			ThrowFHIRExceptions.unprocessableEntityException("The bundle must be a MESSAGE type");
+		}
+
+		// Evaluate the first entry, which must be MessageHeader
+		List<BundleEntryComponent> entries = theContent.getEntry();
+		if (entries == null || entries.isEmpty() || entries.get(0).getResource() == null
+				|| entries.get(0).getResource().getResourceType() != ResourceType.MessageHeader) {
+			ThrowFHIRExceptions.unprocessableEntityException("The first entry of the message must be MessageHeader");
+		}
+
+		MessageHeader messageHeader = (MessageHeader) entries.get(0).getResource();
+		// We handle observation-type.
+		// TODO: Add other types later.
+		Coding event = messageHeader.getEventCoding();
+		Coding obsprovided = new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "laboratory",
+				"Laboratory");
+		if (CodeableConceptUtil.compareCodings(event, obsprovided) != 0) {
+			ThrowFHIRExceptions.unprocessableEntityException(
+					"We currently support only observation-provided Message event");
+		}
+
+		return messageHeader;
+	}
+
+	/**
+	 * Writes the entries of a validated message and returns the response message.
+	 */
+	public Bundle processMessage(Bundle theContent, MessageHeader messageHeader) {
+		Bundle retVal = new Bundle();
+
+		MessageHeaderResponseComponent messageHeaderResponse = new MessageHeaderResponseComponent();
+		messageHeaderResponse.setId(messageHeader.getId());
+
+		List<BundleEntryComponent> resultEntries = null;
+		try {
+			resultEntries = createEntries(theContent.getEntry());
+			messageHeaderResponse.setCode(ResponseType.OK);
+		} catch (FHIRException e) {
+			e.printStackTrace();
+			messageHeaderResponse.setCode(ResponseType.OK);
+			OperationOutcome outcome = new OperationOutcome();
+			CodeableConcept detailCode = new CodeableConcept();
+			detailCode.setText(e.getMessage());
+			outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDetails(detailCode);
+			messageHeaderResponse.setDetailsTarget(outcome);
+		}
+
+		messageHeader.setResponse(messageHeaderResponse);
+		BundleEntryComponent responseMessageEntry = new BundleEntryComponent();
+		UUID uuid = UUID.randomUUID();
+		responseMessageEntry.setFullUrl("urn:uuid:" + uuid.toString());
+		responseMessageEntry.setResource(messageHeader);
+
+		if (resultEntries == null)
+			resultEntries = new ArrayList<BundleEntryComponent>();
+
+		resultEntries.add(0, responseMessageEntry);
+		retVal.setEntry(resultEntries);
+
+		return retVal;
+	}
+
+	/**
+	 * An Observation entry of a message and its mapped OMOP entities.
+	 */
+	private static class MessageObservation {
+		final Observation observation;
+		List<BaseEntity> entities = null;
+		boolean direct = false;
+		boolean skipped = false;
+		Long fhirId = null;
+
+		MessageObservation(Observation observation) {
+			this.observation = observation;
+		}
+	}
+
+	/**
+	 * Writes the Patient and Observation entries of a message in two phases.
+	 * Entries are first mapped to OMOP entities in memory. Each distinct patient
+	 * reference and observation code is resolved once. The entities are then
+	 * written with one TransactionService.writeTransaction call. Observations
+	 * that refer to a patient of the same message need the new patient id and go
+	 * to a second call. Observations with method or note also create fact
+	 * relationships and are written with toDbase.
+	 */
 	public List<BundleEntryComponent> createEntries(List<BundleEntryComponent> entries) throws FHIRException {
 		List<BundleEntryComponent> responseEntries = new ArrayList<BundleEntryComponent>();
 		Map<String, Long> patientMap = new HashMap<String, Long>();
 
-		// do patient first.
+		// Phase one: map patients first.
+		Map<String, FPerson> newPersons = new LinkedHashMap<String, FPerson>();
+		Map<String, List<BaseEntity>> entityToCreate = new HashMap<String, List<BaseEntity>>();
 		for (BundleEntryComponent entry : entries) {
 			Resource resource = entry.getResource();
-			if (resource.getResourceType() == ResourceType.Patient) {
-				String originalId = resource.getId();
-				Long fhirId = OmopPatient.getInstance().toDbase(ExtensionUtil.usCorePatientFromResource(resource),
-						null);
-				patientMap.put(entry.getFullUrl(), fhirId);
-				logger.debug("Adding patient info to patientMap " + originalId + "->" + fhirId);
-				responseEntries.add(addResponseEntry("201 Created", "Patient/" + fhirId));
+			if (resource != null && resource.getResourceType() == ResourceType.Patient) {
+				FPerson fPerson = OmopPatient.getInstance().constructOmop(null,
+						ExtensionUtil.usCorePatientFromResource(resource));
+				String fullUrl = entry.getFullUrl();
+				if (fullUrl == null || fullUrl.isEmpty() || newPersons.containsKey(fullUrl)) {
+					fullUrl = "urn:uuid:" + UUID.randomUUID().toString();
+				}
+				newPersons.put(fullUrl, fPerson);
+				addEntity(entityToCreate, fullUrl + "^FPerson", fPerson);
 			}
 		}
 
-		// Now process the rest.
+		// Now map the rest. Observations of the new patients wait for the patient ids.
+		Map<String, IdType> linkedPatients = new HashMap<String, IdType>();
+		Map<String, List<Concept>> conceptsByCode = new HashMap<String, List<Concept>>();
+		List<MessageObservation> observations = new ArrayList<MessageObservation>();
+		List<MessageObservation> waitingObservations = new ArrayList<MessageObservation>();
 		for (BundleEntryComponent entry : entries) {
 			Resource resource = entry.getResource();
-			
-			if (resource.getResourceType() == ResourceType.Patient) {
-				// already done.
+			if (resource == null || resource.getResourceType() != ResourceType.Observation) {
 				continue;
 			}
 
-			if (resource.getResourceType() == ResourceType.Observation) {
-				Observation observation = (Observation) resource;
-				Reference subject = observation.getSubject();
-				IdType refIdType = linkToPatient(subject, patientMap);
-				if (refIdType == null)
-					continue;
-				observation.setSubject(new Reference(refIdType));
-
-				logger.debug("Setting patient to Obs: "+observation.getSubject().getReference());
-				Long fhirId = OmopObservation.getInstance().toDbase(observation, null);
-				BundleEntryComponent newEntry;
-				if (fhirId == null || fhirId == 0L) {
-					newEntry = addResponseEntry("400 Bad Request", null);
-					newEntry.setResource(observation);
-				} else {
-					newEntry = addResponseEntry("201 Created", "Observation/" + fhirId);
-				}
+			MessageObservation messageObservation = new MessageObservation((Observation) resource);
+			observations.add(messageObservation);
+
+			Reference subject = messageObservation.observation.getSubject();
+			if (subject != null && newPersons.containsKey(subject.getReference())) {
+				waitingObservations.add(messageObservation);
+				continue;
+			}
 
-				responseEntries.add(newEntry);
+			String subjectReference = subject == null ? null : subject.getReference();
+			IdType refIdType;
+			if (linkedPatients.containsKey(subjectReference)) {
+				refIdType = linkedPatients.get(subjectReference);
+			} else {
+				refIdType = linkToPatient(subject, patientMap);
+				linkedPatients.put(subjectReference, refIdType);
 			}
+			if (refIdType == null) {
+				messageObservation.skipped = true;
+				continue;
+			}
+			messageObservation.observation.setSubject(new Reference(refIdType));
+			mapObservation(messageObservation, entityToCreate, conceptsByCode);
+		}
+
+		// Phase two: write.
+		writeEntities(entityToCreate);
+		for (Map.Entry<String, FPerson> newPerson : newPersons.entrySet()) {
+			Long fhirId = IdMapping.getFHIRfromOMOP(newPerson.getValue().getIdAsLong(),
+					PatientResourceProvider.getType());
+			patientMap.put(newPerson.getKey(), fhirId);
+			logger.debug("Adding patient info to patientMap " + newPerson.getKey() + "->" + fhirId);
+			responseEntries.add(addResponseEntry("201 Created", "Patient/" + fhirId));
+		}
+
+		if (!waitingObservations.isEmpty()) {
+			entityToCreate = new HashMap<String, List<BaseEntity>>();
+			for (MessageObservation messageObservation : waitingObservations) {
+				Long patientFhirId = patientMap.get(messageObservation.observation.getSubject().getReference());
+				messageObservation.observation
+						.setSubject(new Reference(new IdType(PatientResourceProvider.getType(), patientFhirId)));
+				mapObservation(messageObservation, entityToCreate, conceptsByCode);
+			}
+			writeEntities(entityToCreate);
+		}
+
+		for (MessageObservation messageObservation : observations) {
+			if (messageObservation.skipped) {
+				continue;
+			}
+
+			Observation observation = messageObservation.observation;
+			logger.debug("Setting patient to Obs: " + observation.getSubject().getReference());
+			Long fhirId;
+			if (messageObservation.direct) {
+				fhirId = OmopObservation.getInstance().toDbase(observation, null);
+			} else {
+				fhirId = OmopObservation.getFhirIdOfEntities(messageObservation.entities);
+			}
+
+			BundleEntryComponent newEntry;
+			if (fhirId == null || fhirId == 0L) {
+				newEntry = addResponseEntry("400 Bad Request", null);
+				newEntry.setResource(observation);
+			} else {
+				newEntry = addResponseEntry("201 Created", "Observation/" + fhirId);
+			}
+
+			responseEntries.add(newEntry);
 		}
 
 		return responseEntries;
 	}
+
+	@SuppressWarnings("unchecked")
+	private void mapObservation(MessageObservation messageObservation, Map<String, List<BaseEntity>> entityToCreate,
+			Map<String, List<Concept>> conceptsByCode) {
+		Observation observation = messageObservation.observation;
+		if (!observation.getMethod().isEmpty() || !observation.getNote().isEmpty()) {
+			messageObservation.direct = true;
+			return;
+		}
+
+		Map<String, Object> obsEntityMap = OmopObservation.getInstance().constructOmopMeasurementObservation(null,
+				observation, conceptsByCode);
+		if (obsEntityMap == null || obsEntityMap.isEmpty()) {
+			return;
+		}
+
+		String subject = observation.getSubject().getReference();
+		List<BaseEntity> entities = new ArrayList<BaseEntity>();
+		if ("Measurement".equalsIgnoreCase((String) obsEntityMap.get("type"))) {
+			for (Measurement measurement : (List<Measurement>) obsEntityMap.get("entity")) {
+				if (measurement != null) {
+					addEntity(entityToCreate, subject + "^Measurement", measurement);
+					entities.add(measurement);
+				}
+			}
+		} else {
+			BaseEntity omopObservation = (BaseEntity) obsEntityMap.get("entity");
+			addEntity(entityToCreate, subject + "^Observation", omopObservation);
+			entities.add(omopObservation);
+		}
+		messageObservation.entities = entities;
+	}
+
+	private void writeEntities(Map<String, List<BaseEntity>> entityToCreate) throws FHIRException {
+		if (entityToCreate.isEmpty()) {
+			return;
+		}
+
+		int performStatus = transactionService.writeTransaction(entityToCreate);
+		if (performStatus < 0) {
+			throw new FHIRException("Failed to write the message entries");
+		}
+	}
+
+	private static void addEntity(Map<String, List<BaseEntity>> entities, String key, BaseEntity entity) {
+		List<BaseEntity> list = entities.get(key);
+		if (list == null) {
+			list = new ArrayList<BaseEntity>();
+			entities.put(key, list);
+		}
+		list.add(entity);
+	}
 }
@@ -16,15 +16,33 @@
 package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationAdministration;
+import org.hl7.fhir.r4.model.MedicationDispense;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Procedure;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
-import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryRequestComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryResponseComponent;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.IdType;
@@ -32,12 +50,17 @@ import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
 import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient;
-import edu.gatech.chai.omoponfhir.omopv6.r4.provider.PatientResourceProvider;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExtensionUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv6.dba.service.FPersonService;
 import edu.gatech.chai.omopv6.dba.service.MeasurementService;
 import edu.gatech.chai.omopv6.dba.service.ObservationService;
@@ -48,6 +71,7 @@ import edu.gatech.chai.omopv6.model.entity.FPerson;
 import edu.gatech.chai.omopv6.model.entity.Measurement;
 
 public class OmopTransaction {
+	private static final Logger logger = LoggerFactory.getLogger(OmopTransaction.class);
 
 	private static OmopTransaction omopTransaction = new OmopTransaction();
 	private TransactionService myService;
@@ -124,7 +148,7 @@ public class OmopTransaction {
 				// giving up...
 				return null;
 			}
-			return new IdType("Patient", refFPerson.getId());
+			return new IdType("Patient", fhirId);
 		} else {
 			return new IdType("Patient", fhirId);
 		}
@@ -222,103 +246,467 @@ public class OmopTransaction {
 	}
 
 	/**
+	 * Typed access to the mapper of a resource type that can be written in a
+	 * transaction.
+	 */
+	private static class TransactionMapper<v extends Resource, t extends BaseEntity> {
+		private final Function<Resource, v> converter;
+		private final Supplier<? extends BaseOmopResource<v, t, ?>> baseMapper;
+		private final Supplier<? extends IResourceMapping<v, t>> resourceMapping;
+
+		private TransactionMapper(Function<Resource, v> converter, Supplier<? extends BaseOmopResource<v, t, ?>> baseMapper,
+				Supplier<? extends IResourceMapping<v, t>> resourceMapping) {
+			this.converter = converter;
+			this.baseMapper = baseMapper;
+			this.resourceMapping = resourceMapping;
+		}
+
+		t constructOmop(Resource resource) {
+			return resourceMapping.get().constructOmop(null, converter.apply(resource));
+		}
+
+		t create(BaseEntity entity) {
+			BaseOmopResource<v, t, ?> mapper = baseMapper.get();
+			return mapper.getMyOmopService().create(mapper.getMyEntityClass().cast(entity));
+		}
+
+		Long toDbase(Resource resource, IdType fhirId) throws FHIRException {
+			return resourceMapping.get().toDbase(converter.apply(resource), fhirId);
+		}
+
+		void removeDbase(Long omopId) {
+			baseMapper.get().removeDbase(omopId);
+		}
+
+		Long removeByFhirId(IdType fhirId) throws FHIRException {
+			return baseMapper.get().removeByFhirId(fhirId);
+		}
+
+		boolean exists(IdType fhirId) {
+			return baseMapper.get().toFHIR(fhirId) != null;
+		}
+	}
+
+	// Resource types that can be written in a transaction. The order is the
+	// dependency order. A type may refer to the types before it.
+	private static final Map<String, TransactionMapper<?, ?>> transactionMappers = new LinkedHashMap<String, TransactionMapper<?, ?>>();
+	static {
+		register("Organization", Organization.class, OmopOrganization::getInstance);
+		register("Practitioner", Practitioner.class, OmopPractitioner::getInstance);
+		register("Patient", ExtensionUtil::usCorePatientFromResource, OmopPatient::getInstance);
+		register("Encounter", Encounter.class, OmopEncounter::getInstance);
+		register("Condition", Condition.class, OmopCondition::getInstance);
+		register("Procedure", Procedure.class, OmopProcedure::getInstance);
+		register("Observation", Observation.class, OmopObservation::getInstance);
+		register("MedicationRequest", MedicationRequest.class, OmopMedicationRequest::getInstance);
+		register("MedicationAdministration", MedicationAdministration.class, OmopMedicationAdministration::getInstance);
+		register("MedicationDispense", MedicationDispense.class, OmopMedicationDispense::getInstance);
+		register("MedicationStatement", MedicationStatement.class, OmopMedicationStatement::getInstance);
+		register("Device", Device.class, OmopDevice::getInstance);
+		register("DocumentReference", DocumentReference.class, OmopDocumentReference::getInstance);
+	}
+
+	private static <v extends Resource, t extends BaseEntity, x extends BaseOmopResource<v, t, ?> & IResourceMapping<v, t>> void register(
+			String resourceType, Class<v> resourceClass, Supplier<x> mapper) {
+		register(resourceType, resource -> resourceClass.cast(resource), mapper);
+	}
+
+	private static <v extends Resource, t extends BaseEntity, x extends BaseOmopResource<v, t, ?> & IResourceMapping<v, t>> void register(
+			String resourceType, Function<Resource, v> converter, Supplier<x> mapper) {
+		transactionMappers.put(resourceType, new TransactionMapper<v, t>(converter, mapper, mapper));
+	}
+
+	private static final List<String> transactionTypes = new ArrayList<String>(transactionMappers.keySet());
+
+	/**
+	 * A request entry of a transaction bundle.
+	 */
+	private static class TransactionEntry {
+		final int index;
+		final BundleEntryComponent entry;
+		final HTTPVerb method;
+		final String resourceType;
+		final TransactionMapper<?, ?> mapper;
+		IdType targetId = null;
+		List<BaseEntity> entities = null;
+		Long fhirId = null;
+		// Written with the mapper's toDbase instead of as entities.
+		boolean direct = false;
+
+		TransactionEntry(int index, BundleEntryComponent entry, HTTPVerb method, String resourceType) {
+			this.index = index;
+			this.entry = entry;
+			this.method = method;
+			this.resourceType = resourceType;
+			this.mapper = transactionMappers.get(resourceType);
+		}
+
+		int rank() {
+			return transactionTypes.indexOf(resourceType);
+		}
+	}
+
+	/**
+	 * Executes the entries of a transaction bundle.
 	 * 
-	 * @param entries
-	 * @return
-	 * @throws FHIRException
+	 * All entries are validated before anything is written, and the targets of
+	 * DELETE entries must exist. POST entries are mapped to OMOP entities in
+	 * dependency order. Patient and Observation entities are written with
+	 * TransactionService.writeTransaction and the other tables through their own
+	 * services. An Observation with a method or a note is written with toDbase,
+	 * which also writes its fact relationships. A new batch is started only when
+	 * an entry refers to a resource created by the current batch, because the
+	 * reference needs the new id. PUT entries are written next and DELETE entries
+	 * last.
 	 * 
-	 *                       Transaction type of Transaction operation is atomic. If
-	 *                       one fails, all should be dropped. Thus, we can't
-	 *                       process one entry at a time. We should do this in one
-	 *                       JPA transaction so that if one failed, all can be
-	 *                       rolled back.
+	 * This is not atomic. If a create, update or delete fails, the resources
+	 * created by this transaction are removed again on a best-effort basis.
+	 * Updates and deletes that were already written are not rolled back.
+	 * 
+	 * @return one response entry for each request entry, in the same order.
 	 */
-	public List<BundleEntryComponent> executeTransaction(Map<HTTPVerb, Object> entries) throws FHIRException {
+	public List<BundleEntryComponent> executeTransaction(List<BundleEntryComponent> entries) throws FHIRException {
+		List<TransactionEntry> postEntries = new ArrayList<TransactionEntry>();
+		List<TransactionEntry> putEntries = new ArrayList<TransactionEntry>();
+		List<TransactionEntry> deleteEntries = new ArrayList<TransactionEntry>();
+		List<TransactionEntry> allEntries = new ArrayList<TransactionEntry>();
+
+		for (int i = 0; i < entries.size(); i++) {
+			TransactionEntry transactionEntry = validateEntry(i, entries.get(i));
+			allEntries.add(transactionEntry);
+			if (transactionEntry.method == HTTPVerb.POST) {
+				postEntries.add(transactionEntry);
+			} else if (transactionEntry.method == HTTPVerb.PUT) {
+				putEntries.add(transactionEntry);
+			} else {
+				deleteEntries.add(transactionEntry);
+			}
+		}
+
+		for (TransactionEntry transactionEntry : deleteEntries) {
+			if (!transactionEntry.mapper.exists(transactionEntry.targetId)) {
+				throw new ResourceNotFoundException(transactionEntry.targetId);
+			}
+		}
+
+		// Sort is stable. Entries of the same type keep the bundle order.
+		Collections.sort(postEntries, new Comparator<TransactionEntry>() {
+			@Override
+			public int compare(TransactionEntry o1, TransactionEntry o2) {
+				return Integer.compare(o1.rank(), o2.rank());
+			}
+		});
+
+		// Bundle local references (fullUrl or Type/id of the entry) -> new reference.
+		Map<String, String> createdReferences = new HashMap<String, String>();
+		List<TransactionEntry> created = new ArrayList<TransactionEntry>();
+		try {
+			Map<String, List<BaseEntity>> entityToCreate = new HashMap<String, List<BaseEntity>>();
+			List<TransactionEntry> batch = new ArrayList<TransactionEntry>();
+			Set<String> batchReferences = new HashSet<String>();
+			for (TransactionEntry transactionEntry : postEntries) {
+				Resource resource = transactionEntry.entry.getResource();
+				if (refersTo(resource, batchReferences)) {
+					writeBatch(entityToCreate, batch, createdReferences, created);
+					entityToCreate = new HashMap<String, List<BaseEntity>>();
+					batch = new ArrayList<TransactionEntry>();
+					batchReferences.clear();
+				}
+
+				replaceReferences(resource, createdReferences);
+				mapEntry(transactionEntry, entityToCreate);
+				batch.add(transactionEntry);
+				batchReferences.addAll(localReferences(transactionEntry));
+			}
+			writeBatch(entityToCreate, batch, createdReferences, created);
+
+			for (TransactionEntry transactionEntry : putEntries) {
+				Resource resource = transactionEntry.entry.getResource();
+				replaceReferences(resource, createdReferences);
+				transactionEntry.fhirId = updateEntry(transactionEntry, resource);
+				if (transactionEntry.fhirId == null) {
+					throw new FHIRException("Failed to update " + transactionEntry.targetId.getValue());
+				}
+			}
+
+			for (TransactionEntry transactionEntry : deleteEntries) {
+				Long removed = transactionEntry.mapper.removeByFhirId(transactionEntry.targetId);
+				if (removed == null || removed <= 0) {
+					throw new FHIRException("Failed to delete " + transactionEntry.targetId.getValue());
+				}
+			}
+		} catch (Exception e) {
+			undoCreate(created);
+			if (e instanceof FHIRException) {
+				throw (FHIRException) e;
+			}
+			throw new FHIRException("Transaction failed: " + e.getMessage(), e);
+		}
+
 		List<BundleEntryComponent> responseEntries = new ArrayList<BundleEntryComponent>();
-		Map<String, List<BaseEntity>> entityToCreate = new HashMap<String, List<BaseEntity>>();
+		for (TransactionEntry transactionEntry : allEntries) {
+			BundleEntryComponent responseEntry = new BundleEntryComponent();
+			BundleEntryResponseComponent responseComponent = new BundleEntryResponseComponent();
+			if (transactionEntry.method == HTTPVerb.POST) {
+				responseComponent.setStatus("201 Created");
+				responseComponent.setLocation(transactionEntry.resourceType + "/" + transactionEntry.fhirId);
+			} else if (transactionEntry.method == HTTPVerb.PUT) {
+				responseComponent.setStatus("200 OK");
+				responseComponent.setLocation(transactionEntry.resourceType + "/" + transactionEntry.fhirId);
+			} else {
+				responseComponent.setStatus("204 No Content");
+			}
+			responseEntry.setResponse(responseComponent);
+			responseEntries.add(responseEntry);
+		}
 
-		/*
-		 * POST Transaction.
-		 */
-		@SuppressWarnings("unchecked")
-		List<Resource> postList = (List<Resource>) entries.get(HTTPVerb.POST);
-		String keyString;
-		for (Resource resource : postList) {
-			switch (resource.getResourceType()) {
-			case Patient:
-				FPerson fPerson = OmopPatient.getInstance().constructOmop(null,
-						ExtensionUtil.usCorePatientFromResource(resource));
-				keyString = resource.getId() + "^FPerson";
-				addBaseEntity(entityToCreate, keyString, fPerson);
-				System.out.println("key:" + keyString + ", fPerson");
-				break;
-			case Observation:
-				Observation observation = (Observation) resource;
-				Map<String, Object> obsEntityMap = OmopObservation.getInstance()
-						.constructOmopMeasurementObservation(null, observation);
-				if (obsEntityMap != null && !obsEntityMap.isEmpty()) {
-					if (((String) obsEntityMap.get("type")).equalsIgnoreCase("Measurement")) {
-						keyString = observation.getSubject().getReference() + "^Measurement";
-						List<Measurement> measurements = (List<Measurement>) obsEntityMap.get("entity");
-						for (Measurement measurement : measurements) {
-							addBaseEntity(entityToCreate, keyString, measurement);
-						}
-					} else {
-						keyString = observation.getSubject().getReference() + "^Observation";
-						edu.gatech.chai.omopv6.model.entity.Observation omopObservation = (edu.gatech.chai.omopv6.model.entity.Observation) obsEntityMap
-								.get("entity");
-						addBaseEntity(entityToCreate, keyString, omopObservation);
+		return responseEntries;
+	}
+
+	private TransactionEntry validateEntry(int index, BundleEntryComponent entry) {
+		BundleEntryRequestComponent request = entry.getRequest();
+		if (request == null || request.isEmpty() || request.getMethod() == null) {
+			ThrowFHIRExceptions.unprocessableEntityException("Entry " + index + " has no request");
+		}
+
+		HTTPVerb method = request.getMethod();
+		String resourceType;
+		IdType targetId = null;
+		if (method == HTTPVerb.POST || method == HTTPVerb.PUT) {
+			if (entry.getResource() == null) {
+				ThrowFHIRExceptions.unprocessableEntityException("Entry " + index + " has no resource");
+			}
+			resourceType = entry.getResource().fhirType();
+			if (method == HTTPVerb.PUT) {
+				targetId = new IdType(request.getUrl());
+			}
+		} else if (method == HTTPVerb.DELETE) {
+			targetId = new IdType(request.getUrl());
+			resourceType = targetId.getResourceType();
+		} else {
+			throw ThrowFHIRExceptions.unprocessableEntityException(
+					"Entry " + index + ": " + method.toCode() + " is not supported in a transaction");
+		}
+
+		if (resourceType == null || !transactionMappers.containsKey(resourceType)) {
+			ThrowFHIRExceptions.unprocessableEntityException(
+					"Entry " + index + ": " + resourceType + " is not supported in a transaction");
+		}
+		if (targetId != null && (!resourceType.equals(targetId.getResourceType()) || !targetId.isIdPartValidLong())) {
+			ThrowFHIRExceptions.unprocessableEntityException(
+					"Entry " + index + ": request url must be " + resourceType + "/[id]");
+		}
+
+		TransactionEntry transactionEntry = new TransactionEntry(index, entry, method, resourceType);
+		transactionEntry.targetId = targetId;
+
+		return transactionEntry;
+	}
+
+	/**
+	 * References that other entries may use for a POST entry.
+	 */
+	private List<String> localReferences(TransactionEntry transactionEntry) {
+		List<String> references = new ArrayList<String>();
+		String fullUrl = transactionEntry.entry.getFullUrl();
+		if (fullUrl != null && !fullUrl.isEmpty()) {
+			references.add(fullUrl);
+		}
+		IdType idType = transactionEntry.entry.getResource().getIdElement();
+		if (idType != null && idType.hasIdPart()) {
+			references.add(transactionEntry.resourceType + "/" + idType.getIdPart());
+		}
+
+		return references;
+	}
+
+	private boolean refersTo(Resource resource, Set<String> references) {
+		if (references.isEmpty()) {
+			return false;
+		}
+
+		for (Reference reference : StaticValues.myFhirContext.newTerser().getAllPopulatedChildElementsOfType(resource,
+				Reference.class)) {
+			if (reference.getReference() != null && references.contains(reference.getReference())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void replaceReferences(Resource resource, Map<String, String> createdReferences) {
+		if (createdReferences.isEmpty()) {
+			return;
+		}
+
+		for (Reference reference : StaticValues.myFhirContext.newTerser().getAllPopulatedChildElementsOfType(resource,
+				Reference.class)) {
+			String newReference = createdReferences.get(reference.getReference());
+			if (newReference != null) {
+				reference.setReference(newReference);
+			}
+		}
+	}
+
+	/**
+	 * Patient and Observation entities (FPerson, Measurement and Observation)
+	 * are written with TransactionService.writeTransaction, as before. The other
+	 * tables are created through the mapper's own service.
+	 */
+	private static boolean writtenByTransactionService(TransactionEntry transactionEntry) {
+		return !transactionEntry.direct && ("Patient".equals(transactionEntry.resourceType)
+				|| "Observation".equals(transactionEntry.resourceType));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void mapEntry(TransactionEntry transactionEntry, Map<String, List<BaseEntity>> entityToCreate)
+			throws FHIRException {
+		Resource resource = transactionEntry.entry.getResource();
+		List<BaseEntity> entities = new ArrayList<BaseEntity>();
+
+		if (resource instanceof Observation) {
+			Observation observation = (Observation) resource;
+			if (!observation.getMethod().isEmpty() || !observation.getNote().isEmpty()) {
+				// The method and note are fact relationships, which toDbase writes.
+				transactionEntry.direct = true;
+				transactionEntry.entities = entities;
+				return;
+			}
+
+			Map<String, Object> obsEntityMap = OmopObservation.getInstance().constructOmopMeasurementObservation(null,
+					observation);
+			if (obsEntityMap == null || obsEntityMap.isEmpty()) {
+				throw new FHIRException("Entry " + transactionEntry.index + ": Observation cannot be mapped");
+			}
+			if ("Measurement".equalsIgnoreCase((String) obsEntityMap.get("type"))) {
+				entities.addAll((List<Measurement>) obsEntityMap.get("entity"));
+			} else {
+				entities.add((BaseEntity) obsEntityMap.get("entity"));
+			}
+		} else {
+			BaseEntity entity = transactionEntry.mapper.constructOmop(resource);
+			if (entity == null) {
+				throw new FHIRException(
+						"Entry " + transactionEntry.index + ": " + transactionEntry.resourceType + " cannot be mapped");
+			}
+			entities.add(entity);
+		}
+		transactionEntry.entities = entities;
+
+		if (writtenByTransactionService(transactionEntry)) {
+			// One key per entry and entity class, as in executeRequests.
+			String keyPrefix = transactionEntry.entry.getFullUrl();
+			if (keyPrefix == null || keyPrefix.isEmpty()) {
+				keyPrefix = "urn:uuid:" + UUID.randomUUID().toString();
+			}
+			for (BaseEntity entity : entities) {
+				if (entity != null) {
+					addBaseEntity(entityToCreate, keyPrefix + "^" + entity.getClass().getSimpleName(), entity);
+				}
+			}
+		}
+	}
+
+	private void writeBatch(Map<String, List<BaseEntity>> entityToCreate, List<TransactionEntry> batch,
+			Map<String, String> createdReferences, List<TransactionEntry> created) throws FHIRException {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		if (!entityToCreate.isEmpty()) {
+			int performStatus = myService.writeTransaction(entityToCreate);
+			if (performStatus < 0) {
+				throw new FHIRException("Failed to write the transaction");
+			}
+			for (TransactionEntry transactionEntry : batch) {
+				if (writtenByTransactionService(transactionEntry)) {
+					created.add(transactionEntry);
+				}
+			}
+		}
+
+		for (TransactionEntry transactionEntry : batch) {
+			if (transactionEntry.direct) {
+				created.add(transactionEntry);
+				transactionEntry.fhirId = transactionEntry.mapper.toDbase(transactionEntry.entry.getResource(), null);
+				if (transactionEntry.fhirId == null || transactionEntry.fhirId == 0L) {
+					throw new FHIRException("Entry " + transactionEntry.index + ": " + transactionEntry.resourceType
+							+ " was not written");
+				}
+			} else if (!writtenByTransactionService(transactionEntry)) {
+				created.add(transactionEntry);
+				List<BaseEntity> entities = transactionEntry.entities;
+				for (int i = 0; i < entities.size(); i++) {
+					BaseEntity entity = transactionEntry.mapper.create(entities.get(i));
+					if (entity != null) {
+						entities.set(i, entity);
 					}
+				}
+			}
+
+			if (!transactionEntry.direct) {
+				for (BaseEntity entity : transactionEntry.entities) {
+					if (entity == null || entity.getIdAsLong() == null) {
+						throw new FHIRException("Entry " + transactionEntry.index + ": "
+								+ transactionEntry.resourceType + " was not written");
+					}
+				}
+
+				if (transactionEntry.entry.getResource() instanceof Observation) {
+					transactionEntry.fhirId = OmopObservation.getFhirIdOfEntities(transactionEntry.entities);
 				} else {
-					return null;
+					transactionEntry.fhirId = IdMapping.getFHIRfromOMOP(
+							transactionEntry.entities.get(0).getIdAsLong(), transactionEntry.resourceType);
 				}
+			}
 
-				break;
-			default:
-				break;
+			String newReference = transactionEntry.resourceType + "/" + transactionEntry.fhirId;
+			for (String localReference : localReferences(transactionEntry)) {
+				createdReferences.put(localReference, newReference);
 			}
 		}
+	}
 
-		List<BundleEntryComponent> retVal = new ArrayList<BundleEntryComponent>();
-		if (entityToCreate.size() > 0) {
-			int performStatus = myService.writeTransaction(entityToCreate);
-			if (performStatus < 0) {
-				// This is an error.
-				// TODO: respond accordingly
-				return retVal;
-			}
-			for (String myKeyString : entityToCreate.keySet()) {
-				List<BaseEntity> entities = entityToCreate.get(myKeyString);
-				String[] myKeyInfo = myKeyString.split("\\^");
-				if (myKeyInfo.length != 2) {
-					return null;
+	private Long updateEntry(TransactionEntry transactionEntry, Resource resource) throws FHIRException {
+		resource.setId(transactionEntry.targetId);
+		return transactionEntry.mapper.toDbase(resource, transactionEntry.targetId);
+	}
+
+	private void undoCreate(List<TransactionEntry> created) {
+		for (int i = created.size() - 1; i >= 0; i--) {
+			TransactionEntry transactionEntry = created.get(i);
+			if (transactionEntry.direct) {
+				if (transactionEntry.fhirId != null && transactionEntry.fhirId != 0L) {
+					try {
+						transactionEntry.mapper
+								.removeByFhirId(new IdType(transactionEntry.resourceType, transactionEntry.fhirId));
+					} catch (Exception e) {
+						logger.error("Failed to remove " + transactionEntry.resourceType
+								+ " created by a failed transaction: " + e.getMessage());
+					}
 				}
-				System.out.println("About to check response from JPA transaction");
-				String entityName = myKeyInfo[1];
-				for (BaseEntity entity : entities) {
-					BundleEntryComponent bundleEntryComponent = new BundleEntryComponent();
-					Resource fhirResource;
-					if (entityName.equals("FPerson")) {
-						// This is Person table.
-						// Constructing FHIR to respond.
-						System.out.println("Created FPerson ID: " + entity.getIdAsLong());
-						fhirResource = OmopPatient.getInstance().constructFHIR(
-								IdMapping.getFHIRfromOMOP(entity.getIdAsLong(), PatientResourceProvider.getType()),
-								(FPerson) entity);
-						bundleEntryComponent.setResource(fhirResource);
-						// It was success full, so we return 201 Created.
-						BundleEntryResponseComponent responseComponent = new BundleEntryResponseComponent(
-								new StringType("201 Created"));
-						responseComponent.setLocation(PatientResourceProvider.getType() + "/" + fhirResource.getId());
-						bundleEntryComponent.setResponse(responseComponent);
-						retVal.add(bundleEntryComponent);
-					} else if (entityName.equals("Measurement")) {
+				continue;
+			}
 
+			for (BaseEntity entity : transactionEntry.entities) {
+				if (entity == null || entity.getIdAsLong() == null) {
+					continue;
+				}
+				try {
+					if (entity instanceof Measurement) {
+						measurementService.removeById(entity.getIdAsLong());
+					} else if (entity instanceof edu.gatech.chai.omopv6.model.entity.Observation) {
+						observationService.removeById(entity.getIdAsLong());
+					} else {
+						transactionEntry.mapper.removeDbase(entity.getIdAsLong());
 					}
+				} catch (Exception e) {
+					logger.error("Failed to remove " + transactionEntry.resourceType + " created by a failed transaction: "
+							+ e.getMessage());
 				}
 			}
 		}
-		return retVal;
 	}
 
 	public List<ParameterWrapper> mapParameter(String parameter, Object value) {
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExpiringCache;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.TerminologyServiceClient;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
+import edu.gatech.chai.omopv6.dba.service.ConceptService;
+import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
+import edu.gatech.chai.omopv6.model.entity.Concept;
+
+/**
+ * Resolves the ValueSet of a code:in search to the OMOP concept_ids it
+ * contains, so that the search filters on the concept id column instead of
+ * joining concept on vocabulary and code strings. The resolved ids are cached
+ * per ValueSet canonical URL.
+ */
+public class ValueSetConceptResolver {
+	// concept_id that no concept has. Used when a ValueSet resolves to nothing.
+	private static final String NO_CONCEPT_ID = "-1";
+
+	private static ExpiringCache<String, long[]> conceptIdCache = new ExpiringCache<String, long[]>(
+			(int) StaticValues.getEnvLong("VALUESET_CACHE_SIZE", 500L),
+			StaticValues.getEnvLong("VALUESET_CACHE_TTL_SECONDS", 3600L) * 1000L,
+			StaticValues.getEnvLong("VALUESET_CACHE_MISS_TTL_SECONDS", 60L) * 1000L);
+
+	/**
+	 * Returns the concept_ids of the ValueSet. Codes without an OMOP concept are
+	 * skipped. An unknown ValueSet resolves to no ids.
+	 */
+	public static long[] getConceptIds(ConceptService conceptService, String valueSetUrl) {
+		long[] conceptIds = conceptIdCache.get(valueSetUrl, key -> resolve(conceptService, key));
+		return conceptIds == null ? new long[0] : conceptIds;
+	}
+
+	/**
+	 * Returns parameters that limit the search to the concept_ids of the
+	 * ValueSet. All ids are in one parameter, so they form one or'ed clause that
+	 * is and'ed with the other filters of the search.
+	 *
+	 * @param column concept id attribute to filter, e.g. drugConcept.id
+	 */
+	public static List<ParameterWrapper> getParameterWrappers(ConceptService conceptService, String valueSetUrl,
+			String column) {
+		return Arrays.asList(constructParameterWrapper(column, getConceptIds(conceptService, valueSetUrl)));
+	}
+
+	static ParameterWrapper constructParameterWrapper(String column, long[] conceptIds) {
+		List<String> parameters = new ArrayList<String>(Math.max(1, conceptIds.length));
+		List<String> operators = new ArrayList<String>(Math.max(1, conceptIds.length));
+		List<String> values = new ArrayList<String>(Math.max(1, conceptIds.length));
+		for (long conceptId : conceptIds) {
+			parameters.add(column);
+			operators.add("=");
+			values.add(String.valueOf(conceptId));
+		}
+		if (values.isEmpty()) {
+			parameters.add(column);
+			operators.add("=");
+			values.add(NO_CONCEPT_ID);
+		}
+
+		ParameterWrapper param = new ParameterWrapper("Long", parameters, operators, values, "or");
+		param.setUpperRelationship("and");
+
+		return param;
+	}
+
+	public static void invalidateCache() {
+		conceptIdCache.invalidateAll();
+	}
+
+	private static long[] resolve(ConceptService conceptService, String valueSetUrl) {
+		ValueSet valueSet = TerminologyServiceClient.getInstance().getValueSet(valueSetUrl);
+		if (valueSet == null) {
+			return null;
+		}
+
+		Set<Long> conceptIds = new LinkedHashSet<Long>();
+		if (valueSet.hasExpansion()) {
+			addExpansion(conceptService, valueSet.getExpansion().getContains(), conceptIds);
+		} else {
+			for (ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+				addConceptSet(conceptService, include, conceptIds, true);
+			}
+			for (ConceptSetComponent exclude : valueSet.getCompose().getExclude()) {
+				addConceptSet(conceptService, exclude, conceptIds, false);
+			}
+		}
+
+		long[] retVal = new long[conceptIds.size()];
+		int i = 0;
+		for (Long conceptId : conceptIds) {
+			retVal[i++] = conceptId;
+		}
+
+		return retVal;
+	}
+
+	private static void addExpansion(ConceptService conceptService, List<ValueSetExpansionContainsComponent> contains,
+			Set<Long> conceptIds) {
+		for (ValueSetExpansionContainsComponent contain : contains) {
+			if (contain.hasCode() && !contain.getAbstract() && !contain.getInactive()) {
+				Concept concept = CodeableConceptUtil.getOmopConceptWithOmopVacabIdAndCode(conceptService,
+						omopVocabulary(contain.getSystem()), contain.getCode());
+				if (concept != null) {
+					conceptIds.add(concept.getId());
+				}
+			}
+			addExpansion(conceptService, contain.getContains(), conceptIds);
+		}
+	}
+
+	private static void addConceptSet(ConceptService conceptService, ConceptSetComponent conceptSet,
+			Set<Long> conceptIds, boolean include) {
+		if (!conceptSet.hasConcept()) {
+			ThrowFHIRExceptions.unprocessableEntityException("ValueSet with a filter or a whole code system, "
+					+ conceptSet.getSystem() + ", cannot be used in code:in without an expansion");
+		}
+
+		String omopVocabulary = omopVocabulary(conceptSet.getSystem());
+		for (ConceptReferenceComponent conceptReference : conceptSet.getConcept()) {
+			Concept concept = CodeableConceptUtil.getOmopConceptWithOmopVacabIdAndCode(conceptService,
+					omopVocabulary, conceptReference.getCode());
+			if (concept == null) {
+				continue;
+			}
+
+			if (include) {
+				conceptIds.add(concept.getId());
+			} else {
+				conceptIds.remove(concept.getId());
+			}
+		}
+	}
+
+	private static String omopVocabulary(String system) {
+		String omopVocabulary = "None";
+		try {
+			omopVocabulary = OmopCodeableConceptMapping.omopVocabularyforFhirUri(system);
+		} catch (FHIRException e) {
+			e.printStackTrace();
+		}
+		if ("None".equals(omopVocabulary)) {
+			ThrowFHIRExceptions.unprocessableEntityException(
+					"We don't understand the system, " + system + " in code:in valueset");
+		}
+
+		return omopVocabulary;
+	}
+}
@@ -12,6 +12,7 @@ import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.ConceptMap;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.UriType;
 import org.slf4j.Logger;
@@ -21,6 +22,7 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.context.ContextLoaderListener;
@@ -33,7 +35,9 @@ import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopConceptMap;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExpiringCache;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
 
 public class ConceptMapResourceProvider implements IResourceProvider {
@@ -44,6 +48,20 @@ public class ConceptMapResourceProvider implements IResourceProvider {
 	private OmopConceptMap myMapper;
 	private int preferredPageSize = 30;
 
+	// One client for the remote terminology server. Connections are kept alive
+	// and reused between requests.
+	private static RestTemplate restTemplate = createRestTemplate();
+
+	// Largest number of codings in one $translate-batch request.
+	private static final int TRANSLATE_BATCH_MAX_CODINGS = (int) StaticValues
+			.getEnvLong("TRANSLATE_BATCH_MAX_CODINGS", 1000L);
+
+	// Remote $translate responses by request URL. A miss is cached as null.
+	private static ExpiringCache<String, Parameters> remoteTranslationCache = new ExpiringCache<String, Parameters>(
+			(int) StaticValues.getEnvLong("TRANSLATE_CACHE_SIZE", 10000L),
+			StaticValues.getEnvLong("TRANSLATE_CACHE_TTL_SECONDS", 3600L) * 1000L,
+			StaticValues.getEnvLong("TRANSLATE_CACHE_MISS_TTL_SECONDS", 300L) * 1000L);
+
 	public ConceptMapResourceProvider() {
 		myAppCtx = ContextLoaderListener.getCurrentWebApplicationContext();
 		myDbType = myAppCtx.getServletContext().getInitParameter("backendDbType");
@@ -63,6 +81,15 @@ public class ConceptMapResourceProvider implements IResourceProvider {
 		
 	}
 
+	private static RestTemplate createRestTemplate() {
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		requestFactory.setConnectTimeout(
+				(int) StaticValues.getEnvLong("MAPPING_TERMINOLOGY_CONNECT_TIMEOUT_MILLIS", 5000L));
+		requestFactory.setReadTimeout((int) StaticValues.getEnvLong("MAPPING_TERMINOLOGY_READ_TIMEOUT_MILLIS", 30000L));
+
+		return new RestTemplate(requestFactory);
+	}
+
 	@Override
 	public Class<ConceptMap> getResourceType() {
 		return ConceptMap.class;
@@ -111,39 +138,13 @@ public class ConceptMapResourceProvider implements IResourceProvider {
 					String remoteMappingTerminologyUrl = remoteMappingTerminologyUrlEncoded;
 					try {
 						remoteMappingTerminologyUrl = URLDecoder.decode(remoteMappingTerminologyUrlEncoded, "UTF-8");
-						RestTemplate restTemplate = new RestTemplate();
-
-						String authTypeEnv = System.getenv("AUTH_TYPE");
-						ResponseEntity<String> response;
-						HttpEntity<String> entity = null;
-						if (authTypeEnv != null && !authTypeEnv.isEmpty() && !"none".equalsIgnoreCase(authTypeEnv)) {
-							String prefix = authTypeEnv.substring(0, 6);
-							if ("basic ".equalsIgnoreCase(prefix)) {
-								String rawString = authTypeEnv.substring(6);
-								String base64encoded = Base64.getEncoder().encodeToString(rawString.getBytes());
-
-								HttpHeaders headers = new HttpHeaders();
-								headers.set("Authorization", "Basic " + base64encoded);
-								entity = new HttpEntity<String>(headers);
-							}
-						}
-						
-						if (entity == null) {
-							response = restTemplate.getForEntity(remoteMappingTerminologyUrl, String.class);
+						Parameters parameters = remoteTranslationCache.get(remoteMappingTerminologyUrl,
+								this::remoteTranslate);
+						if (parameters != null) {
+							logger.debug("$translate: responding parameters from external server, " + remoteMappingTerminologyUrl);
+							return parameters.copy();
 						} else {
-							response = restTemplate.exchange(remoteMappingTerminologyUrl, HttpMethod.GET, entity, String.class);
-						}
-						
-						if (response.getStatusCode().equals(HttpStatus.OK)) {
-							String result = response.getBody();
-							IParser fhirJsonParser = StaticValues.myFhirContext.newJsonParser();
-							Parameters parameters = fhirJsonParser.parseResource(Parameters.class, result);
-							if (parameters != null && !parameters.isEmpty()) {
-								logger.debug("$translate: responding parameters from external server, " + remoteMappingTerminologyUrl);
-								return parameters;
-							} else {
-								logger.debug("$translate: empty parameter received from " + remoteMappingTerminologyUrl + ". Trying local");
-							}
+							logger.debug("$translate: empty parameter received from " + remoteMappingTerminologyUrl + ". Trying local");
 						}
 					} catch (RestClientException | UnsupportedEncodingException e) {
 						// We have an error.
@@ -205,4 +206,89 @@ public class ConceptMapResourceProvider implements IResourceProvider {
 
 		return retVal;
 	}
+
+	/**
+	 * Sends the $translate request to the remote terminology server. Returns null
+	 * if the server has no translation.
+	 */
+	private Parameters remoteTranslate(String remoteMappingTerminologyUrl) {
+		ResponseEntity<String> response;
+		HttpEntity<String> authorizationHeader = AuthorizationHeaderHolder.authorizationHeader;
+		if (authorizationHeader == null) {
+			response = restTemplate.getForEntity(remoteMappingTerminologyUrl, String.class);
+		} else {
+			response = restTemplate.exchange(remoteMappingTerminologyUrl, HttpMethod.GET, authorizationHeader,
+					String.class);
+		}
+
+		if (response.getStatusCode().equals(HttpStatus.OK)) {
+			String result = response.getBody();
+			IParser fhirJsonParser = StaticValues.myFhirContext.newJsonParser();
+			Parameters parameters = fhirJsonParser.parseResource(Parameters.class, result);
+			if (parameters != null && !parameters.isEmpty()) {
+				return parameters;
+			}
+		}
+
+		return null;
+	}
+
+	// The header is built on the first remote request, so AUTH_TYPE is only read
+	// when MAPPING_TERMINOLOGY_URL is set.
+	private static class AuthorizationHeaderHolder {
+		static final HttpEntity<String> authorizationHeader = createAuthorizationHeader();
+	}
+
+	private static HttpEntity<String> createAuthorizationHeader() {
+		String authTypeEnv = System.getenv("AUTH_TYPE");
+		if (authTypeEnv != null && !authTypeEnv.isEmpty() && !"none".equalsIgnoreCase(authTypeEnv)) {
+			if (authTypeEnv.regionMatches(true, 0, "basic ", 0, 6)) {
+				String rawString = authTypeEnv.substring(6);
+				String base64encoded = Base64.getEncoder().encodeToString(rawString.getBytes());
+
+				HttpHeaders headers = new HttpHeaders();
+				headers.set("Authorization", "Basic " + base64encoded);
+				return new HttpEntity<String>(headers);
+			}
+
+			logger.warn("AUTH_TYPE is not \"basic <user:password>\". No Authorization header is sent.");
+		}
+
+		return null;
+	}
+
+	/**
+	 * $translate-batch operation. Translates many codings to the target system
+	 * in one request. The response has one translation parameter per coding, in
+	 * request order, with the source coding and the $translate result as parts.
+	 * TRANSLATE_BATCH_MAX_CODINGS (1000 by default) limits the codings of one
+	 * request.
+	 */
+	@Operation(name = "$translate-batch", idempotent = true)
+	public Parameters translateBatchOperation(
+			@OperationParam(name = "coding", min = 1, max = OperationParam.MAX_UNLIMITED) List<Coding> theCodings,
+			@OperationParam(name = "targetsystem", min = 1, max = 1) UriType theTargetSystem) {
+		if (theCodings.size() > TRANSLATE_BATCH_MAX_CODINGS) {
+			throw new UnprocessableEntityException("$translate-batch accepts at most " + TRANSLATE_BATCH_MAX_CODINGS
+					+ " codings. Split the request.");
+		}
+
+		Parameters retVal = new Parameters();
+
+		List<Parameters> translations = myMapper.translateConcepts(theCodings, theTargetSystem.getValueAsString());
+		for (int i = 0; i < theCodings.size(); i++) {
+			ParametersParameterComponent translationParameter = retVal.addParameter();
+			translationParameter.setName("translation");
+			translationParameter.addPart().setName("source").setValue(theCodings.get(i));
+
+			Parameters translation = translations.get(i);
+			if (translation.isEmpty()) {
+				translationParameter.addPart().setName("result").setValue(new BooleanType(false));
+			} else {
+				translationParameter.getPart().addAll(translation.getParameter());
+			}
+		}
+
+		return retVal;
+	}
 }
@@ -91,17 +91,6 @@ public class ConditionResourceProvider implements IResourceProvider {
 	public OmopCondition getMyMapper() {
 		return myMapper;
 	}
-
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
 	
 	/**
 	 * The "@Create" annotation indicates that this method implements
@@ -168,7 +157,7 @@ public class ConditionResourceProvider implements IResourceProvider {
 		}
 		
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -203,7 +192,7 @@ public class ConditionResourceProvider implements IResourceProvider {
 		}
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -279,11 +268,7 @@ public class ConditionResourceProvider implements IResourceProvider {
 			// _Include
 			List<String> includes = new ArrayList<String>();
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes, null);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes, null);
-			}
+			searchPage(myMapper, getType(), fromIndex, toIndex, retv, includes, null);
 
 			return retv;
 		}
@@ -78,17 +78,6 @@ public class DeviceResourceProvider implements IResourceProvider {
     	return myMapper;
     }
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type", which adds a 
 	 * new instance of a resource to the server.
@@ -128,7 +117,7 @@ public class DeviceResourceProvider implements IResourceProvider {
 		}
 		
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -167,7 +156,7 @@ public class DeviceResourceProvider implements IResourceProvider {
 		}
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -222,11 +211,7 @@ public class DeviceResourceProvider implements IResourceProvider {
 			// _Include
 			List<String> includes = new ArrayList<String>();
 
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(theFromIndex, theToIndex, retv, includes, null);
-			} else {
-				getMyMapper().searchWithParams(theFromIndex, theToIndex, paramList, retv, includes, null);
-			}
+			searchPage(getMyMapper(), getType(), theFromIndex, theToIndex, retv, includes, null);
 
 			return retv;
 		}
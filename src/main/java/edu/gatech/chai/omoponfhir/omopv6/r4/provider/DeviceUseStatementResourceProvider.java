@@ -87,18 +87,7 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 	public OmopDeviceUseStatement getMyMapper() {
     	return myMapper;
     }
-	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
 		
-		return totalSize.intValue();
-	}
-	
 	/***
 	 * 
 	 * @param theDeviceUseStatement
@@ -190,7 +179,7 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 		}
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -259,11 +248,7 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 				includes.add("DeviceUseStatement:device");
 			}
 
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(theFromIndex, theToIndex, retv, includes, null);
-			} else {
-				getMyMapper().searchWithParams(theFromIndex, theToIndex, paramList, retv, includes, null);
-			}
+			searchPage(getMyMapper(), getType(), theFromIndex, theToIndex, retv, includes, null);
 
 			return retv;
 		}
@@ -57,17 +57,6 @@ public class DiagnosticReportResourceProvider implements IResourceProvider {
         return myMapper;
     }
 
-    private Integer getTotalSize(List<ParameterWrapper> paramList) {
-        final Long totalSize;
-        if (paramList.size() == 0) {
-            totalSize = getMyMapper().getSize();
-        } else {
-            totalSize = getMyMapper().getSize(paramList);
-        }
-
-        return totalSize.intValue();
-    }
-
 
     /**
      * The "@Create" annotation indicates that this method implements "create=type", which adds a
@@ -125,7 +114,7 @@ public class DiagnosticReportResourceProvider implements IResourceProvider {
         String orderParams = getMyMapper().constructOrderParams(theSort);
 
         DiagnosticReportResourceProvider.MyBundleProvider myBundleProvider = new DiagnosticReportResourceProvider.MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-        myBundleProvider.setTotalSize(getTotalSize(paramList));
+        myBundleProvider.countTotalSize(getMyMapper(), getType());
         myBundleProvider.setPreferredPageSize(preferredPageSize);
         myBundleProvider.setOrderParams(orderParams);
         return myBundleProvider;
@@ -199,7 +188,7 @@ public class DiagnosticReportResourceProvider implements IResourceProvider {
         String orderParams = getMyMapper().constructOrderParams(theSort);
 
         DiagnosticReportResourceProvider.MyBundleProvider myBundleProvider = new DiagnosticReportResourceProvider.MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-        myBundleProvider.setTotalSize(getTotalSize(paramList));
+        myBundleProvider.countTotalSize(getMyMapper(), getType());
         myBundleProvider.setPreferredPageSize(preferredPageSize);
         myBundleProvider.setOrderParams(orderParams);
         return myBundleProvider;
@@ -337,11 +326,7 @@ public class DiagnosticReportResourceProvider implements IResourceProvider {
                 includes.add("DiagnosticReport:subject");
             }
 
-            if (paramList.size() == 0) {
-                getMyMapper().searchWithoutParams(fromIndex, toIndex, retv, includes, orderParams);
-            } else {
-                getMyMapper().searchWithParams(fromIndex, toIndex, paramList, retv, includes, orderParams);
-            }
+            searchPage(getMyMapper(), getType(), fromIndex, toIndex, retv, includes, orderParams);
 
             return retv;
         }
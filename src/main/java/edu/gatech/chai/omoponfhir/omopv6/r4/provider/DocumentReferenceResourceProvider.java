@@ -90,17 +90,6 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 	@Create()
 	public MethodOutcome createDocumentReference(@ResourceParam DocumentReference theDocumentReference) {
 		validateResource(theDocumentReference);
@@ -168,7 +157,7 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 		}
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -237,7 +226,7 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 		}
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;		
 	}
@@ -273,11 +262,7 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 				includes.add("DocumentReference:subject");
 			}
 
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(fromIndex, toIndex, retv, includes, null);
-			} else {
-				getMyMapper().searchWithParams(fromIndex, toIndex, paramList, retv, includes, null);
-			}
+			searchPage(getMyMapper(), getType(), fromIndex, toIndex, retv, includes, null);
 
 			return retv;
 		}
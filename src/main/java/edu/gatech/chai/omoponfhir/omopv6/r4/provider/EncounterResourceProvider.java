@@ -81,17 +81,6 @@ public class EncounterResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type",
 	 * which adds a new instance of a resource to the server.
@@ -175,7 +164,7 @@ public class EncounterResourceProvider implements IResourceProvider {
 		}
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -296,11 +285,7 @@ public class EncounterResourceProvider implements IResourceProvider {
 				includes.add("Encounter:subject");
 			}
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes, null);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes, null);
-			}
+			searchPage(myMapper, getType(), fromIndex, toIndex, retv, includes, null);
 
 			return retv;
 		}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.provider;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Table;
+import javax.sql.DataSource;
+
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.ContextLoaderListener;
+import org.springframework.web.context.WebApplicationContext;
+
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
+import edu.gatech.chai.omopv6.model.entity.FPerson;
+
+/**
+ * Group level bulk data export. A Group is an OMOP cohort. The Group id is the
+ * cohort_definition_id, and the members are the subject_ids of the cohort
+ * table. The cohort table is read from the schema of the person data.
+ */
+public class GroupResourceProvider implements IResourceProvider {
+	private static final Logger logger = LoggerFactory.getLogger(GroupResourceProvider.class);
+
+	private WebApplicationContext myAppCtx;
+	private DataSource myDataSource;
+	private String cohortQuery;
+
+	public GroupResourceProvider() {
+		myAppCtx = ContextLoaderListener.getCurrentWebApplicationContext();
+		myDataSource = myAppCtx.getBeanProvider(DataSource.class).getIfUnique();
+
+		Table table = FPerson.class.getAnnotation(Table.class);
+		String cohortTable = table == null || table.schema().isEmpty() ? "cohort" : table.schema() + ".cohort";
+		cohortQuery = "SELECT DISTINCT subject_id FROM " + cohortTable + " WHERE cohort_definition_id = ?";
+	}
+
+	@Override
+	public Class<Group> getResourceType() {
+		return Group.class;
+	}
+
+	public static String getType() {
+		return "Group";
+	}
+
+	/**
+	 * Exports the Patient compartment of the members of the cohort.
+	 */
+	@Operation(name = "$export", idempotent = true)
+	public Parameters groupExportOperation(RequestDetails theRequestDetails, @IdParam IdType theGroupId,
+			@OperationParam(name = "_type") StringType theType,
+			@OperationParam(name = "_outputFormat") StringType theOutputFormat) {
+		if (theGroupId == null || !theGroupId.isIdPartValidLong()) {
+			throw new ResourceNotFoundException(theGroupId);
+		}
+
+		List<Long> personIds = getCohortPersonIds(theGroupId.getIdPartAsLong());
+		if (personIds.isEmpty()) {
+			throw new ResourceNotFoundException(theGroupId);
+		}
+
+		return ServerOperations.startExport(theRequestDetails, theType, theOutputFormat, true, personIds);
+	}
+
+	private List<Long> getCohortPersonIds(Long cohortDefinitionId) {
+		if (myDataSource == null) {
+			ThrowFHIRExceptions.internalErrorException("No OMOP data source is available for Group export");
+		}
+
+		List<Long> personIds = new ArrayList<Long>();
+		try (Connection conn = myDataSource.getConnection();
+				PreparedStatement pstmt = conn.prepareStatement(cohortQuery)) {
+			pstmt.setLong(1, cohortDefinitionId);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					personIds.add(rs.getLong(1));
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to read cohort " + cohortDefinitionId + ": " + e.getMessage());
+			ThrowFHIRExceptions.internalErrorException("Failed to read the members of Group " + cohortDefinitionId);
+		}
+
+		return personIds;
+	}
+}
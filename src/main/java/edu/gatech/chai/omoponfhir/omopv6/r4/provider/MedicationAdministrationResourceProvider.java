@@ -54,17 +54,6 @@ public class MedicationAdministrationResourceProvider implements IResourceProvid
 
     }
 
-    private Integer getTotalSize(List<ParameterWrapper> paramList) {
-        final Long totalSize;
-        if (paramList.size() == 0) {
-            totalSize = getMyMapper().getSize();
-        } else {
-            totalSize = getMyMapper().getSize(paramList);
-        }
-
-        return totalSize.intValue();
-    }
-
     /**
      * The "@Create" annotation indicates that this method implements "create=type",
      * which adds a new instance of a resource to the server.
@@ -138,7 +127,7 @@ public class MedicationAdministrationResourceProvider implements IResourceProvid
         }
 
         MedicationAdministrationResourceProvider.MyBundleProvider myBundleProvider = new MedicationAdministrationResourceProvider.MyBundleProvider(paramList);
-        myBundleProvider.setTotalSize(getTotalSize(paramList));
+        myBundleProvider.countTotalSize(getMyMapper(), getType());
         myBundleProvider.setPreferredPageSize(preferredPageSize);
         return myBundleProvider;
     }
@@ -223,7 +212,7 @@ public class MedicationAdministrationResourceProvider implements IResourceProvid
         }
 
         MedicationAdministrationResourceProvider.MyBundleProvider myBundleProvider = new MedicationAdministrationResourceProvider.MyBundleProvider(paramList);
-        myBundleProvider.setTotalSize(getTotalSize(paramList));
+        myBundleProvider.countTotalSize(getMyMapper(), getType());
         myBundleProvider.setPreferredPageSize(preferredPageSize);
         return myBundleProvider;
 
@@ -275,11 +264,7 @@ public class MedicationAdministrationResourceProvider implements IResourceProvid
             // _Include
             List<String> includes = new ArrayList<String>();
 
-            if (paramList.size() == 0) {
-                myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes, null);
-            } else {
-                myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes, null);
-            }
+            searchPage(myMapper, getType(), fromIndex, toIndex, retv, includes, null);
 
             return retv;
         }
@@ -55,17 +55,6 @@ public class MedicationDispenseResourceProvider implements IResourceProvider {
 
     }
 
-    private Integer getTotalSize(List<ParameterWrapper> paramList) {
-        final Long totalSize;
-        if (paramList.size() == 0) {
-            totalSize = getMyMapper().getSize();
-        } else {
-            totalSize = getMyMapper().getSize(paramList);
-        }
-
-        return totalSize.intValue();
-    }
-
     /**
      * The "@Create" annotation indicates that this method implements "create=type",
      * which adds a new instance of a resource to the server.
@@ -139,7 +128,7 @@ public class MedicationDispenseResourceProvider implements IResourceProvider {
         }
 
         MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-        myBundleProvider.setTotalSize(getTotalSize(paramList));
+        myBundleProvider.countTotalSize(getMyMapper(), getType());
         myBundleProvider.setPreferredPageSize(preferredPageSize);
         return myBundleProvider;
     }
@@ -224,7 +213,7 @@ public class MedicationDispenseResourceProvider implements IResourceProvider {
         }
 
         MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-        myBundleProvider.setTotalSize(getTotalSize(paramList));
+        myBundleProvider.countTotalSize(getMyMapper(), getType());
         myBundleProvider.setPreferredPageSize(preferredPageSize);
         return myBundleProvider;
 
@@ -276,11 +265,7 @@ public class MedicationDispenseResourceProvider implements IResourceProvider {
             // _Include
             List<String> includes = new ArrayList<String>();
 
-            if (paramList.size() == 0) {
-                myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes, null);
-            } else {
-                myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes, null);
-            }
+            searchPage(myMapper, getType(), fromIndex, toIndex, retv, includes, null);
 
             return retv;
         }
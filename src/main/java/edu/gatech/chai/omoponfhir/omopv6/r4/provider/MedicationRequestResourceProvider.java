@@ -90,17 +90,6 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
     	return myMapper;
     }
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 	@Override
 	public Class<? extends IBaseResource> getResourceType() {
 		return MedicationRequest.class;
@@ -182,7 +171,7 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 		}
 				
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -285,7 +274,7 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 		}
 		
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -330,11 +319,7 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 				includes.add("MedicationRequest:medication");
 			}
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes, null);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes, null);
-			}
+			searchPage(myMapper, getType(), fromIndex, toIndex, retv, includes, null);
 
 			return retv;
 		}		
@@ -88,17 +88,6 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 
 	}
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type",
 	 * which adds a new instance of a resource to the server.
@@ -172,7 +161,7 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 		}
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -262,7 +251,7 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 		}
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 
@@ -314,11 +303,7 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 			// _Include
 			List<String> includes = new ArrayList<String>();
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes, null);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes, null);
-			}
+			searchPage(myMapper, getType(), fromIndex, toIndex, retv, includes, null);
 
 			return retv;
 		}
@@ -93,17 +93,6 @@ public class ObservationResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type", which adds a 
@@ -161,7 +150,7 @@ public class ObservationResourceProvider implements IResourceProvider {
 		String orderParams = getMyMapper().constructOrderParams(theSort);
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		myBundleProvider.setOrderParams(orderParams);
 		return myBundleProvider;
@@ -235,7 +224,7 @@ public class ObservationResourceProvider implements IResourceProvider {
 		String orderParams = getMyMapper().constructOrderParams(theSort);
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		myBundleProvider.setOrderParams(orderParams);
 		return myBundleProvider;
@@ -373,11 +362,7 @@ public class ObservationResourceProvider implements IResourceProvider {
 				includes.add("Observation:subject");
 			}
 
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(fromIndex, toIndex, retv, includes, orderParams);
-			} else {
-				getMyMapper().searchWithParams(fromIndex, toIndex, paramList, retv, includes, orderParams);
-			}
+			searchPage(getMyMapper(), getType(), fromIndex, toIndex, retv, includes, orderParams);
 
 			return retv;
 		}
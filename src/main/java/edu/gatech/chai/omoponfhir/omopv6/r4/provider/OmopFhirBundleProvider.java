@@ -15,28 +15,120 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv6.r4.provider;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.BaseOmopResource;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.IdMapping;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExpiringCache;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ResourceCounts;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
 import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
 
 public abstract class OmopFhirBundleProvider implements IBundleProvider {
+	private static final Logger logger = LoggerFactory.getLogger(OmopFhirBundleProvider.class);
+
+	/**
+	 * How the total of a search bundle is counted (COUNT_STRATEGY).
+	 * <ul>
+	 * <li>exact: COUNT before the first page is returned. This is the default.
+	 * <li>estimated: searches without parameters use the resource count that is
+	 * refreshed in the background (see {@link ResourceCounts}). Other searches
+	 * are deferred.
+	 * <li>deferred: the first page is returned without a total. The COUNT runs
+	 * in the background and fills the total in when it is done.
+	 * </ul>
+	 */
+	public enum CountStrategy {
+		EXACT, ESTIMATED, DEFERRED;
+
+		static CountStrategy fromEnv() {
+			String strategy = System.getenv("COUNT_STRATEGY");
+			if (strategy != null && !strategy.trim().isEmpty()) {
+				try {
+					return CountStrategy.valueOf(strategy.trim().toUpperCase());
+				} catch (IllegalArgumentException e) {
+					logger.error("Unknown COUNT_STRATEGY " + strategy + ". Using exact.");
+				}
+			}
+
+			return EXACT;
+		}
+	}
+
+	private static final CountStrategy COUNT_STRATEGY = CountStrategy.fromEnv();
+
+	public static CountStrategy getCountStrategy() {
+		return COUNT_STRATEGY;
+	}
+
+	// Counts of recent searches, by resource type and normalized parameters.
+	private static final ExpiringCache<String, Long> countCache = new ExpiringCache<String, Long>(
+			(int) StaticValues.getEnvLong("COUNT_CACHE_SIZE", 1000L),
+			StaticValues.getEnvLong("COUNT_CACHE_TTL_SECONDS", 60L) * 1000L, 0L);
+
+	// Counts that are running in the background. The same search is counted once.
+	private static final Set<String> pendingCounts = ConcurrentHashMap.newKeySet();
+
+	private static final int COUNT_THREADS = (int) StaticValues.getEnvLong("COUNT_THREADS", 2L);
+	private static final ExecutorService countExecutor = new ThreadPoolExecutor(COUNT_THREADS, COUNT_THREADS, 60L,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(100), runnable -> {
+				Thread thread = new Thread(runnable, "omop-count");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	// PAGING_MODE=keyset continues a search after the last id served by the
+	// previous page instead of using OFFSET. Default is offset.
+	private static final boolean KEYSET_PAGING = "keyset".equalsIgnoreCase(System.getenv("PAGING_MODE"));
+
+	// Keyset searches that are still open, by their uuid (cursor).
+	private static final ExpiringCache<String, OmopFhirBundleProvider> openSearches = new ExpiringCache<String, OmopFhirBundleProvider>(
+			(int) StaticValues.getEnvLong("PAGING_MAX_OPEN_SEARCHES", 1000L),
+			StaticValues.getEnvLong("PAGING_SEARCH_TTL_SECONDS", 3600L) * 1000L, 0L);
+
 	InstantType searchTime;
 	List<ParameterWrapper> paramList;
 	Map<String, String> parameterSet;
 	Integer preferredPageSize;
-	Integer totalSize;
+	volatile Integer totalSize;
 	String orderParams = null;
 	String searchSql;
 
+	private String uuid = null;
+	private String countKey = null;
+
+	// Start index of a page -> OMOP id of the last resource served before it.
+	private final TreeMap<Integer, Long> seekIds = new TreeMap<Integer, Long>();
+
 	public OmopFhirBundleProvider (List<ParameterWrapper> paramList) {
 		this.searchTime = InstantType.withCurrentTime();
 		this.paramList = paramList;
+
+		if (KEYSET_PAGING) {
+			this.uuid = UUID.randomUUID().toString();
+			openSearches.put(this.uuid, this);
+		}
 	}
 	
 	public OmopFhirBundleProvider (Map<String, String> parameterSet, String searchSql) {
@@ -45,6 +137,16 @@ public abstract class OmopFhirBundleProvider implements IBundleProvider {
 		this.parameterSet = parameterSet;
 	}
 
+	/**
+	 * Returns the open keyset search for the cursor, or null if the search is
+	 * unknown or expired.
+	 */
+	public static OmopFhirBundleProvider getOpenSearch(String uuid) {
+		if (uuid == null) return null;
+
+		return openSearches.getIfPresent(uuid);
+	}
+
 	public void setPreferredPageSize(Integer preferredPageSize) {
 		this.preferredPageSize = preferredPageSize;
 	}
@@ -58,10 +160,14 @@ public abstract class OmopFhirBundleProvider implements IBundleProvider {
 		return searchTime;
 	}
 
+	/**
+	 * In keyset paging mode, this is the cursor of the search. Paging links
+	 * carry it, and {@link OmopPagingProvider} resolves it back to this provider
+	 * so that the next page can seek from the last id served.
+	 */
 	@Override
 	public String getUuid() {
-		// TODO Auto-generated method stub
-		return null;
+		return uuid;
 	}
 
 	@Override
@@ -71,9 +177,103 @@ public abstract class OmopFhirBundleProvider implements IBundleProvider {
 
 	@Override
 	public Integer size() {
+		if (this.totalSize == null && this.countKey != null) {
+			// A deferred count may have finished for this or an identical search.
+			Long count = countCache.getIfPresent(this.countKey);
+			if (count != null) {
+				this.totalSize = count.intValue();
+			}
+		}
+
 		return this.totalSize;
 	}
 
+	/**
+	 * Sets the total of this search according to COUNT_STRATEGY. Counts are
+	 * cached for COUNT_CACHE_TTL_SECONDS, so repeated identical searches are not
+	 * counted again.
+	 */
+	public void countTotalSize(final BaseOmopResource<?, ?, ?> mapper, final String resourceType) {
+		countKey = resourceType + "?" + normalizeParams(paramList);
+
+		Long count = countCache.getIfPresent(countKey);
+		if (count != null) {
+			setTotalSize(count.intValue());
+			return;
+		}
+
+		if (COUNT_STRATEGY == CountStrategy.EXACT) {
+			count = count(mapper, paramList);
+			countCache.put(countKey, count);
+			setTotalSize(count.intValue());
+		} else if (COUNT_STRATEGY == CountStrategy.ESTIMATED && paramList.size() == 0) {
+			count = ResourceCounts.getFresh(resourceType);
+			if (count == null) {
+				// Not counted yet. getSize() records it for the next search.
+				count = count(mapper, paramList);
+			}
+			setTotalSize(count.intValue());
+		} else {
+			setTotalSize(null);
+			countInBackground(mapper, countKey, paramList);
+		}
+	}
+
+	private static Long count(BaseOmopResource<?, ?, ?> mapper, List<ParameterWrapper> paramList) {
+		if (paramList.size() == 0) {
+			return mapper.getSize();
+		}
+
+		// Some mappers add their filter parameters to the list.
+		return mapper.getSize(new ArrayList<ParameterWrapper>(paramList));
+	}
+
+	private static void countInBackground(final BaseOmopResource<?, ?, ?> mapper, final String key,
+			final List<ParameterWrapper> paramList) {
+		if (!pendingCounts.add(key)) {
+			return;
+		}
+
+		try {
+			countExecutor.execute(() -> {
+				try {
+					countCache.put(key, count(mapper, paramList));
+				} catch (Exception e) {
+					logger.error("Failed to count " + key + ": " + e.getMessage());
+				} finally {
+					pendingCounts.remove(key);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Too many counts are queued. The bundle goes without a total.
+			pendingCounts.remove(key);
+		}
+	}
+
+	/**
+	 * Builds a cache key for the parameters. And'ed parameters are sorted, as
+	 * their order does not change the result.
+	 */
+	static String normalizeParams(List<ParameterWrapper> params) {
+		List<String> keys = new ArrayList<String>();
+		boolean allAnd = true;
+		for (ParameterWrapper param : params) {
+			String upperRelationship = param.getUpperRelationship();
+			if (upperRelationship != null && !"and".equalsIgnoreCase(upperRelationship)) {
+				allAnd = false;
+			}
+
+			keys.add(param.getParameterType() + "|" + param.getParameters() + "|" + param.getOperators() + "|"
+					+ param.getValues() + "|" + param.getRelationship() + "|" + upperRelationship);
+		}
+
+		if (allAnd) {
+			Collections.sort(keys);
+		}
+
+		return String.join("&", keys);
+	}
+
 	public String getOrderParams() {
 		return this.orderParams;
 	}
@@ -81,5 +281,84 @@ public abstract class OmopFhirBundleProvider implements IBundleProvider {
 	public void setOrderParams(String orderParams) {
 		this.orderParams = orderParams;
 	}
-	
+
+	/**
+	 * Runs the search for a page of resources. In keyset paging mode, a page
+	 * that follows an already served page is read with id > (last id served)
+	 * instead of an offset. Keyset is only used when the search is ordered by
+	 * id. Other sort orders are paged with offsets.
+	 */
+	protected void searchPage(BaseOmopResource<?, ?, ?> mapper, String resourceType, int fromIndex, int toIndex,
+			List<IBaseResource> retv, List<String> includes, String sort) {
+		// Mappers may add their own filters. Do not let them modify our list.
+		List<ParameterWrapper> params = new ArrayList<ParameterWrapper>(paramList);
+		int from = fromIndex;
+		int to = toIndex;
+
+		boolean keyset = uuid != null && isIdOrder(sort);
+		boolean descending = false;
+		if (keyset) {
+			if (sort == null) {
+				sort = "id ASC";
+			}
+			descending = sort.trim().toUpperCase().endsWith("DESC");
+
+			Map.Entry<Integer, Long> seek;
+			synchronized (seekIds) {
+				seek = seekIds.floorEntry(fromIndex);
+			}
+			if (seek != null) {
+				params.add(BaseOmopResource.constructSeekParam(seek.getValue(), descending));
+				from = fromIndex - seek.getKey();
+				to = toIndex - seek.getKey();
+			}
+		}
+
+		int start = retv.size();
+		if (params.size() == 0) {
+			mapper.searchWithoutParams(from, to, retv, includes, sort);
+		} else {
+			mapper.searchWithParams(from, to, params, retv, includes, sort);
+		}
+
+		if (keyset) {
+			rememberLastId(resourceType, toIndex, retv.subList(start, retv.size()), descending);
+		}
+	}
+
+	private static boolean isIdOrder(String sort) {
+		if (sort == null) return true;
+
+		String order = sort.trim().toUpperCase();
+		return "ID".equals(order) || "ID ASC".equals(order) || "ID DESC".equals(order);
+	}
+
+	/**
+	 * Records the last id of the page as the seek position of the next page.
+	 * Nothing is recorded if the ids are not in order, e.g. when a mapper reads
+	 * several tables for one page.
+	 */
+	private void rememberLastId(String resourceType, int nextIndex, List<IBaseResource> resources,
+			boolean descending) {
+		Long lastId = null;
+		for (IBaseResource resource : resources) {
+			// Skip included resources.
+			if (!(resource instanceof Resource) || !resourceType.equals(((Resource) resource).fhirType()))
+				continue;
+
+			if (!resource.getIdElement().isIdPartValidLong()) return;
+
+			Long fhirId = resource.getIdElement().getIdPartAsLong();
+			Long omopId = IdMapping.getOMOPfromFHIR(fhirId, resourceType);
+			if (lastId != null && (descending ? omopId >= lastId : omopId <= lastId)) return;
+
+			lastId = omopId;
+		}
+
+		if (lastId != null) {
+			synchronized (seekIds) {
+				seekIds.put(nextIndex, lastId);
+			}
+		}
+	}
 }
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.provider;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+
+/**
+ * Paging provider that resolves the cursors of keyset searches
+ * ({@link OmopFhirBundleProvider#getUuid()}). Other searches are kept in
+ * memory as in {@link FifoMemoryPagingProvider}. Register this with the
+ * RestfulServer when PAGING_MODE=keyset is used.
+ */
+public class OmopPagingProvider extends FifoMemoryPagingProvider {
+
+	public OmopPagingProvider(int theSize) {
+		super(theSize);
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theId) {
+		OmopFhirBundleProvider openSearch = OmopFhirBundleProvider.getOpenSearch(theId);
+		if (openSearch != null) {
+			return openSearch;
+		}
+
+		return super.retrieveResultList(theRequestDetails, theId);
+	}
+
+	@Override
+	public String storeResultList(RequestDetails theRequestDetails, IBundleProvider theList) {
+		// Keyset searches are already stored by their cursor.
+		if (theList.getUuid() != null && OmopFhirBundleProvider.getOpenSearch(theList.getUuid()) != null) {
+			return theList.getUuid();
+		}
+
+		return super.storeResultList(theRequestDetails, theList);
+	}
+}
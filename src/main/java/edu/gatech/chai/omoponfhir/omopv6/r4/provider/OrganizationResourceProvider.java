@@ -89,17 +89,6 @@ public class OrganizationResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 
 	/**
 	 * The "@Create" annotation indicates that this method implements
@@ -174,7 +163,7 @@ public class OrganizationResourceProvider implements IResourceProvider {
 		}
 		
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -252,11 +241,7 @@ public class OrganizationResourceProvider implements IResourceProvider {
 				includes.add("Organization:partof");
 			}
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes, null);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes, null);
-			}
+			searchPage(myMapper, getType(), fromIndex, toIndex, retv, includes, null);
 
 			return retv;
 		}
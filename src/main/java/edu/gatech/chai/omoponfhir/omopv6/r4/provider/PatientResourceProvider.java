@@ -26,6 +26,9 @@ import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 import org.hl7.fhir.r4.model.Patient;
@@ -59,6 +62,7 @@ import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.IdMapping;
 import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopPatient;
 import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
@@ -111,17 +115,6 @@ public class PatientResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type",
 	 * which adds a new instance of a resource to the server.
@@ -286,7 +279,7 @@ public class PatientResourceProvider implements IResourceProvider {
 		System.out.println("MYSORT!!! "+orderParams);
 
 		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		myBundleProvider.countTotalSize(getMyMapper(), getType());
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		myBundleProvider.setOrderParams(orderParams);
 		
@@ -341,6 +334,29 @@ public class PatientResourceProvider implements IResourceProvider {
 		return new MethodOutcome();
 	}
 
+	/**
+	 * Patient level bulk data export. Exports the Patient compartment of all
+	 * patients, or of the patients given in the patient parameter.
+	 */
+	@Operation(name = "$export", idempotent = true)
+	public Parameters patientExportOperation(RequestDetails theRequestDetails,
+			@OperationParam(name = "_type") StringType theType,
+			@OperationParam(name = "_outputFormat") StringType theOutputFormat,
+			@OperationParam(name = "patient", max = OperationParam.MAX_UNLIMITED) List<Reference> thePatients) {
+		List<Long> personIds = null;
+		if (thePatients != null && !thePatients.isEmpty()) {
+			personIds = new ArrayList<Long>();
+			for (Reference patient : thePatients) {
+				if (!patient.getReferenceElement().isIdPartValidLong()) {
+					ThrowFHIRExceptions.unprocessableEntityException("Invalid patient reference: " + patient.getReference());
+				}
+				personIds.add(IdMapping.getOMOPfromFHIR(patient.getReferenceElement().getIdPartAsLong(), getType()));
+			}
+		}
+
+		return ServerOperations.startExport(theRequestDetails, theType, theOutputFormat, true, personIds);
+	}
+
 	/**
 	 * $everything operation for a single patient.
 	 */
@@ -499,11 +515,7 @@ public class PatientResourceProvider implements IResourceProvider {
 			}
 
 			System.out.println("SORT!!!!!! "+orderParams);
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(fromIndex, toIndex, retv, includes, orderParams);
-			} else {
-				getMyMapper().searchWithParams(fromIndex, toIndex, paramList, retv, includes, orderParams);
-			}
+			searchPage(getMyMapper(), getType(), fromIndex, toIndex, retv, includes, orderParams);
 
 			return retv;
 		}
@@ -15,101 +15,330 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv6.r4.provider;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Coding;
-import org.hl7.fhir.r4.model.Enumerations.MessageEvent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.OperationOutcome;
-import org.hl7.fhir.r4.model.MessageHeader.MessageHeaderResponseComponent;
-import org.hl7.fhir.r4.model.MessageHeader.ResponseType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
-import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
-import org.hl7.fhir.r4.model.Bundle.BundleType;
-import org.hl7.fhir.r4.model.Resource;
-import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.UriType;
-import org.hl7.fhir.exceptions.FHIRException;
 
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import edu.gatech.chai.omoponfhir.local.model.MessageQueueEntry;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopBulkExport;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopBulkExport.ExportJob;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopBulkImport;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopBulkImport.ImportJob;
+import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopMessageProcessor;
 import edu.gatech.chai.omoponfhir.omopv6.r4.mapping.OmopServerOperations;
-import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.StaticValues;
 import edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ThrowFHIRExceptions;
 
 public class ServerOperations {
+	// Base URL under which BULK_EXPORT_DIR is published. Without it, export
+	// files are served by $export-file.
+	private static final String EXPORT_BASE_URL = trimSlash(System.getenv("BULK_EXPORT_BASE_URL"));
+
 	private OmopServerOperations myMapper;
 	
 	public ServerOperations() {
 		myMapper = new OmopServerOperations();
+		OmopMessageProcessor.getInstance().start(myMapper);
 	}
 	
 	@Operation(name="$process-message")
-	public Bundle processMessageOperation(
+	public Bundle processMessageOperation(RequestDetails theRequestDetails,
 			@OperationParam(name="content") Bundle theContent,
 			@OperationParam(name="async") BooleanType theAsync,
 			@OperationParam(name="response-url") UriType theUri			
 			) {
-		Bundle retVal = new Bundle();
-		MessageHeader messageHeader = null;
-//		List<BundleEntryComponent> resources = new ArrayList<BundleEntryComponent>();
-		List<BundleEntryComponent> entries = theContent.getEntry();
-		
-		if (theContent.getType() == BundleType.MESSAGE) {
-			// Evaluate the first entry, which must be MessageHeader
-//			BundleEntryComponent entry1 = theContent.getEntryFirstRep();
-//			Resource resource = entry1.getResource();
-			if (entries != null && entries.size() > 0 && 
-					entries.get(0).getResource() != null &&
-					entries.get(0).getResource().getResourceType() == ResourceType.MessageHeader) {
-				messageHeader = (MessageHeader) entries.get(0).getResource();
-				// We handle observation-type.
-				// TODO: Add other types later.
-				Coding event = messageHeader.getEventCoding();
-//				Coding obsprovided = new Coding("http://hl7.org/fhir/message-events", "observation-provide", "Provide a simple observation or update a previously provided simple observation.");
-				Coding obsprovided = new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "laboratory", "Laboratory");
-				if (CodeableConceptUtil.compareCodings(event, obsprovided) != 0) {
+		String responseUrl = theUri == null || theUri.isEmpty() ? null : theUri.getValue();
+		if (responseUrl != null && !OmopMessageProcessor.getInstance().isAllowedResponseUrl(responseUrl)) {
+			ThrowFHIRExceptions.unprocessableEntityException("response-url is not allowed: " + responseUrl);
+		}
+
+		MessageHeader messageHeader = myMapper.validateMessage(theContent);
+
+		if (theAsync == null || !theAsync.booleanValue()) {
+			return myMapper.processMessage(theContent, messageHeader);
+		}
+
+		Long queueId = OmopMessageProcessor.getInstance().submit(theContent, responseUrl);
+		if (queueId == null) {
+			throw ThrowFHIRExceptions.tooManyRequestsException("Message queue is full. Try again later.", 30L);
+		}
+
+		String statusUrl = theRequestDetails.getFhirServerBase() + "/$process-message-status?_id=" + queueId;
+		throw ThrowFHIRExceptions.acceptedException("Message " + queueId + " is queued", statusUrl);
+	}
+
+	/**
+	 * Returns the response of an async $process-message. While the message is
+	 * still waiting or being processed, 202 is returned again.
+	 */
+	@Operation(name = "$process-message-status", idempotent = true)
+	public Bundle processMessageStatusOperation(RequestDetails theRequestDetails,
+			@OperationParam(name = "_id") StringType theId) {
+		MessageQueueEntry entry = null;
+		if (theId != null && !theId.isEmpty()) {
+			try {
+				entry = OmopMessageProcessor.getInstance().getEntry(Long.valueOf(theId.getValue()));
+			} catch (NumberFormatException e) {
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			throw new ResourceNotFoundException("Message is not found");
+		}
+
+		if (MessageQueueEntry.DONE.equals(entry.getStatus())) {
+			return StaticValues.myFhirContext.newJsonParser().parseResource(Bundle.class, entry.getResponse());
+		} else if (MessageQueueEntry.FAILED.equals(entry.getStatus())) {
+			throw ThrowFHIRExceptions.unprocessableEntityException(entry.getError());
+		}
+
+		String statusUrl = theRequestDetails.getFhirServerBase() + "/$process-message-status?_id=" + entry.getId();
+		throw ThrowFHIRExceptions.acceptedException("Message " + entry.getId() + " is " + entry.getStatus(),
+				statusUrl);
+	}
+
+	/**
+	 * System level bulk data export. The export runs in the background. The
+	 * kick-off returns 202 with Content-Location pointing to
+	 * $export-poll-status.
+	 */
+	@Operation(name = "$export", idempotent = true)
+	public Parameters exportOperation(RequestDetails theRequestDetails,
+			@OperationParam(name = "_type") StringType theType,
+			@OperationParam(name = "_outputFormat") StringType theOutputFormat) {
+		return startExport(theRequestDetails, theType, theOutputFormat, false, null);
+	}
+
+	/**
+	 * Returns 202 while the export is running. Once it is complete, returns the
+	 * output files with their URLs. The files are served by $export-file, or
+	 * from BULK_EXPORT_BASE_URL if the export directory is published there.
+	 */
+	@Operation(name = "$export-poll-status", idempotent = true)
+	public Parameters exportPollStatusOperation(RequestDetails theRequestDetails,
+			@OperationParam(name = "_jobId") StringType theJobId) {
+		ExportJob job = null;
+		if (theJobId != null) {
+			job = OmopBulkExport.getInstance().getJob(theJobId.getValue());
+		}
+		if (job == null) {
+			throw new ResourceNotFoundException("Export job is not found");
+		}
+
+		switch (job.getStatus()) {
+		case ACCEPTED:
+		case IN_PROGRESS:
+			throw ThrowFHIRExceptions.acceptedException("Export job " + job.getId() + " is in progress",
+					theRequestDetails.getFhirServerBase() + "/$export-poll-status?_jobId=" + job.getId());
+		case FAILED:
+			throw ThrowFHIRExceptions.internalErrorException("Export job " + job.getId() + " failed: "
+					+ job.getMessage());
+		case CANCELLED:
+			throw new ResourceNotFoundException("Export job is cancelled");
+		default:
+			break;
+		}
+
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("transactionTime").setValue(new InstantType(job.getTransactionTime()));
+		retVal.addParameter().setName("request").setValue(new UriType(job.getRequest()));
+		retVal.addParameter().setName("requiresAccessToken").setValue(new BooleanType(false));
+
+		for (Map.Entry<String, Long> output : job.getOutputCounts().entrySet()) {
+			ParametersParameterComponent outputParam = retVal.addParameter().setName("output");
+			outputParam.addPart().setName("type").setValue(new CodeType(output.getKey()));
+			outputParam.addPart().setName("url")
+					.setValue(new UriType(getExportFileUrl(theRequestDetails, job, output.getKey())));
+			outputParam.addPart().setName("count").setValue(new IntegerType(output.getValue().intValue()));
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Streams an NDJSON output file of a complete export job.
+	 */
+	@Operation(name = "$export-file", idempotent = true, manualResponse = true)
+	public void exportFileOperation(HttpServletResponse theServletResponse,
+			@OperationParam(name = "_jobId") StringType theJobId, @OperationParam(name = "_type") StringType theType)
+			throws IOException {
+		ExportJob job = null;
+		if (theJobId != null) {
+			job = OmopBulkExport.getInstance().getJob(theJobId.getValue());
+		}
+		if (job == null || job.getStatus() != OmopBulkExport.Status.COMPLETE || theType == null
+				|| !job.getOutputCounts().containsKey(theType.getValue())) {
+			throw new ResourceNotFoundException("Export file is not found");
+		}
+
+		File file = job.getOutputFile(theType.getValue());
+		if (!file.isFile()) {
+			throw new ResourceNotFoundException("Export file is not found");
+		}
+
+		theServletResponse.setStatus(HttpServletResponse.SC_OK);
+		theServletResponse.setContentType("application/fhir+ndjson");
+		theServletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		theServletResponse.setHeader("Content-Length", String.valueOf(file.length()));
+		try (OutputStream out = theServletResponse.getOutputStream()) {
+			Files.copy(file.toPath(), out);
+		}
+	}
+
+	private static String getExportFileUrl(RequestDetails theRequestDetails, ExportJob job, String type) {
+		if (EXPORT_BASE_URL != null) {
+			// Same layout as BULK_EXPORT_DIR.
+			return EXPORT_BASE_URL + "/" + job.getId() + "/" + type + ".ndjson";
+		}
+
+		return theRequestDetails.getFhirServerBase() + "/$export-file?_jobId=" + job.getId() + "&_type=" + type;
+	}
+
+	private static String trimSlash(String url) {
+		if (url == null || url.trim().isEmpty()) {
+			return null;
+		}
+
+		url = url.trim();
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	/**
+	 * Cancels an export job and deletes its files.
+	 */
+	@Operation(name = "$export-cancel")
+	public OperationOutcome exportCancelOperation(@OperationParam(name = "_jobId") StringType theJobId) {
+		if (theJobId == null || !OmopBulkExport.getInstance().cancel(theJobId.getValue())) {
+			throw new ResourceNotFoundException("Export job is not found");
+		}
+
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverity.INFORMATION).setDiagnostics("Export job is cancelled");
+		return outcome;
+	}
+
+	/**
+	 * Starts a bulk export job. Always ends with 202 Accepted, with
+	 * Content-Location pointing to $export-poll-status.
+	 * 
+	 * @param patientCompartment export the Patient compartment types only
+	 * @param personIds          OMOP person ids to export. Null exports all.
+	 */
+	public static Parameters startExport(RequestDetails theRequestDetails, StringType theType,
+			StringType theOutputFormat, boolean patientCompartment, Collection<Long> personIds) {
+		if (theOutputFormat != null && !theOutputFormat.isEmpty()) {
+			String format = theOutputFormat.getValue();
+			if (!"application/fhir+ndjson".equals(format) && !"application/ndjson".equals(format)
+					&& !"ndjson".equals(format)) {
+				ThrowFHIRExceptions.unprocessableEntityException("Only NDJSON output format is supported");
+			}
+		}
+
+		List<String> types;
+		if (theType == null || theType.isEmpty()) {
+			types = OmopBulkExport.getExportTypes(patientCompartment);
+		} else {
+			List<String> exportTypes = OmopBulkExport.getExportTypes(patientCompartment);
+			types = new ArrayList<String>();
+			for (String type : theType.getValue().split(",")) {
+				type = type.trim();
+				if (type.isEmpty()) continue;
+				if (!exportTypes.contains(type)) {
 					ThrowFHIRExceptions.unprocessableEntityException(
-							"We currently support only observation-provided Message event");
+							"Resource type " + type + " cannot be exported" + (patientCompartment
+									? ". Only the Patient compartment types can be exported for a patient" : ""));
 				}
+				types.add(type);
 			}
-		} else {
-			ThrowFHIRExceptions.unprocessableEntityException(
-					"The bundle must be a MESSAGE type");
 		}
-		MessageHeaderResponseComponent messageHeaderResponse = new MessageHeaderResponseComponent();
-		messageHeaderResponse.setId(messageHeader.getId());
 
-		List<BundleEntryComponent> resultEntries = null;
+		ExportJob job = null;
 		try {
-			resultEntries = myMapper.createEntries(entries);
-			messageHeaderResponse.setCode(ResponseType.OK);
-		} catch (FHIRException e) {
-			e.printStackTrace();
-			messageHeaderResponse.setCode(ResponseType.OK);
-			OperationOutcome outcome = new OperationOutcome();
-			CodeableConcept detailCode = new CodeableConcept();
-			detailCode.setText(e.getMessage());
-			outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDetails(detailCode);
-			messageHeaderResponse.setDetailsTarget(outcome);
-		}
-		
-		messageHeader.setResponse(messageHeaderResponse);
-		BundleEntryComponent responseMessageEntry = new BundleEntryComponent();
-		UUID uuid = UUID.randomUUID();
-		responseMessageEntry.setFullUrl("urn:uuid:"+uuid.toString());
-		responseMessageEntry.setResource(messageHeader);
-		
-		if (resultEntries == null) resultEntries = new ArrayList<BundleEntryComponent>();
-		
-		resultEntries.add(0, responseMessageEntry);
-		retVal.setEntry(resultEntries);
-		
+			job = OmopBulkExport.getInstance().startExport(theRequestDetails.getCompleteUrl(), types, personIds);
+		} catch (IllegalArgumentException e) {
+			throw ThrowFHIRExceptions.unprocessableEntityException(e.getMessage());
+		}
+
+		String statusUrl = theRequestDetails.getFhirServerBase() + "/$export-poll-status?_jobId=" + job.getId();
+		throw ThrowFHIRExceptions.acceptedException("Export job " + job.getId() + " is accepted", statusUrl);
+	}
+
+	/**
+	 * Imports the NDJSON files in a directory under BULK_IMPORT_DIR. The import
+	 * runs in the background. The returned Parameters (and the Content-Location
+	 * header) point to $import-poll-status.
+	 */
+	@Operation(name = "$import")
+	public Parameters importOperation(RequestDetails theRequestDetails, HttpServletResponse theServletResponse,
+			@OperationParam(name = "source") StringType theSource) {
+		String source = theSource == null ? null : theSource.getValue();
+
+		ImportJob job = null;
+		try {
+			job = OmopBulkImport.getInstance().startImport(theRequestDetails.getCompleteUrl(), source);
+		} catch (IllegalArgumentException e) {
+			throw ThrowFHIRExceptions.unprocessableEntityException(e.getMessage());
+		}
+
+		String statusUrl = theRequestDetails.getFhirServerBase() + "/$import-poll-status?_jobId=" + job.getId();
+		if (theServletResponse != null) {
+			theServletResponse.setHeader("Content-Location", statusUrl);
+		}
+
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("jobId").setValue(new StringType(job.getId()));
+		retVal.addParameter().setName("status").setValue(new UriType(statusUrl));
+
+		return retVal;
+	}
+
+	@Operation(name = "$import-poll-status", idempotent = true)
+	public Parameters importPollStatusOperation(@OperationParam(name = "_jobId") StringType theJobId) {
+		ImportJob job = null;
+		if (theJobId != null) {
+			job = OmopBulkImport.getInstance().getJob(theJobId.getValue());
+		}
+		if (job == null) {
+			throw new ResourceNotFoundException("Import job is not found");
+		}
+
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("status").setValue(new CodeType(job.getStatus().name().toLowerCase()));
+		retVal.addParameter().setName("transactionTime").setValue(new InstantType(job.getTransactionTime()));
+		retVal.addParameter().setName("request").setValue(new UriType(job.getRequest()));
+		retVal.addParameter().setName("read").setValue(new IntegerType((int) job.getRead()));
+		retVal.addParameter().setName("created").setValue(new IntegerType((int) job.getCreated()));
+		retVal.addParameter().setName("failed").setValue(new IntegerType((int) job.getFailed()));
+		retVal.addParameter().setName("skipped").setValue(new IntegerType((int) job.getSkipped()));
+		if (job.getMessage() != null) {
+			retVal.addParameter().setName("error").setValue(new StringType(job.getMessage()));
+		}
+
 		return retVal;
 	}
 }
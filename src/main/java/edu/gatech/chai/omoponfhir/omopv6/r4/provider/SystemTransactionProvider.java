@@ -25,7 +25,6 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
-import org.hl7.fhir.r4.model.Bundle.BundleEntryRequestComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.Composition;
@@ -220,42 +219,13 @@ public class SystemTransactionProvider {
 //					ThrowFHIRExceptions
 //							.unprocessableEntityException("First entry in Bundle document type should be Composition");
 //				}
-			case TRANSACTION:
-				System.out.println("We are at the transaction");
-				for (BundleEntryComponent nextEntry : theBundle.getEntry()) {
-					resource = nextEntry.getResource();
-					BundleEntryRequestComponent request = nextEntry.getRequest();
-
-					// We require a transaction to have a request so that we can
-					// handle the transaction. Without it, we have nothing to
-					// do.
-					if (request == null)
-						continue;
-
-					if (!request.isEmpty()) {
-						// First check the Resource to see if we can support
-						// this. resourceName =
-						// resource.getResourceType().toString();
-
-						// Now we have a request that we support. Add this into
-						// the entry to process.
-						HTTPVerb method = request.getMethod();
-						if (method == HTTPVerb.POST) {
-							postList.add(resource);
-						} else if (method == HTTPVerb.PUT) {
-							putList.add(resource);
-						} else if (method == HTTPVerb.DELETE) {
-							deleteList.add(request.getUrl());
-						} else if (method == HTTPVerb.GET) {
-							// TODO: getList.add(new ParameterWrapper());
-							// create parameter here.
-						} else {
-							continue;
-						}
-					}
-				}
-
 				break;
+			case TRANSACTION:
+				// Entries are validated up front. Failed creates are removed again.
+				List<BundleEntryComponent> transactionResponse = myMapper.executeTransaction(theBundle.getEntry());
+				retVal.setEntry(transactionResponse);
+				retVal.setType(BundleType.TRANSACTIONRESPONSE);
+				return retVal;
 			case MESSAGE:
 //				entry = theBundle.getEntryFirstRep();
 //				resource = entry.getResource();
@@ -292,8 +262,8 @@ public class SystemTransactionProvider {
 			}
 
 		} catch (FHIRException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+			ThrowFHIRExceptions.unprocessableEntityException(e.getMessage());
 		}
 
 		return retVal;
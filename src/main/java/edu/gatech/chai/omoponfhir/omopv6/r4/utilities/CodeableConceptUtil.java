@@ -30,6 +30,33 @@ import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
 import edu.gatech.chai.omopv6.model.entity.Concept;
 
 public class CodeableConceptUtil {
+	// (vocabularyId, conceptCode) to Concept cache. Misses are cached with a
+	// shorter TTL so that newly loaded local concepts show up quickly.
+	private static ExpiringCache<String, Concept> conceptCache = new ExpiringCache<String, Concept>(
+			(int) StaticValues.getEnvLong("CONCEPT_CACHE_SIZE", 20000L),
+			StaticValues.getEnvLong("CONCEPT_CACHE_TTL_SECONDS", 3600L) * 1000L,
+			StaticValues.getEnvLong("CONCEPT_CACHE_MISS_TTL_SECONDS", 60L) * 1000L);
+
+	public static ExpiringCache<String, Concept> getConceptCache() {
+		return conceptCache;
+	}
+
+	private static String conceptCacheKey(String omopVocabularyId, String code) {
+		return omopVocabularyId + "^" + code;
+	}
+
+	/**
+	 * Removes the cached result for this vocabulary and code. This must be called
+	 * when a concept is created so that a cached miss is not served.
+	 */
+	public static void invalidateConceptCache(String omopVocabularyId, String code) {
+		conceptCache.invalidate(conceptCacheKey(omopVocabularyId, code));
+	}
+
+	public static void invalidateConceptCache() {
+		conceptCache.invalidateAll();
+	}
+
 	public static void addCodingFromOmopConcept(CodeableConcept codeableConcept, Concept concept) throws FHIRException {
 		String fhirUri = OmopCodeableConceptMapping.fhirUriforOmopVocabulary(concept.getVocabularyId());
 		
@@ -89,7 +116,12 @@ public class CodeableConceptUtil {
 
 	public static Concept getOmopConceptWithOmopVacabIdAndCode(ConceptService conceptService, String omopVocabularyId, String code) {
 		if (omopVocabularyId == null) return null;
-		
+
+		return conceptCache.get(conceptCacheKey(omopVocabularyId, code),
+				key -> searchOmopConceptWithOmopVacabIdAndCode(conceptService, omopVocabularyId, code));
+	}
+
+	private static Concept searchOmopConceptWithOmopVacabIdAndCode(ConceptService conceptService, String omopVocabularyId, String code) {
 		ParameterWrapper param = new ParameterWrapper(
 				"String",
 				Arrays.asList("vocabularyId", "conceptCode"),
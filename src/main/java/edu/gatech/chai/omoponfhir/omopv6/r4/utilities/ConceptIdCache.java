@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv6.dba.service.ConceptService;
+import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
+import edu.gatech.chai.omopv6.model.entity.Concept;
+
+/**
+ * Read-through cache in front of {@link ConceptService#findById(Long)}. The
+ * cache is shared by all mappers and keyed by primitive concept id. It is
+ * split into segments, each guarded by its own lock.
+ */
+public class ConceptIdCache {
+	private static final Logger logger = LoggerFactory.getLogger(ConceptIdCache.class);
+
+	private static final int SEGMENTS = 32;
+
+	// Standard vocabularies that almost every resource refers to.
+	private static final List<String> WARMUP_VOCABULARIES = Arrays.asList("Gender", "Race", "Ethnicity", "UCUM",
+			"Meas Type", "Observation Type", "Condition Type", "Drug Type", "Procedure Type", "Visit Type",
+			"Note Type", "Device Type", "Death Type");
+
+	// Placeholder for ids that do not exist. LongObjectMap does not take nulls.
+	private static final Concept NOT_FOUND = new Concept();
+
+	@SuppressWarnings("unchecked")
+	private static final LongObjectMap<Concept>[] segments = new LongObjectMap[SEGMENTS];
+	private static final int maxSegmentSize;
+
+	private static final AtomicLong hitCount = new AtomicLong();
+	private static final AtomicLong missCount = new AtomicLong();
+
+	static {
+		long maxSize = StaticValues.getEnvLong("CONCEPT_ID_CACHE_SIZE", 200000L);
+		maxSegmentSize = (int) Math.max(1L, maxSize / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new LongObjectMap<Concept>(256);
+		}
+	}
+
+	private static LongObjectMap<Concept> segmentFor(long conceptId) {
+		return segments[(int) ((conceptId ^ (conceptId >>> 32)) & (SEGMENTS - 1))];
+	}
+
+	/**
+	 * Same as {@link ConceptService#findById(Long)}, but served from the cache
+	 * when the concept has been read before.
+	 */
+	public static Concept findById(ConceptService conceptService, Long conceptId) {
+		if (conceptId == null) {
+			return conceptService.findById(conceptId);
+		}
+
+		long id = conceptId;
+		LongObjectMap<Concept> segment = segmentFor(id);
+		Concept concept;
+		synchronized (segment) {
+			concept = segment.get(id);
+		}
+
+		if (concept != null) {
+			hitCount.incrementAndGet();
+			return concept == NOT_FOUND ? null : concept;
+		}
+
+		missCount.incrementAndGet();
+		concept = conceptService.findById(conceptId);
+		put(id, concept);
+
+		return concept;
+	}
+
+	private static void put(long conceptId, Concept concept) {
+		LongObjectMap<Concept> segment = segmentFor(conceptId);
+		synchronized (segment) {
+			if (segment.size() >= maxSegmentSize) {
+				// Simple bound. The segment is refilled by the next reads.
+				segment.clear();
+			}
+			segment.put(conceptId, concept == null ? NOT_FOUND : concept);
+		}
+	}
+
+	public static void invalidate(long conceptId) {
+		LongObjectMap<Concept> segment = segmentFor(conceptId);
+		synchronized (segment) {
+			segment.remove(conceptId);
+		}
+	}
+
+	public static void invalidateAll() {
+		for (LongObjectMap<Concept> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Preloads concepts of the standard vocabularies that are referenced by most
+	 * resources (genders, races, ethnicities, type concepts and UCUM units).
+	 *
+	 * @return number of concepts loaded
+	 */
+	public static int warmUp(ConceptService conceptService) {
+		int count = 0;
+		for (String vocabularyId : WARMUP_VOCABULARIES) {
+			ParameterWrapper param = new ParameterWrapper("String", Arrays.asList("vocabularyId"),
+					Arrays.asList("="), Arrays.asList(vocabularyId), "and");
+			List<ParameterWrapper> params = new ArrayList<ParameterWrapper>();
+			params.add(param);
+
+			List<Concept> concepts = conceptService.searchWithParams(0, 0, params, null);
+			for (Concept concept : concepts) {
+				put(concept.getId(), concept);
+				count++;
+			}
+		}
+
+		// Concept 0 is the "No matching concept" fallback used by the mappers.
+		Concept noMatchingConcept = conceptService.findById(0L);
+		if (noMatchingConcept != null) {
+			put(0L, noMatchingConcept);
+			count++;
+		}
+
+		logger.info("Concept id cache warmed up with " + count + " concepts");
+		return count;
+	}
+
+	public static int size() {
+		int size = 0;
+		for (LongObjectMap<Concept> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	public static String getStats() {
+		return "size=" + size() + ", hits=" + hitCount.get() + ", misses=" + missCount.get();
+	}
+}
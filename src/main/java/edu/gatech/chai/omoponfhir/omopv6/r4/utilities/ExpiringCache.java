@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Small thread-safe cache with a size bound and time-to-live. Entries are
+ * evicted in insertion order once the size bound is reached. A null value is
+ * cached as a miss (negative entry) and can have its own, shorter TTL.
+ *
+ * The entries are kept in one insertion-ordered map under a lock, so the
+ * eviction order always matches the live entries. Loaders run outside the
+ * lock.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringCache<K, V> {
+	private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+	private final int maxSize;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private static class CacheEntry<V> {
+		final V value;
+		final long expiresAt;
+
+		CacheEntry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isLive(long now) {
+			return expiresAt <= 0 || expiresAt > now;
+		}
+	}
+
+	/**
+	 * @param maxSize           maximum number of entries (including misses)
+	 * @param ttlMillis         time-to-live of a found value. 0 or less means no
+	 *                          expiration.
+	 * @param negativeTtlMillis time-to-live of a cached miss. 0 or less means
+	 *                          misses are not cached.
+	 */
+	public ExpiringCache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+		this.maxSize = maxSize > 0 ? maxSize : 1;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+				if (size() > ExpiringCache.this.maxSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the live entry of the key. An expired entry is removed.
+	 */
+	private CacheEntry<V> getLiveEntry(K key) {
+		synchronized (entries) {
+			CacheEntry<V> entry = entries.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (!entry.isLive(System.currentTimeMillis())) {
+				entries.remove(key);
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Returns the cached value, or loads it with the loader and caches the
+	 * result. A null from the loader is cached as a miss.
+	 */
+	public V get(K key, Function<K, V> loader) {
+		CacheEntry<V> entry = getLiveEntry(key);
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			return entry.value;
+		}
+
+		missCount.incrementAndGet();
+		V value = loader.apply(key);
+		put(key, value);
+
+		return value;
+	}
+
+	/**
+	 * Returns the cached value, or null if there is no live entry for the key.
+	 */
+	public V getIfPresent(K key) {
+		CacheEntry<V> entry = getLiveEntry(key);
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			return entry.value;
+		}
+
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Returns the cached value, null for a cached miss, or ifAbsent if there is
+	 * no live entry for the key. Use this instead of containsKey followed by
+	 * getIfPresent, which can see the entry expire in between.
+	 */
+	public V getIfPresent(K key, V ifAbsent) {
+		CacheEntry<V> entry = getLiveEntry(key);
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			return entry.value;
+		}
+
+		missCount.incrementAndGet();
+		return ifAbsent;
+	}
+
+	/**
+	 * @return true if a live entry (value or miss) exists for the key.
+	 */
+	public boolean containsKey(K key) {
+		return getLiveEntry(key) != null;
+	}
+
+	public void put(K key, V value) {
+		long ttl = value == null ? negativeTtlMillis : ttlMillis;
+		synchronized (entries) {
+			if (value == null && ttl <= 0) {
+				// Misses are not cached.
+				entries.remove(key);
+				return;
+			}
+
+			long expiresAt = ttl > 0 ? System.currentTimeMillis() + ttl : 0L;
+			// Remove first, so a replaced entry moves to the end of the eviction order.
+			entries.remove(key);
+			entries.put(key, new CacheEntry<V>(value, expiresAt));
+		}
+	}
+
+	public void invalidate(K key) {
+		synchronized (entries) {
+			entries.remove(key);
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public String getStats() {
+		return "size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+				+ getEvictionCount();
+	}
+}
@@ -1,42 +1,128 @@
 package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.hl7.fhir.r4.model.BackboneElement;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient;
+import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient.Ethnicity;
+import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient.Race;
 
 public class ExtensionUtil {
 
-	public static Map<String, Long>  resourceCounts = new HashMap<String, Long>();
-	
+	public static final String US_CORE_RACE_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-race";
+	public static final String US_CORE_ETHNICITY_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-ethnicity";
+
+	/**
+	 * Converts a Patient to USCorePatient. Patient elements are moved over
+	 * without serialization, so the returned patient shares them with the given
+	 * resource. Other resource types go through a JSON round-trip.
+	 */
 	public static USCorePatient usCorePatientFromResource(Resource resource) {
+		if (resource instanceof USCorePatient) {
+			return (USCorePatient) resource;
+		}
+
+		if (resource instanceof Patient) {
+			return usCorePatientFromPatient((Patient) resource);
+		}
+
+		return usCorePatientFromJson(resource);
+	}
+
+	public static USCorePatient usCorePatientFromJson(Resource resource) {
 		IParser p = StaticValues.myFhirContext.newJsonParser();
 		String patientJSON = p.encodeResourceToString(resource);
 
 		return p.parseResource(USCorePatient.class, patientJSON);
 	}
+
+	private static USCorePatient usCorePatientFromPatient(Patient patient) {
+		USCorePatient usCorePatient = new USCorePatient();
+
+		// Resource and DomainResource
+		usCorePatient.setIdElement(patient.getIdElement());
+		if (patient.hasMeta()) usCorePatient.setMeta(patient.getMeta());
+		if (patient.hasImplicitRules()) usCorePatient.setImplicitRulesElement(patient.getImplicitRulesElement());
+		if (patient.hasLanguage()) usCorePatient.setLanguageElement(patient.getLanguageElement());
+		if (patient.hasText()) usCorePatient.setText(patient.getText());
+		if (patient.hasContained()) usCorePatient.setContained(patient.getContained());
+		if (patient.hasModifierExtension()) usCorePatient.setModifierExtension(patient.getModifierExtension());
+
+		// US Core race and ethnicity are declared extensions of USCorePatient. The
+		// rest stay as they are.
+		for (Extension extension : patient.getExtension()) {
+			if (US_CORE_RACE_URL.equals(extension.getUrl())) {
+				Race race = usCorePatient.getRace();
+				copyOmbCategories(extension, race.getCategory(), race);
+			} else if (US_CORE_ETHNICITY_URL.equals(extension.getUrl())) {
+				Ethnicity ethnicity = usCorePatient.getEthnicity();
+				copyOmbCategories(extension, ethnicity.getCategory(), ethnicity);
+			} else {
+				usCorePatient.addExtension(extension);
+			}
+		}
+
+		// Patient
+		if (patient.hasIdentifier()) usCorePatient.setIdentifier(patient.getIdentifier());
+		if (patient.hasActive()) usCorePatient.setActiveElement(patient.getActiveElement());
+		if (patient.hasName()) usCorePatient.setName(patient.getName());
+		if (patient.hasTelecom()) usCorePatient.setTelecom(patient.getTelecom());
+		if (patient.hasGender()) usCorePatient.setGenderElement(patient.getGenderElement());
+		if (patient.hasBirthDate()) usCorePatient.setBirthDateElement(patient.getBirthDateElement());
+		if (patient.hasDeceased()) usCorePatient.setDeceased(patient.getDeceased());
+		if (patient.hasAddress()) usCorePatient.setAddress(patient.getAddress());
+		if (patient.hasMaritalStatus()) usCorePatient.setMaritalStatus(patient.getMaritalStatus());
+		if (patient.hasMultipleBirth()) usCorePatient.setMultipleBirth(patient.getMultipleBirth());
+		if (patient.hasPhoto()) usCorePatient.setPhoto(patient.getPhoto());
+		if (patient.hasContact()) usCorePatient.setContact(patient.getContact());
+		if (patient.hasCommunication()) usCorePatient.setCommunication(patient.getCommunication());
+		if (patient.hasGeneralPractitioner())
+			usCorePatient.setGeneralPractitioner(patient.getGeneralPractitioner());
+		if (patient.hasManagingOrganization())
+			usCorePatient.setManagingOrganization(patient.getManagingOrganization());
+		if (patient.hasLink()) usCorePatient.setLink(patient.getLink());
+
+		return usCorePatient;
+	}
+
+	private static void copyOmbCategories(Extension extension, List<Coding> categories, BackboneElement block) {
+		for (Extension subExtension : extension.getExtension()) {
+			if ("ombCategory".equals(subExtension.getUrl()) && subExtension.getValue() instanceof Coding) {
+				categories.add((Coding) subExtension.getValue());
+			} else {
+				block.addExtension(subExtension);
+			}
+		}
+	}
 	
+	/**
+	 * Resource counts, by resource type. See {@link ResourceCounts}.
+	 */
 	public static Map<String, Long> getResourceCounts () {
-		return ExtensionUtil.resourceCounts;
+		return ResourceCounts.getAll();
 	}
 	
 	public static void setResourceCounts (Map<String, Long> resourceCounts) {
-		ExtensionUtil.resourceCounts = resourceCounts;
+		ResourceCounts.clear();
+		for (Map.Entry<String, Long> entry : resourceCounts.entrySet()) {
+			ResourceCounts.put(entry.getKey(), entry.getValue());
+		}
 	}
 	
 	public static void addResourceCount (String resourceName, Long count) {
-		Map<String, Long> counts = ExtensionUtil.getResourceCounts();
-		
-		counts.put(resourceName, count);
+		ResourceCounts.put(resourceName, count);
 	}
 	
 	public static Long getResourceCount (String resourceName) {
-		Map<String, Long> counts = ExtensionUtil.getResourceCounts();
-		Long count = counts.get(resourceName);
+		Long count = ResourceCounts.get(resourceName);
 		
 		if (count == null) return 0L;
 		
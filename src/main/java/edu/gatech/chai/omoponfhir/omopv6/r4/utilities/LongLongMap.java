@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+/**
+ * Open addressing hash map from primitive long to primitive long. Neither
+ * keys nor values are boxed. Lookups of a missing key return the missing
+ * value given to the constructor. Entries cannot be removed.
+ *
+ * This class is not thread-safe. Callers must synchronize.
+ */
+public class LongLongMap {
+	private long[] keys;
+	private long[] values;
+	private boolean[] used;
+	private int size = 0;
+	private int mask;
+	private final long missingValue;
+
+	public LongLongMap(int expectedSize, long missingValue) {
+		this.missingValue = missingValue;
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	private int indexOf(long key) {
+		// Spread the bits so that sequential ids do not cluster.
+		long h = key * 0x9E3779B97F4A7C15L;
+		int index = (int) (h ^ (h >>> 32)) & mask;
+		while (used[index] && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+
+		return index;
+	}
+
+	public long get(long key) {
+		int index = indexOf(key);
+		return used[index] ? values[index] : missingValue;
+	}
+
+	public boolean containsKey(long key) {
+		return used[indexOf(key)];
+	}
+
+	public void put(long key, long value) {
+		int index = indexOf(key);
+		if (!used[index]) {
+			if ((size + 1) * 2 > keys.length) {
+				rehash(keys.length << 1);
+				index = indexOf(key);
+			}
+			used[index] = true;
+			size++;
+		}
+		keys[index] = key;
+		values[index] = value;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int index = indexOf(oldKeys[i]);
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+				used[index] = true;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+}
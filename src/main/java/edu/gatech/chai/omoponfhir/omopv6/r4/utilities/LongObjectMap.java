@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long to an object. Keys are not
+ * boxed. Null values are not allowed; a null slot means the slot is empty.
+ *
+ * This class is not thread-safe. Callers must synchronize.
+ *
+ * @param <V> value type
+ */
+public class LongObjectMap<V> {
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int mask;
+
+	public LongObjectMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private int indexOf(long key) {
+		// Spread the bits so that sequential ids do not cluster.
+		long h = key * 0x9E3779B97F4A7C15L;
+		int index = (int) (h ^ (h >>> 32)) & mask;
+		while (values[index] != null && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+
+		return index;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		return (V) values[indexOf(key)];
+	}
+
+	public boolean containsKey(long key) {
+		return values[indexOf(key)] != null;
+	}
+
+	public void put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null value is not allowed");
+		}
+
+		int index = indexOf(key);
+		if (values[index] == null) {
+			if ((size + 1) * 2 > keys.length) {
+				rehash(keys.length << 1);
+				index = indexOf(key);
+			}
+			size++;
+		}
+		keys[index] = key;
+		values[index] = value;
+	}
+
+	/**
+	 * Removes the key. Following entries of the probe chain are shifted back so
+	 * that lookups do not stop at the emptied slot.
+	 */
+	public void remove(long key) {
+		int index = indexOf(key);
+		if (values[index] == null) {
+			return;
+		}
+
+		values[index] = null;
+		size--;
+
+		int next = (index + 1) & mask;
+		while (values[next] != null) {
+			long nextKey = keys[next];
+			Object nextValue = values[next];
+			values[next] = null;
+			int newIndex = indexOf(nextKey);
+			keys[newIndex] = nextKey;
+			values[newIndex] = nextValue;
+			next = (next + 1) & mask;
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int index = indexOf(oldKeys[i]);
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+}
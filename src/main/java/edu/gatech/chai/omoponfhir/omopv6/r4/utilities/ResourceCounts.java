@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestComponent;
+import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestResourceComponent;
+import org.hl7.fhir.r4.model.DecimalType;
+
+/**
+ * Number of resources of each type. Counts are recorded by unfiltered
+ * getSize() calls and by the background refresh in ResourceCountTask, every
+ * RESOURCE_COUNT_REFRESH_SECONDS while the counts have a reader. Safe to use
+ * from any thread.
+ */
+public class ResourceCounts {
+	// Same extension as the HAPI JPA server uses for its resource counts.
+	public static final String RESOURCE_COUNT_URL = "http://hl7api.sourceforge.net/hapi-fhir/res/extdefs.html#resourceCount";
+
+	public static final long REFRESH_INTERVAL_MILLIS = StaticValues.getEnvLong("RESOURCE_COUNT_REFRESH_SECONDS",
+			3600L) * 1000L;
+
+	private static final ConcurrentHashMap<String, Long> counts = new ConcurrentHashMap<String, Long>();
+	private static final ConcurrentHashMap<String, Long> updatedTimes = new ConcurrentHashMap<String, Long>();
+
+	// Set once something other than the search totals reads the counts.
+	private static volatile boolean consumer = false;
+
+	private ResourceCounts() {
+	}
+
+	public static void put(String resourceType, Long count) {
+		if (resourceType == null || count == null) {
+			return;
+		}
+
+		counts.put(resourceType, count);
+		updatedTimes.put(resourceType, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the recorded count, or null if the type has not been counted.
+	 */
+	public static Long get(String resourceType) {
+		return counts.get(resourceType);
+	}
+
+	/**
+	 * Returns the recorded count if it is younger than twice the refresh
+	 * interval, so that a refresh that runs a little late does not drop it.
+	 * Returns null otherwise, or if the background refresh is turned off.
+	 */
+	public static Long getFresh(String resourceType) {
+		if (REFRESH_INTERVAL_MILLIS <= 0) {
+			return null;
+		}
+
+		Long updatedTime = updatedTimes.get(resourceType);
+		if (updatedTime == null || System.currentTimeMillis() - updatedTime > 2 * REFRESH_INTERVAL_MILLIS) {
+			// The refresh has fallen behind, or has not run yet.
+			return null;
+		}
+
+		return counts.get(resourceType);
+	}
+
+	/**
+	 * Read-only, live view of all counts.
+	 */
+	public static Map<String, Long> getAll() {
+		return Collections.unmodifiableMap(counts);
+	}
+
+	/**
+	 * Turns on the background refresh of the counts for a reader other than
+	 * COUNT_STRATEGY=estimated. A conformance provider that calls
+	 * {@link #addExtensions(CapabilityStatement)} can call this at startup, so
+	 * that the counts are there for the first CapabilityStatement.
+	 */
+	public static void registerConsumer() {
+		consumer = true;
+	}
+
+	public static boolean hasConsumer() {
+		return consumer;
+	}
+
+	public static void clear() {
+		counts.clear();
+		updatedTimes.clear();
+	}
+
+	/**
+	 * Adds the resource counts to the resources of the capability statement as
+	 * resourceCount extensions. Nothing in this library calls it. The server
+	 * that builds the CapabilityStatement can call it from its conformance
+	 * provider. The first call turns on the background refresh.
+	 */
+	public static void addExtensions(CapabilityStatement capabilityStatement) {
+		registerConsumer();
+		for (CapabilityStatementRestComponent rest : capabilityStatement.getRest()) {
+			for (CapabilityStatementRestResourceComponent resource : rest.getResource()) {
+				Long count = counts.get(resource.getType());
+				if (count == null) {
+					continue;
+				}
+
+				resource.getExtension().removeIf(extension -> RESOURCE_COUNT_URL.equals(extension.getUrl()));
+				resource.addExtension(RESOURCE_COUNT_URL, new DecimalType(count));
+			}
+		}
+	}
+}
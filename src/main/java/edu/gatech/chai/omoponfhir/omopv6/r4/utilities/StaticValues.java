@@ -4,4 +4,21 @@ import ca.uhn.fhir.context.FhirContext;
 
 public class StaticValues {
 	public static FhirContext myFhirContext = FhirContext.forR4();
+
+	/**
+	 * Reads a numeric setting from the environment. Returns defaultValue if the
+	 * variable is not set or not a number.
+	 */
+	public static long getEnvLong(String name, long defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
 }
@@ -15,78 +15,283 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
 import org.hl7.fhir.r4.model.ValueSet.ValueSetComposeComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.web.context.ContextLoaderListener;
+import org.springframework.web.context.WebApplicationContext;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
 
+/**
+ * Looks up ValueSets for code:in searches. ValueSets are taken from the local
+ * store first (JSON files in VALUESET_DIR), then from the remote terminology
+ * server. Remote results are cached by canonical URL and version, and
+ * concurrent lookups of the same ValueSet share one remote fetch.
+ */
 public class TerminologyServiceClient {
-	private static TerminologyServiceClient terminologyServiceClient = new TerminologyServiceClient();
-	private static String terminologyServerDefault = "http://measure.eval.kanvix.com/cqf-ruler/baseDstu3";
+	private static final Logger logger = LoggerFactory.getLogger(TerminologyServiceClient.class);
+
+	private static final int CACHE_SIZE = (int) StaticValues.getEnvLong("VALUESET_CACHE_SIZE", 500L);
+	private static final long CACHE_TTL_MILLIS = StaticValues.getEnvLong("VALUESET_CACHE_TTL_SECONDS", 3600L) * 1000L;
+	private static final long CACHE_MISS_TTL_MILLIS = StaticValues.getEnvLong("VALUESET_CACHE_MISS_TTL_SECONDS", 60L)
+			* 1000L;
+
+	private static TerminologyServiceClient terminologyServiceClient = null;
 	private String terminologyServerUrl;
 	private IGenericClient client = null;
-	
-	public static TerminologyServiceClient getInstance() {
+
+	// ValueSets loaded from local files. These never expire.
+	private final Map<String, ValueSet> localValueSets = new ConcurrentHashMap<String, ValueSet>();
+
+	// ValueSets fetched from the terminology server. A miss is cached as null.
+	private final ExpiringCache<String, ValueSet> remoteValueSets = new ExpiringCache<String, ValueSet>(CACHE_SIZE,
+			CACHE_TTL_MILLIS, CACHE_MISS_TTL_MILLIS);
+
+	// Returned by the cache when it has no entry.
+	private static final ValueSet NOT_CACHED = new ValueSet();
+
+	// Remote fetches in progress, so that concurrent lookups wait for one fetch.
+	private final ConcurrentHashMap<String, CompletableFuture<ValueSet>> inFlight = new ConcurrentHashMap<String, CompletableFuture<ValueSet>>();
+
+	public static synchronized TerminologyServiceClient getInstance() {
+		if (terminologyServiceClient == null) {
+			terminologyServiceClient = new TerminologyServiceClient();
+		}
 		return terminologyServiceClient;
 	}
 
 	public String getTerminologyServerUrl() {
 		return terminologyServerUrl;
 	}
-	
+
 	public TerminologyServiceClient() {
-		terminologyServerUrl = ContextLoaderListener.getCurrentWebApplicationContext().getServletContext()
-				.getInitParameter("terminologyServerUrl");
-		if (terminologyServerUrl == null || terminologyServerUrl.isEmpty()) {
-			terminologyServerUrl = terminologyServerDefault;
-		}
-		
-		// Set up FHIR client to make ValueSet calls
-		FhirContext ctx = FhirContext.forDstu3();
-		client = ctx.newRestfulGenericClient(terminologyServerUrl);
+		this(configuredServerUrl(), System.getenv("VALUESET_DIR"));
 	}
-	
-	public Map<String, List<ConceptSetComponent>> getValueSetByUrl(String url) {
-		Map<String, List<ConceptSetComponent>> retVal = new HashMap<String, List<ConceptSetComponent>>();
-		Bundle results = client
-				.search()
-				.forResource(ValueSet.class)
-				.where(ValueSet.URL.matches().value(url))
-				.returnBundle(Bundle.class)
-				.execute();
-		
-		// Results should contain entries for ValueSet with the specified url.
-		// We only search codeset URL. Other supports may be added later..
-		for (BundleEntryComponent entry : results.getEntry()) {
-			if (url.contains(entry.getId())) {
-				// Ok, we found the entry. Now, get compose.
-				Resource resource = entry.getResource();
-				if (resource.getResourceType().getPath().equals("ValueSet")) {
-					ValueSet valueSet = (ValueSet) resource;
-					ValueSetComposeComponent compose = valueSet.getCompose();
-					if (!compose.isEmpty()) {
-						List<ConceptSetComponent> include = compose.getInclude();
-						List<ConceptSetComponent> exclude = compose.getExclude();
-						
-						// Puth these two information in the hash map and return
-						retVal.put("include", include);
-						retVal.put("exclude", exclude);
+
+	/**
+	 * @param terminologyServerUrl R4 terminology server base URL. null or empty
+	 *                             means only local ValueSets are used.
+	 * @param valueSetDir          directory of ValueSet (or Bundle of ValueSet)
+	 *                             JSON files. May be null.
+	 */
+	public TerminologyServiceClient(String terminologyServerUrl, String valueSetDir) {
+		this.terminologyServerUrl = terminologyServerUrl;
+		if (terminologyServerUrl != null && !terminologyServerUrl.isEmpty()) {
+			client = StaticValues.myFhirContext.newRestfulGenericClient(terminologyServerUrl);
+		}
+
+		if (valueSetDir != null && !valueSetDir.isEmpty()) {
+			loadValueSets(new File(valueSetDir));
+		}
+	}
+
+	private static String configuredServerUrl() {
+		String serverUrl = System.getenv("TERMINOLOGY_SERVER_URL");
+		if (serverUrl == null || serverUrl.isEmpty()) {
+			WebApplicationContext appCtx = ContextLoaderListener.getCurrentWebApplicationContext();
+			if (appCtx != null) {
+				serverUrl = appCtx.getServletContext().getInitParameter("terminologyServerUrl");
+			}
+		}
+
+		return serverUrl;
+	}
+
+	/**
+	 * Loads ValueSet JSON files from the directory into the local store. A file
+	 * may hold a single ValueSet or a Bundle of ValueSets.
+	 *
+	 * @return number of ValueSets loaded
+	 */
+	public int loadValueSets(File directory) {
+		File[] files = directory.listFiles((dir, name) -> name.toLowerCase().endsWith(".json"));
+		if (files == null) {
+			logger.warn("ValueSet directory " + directory.getAbsolutePath() + " cannot be read");
+			return 0;
+		}
+
+		int loaded = 0;
+		for (File file : files) {
+			try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+				IBaseResource resource = StaticValues.myFhirContext.newJsonParser().parseResource(reader);
+				if (resource instanceof ValueSet) {
+					addValueSet((ValueSet) resource);
+					loaded++;
+				} else if (resource instanceof Bundle) {
+					for (BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+						if (entry.getResource() instanceof ValueSet) {
+							addValueSet((ValueSet) entry.getResource());
+							loaded++;
+						}
 					}
 				}
+			} catch (Exception e) {
+				logger.error("Failed to load ValueSet file " + file.getName() + ": " + e.getMessage());
 			}
 		}
-		
+
+		logger.info("Loaded " + loaded + " ValueSets from " + directory.getAbsolutePath());
+		return loaded;
+	}
+
+	/**
+	 * Adds a ValueSet to the local store. It is found by its URL alone and by
+	 * its URL and version.
+	 */
+	public void addValueSet(ValueSet valueSet) {
+		if (!valueSet.hasUrl()) {
+			return;
+		}
+
+		localValueSets.put(cacheKey(valueSet.getUrl(), null), valueSet);
+		if (valueSet.hasVersion()) {
+			localValueSets.put(cacheKey(valueSet.getUrl(), valueSet.getVersion()), valueSet);
+		}
+	}
+
+	/**
+	 * Returns the include and exclude components of the ValueSet. The url may
+	 * carry a version as in a canonical reference (url|version). Both lists are
+	 * empty if the ValueSet is not found.
+	 */
+	public Map<String, List<ConceptSetComponent>> getValueSetByUrl(String url) {
+		Map<String, List<ConceptSetComponent>> retVal = new HashMap<String, List<ConceptSetComponent>>();
+		retVal.put("include", new ArrayList<ConceptSetComponent>());
+		retVal.put("exclude", new ArrayList<ConceptSetComponent>());
+
+		ValueSet valueSet = getValueSet(url);
+		if (valueSet != null) {
+			ValueSetComposeComponent compose = valueSet.getCompose();
+			if (!compose.isEmpty()) {
+				retVal.put("include", compose.getInclude());
+				retVal.put("exclude", compose.getExclude());
+			}
+		}
+
 		return retVal;
 	}
 
+	/**
+	 * Returns the ValueSet for the canonical URL (url or url|version), or null if
+	 * neither the local store nor the terminology server has it.
+	 */
+	public ValueSet getValueSet(String canonical) {
+		String url = canonical;
+		String version = null;
+		int bar = canonical.indexOf('|');
+		if (bar >= 0) {
+			url = canonical.substring(0, bar);
+			version = canonical.substring(bar + 1);
+		}
+
+		String key = cacheKey(url, version);
+		ValueSet valueSet = localValueSets.get(key);
+		if (valueSet != null) {
+			return valueSet;
+		}
+
+		// One lookup. A cached miss is null.
+		valueSet = remoteValueSets.getIfPresent(key, NOT_CACHED);
+		if (valueSet != NOT_CACHED) {
+			return valueSet;
+		}
+
+		if (client == null) {
+			return null;
+		}
+
+		CompletableFuture<ValueSet> future = new CompletableFuture<ValueSet>();
+		CompletableFuture<ValueSet> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			return await(existing, key);
+		}
+
+		try {
+			// Another lookup may have finished its fetch after our cache check.
+			valueSet = remoteValueSets.getIfPresent(key, NOT_CACHED);
+			if (valueSet != NOT_CACHED) {
+				future.complete(valueSet);
+				return valueSet;
+			}
+
+			valueSet = fetchValueSet(url, version);
+			remoteValueSets.put(key, valueSet);
+			future.complete(valueSet);
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+
+		return valueSet;
+	}
+
+	private ValueSet await(CompletableFuture<ValueSet> future, String key) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for ValueSet " + key, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Failed to fetch ValueSet " + key, e.getCause());
+		}
+	}
+
+	private ValueSet fetchValueSet(String url, String version) {
+		IQuery<Bundle> query = client.search().forResource(ValueSet.class).where(ValueSet.URL.matches().value(url))
+				.returnBundle(Bundle.class);
+		if (version != null && !version.isEmpty()) {
+			query = query.and(ValueSet.VERSION.exactly().code(version));
+		}
+
+		Bundle results = query.execute();
+		for (BundleEntryComponent entry : results.getEntry()) {
+			Resource resource = entry.getResource();
+			if (resource instanceof ValueSet && url.equals(((ValueSet) resource).getUrl())) {
+				return (ValueSet) resource;
+			}
+		}
+
+		return null;
+	}
+
+	private static String cacheKey(String url, String version) {
+		if (version == null || version.isEmpty()) {
+			return url;
+		}
+		return url + "|" + version;
+	}
+
+	public void invalidateCache() {
+		remoteValueSets.invalidateAll();
+	}
+
+	public String getCacheStats() {
+		return remoteValueSets.getStats();
+	}
 }
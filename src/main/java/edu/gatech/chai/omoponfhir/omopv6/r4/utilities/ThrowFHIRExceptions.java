@@ -20,11 +20,48 @@ import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
 public class ThrowFHIRExceptions {
 
+	/**
+	 * Server response with a status code that HAPI has no exception for. The
+	 * OperationOutcome carries the message as information or error.
+	 */
+	public static class StatusResponseException extends BaseServerResponseException {
+		private static final long serialVersionUID = 1L;
+
+		public StatusResponseException(int theStatusCode, String theMessage, OperationOutcome theOutcome) {
+			super(theStatusCode, theMessage, theOutcome);
+		}
+	}
+
+	/**
+	 * 202 Accepted. Content-Location points to where the result can be polled.
+	 */
+	public static StatusResponseException acceptedException(String message, String contentLocation) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverity.INFORMATION).setDiagnostics(message);
+		StatusResponseException exception = new StatusResponseException(202, message, outcome);
+		if (contentLocation != null) {
+			exception.addResponseHeader("Content-Location", contentLocation);
+		}
+		throw exception;
+	}
+
+	/**
+	 * 429 Too Many Requests. Retry-After tells the client when to try again.
+	 */
+	public static StatusResponseException tooManyRequestsException(String message, long retryAfterSeconds) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics(message);
+		StatusResponseException exception = new StatusResponseException(429, message, outcome);
+		exception.addResponseHeader("Retry-After", String.valueOf(retryAfterSeconds));
+		throw exception;
+	}
+
 	public static UnprocessableEntityException unprocessableEntityException(String message) {
 		OperationOutcome outcome = new OperationOutcome();
 		CodeableConcept detailCode = new CodeableConcept();
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Compares the cost of id obfuscation with the identity mapping, one call per
+ * id as in constructResources and constructFHIR. Run with
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=edu.gatech.chai.omoponfhir.omopv6.r4.mapping.IdObfuscatorBenchmark
+ */
+public class IdObfuscatorBenchmark {
+	private static final int WARMUP = 2000000;
+	private static final int ITERATIONS = 20000000;
+
+	public static void main(String[] args) {
+		final IdObfuscator obfuscator = new IdObfuscator("benchmark-secret");
+
+		run("identity", id -> id);
+		run("obfuscate", id -> obfuscator.obfuscate("Observation", id));
+		run("obfuscate+reveal", id -> obfuscator.reveal("Observation", obfuscator.obfuscate("Observation", id)));
+	}
+
+	private static void run(String name, LongUnaryOperator mapping) {
+		long sum = 0L;
+		for (int i = 0; i < WARMUP; i++) {
+			sum += mapping.applyAsLong(i);
+		}
+
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			// Sequential ids, like the ids of a page of OMOP rows.
+			sum += mapping.applyAsLong(100000000L + i);
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+		// Print the sum so that the JIT cannot drop the calls.
+		System.out.println(name + ": " + String.format("%.2f", (double) elapsed / ITERATIONS) + " ns/op, "
+				+ (bytes / ITERATIONS) + " bytes/op (" + sum + ")");
+	}
+}
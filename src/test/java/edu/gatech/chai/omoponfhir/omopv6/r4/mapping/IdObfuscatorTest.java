@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class IdObfuscatorTest extends TestCase {
+	private static final long[] EDGE_IDS = { 0L, 1L, -1L, 2L, -2L, 1000L, -1000L, Integer.MAX_VALUE,
+			Integer.MIN_VALUE, (1L << 62) - 1, 1L << 62, -(1L << 62), Long.MAX_VALUE, Long.MIN_VALUE };
+
+	private IdObfuscator obfuscator;
+
+	@Override
+	protected void setUp() throws Exception {
+		obfuscator = new IdObfuscator("test-secret");
+	}
+
+	public void testRoundTripEdgeIds() {
+		for (long id : EDGE_IDS) {
+			assertEquals("id " + id, id, obfuscator.reveal("Patient", obfuscator.obfuscate("Patient", id)));
+		}
+	}
+
+	public void testRoundTripRandomIds() {
+		Random random = new Random(42L);
+		for (int i = 0; i < 100000; i++) {
+			long id = random.nextLong();
+			assertEquals("id " + id, id, obfuscator.reveal("Observation", obfuscator.obfuscate("Observation", id)));
+		}
+	}
+
+	public void testSignIsKept() {
+		Random random = new Random(7L);
+		for (int i = 0; i < 10000; i++) {
+			long id = random.nextLong();
+			long fhirId = obfuscator.obfuscate("Observation", id);
+			assertEquals("id " + id, id < 0, fhirId < 0);
+		}
+		for (long id : EDGE_IDS) {
+			assertEquals("id " + id, id < 0, obfuscator.obfuscate("Observation", id) < 0);
+		}
+	}
+
+	public void testIdsAreHidden() {
+		int unchanged = 0;
+		for (long id = 1; id <= 1000; id++) {
+			if (obfuscator.obfuscate("Patient", id) == id) {
+				unchanged++;
+			}
+		}
+		assertTrue(unchanged < 5);
+	}
+
+	public void testTypesHaveDifferentIds() {
+		int same = 0;
+		for (long id = -500; id <= 500; id++) {
+			long patientId = obfuscator.obfuscate("Patient", id);
+			long observationId = obfuscator.obfuscate("Observation", id);
+			if (patientId == observationId) {
+				same++;
+			}
+			assertEquals(id, obfuscator.reveal("Patient", patientId));
+			assertEquals(id, obfuscator.reveal("Observation", observationId));
+		}
+		assertTrue(same < 5);
+	}
+
+	public void testNoCollisions() {
+		Set<Long> fhirIds = new HashSet<Long>();
+		for (long id = -5000; id <= 5000; id++) {
+			assertTrue(fhirIds.add(obfuscator.obfuscate("Condition", id)));
+		}
+	}
+
+	public void testSecretChangesIds() {
+		IdObfuscator other = new IdObfuscator("other-secret");
+		int same = 0;
+		for (long id = 1; id <= 1000; id++) {
+			if (obfuscator.obfuscate("Patient", id) == other.obfuscate("Patient", id)) {
+				same++;
+			}
+		}
+		assertTrue(same < 5);
+	}
+
+	public void testSecretIsRequired() {
+		try {
+			new IdObfuscator("");
+			fail("An empty secret was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.mapping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.gatech.chai.omopv6.dba.service.ParameterWrapper;
+import junit.framework.TestCase;
+
+public class ValueSetConceptResolverTest extends TestCase {
+	private static long[] conceptIds(int count) {
+		long[] ids = new long[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = 1000000L + i;
+		}
+		return ids;
+	}
+
+	public void testLargeValueSetIsOneClause() {
+		int count = BaseOmopResource.ID_LIST_CHUNK_SIZE * 2 + 200;
+		ParameterWrapper param = ValueSetConceptResolver.constructParameterWrapper("drugConcept.id",
+				conceptIds(count));
+
+		assertEquals(count, param.getValues().size());
+		assertEquals(count, param.getParameters().size());
+		assertEquals(count, param.getOperators().size());
+		assertEquals("or", param.getRelationship());
+		assertEquals("and", param.getUpperRelationship());
+	}
+
+	public void testCombinedFilterStaysAnded() {
+		// patient=X&code:in=<large ValueSet>, as the medication mappers build it.
+		List<ParameterWrapper> mapList = new ArrayList<ParameterWrapper>();
+		ParameterWrapper patientParam = new ParameterWrapper("Long", Arrays.asList("fPerson.id"),
+				Arrays.asList("="), Arrays.asList("7"), "or");
+		patientParam.setUpperRelationship("and");
+		mapList.add(patientParam);
+		mapList.add(ValueSetConceptResolver.constructParameterWrapper("drugConcept.id",
+				conceptIds(BaseOmopResource.ID_LIST_CHUNK_SIZE * 3)));
+
+		assertEquals(2, mapList.size());
+		for (ParameterWrapper param : mapList) {
+			assertEquals("and", param.getUpperRelationship());
+		}
+	}
+
+	public void testEmptyValueSetMatchesNothing() {
+		ParameterWrapper param = ValueSetConceptResolver.constructParameterWrapper("drugConcept.id", new long[0]);
+
+		assertEquals(Arrays.asList("-1"), param.getValues());
+		assertEquals("and", param.getUpperRelationship());
+	}
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ExpiringCacheTest extends TestCase {
+
+	public void testEvictsInInsertionOrder() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(3, 0L, 0L);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		cache.put("d", "4");
+
+		assertEquals(3, cache.size());
+		assertFalse(cache.containsKey("a"));
+		assertEquals("4", cache.getIfPresent("d"));
+		assertEquals(1L, cache.getEvictionCount());
+	}
+
+	public void testInvalidatedKeyDoesNotEvictLaterEntries() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(2, 0L, 0L);
+		cache.put("a", "1");
+		cache.invalidate("a");
+		cache.put("a", "1");
+		cache.put("b", "2");
+
+		// "a" was queued twice before. Neither entry may be evicted now.
+		assertEquals(2, cache.size());
+		assertEquals("1", cache.getIfPresent("a"));
+		assertEquals("2", cache.getIfPresent("b"));
+		assertEquals(0L, cache.getEvictionCount());
+
+		cache.put("c", "3");
+		assertFalse(cache.containsKey("a"));
+		assertTrue(cache.containsKey("b"));
+		assertTrue(cache.containsKey("c"));
+	}
+
+	public void testUncachedMissDoesNotEvictLaterEntries() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(2, 0L, 0L);
+		cache.put("a", "1");
+		// Misses are not cached. This removes "a".
+		cache.put("a", null);
+		cache.put("a", "1");
+		cache.put("b", "2");
+
+		assertEquals(2, cache.size());
+		assertTrue(cache.containsKey("a"));
+		assertTrue(cache.containsKey("b"));
+		assertEquals(0L, cache.getEvictionCount());
+	}
+
+	public void testReplacedEntryMovesToTheEnd() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(2, 0L, 0L);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("a", "3");
+		cache.put("c", "4");
+
+		assertEquals("3", cache.getIfPresent("a"));
+		assertFalse(cache.containsKey("b"));
+		assertTrue(cache.containsKey("c"));
+	}
+
+	public void testSizeBoundUnderChurn() {
+		ExpiringCache<Integer, Integer> cache = new ExpiringCache<Integer, Integer>(10, 0L, 0L);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i % 15, i);
+			if (i % 3 == 0) {
+				cache.invalidate((i + 7) % 15);
+			}
+			assertTrue(cache.size() <= 10);
+		}
+	}
+
+	public void testEntriesExpire() throws InterruptedException {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(10, 20L, 0L);
+		cache.put("a", "1");
+		assertEquals("1", cache.getIfPresent("a"));
+
+		Thread.sleep(50L);
+		assertNull(cache.getIfPresent("a"));
+		assertFalse(cache.containsKey("a"));
+		assertEquals(0, cache.size());
+	}
+
+	public void testMissesAreCachedWithNegativeTtl() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(10, 0L, 60000L);
+		final AtomicInteger loads = new AtomicInteger();
+		for (int i = 0; i < 3; i++) {
+			assertNull(cache.get("a", key -> {
+				loads.incrementAndGet();
+				return null;
+			}));
+		}
+
+		assertEquals(1, loads.get());
+		assertTrue(cache.containsKey("a"));
+	}
+
+	public void testMissesAreNotCachedWithoutNegativeTtl() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(10, 0L, 0L);
+		final AtomicInteger loads = new AtomicInteger();
+		for (int i = 0; i < 3; i++) {
+			assertNull(cache.get("a", key -> {
+				loads.incrementAndGet();
+				return null;
+			}));
+		}
+
+		assertEquals(3, loads.get());
+		assertEquals(0, cache.size());
+	}
+
+	public void testInvalidateAll() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(2, 0L, 0L);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.invalidateAll();
+		cache.put("c", "3");
+		cache.put("d", "4");
+
+		assertEquals(2, cache.size());
+		assertEquals(0L, cache.getEvictionCount());
+	}
+
+	public void testConcurrentPuts() throws InterruptedException {
+		final ExpiringCache<Integer, Integer> cache = new ExpiringCache<Integer, Integer>(100, 0L, 0L);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					int key = (i * 7 + offset) % 300;
+					cache.put(key, i);
+					if (i % 5 == 0) {
+						cache.invalidate(key);
+					}
+					cache.getIfPresent(key);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(cache.size() <= 100);
+	}
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Function;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Patient;
+
+import edu.gatech.chai.omoponfhir.omopv6.r4.model.USCorePatient;
+
+/**
+ * Compares allocation and time of the structural Patient to USCorePatient copy
+ * with the JSON round-trip. Run with
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=edu.gatech.chai.omoponfhir.omopv6.r4.utilities.ExtensionUtilBenchmark
+ */
+public class ExtensionUtilBenchmark {
+	private static final int WARMUP = 2000;
+	private static final int ITERATIONS = 20000;
+
+	public static void main(String[] args) {
+		Patient patient = samplePatient();
+
+		run("json", patient, ExtensionUtil::usCorePatientFromJson);
+		run("structural", patient, ExtensionUtil::usCorePatientFromResource);
+	}
+
+	private static void run(String name, Patient patient, Function<Patient, USCorePatient> converter) {
+		for (int i = 0; i < WARMUP; i++) {
+			converter.apply(patient);
+		}
+
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		int races = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			races += converter.apply(patient).getRace().getCategory().size();
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+		System.out.println(name + ": " + (bytes / ITERATIONS) + " bytes/op, " + (elapsed / ITERATIONS) + " ns/op ("
+				+ races + " race categories)");
+	}
+
+	private static Patient samplePatient() {
+		Patient patient = new Patient();
+		patient.setId("123");
+		patient.addIdentifier().setSystem("urn:oid:1.2.36.146.595.217.0.1").setValue("12345");
+		patient.addName().setFamily("Chalmers").addGiven("Peter").addGiven("James");
+		patient.addTelecom().setSystem(ContactPointSystem.PHONE).setValue("(03) 5555 6473");
+		patient.setGender(AdministrativeGender.MALE);
+		patient.setBirthDateElement(new DateType("1974-12-25"));
+		patient.addAddress().addLine("534 Erewhon St").setCity("PleasantVille").setState("Vic")
+				.setPostalCode("3999");
+
+		Extension race = patient.addExtension().setUrl(ExtensionUtil.US_CORE_RACE_URL);
+		race.addExtension("ombCategory", new Coding("urn:oid:2.16.840.1.113883.6.238", "2106-3", "White"));
+		Extension ethnicity = patient.addExtension().setUrl(ExtensionUtil.US_CORE_ETHNICITY_URL);
+		ethnicity.addExtension("ombCategory",
+				new Coding("urn:oid:2.16.840.1.113883.6.238", "2186-5", "Not Hispanic or Latino"));
+
+		return patient;
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LongLongMapTest extends TestCase {
+	private static final long MISSING = Long.MIN_VALUE;
+
+	public void testPutGet() {
+		LongLongMap map = new LongLongMap(4, MISSING);
+		map.put(1L, 10L);
+		map.put(-1L, -10L);
+		map.put(0L, 0L);
+		map.put(1L, 11L);
+
+		assertEquals(3, map.size());
+		assertEquals(11L, map.get(1L));
+		assertEquals(-10L, map.get(-1L));
+		assertEquals(0L, map.get(0L));
+		assertTrue(map.containsKey(0L));
+	}
+
+	public void testMissingKeyReturnsMissingValue() {
+		LongLongMap map = new LongLongMap(4, MISSING);
+		assertEquals(MISSING, map.get(42L));
+		assertFalse(map.containsKey(42L));
+
+		LongLongMap zeroMissing = new LongLongMap(4, 0L);
+		assertEquals(0L, zeroMissing.get(42L));
+	}
+
+	public void testGrowsPastExpectedSize() {
+		LongLongMap map = new LongLongMap(2, MISSING);
+		for (long i = 0; i < 10000; i++) {
+			map.put(i * 1024L, -i);
+		}
+
+		assertEquals(10000, map.size());
+		for (long i = 0; i < 10000; i++) {
+			assertEquals(-i, map.get(i * 1024L));
+		}
+		assertEquals(MISSING, map.get(1L));
+	}
+
+	public void testMatchesHashMap() {
+		LongLongMap map = new LongLongMap(8, MISSING);
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(13L);
+		for (int i = 0; i < 100000; i++) {
+			long key = random.nextLong() % 50000;
+			long value = random.nextLong();
+			map.put(key, value);
+			expected.put(key, value);
+		}
+
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+			assertEquals(entry.getValue().longValue(), map.get(entry.getKey()));
+		}
+	}
+}
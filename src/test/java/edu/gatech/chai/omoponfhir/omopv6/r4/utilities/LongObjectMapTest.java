@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LongObjectMapTest extends TestCase {
+
+	public void testPutGetRemove() {
+		LongObjectMap<String> map = new LongObjectMap<String>(4);
+		map.put(1L, "one");
+		map.put(-1L, "minus one");
+		map.put(0L, "zero");
+		map.put(1L, "uno");
+
+		assertEquals(3, map.size());
+		assertEquals("uno", map.get(1L));
+		assertEquals("minus one", map.get(-1L));
+		assertEquals("zero", map.get(0L));
+		assertNull(map.get(2L));
+		assertFalse(map.containsKey(2L));
+
+		map.remove(1L);
+		map.remove(2L);
+		assertEquals(2, map.size());
+		assertFalse(map.containsKey(1L));
+		assertTrue(map.containsKey(-1L));
+	}
+
+	public void testNullValueIsRejected() {
+		LongObjectMap<String> map = new LongObjectMap<String>(4);
+		try {
+			map.put(1L, null);
+			fail("A null value was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testClear() {
+		LongObjectMap<String> map = new LongObjectMap<String>(4);
+		for (long i = 0; i < 100; i++) {
+			map.put(i, "v" + i);
+		}
+		map.clear();
+
+		assertEquals(0, map.size());
+		assertFalse(map.containsKey(5L));
+		map.put(5L, "five");
+		assertEquals("five", map.get(5L));
+	}
+
+	public void testMatchesHashMap() {
+		LongObjectMap<Long> map = new LongObjectMap<Long>(8);
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(11L);
+		for (int i = 0; i < 200000; i++) {
+			// A small key range, so that probe chains collide and removal shifts entries.
+			long key = random.nextInt(2000) - 1000;
+			if (random.nextInt(3) == 0) {
+				map.remove(key);
+				expected.remove(key);
+			} else {
+				long value = random.nextLong();
+				map.put(key, value);
+				expected.put(key, value);
+			}
+		}
+
+		assertEquals(expected.size(), map.size());
+		for (long key = -1000; key < 1000; key++) {
+			assertEquals("key " + key, expected.get(key), map.get(key));
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+
+/**
+ * Runs TerminologyServiceClient against a stubbed local terminology server and
+ * reports how many remote fetches concurrent code:in lookups cause, and the
+ * cost of a cached lookup. Run with
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=edu.gatech.chai.omoponfhir.omopv6.r4.utilities.TerminologyServiceClientBenchmark
+ */
+public class TerminologyServiceClientBenchmark {
+	private static final String VALUESET_URL = "http://example.org/fhir/ValueSet/statins";
+	private static final int THREADS = 16;
+	private static final int ITERATIONS = 1000000;
+
+	public static void main(String[] args) throws Exception {
+		final AtomicInteger fetches = new AtomicInteger();
+		final byte[] body = StaticValues.myFhirContext.newJsonParser().encodeResourceToString(searchResult())
+				.getBytes(StandardCharsets.UTF_8);
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir/ValueSet", exchange -> {
+			fetches.incrementAndGet();
+			try {
+				// A slow terminology server, so that the lookups overlap.
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+
+		try {
+			// The stub has no CapabilityStatement.
+			StaticValues.myFhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+			String serverUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+			final TerminologyServiceClient client = new TerminologyServiceClient(serverUrl, null);
+
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(THREADS);
+			final AtomicInteger found = new AtomicInteger();
+			for (int i = 0; i < THREADS; i++) {
+				new Thread(() -> {
+					try {
+						start.await();
+						if (!client.getValueSetByUrl(VALUESET_URL).get("include").isEmpty()) {
+							found.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}).start();
+			}
+			start.countDown();
+			done.await();
+			System.out.println(THREADS + " concurrent lookups: " + fetches.get() + " remote fetch(es), " + found.get()
+					+ " found");
+
+			long startTime = System.nanoTime();
+			int includes = 0;
+			for (int i = 0; i < ITERATIONS; i++) {
+				includes += client.getValueSetByUrl(VALUESET_URL).get("include").size();
+			}
+			long elapsed = System.nanoTime() - startTime;
+			System.out.println("cached lookup: " + (elapsed / ITERATIONS) + " ns/op, " + fetches.get()
+					+ " remote fetch(es) (" + includes + ")");
+			System.out.println("cache: " + client.getCacheStats());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private static Bundle searchResult() {
+		ValueSet valueSet = new ValueSet();
+		valueSet.setId("statins");
+		valueSet.setUrl(VALUESET_URL);
+		valueSet.getCompose().addInclude().setSystem("http://www.nlm.nih.gov/research/umls/rxnorm").addConcept()
+				.setCode("36567");
+
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.SEARCHSET);
+		bundle.addEntry().setFullUrl(VALUESET_URL).setResource(valueSet);
+		return bundle;
+	}
+}
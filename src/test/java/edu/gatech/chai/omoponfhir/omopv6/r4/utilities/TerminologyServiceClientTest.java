@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv6.r4.utilities;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import junit.framework.TestCase;
+
+/**
+ * Runs TerminologyServiceClient against a stubbed terminology server.
+ */
+public class TerminologyServiceClientTest extends TestCase {
+	private static final String VALUESET_URL = "http://example.org/fhir/ValueSet/statins";
+	private static final String UNKNOWN_URL = "http://example.org/fhir/ValueSet/unknown";
+	private static final int THREADS = 16;
+
+	private HttpServer server;
+	private AtomicInteger fetches;
+	private TerminologyServiceClient client;
+
+	@Override
+	protected void setUp() throws Exception {
+		fetches = new AtomicInteger();
+		final byte[] found = encode(searchResult(true));
+		final byte[] notFound = encode(searchResult(false));
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir/ValueSet", exchange -> {
+			fetches.incrementAndGet();
+			try {
+				// A slow terminology server, so that the lookups overlap.
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			String query = exchange.getRequestURI().getRawQuery();
+			byte[] body = query != null && query.contains("statins") ? found : notFound;
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+
+		// The stub has no CapabilityStatement.
+		StaticValues.myFhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		client = new TerminologyServiceClient("http://localhost:" + server.getAddress().getPort() + "/fhir", null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop(0);
+	}
+
+	public void testConcurrentLookupsShareOneFetch() throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		final AtomicInteger foundCount = new AtomicInteger();
+		for (int i = 0; i < THREADS; i++) {
+			new Thread(() -> {
+				try {
+					start.await();
+					if (client.getValueSet(VALUESET_URL) != null) {
+						foundCount.incrementAndGet();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		start.countDown();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+
+		assertEquals(1, fetches.get());
+		assertEquals(THREADS, foundCount.get());
+
+		// Later lookups are served by the cache.
+		assertEquals(VALUESET_URL, client.getValueSet(VALUESET_URL).getUrl());
+		assertEquals(1, fetches.get());
+	}
+
+	public void testMissIsCached() {
+		assertNull(client.getValueSet(UNKNOWN_URL));
+		assertNull(client.getValueSet(UNKNOWN_URL));
+		assertEquals(1, fetches.get());
+	}
+
+	public void testLocalValueSetIsNotFetched() {
+		ValueSet valueSet = new ValueSet();
+		valueSet.setUrl("http://example.org/fhir/ValueSet/local");
+		valueSet.setVersion("1");
+		client.addValueSet(valueSet);
+
+		assertSame(valueSet, client.getValueSet("http://example.org/fhir/ValueSet/local"));
+		assertSame(valueSet, client.getValueSet("http://example.org/fhir/ValueSet/local|1"));
+		assertEquals(0, fetches.get());
+	}
+
+	private static byte[] encode(Bundle bundle) {
+		return StaticValues.myFhirContext.newJsonParser().encodeResourceToString(bundle)
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static Bundle searchResult(boolean found) {
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.SEARCHSET);
+		if (found) {
+			ValueSet valueSet = new ValueSet();
+			valueSet.setId("statins");
+			valueSet.setUrl(VALUESET_URL);
+			valueSet.getCompose().addInclude().setSystem("http://www.nlm.nih.gov/research/umls/rxnorm").addConcept()
+					.setCode("36567");
+			bundle.addEntry().setFullUrl(VALUESET_URL).setResource(valueSet);
+		}
+		return bundle;
+	}
+}